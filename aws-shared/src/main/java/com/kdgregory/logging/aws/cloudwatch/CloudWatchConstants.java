@@ -42,6 +42,26 @@ public class CloudWatchConstants
     public final static int MESSAGE_OVERHEAD = 26;
 
 
+    /**
+     *  Maximum difference between the timestamps of the oldest and newest events
+     *  in a single batch (24 hours).
+     */
+    public final static long MAX_BATCH_TIMESPAN = 24 * 60 * 60 * 1000L;
+
+
+    /**
+     *  Maximum age of an event, relative to the time that it's sent (14 days).
+     */
+    public final static long MAX_MESSAGE_AGE = 14 * 24 * 60 * 60 * 1000L;
+
+
+    /**
+     *  Maximum amount that an event's timestamp may be in the future, relative to
+     *  the time that it's sent (2 hours).
+     */
+    public final static long MAX_MESSAGE_FUTURE = 2 * 60 * 60 * 1000L;
+
+
     /**
      *  Used to validate log stream names.
      */
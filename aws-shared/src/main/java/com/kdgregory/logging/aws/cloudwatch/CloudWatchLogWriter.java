@@ -17,12 +17,15 @@ package com.kdgregory.logging.aws.cloudwatch;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Pattern;
 
 import com.amazonaws.services.logs.AWSLogs;
 import com.amazonaws.services.logs.model.*;
 
 import com.kdgregory.logging.aws.internal.AbstractLogWriter;
+import com.kdgregory.logging.aws.internal.Backoff;
 import com.kdgregory.logging.aws.internal.Utils;
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.factories.ClientFactory;
@@ -32,12 +35,42 @@ import com.kdgregory.logging.common.util.InternalLogger;
 public class CloudWatchLogWriter
 extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSLogs>
 {
+    // limits the number of calls made to isolate a rejected event: a full batch will
+    // be split into sub-batches of no fewer than MAX_BATCH_COUNT / 2^10 messages
+    private final static int MAX_SPLIT_DEPTH = 10;
+
+    // CloudWatch's errors for individual events ("Log event too large", "Log events
+    // in a single PutLogEvents request must be in chronological order", and so on)
+    // all start with this; it's compared without regard to case
+    private final static String EVENT_ERROR_PREFIX = "log event";
+
+    // the streams that we write to; each batch takes an idle stream for the duration
+    // of its send, so that different streams may be written concurrently but each has
+    // only one call (and therefore one sequence token) in flight
+    private List<LogStreamState> logStreams = new ArrayList<LogStreamState>();
+    private BlockingQueue<LogStreamState> idleLogStreams;
+
+
     public CloudWatchLogWriter(CloudWatchWriterConfig config, CloudWatchWriterStatistics stats, InternalLogger logger, ClientFactory<AWSLogs> clientFactory)
     {
         super(config, stats, logger, clientFactory);
 
+        int streamCount = Math.max(1, config.logStreamCount);
+        StringBuilder streamNames = new StringBuilder();
+        for (int ii = 0 ; ii < streamCount ; ii++)
+        {
+            String streamName = (streamCount == 1)
+                              ? config.logStreamName
+                              : config.logStreamName + "-" + ii;
+            logStreams.add(new LogStreamState(streamName));
+            if (ii > 0)
+                streamNames.append(",");
+            streamNames.append(streamName);
+        }
+        idleLogStreams = new LinkedBlockingQueue<LogStreamState>(logStreams);
+
         this.stats.setActualLogGroupName(config.logGroupName);
-        this.stats.setActualLogStreamName(config.logStreamName);
+        this.stats.setActualLogStreamName(streamNames.toString());
     }
 
 //----------------------------------------------------------------------------
@@ -53,29 +86,22 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
             return false;
         }
 
-        if (! Pattern.matches(CloudWatchConstants.ALLOWED_STREAM_NAME_REGEX, config.logStreamName))
+        for (LogStreamState stream : logStreams)
         {
-            reportError("invalid log stream name: " + config.logStreamName, null);
-            return false;
+            if (! Pattern.matches(CloudWatchConstants.ALLOWED_STREAM_NAME_REGEX, stream.name))
+            {
+                reportError("invalid log stream name: " + stream.name, null);
+                return false;
+            }
         }
 
         try
         {
-            LogGroup logGroup = findLogGroup();
-            if (logGroup == null)
+            ensureLogGroupAvailable();
+            for (LogStreamState stream : logStreams)
             {
-                logger.debug("creating CloudWatch log group: " + config.logGroupName);
-                createLogGroup();
+                ensureLogStreamAvailable(stream);
             }
-
-
-            LogStream logStream = findLogStream();
-            if (logStream == null)
-            {
-                logger.debug("creating CloudWatch log stream: " + config.logStreamName);
-                createLogStream();
-            }
-
             return true;
         }
         catch (Exception ex)
@@ -90,7 +116,19 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
     protected List<LogMessage> processBatch(List<LogMessage> currentBatch)
     {
         Collections.sort(currentBatch);
-        return attemptToSend(currentBatch);
+        List<LogMessage> batch = removeOutOfRangeMessages(currentBatch);
+
+        // the superclass never has more batches in flight than there are streams,
+        // so there's always one available
+        LogStreamState stream = idleLogStreams.poll();
+        try
+        {
+            return attemptToSend(batch, stream);
+        }
+        finally
+        {
+            idleLogStreams.add(stream);
+        }
     }
 
 
@@ -109,6 +147,21 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
     }
 
 
+    @Override
+    protected long maxBatchTimespan()
+    {
+        return CloudWatchConstants.MAX_BATCH_TIMESPAN;
+    }
+
+
+    @Override
+    protected int maxConcurrentBatches()
+    {
+        // each stream has its own sequence token, so they can be written concurrently
+        return logStreams.size();
+    }
+
+
     @Override
     protected void stopAWSClient()
     {
@@ -119,14 +172,61 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
 //  Internals
 //----------------------------------------------------------------------------
 
-    private List<LogMessage> attemptToSend(List<LogMessage> batch)
+    /**
+     *  Removes messages that CloudWatch won't accept because they're too old or too
+     *  far in the future, and counts them. Since these can never be sent, they're
+     *  discarded rather than returned for retry. The passed batch must be sorted.
+     */
+    private List<LogMessage> removeOutOfRangeMessages(List<LogMessage> batch)
+    {
+        long now = System.currentTimeMillis();
+        long minTimestamp = now - CloudWatchConstants.MAX_MESSAGE_AGE;
+        long maxTimestamp = now + CloudWatchConstants.MAX_MESSAGE_FUTURE;
+
+        int start = 0;
+        while ((start < batch.size()) && (batch.get(start).getTimestamp() < minTimestamp))
+            start++;
+
+        int end = batch.size();
+        while ((end > start) && (batch.get(end - 1).getTimestamp() > maxTimestamp))
+            end--;
+
+        if ((start == 0) && (end == batch.size()))
+            return batch;
+
+        int tooNew = batch.size() - end;
+        stats.updateMessagesOutOfRange(start, tooNew);
+        logger.warn("discarded " + start + " message(s) too old and " + tooNew
+                    + " message(s) too far in the future for CloudWatch");
+        return new ArrayList<LogMessage>(batch.subList(start, end));
+    }
+
+
+    /**
+     *  Sends a batch to the specified stream, using the sequence token returned by
+     *  the previous send. We only describe the stream to get a token when we don't
+     *  have one: at startup, or after an error that means the one we have isn't (or
+     *  might not be) valid.
+     *  <p>
+     *  If CloudWatch rejects the batch as invalid, it's probably due to a message
+     *  that we can't detect in advance (for example, older than the log group's
+     *  retention period), so we split the batch and send each half separately;
+     *  a single message that's rejected is discarded.
+     */
+    private List<LogMessage> attemptToSend(List<LogMessage> batch, LogStreamState stream)
+    {
+        return attemptToSend(batch, stream, 0);
+    }
+
+
+    private List<LogMessage> attemptToSend(List<LogMessage> batch, LogStreamState stream, int splitDepth)
     {
         if (batch.isEmpty())
             return batch;
 
         PutLogEventsRequest request = new PutLogEventsRequest()
                                       .withLogGroupName(config.logGroupName)
-                                      .withLogStreamName(config.logStreamName)
+                                      .withLogStreamName(stream.name)
                                       .withLogEvents(constructLogEvents(batch));
 
         // sending is all-or-nothing with CloudWatch: if we receive any error
@@ -134,37 +234,66 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
         // which we'll retry a few times before giving up because it should resolve
         // itself
 
+        Backoff backoff = new Backoff(100, 2000);
         for (int ii = 0 ; ii < 5 ; ii++)
         {
-            // if we can't find the stream we'll try to re-create it
-            LogStream stream = findLogStream();
-            if (stream == null)
+            if (! stream.sequenceTokenValid)
             {
-                reportError("log stream missing: " + config.logStreamName, null);
-                ensureDestinationAvailable();
-                return batch;
+                // if we can't find the stream we'll try to re-create it
+                LogStream description = findLogStream(stream.name);
+                if (description == null)
+                {
+                    reportError("log stream missing: " + stream.name, null);
+                    recreateLogStream(stream);
+                    return batch;
+                }
+                stream.setSequenceToken(description.getUploadSequenceToken());
             }
 
             try
             {
-                request.setSequenceToken(stream.getUploadSequenceToken());
-                client.putLogEvents(request);
-                stats.updateMessagesSent(batch.size());
+                request.setSequenceToken(stream.sequenceToken);
+                long start = System.currentTimeMillis();
+                stats.updatePutLogEventsCalls();
+                PutLogEventsResult response = client.putLogEvents(request);
+                stats.recordServiceLatency(System.currentTimeMillis() - start);
+                stream.setSequenceToken(response.getNextSequenceToken());
+                int rejected = countRejectedEvents(response.getRejectedLogEventsInfo(), batch.size());
+                stats.updateMessagesSent(batch.size() - rejected);
                 return Collections.emptyList();
             }
+            catch (InvalidParameterException ex)
+            {
+                if (isEventError(ex))
+                    return splitAndSend(batch, stream, splitDepth, ex);
+
+                reportError("failed to send batch", ex);
+                return batch;
+            }
             catch (InvalidSequenceTokenException ex)
             {
+                stream.invalidateSequenceToken();
                 stats.updateWriterRaceRetries();
-                Utils.sleepQuietly(100);
+                backoff.sleep();
                 // continue retry loop
             }
+            catch (ResourceNotFoundException ex)
+            {
+                stream.invalidateSequenceToken();
+                reportError("log stream missing: " + stream.name, null);
+                recreateLogStream(stream);
+                return batch;
+            }
             catch (DataAlreadyAcceptedException ex)
             {
+                stream.invalidateSequenceToken();
                 reportError("received DataAlreadyAcceptedException, dropping batch", ex);
                 return Collections.emptyList();
             }
             catch (Exception ex)
             {
+                // we don't know whether the call succeeded, so can't trust our token
+                stream.invalidateSequenceToken();
                 reportError("failed to send batch", ex);
                 return batch;
             }
@@ -176,6 +305,76 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
     }
 
 
+    /**
+     *  Determines whether CloudWatch rejected a batch because of one of its events.
+     *  This should be rare: the batch has already been sorted and checked against
+     *  the size, timespan, and age limits, and events that CloudWatch ignores are
+     *  reported in the response rather than as an exception. Any other invalid
+     *  parameter is a problem with the request as a whole, and splitting the batch
+     *  won't fix it.
+     */
+    private static boolean isEventError(InvalidParameterException ex)
+    {
+        String message = ex.getErrorMessage();
+        return (message != null)
+            && message.toLowerCase().startsWith(EVENT_ERROR_PREFIX);
+    }
+
+
+    /**
+     *  Handles a batch that CloudWatch rejected because of one or more of its
+     *  events, by splitting it in half and sending each half. Recursion stops at
+     *  a single message or when the batch has been split {@link #MAX_SPLIT_DEPTH}
+     *  times; the messages in that (sub-)batch are discarded, so that one bad
+     *  event can't block the writer. Returns any messages that should be retried.
+     */
+    private List<LogMessage> splitAndSend(List<LogMessage> batch, LogStreamState stream, int splitDepth, InvalidParameterException ex)
+    {
+        if ((batch.size() == 1) || (splitDepth >= MAX_SPLIT_DEPTH))
+        {
+            stats.updateMessagesRejected(batch.size());
+            reportError("discarding " + batch.size() + " message(s) rejected by CloudWatch", ex);
+            return Collections.emptyList();
+        }
+
+        int split = batch.size() / 2;
+        List<LogMessage> failures = new ArrayList<LogMessage>();
+        failures.addAll(attemptToSend(new ArrayList<LogMessage>(batch.subList(0, split)), stream, splitDepth + 1));
+        failures.addAll(attemptToSend(new ArrayList<LogMessage>(batch.subList(split, batch.size())), stream, splitDepth + 1));
+        return failures;
+    }
+
+
+    /**
+     *  CloudWatch accepts a batch that contains events that are too old or too new,
+     *  but ignores those events and tells us about them in the response. This
+     *  updates statistics and returns the number of ignored events. The indexes are
+     *  exclusive: the "end" index is the number of old events.
+     */
+    private int countRejectedEvents(RejectedLogEventsInfo info, int batchSize)
+    {
+        if (info == null)
+            return 0;
+
+        int tooOld = Math.max(intValue(info.getTooOldLogEventEndIndex(), 0),
+                              intValue(info.getExpiredLogEventEndIndex(), 0));
+        int tooNew = batchSize - intValue(info.getTooNewLogEventStartIndex(), batchSize);
+        if (tooOld + tooNew == 0)
+            return 0;
+
+        stats.updateMessagesOutOfRange(tooOld, tooNew);
+        logger.warn("CloudWatch ignored " + tooOld + " message(s) too old and " + tooNew
+                    + " message(s) too far in the future");
+        return tooOld + tooNew;
+    }
+
+
+    private static int intValue(Integer value, int defaultValue)
+    {
+        return (value != null) ? value.intValue() : defaultValue;
+    }
+
+
     private List<InputLogEvent> constructLogEvents(List<LogMessage> batch)
     {
         List<InputLogEvent> result = new ArrayList<InputLogEvent>(batch.size());
@@ -190,6 +389,54 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
     }
 
 
+    private void ensureLogGroupAvailable()
+    {
+        LogGroup logGroup = findLogGroup();
+        if (logGroup == null)
+        {
+            logger.debug("creating CloudWatch log group: " + config.logGroupName);
+            createLogGroup();
+        }
+    }
+
+
+    /**
+     *  Verifies that the stream exists, creating it if necessary, and retrieves its
+     *  sequence token.
+     */
+    private void ensureLogStreamAvailable(LogStreamState stream)
+    {
+        LogStream logStream = findLogStream(stream.name);
+        if (logStream == null)
+        {
+            logger.debug("creating CloudWatch log stream: " + stream.name);
+            logStream = createLogStream(stream.name);
+        }
+
+        if (logStream != null)
+            stream.setSequenceToken(logStream.getUploadSequenceToken());
+        else
+            stream.invalidateSequenceToken();
+    }
+
+
+    /**
+     *  Called when a stream has disappeared after startup.
+     */
+    private void recreateLogStream(LogStreamState stream)
+    {
+        try
+        {
+            ensureLogGroupAvailable();
+            ensureLogStreamAvailable(stream);
+        }
+        catch (Exception ex)
+        {
+            reportError("unable to configure log group/stream", ex);
+        }
+    }
+
+
     private LogGroup findLogGroup()
     {
         DescribeLogGroupsRequest request = new DescribeLogGroupsRequest().withLogGroupNamePrefix(config.logGroupName);
@@ -211,6 +458,7 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
 
     private void createLogGroup()
     {
+        Backoff backoff = new Backoff(250, 5000);
         while (true)
         {
             try
@@ -234,24 +482,25 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
             catch (OperationAbortedException ex)
             {
                 // someone else is trying to create it, wait and try again
-                Utils.sleepQuietly(250);
+                backoff.sleep();
             }
         }
     }
 
 
-    private LogStream findLogStream()
+    private LogStream findLogStream(String streamName)
     {
         DescribeLogStreamsRequest request = new DescribeLogStreamsRequest()
                                             .withLogGroupName(config.logGroupName)
-                                            .withLogStreamNamePrefix(config.logStreamName);
+                                            .withLogStreamNamePrefix(streamName);
         DescribeLogStreamsResult result;
         do
         {
+            stats.updateDescribeLogStreamsCalls();
             result = client.describeLogStreams(request);
             for (LogStream stream : result.getLogStreams())
             {
-                if (stream.getLogStreamName().equals(config.logStreamName))
+                if (stream.getLogStreamName().equals(streamName))
                     return stream;
             }
             request.setNextToken(result.getNextToken());
@@ -260,19 +509,24 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
     }
 
 
-    private void createLogStream()
+    /**
+     *  Creates the log stream and waits for it to become available, returning its
+     *  description. If another process created the stream first, returns null.
+     */
+    private LogStream createLogStream(String streamName)
     {
         try
         {
             CreateLogStreamRequest request = new CreateLogStreamRequest()
                                              .withLogGroupName(config.logGroupName)
-                                             .withLogStreamName(config.logStreamName);
+                                             .withLogStreamName(streamName);
             client.createLogStream(request);
 
             for (int ii = 0 ; ii < 300 ; ii++)
             {
-                if (findLogStream() != null)
-                    return;
+                LogStream stream = findLogStream(streamName);
+                if (stream != null)
+                    return stream;
                 else
                     Utils.sleepQuietly(100);
             }
@@ -280,8 +534,43 @@ extends AbstractLogWriter<CloudWatchWriterConfig,CloudWatchWriterStatistics,AWSL
         }
         catch (ResourceAlreadyExistsException ex)
         {
-            // somebody else created it
-            return;
+            // somebody else created it, and may have written to it
+            return null;
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Per-stream state
+//----------------------------------------------------------------------------
+
+    /**
+     *  Holds the name of a destination stream, and the token for the next call to
+     *  PutLogEvents, as returned by the previous call. A new stream doesn't have a
+     *  token, so there's a separate flag that says whether the token is valid. The
+     *  fields are volatile because successive batches may be sent by different
+     *  threads.
+     */
+    private static class LogStreamState
+    {
+        public final String name;
+        public volatile String sequenceToken;
+        public volatile boolean sequenceTokenValid;
+
+        public LogStreamState(String name)
+        {
+            this.name = name;
+        }
+
+        public void setSequenceToken(String value)
+        {
+            sequenceToken = value;
+            sequenceTokenValid = true;
+        }
+
+        public void invalidateSequenceToken()
+        {
+            sequenceToken = null;
+            sequenceTokenValid = false;
         }
     }
 }
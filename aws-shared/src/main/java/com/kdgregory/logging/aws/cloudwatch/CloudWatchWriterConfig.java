@@ -26,6 +26,9 @@ extends AbstractWriterConfig
     public String logGroupName;
     public String logStreamName;
 
+    // optional, set by appender after construction
+    public int    logStreamCount = 1;
+
 
     /**
      *  @param actualLogGroup       Name of the log group, with all substitutions applied.
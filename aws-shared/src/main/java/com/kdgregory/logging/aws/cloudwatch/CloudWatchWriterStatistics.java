@@ -13,17 +13,18 @@
 
 package com.kdgregory.logging.aws.cloudwatch;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
 
 import com.kdgregory.logging.aws.internal.AbstractWriterStatistics;
+import com.kdgregory.logging.common.util.StripedCounter;
 
 /**
  *  Statistics specific to the CloudWatch appender.
  *  <p>
- *  Since it's possible that there may be multiple logwriters alive at once, we
- *  need to synchronize any methods that update a statistic. Simple writes are
- *  fine just being volatile (in general, those fields will only be set when the
- *  writer is created).
+ *  Since it's possible that there may be multiple logwriters alive at once, any
+ *  statistic that's updated (rather than set) is held in a striped counter. Simple
+ *  writes are fine just being volatile (in general, those fields will only be set
+ *  when the writer is created).
  */
 public class CloudWatchWriterStatistics
 extends AbstractWriterStatistics
@@ -31,8 +32,13 @@ implements CloudWatchWriterStatisticsMXBean
 {
     private volatile String  actualLogGroupName;
     private volatile String  actualLogStreamName;
-    private volatile AtomicInteger writerRaceRetries = new AtomicInteger(0);
-    private volatile AtomicInteger unrecoveredWriterRaceRetries = new AtomicInteger(0);
+    private StripedCounter writerRaceRetries = new StripedCounter();
+    private StripedCounter unrecoveredWriterRaceRetries = new StripedCounter();
+    private StripedCounter describeLogStreamsCalls = new StripedCounter();
+    private StripedCounter putLogEventsCalls = new StripedCounter();
+    private StripedCounter messagesTooOld = new StripedCounter();
+    private StripedCounter messagesTooNew = new StripedCounter();
+    private StripedCounter messagesRejected = new StripedCounter();
 
 
     @Override
@@ -62,34 +68,131 @@ implements CloudWatchWriterStatisticsMXBean
 
 
     @Override
-    public int getMessagesDiscardedByCurrentWriter()
+    public long getMessagesDiscardedByCurrentWriter()
     {
         return super.getMessagesDiscarded();
     }
 
 
     @Override
-    public int getWriterRaceRetries()
+    public long getWriterRaceRetries()
     {
-        return writerRaceRetries.get();
+        return writerRaceRetries.sum();
     }
 
 
     public void updateWriterRaceRetries()
     {
-        writerRaceRetries.incrementAndGet();
+        writerRaceRetries.increment();
     }
 
 
     @Override
-    public int getUnrecoveredWriterRaceRetries()
+    public long getUnrecoveredWriterRaceRetries()
     {
-        return unrecoveredWriterRaceRetries.get();
+        return unrecoveredWriterRaceRetries.sum();
     }
 
 
     public void updateUnrecoveredWriterRaceRetries()
     {
-        unrecoveredWriterRaceRetries.incrementAndGet();
+        unrecoveredWriterRaceRetries.increment();
+    }
+
+
+    @Override
+    public long getDescribeLogStreamsCalls()
+    {
+        return describeLogStreamsCalls.sum();
+    }
+
+
+    public void updateDescribeLogStreamsCalls()
+    {
+        describeLogStreamsCalls.increment();
+    }
+
+
+    @Override
+    public long getPutLogEventsCalls()
+    {
+        return putLogEventsCalls.sum();
+    }
+
+
+    public void updatePutLogEventsCalls()
+    {
+        putLogEventsCalls.increment();
+    }
+
+
+    @Override
+    public double getDescribeToPutRatio()
+    {
+        return describeToPutRatio(getDescribeLogStreamsCalls(), getPutLogEventsCalls());
+    }
+
+
+    @Override
+    public long getMessagesTooOld()
+    {
+        return messagesTooOld.sum();
+    }
+
+
+    @Override
+    public long getMessagesTooNew()
+    {
+        return messagesTooNew.sum();
+    }
+
+
+    /**
+     *  Called by the writer when it discards messages that are outside the time
+     *  range accepted by CloudWatch, or CloudWatch ignores them.
+     */
+    public void updateMessagesOutOfRange(int tooOld, int tooNew)
+    {
+        messagesTooOld.add(tooOld);
+        messagesTooNew.add(tooNew);
+    }
+
+
+    @Override
+    public long getMessagesRejected()
+    {
+        return messagesRejected.sum();
+    }
+
+
+    public void updateMessagesRejected(int count)
+    {
+        messagesRejected.add(count);
+    }
+
+
+    private static double describeToPutRatio(long describes, long puts)
+    {
+        return (puts == 0) ? 0.0 : (double)describes / puts;
+    }
+
+
+    @Override
+    protected void addToSnapshot(Map<String,Object> snapshot)
+    {
+        snapshot.put("ActualLogGroupName",              actualLogGroupName);
+        snapshot.put("ActualLogStreamName",             actualLogStreamName);
+        snapshot.put("WriterRaceRetries",               Long.valueOf(getWriterRaceRetries()));
+        snapshot.put("UnrecoveredWriterRaceRetries",    Long.valueOf(getUnrecoveredWriterRaceRetries()));
+
+        // read once so that the ratio is consistent with the counts
+        long describes = getDescribeLogStreamsCalls();
+        long puts = getPutLogEventsCalls();
+        snapshot.put("DescribeLogStreamsCalls",         Long.valueOf(describes));
+        snapshot.put("PutLogEventsCalls",               Long.valueOf(puts));
+        snapshot.put("DescribeToPutRatio",              Double.valueOf(describeToPutRatio(describes, puts)));
+        snapshot.put("MessagesTooOld",                  Long.valueOf(getMessagesTooOld()));
+        snapshot.put("MessagesTooNew",                  Long.valueOf(getMessagesTooNew()));
+        snapshot.put("MessagesRejected",                Long.valueOf(getMessagesRejected()));
     }
 }
@@ -15,6 +15,7 @@ package com.kdgregory.logging.aws.cloudwatch;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  *  Defines the JMX Bean interface for {@link CloudWatchWriterStatistics}.
@@ -29,6 +30,7 @@ public interface CloudWatchWriterStatisticsMXBean
 
     /**
      *  Returns the actual log stream name for the appender, after substitutions.
+     *  If writing to multiple streams, this is a comma-separated list of names.
      */
     String getActualLogStreamName();
 
@@ -59,14 +61,136 @@ public interface CloudWatchWriterStatisticsMXBean
      *  Returns the number of messages successfully sent to the logstream, by all
      *  writers.
      */
-    int getMessagesSent();
+    long getMessagesSent();
+
+
+    /**
+     *  Returns the batch delay, in milliseconds, currently used by the writer.
+     */
+    long getCurrentBatchDelay();
+
+
+    /**
+     *  Returns the state of the writer's circuit breaker: "closed", "open", or
+     *  "halfOpen".
+     */
+    String getCircuitBreakerState();
+
+
+    /**
+     *  Returns the number of times that the writer's circuit breaker has opened.
+     */
+    int getCircuitBreakerOpenCount();
 
 
     /**
      *  Returns the number of messages discarded by the current writer's message queue.
      *  Note that writer rotation (which can happen due to errors) will reset this.
      */
-    int getMessagesDiscardedByCurrentWriter();
+    long getMessagesDiscardedByCurrentWriter();
+
+
+    /**
+     *  Returns the number of messages currently waiting to be sent, including any
+     *  that have been spilled to disk.
+     */
+    int getMessagesQueued();
+
+
+    /**
+     *  Returns the total size, in bytes, of the messages currently waiting to be sent
+     *  that are held in memory.
+     */
+    long getMessageBytesQueued();
+
+
+    /**
+     *  Returns the number of messages currently spilled to disk, waiting to be sent.
+     */
+    int getMessagesSpilled();
+
+
+    /**
+     *  Returns the number of appends that had to wait for room in the message queue.
+     */
+    long getMessagesBlocked();
+
+
+    /**
+     *  Returns the total number of milliseconds that appends have waited for room
+     *  in the message queue.
+     */
+    long getBlockedTime();
+
+
+    /**
+     *  Returns the number of messages currently held in memory, keyed by severity.
+     */
+    Map<String,Integer> getMessagesQueuedBySeverity();
+
+
+    /**
+     *  Returns the number of messages discarded by the current writer, keyed by severity.
+     */
+    Map<String,Long> getMessagesDiscardedBySeverity();
+
+
+    /**
+     *  Returns a histogram of end-to-end message latency: the number of milliseconds
+     *  from when a message was queued until it was sent. Keys are the range of each
+     *  bucket (eg, "256-511"), values are the number of messages in that range.
+     */
+    Map<String,Long> getQueueLatencyHistogram();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of end-to-end
+     *  message latency, in milliseconds.
+     */
+    Map<String,Long> getQueueLatencyPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, that messages waited in the queue before being added to a batch.
+     */
+    Map<String,Long> getQueueWaitPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the number of
+     *  messages in each batch.
+     */
+    Map<String,Long> getBatchSizePercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the size of each
+     *  batch, in bytes.
+     */
+    Map<String,Long> getBatchBytesPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, taken by successful calls to the service.
+     */
+    Map<String,Long> getServiceLatencyPercentiles();
+
+
+    /**
+     *  Clears all histograms and percentiles, starting a new measurement window.
+     */
+    void resetHistograms();
+
+
+    /**
+     *  Returns all of the writer's statistics, keyed by attribute name, as read in a
+     *  single pass. Use this rather than reading individual attributes when you need
+     *  values that were read at the same time (for example, to calculate rates).
+     *  Values are strings; timestamps are ISO-8601 UTC.
+     */
+    Map<String,String> getSnapshot();
 
 
     /**
@@ -76,7 +200,7 @@ public interface CloudWatchWriterStatisticsMXBean
      *  once can use it. This may happen when there are many instances that are started
      *  at the same time or have a low batch delay.
      */
-    int getWriterRaceRetries();
+    long getWriterRaceRetries();
 
 
     /**
@@ -87,5 +211,51 @@ public interface CloudWatchWriterStatisticsMXBean
      *  concurrently accessing the same stream. Either increase batch delay or (better)
      *  direct output to different streams.
      */
-    int getUnrecoveredWriterRaceRetries();
+    long getUnrecoveredWriterRaceRetries();
+
+
+    /**
+     *  Returns the number of <code>DescribeLogStreams</code> calls made by the writer
+     *  (each page of results is a separate call). The writer describes the stream at
+     *  startup and after errors that invalidate its cached sequence token.
+     */
+    long getDescribeLogStreamsCalls();
+
+
+    /**
+     *  Returns the number of <code>PutLogEvents</code> calls made by the writer,
+     *  including those that failed.
+     */
+    long getPutLogEventsCalls();
+
+
+    /**
+     *  Returns <code>DescribeLogStreamsCalls</code> divided by <code>PutLogEventsCalls</code>.
+     *  This should be close to 0 for a long-running writer; a value approaching or
+     *  above 1 indicates frequent sequence-token errors (typically writer races).
+     */
+    double getDescribeToPutRatio();
+
+
+    /**
+     *  Returns the number of messages that were discarded because their timestamps
+     *  were too old for CloudWatch (more than 14 days, or older than the log group's
+     *  retention period).
+     */
+    long getMessagesTooOld();
+
+
+    /**
+     *  Returns the number of messages that were discarded because their timestamps
+     *  were more than two hours in the future.
+     */
+    long getMessagesTooNew();
+
+
+    /**
+     *  Returns the number of messages that were discarded because CloudWatch rejected
+     *  them as invalid. The writer splits rejected batches to isolate these messages,
+     *  so that they don't prevent other messages from being sent.
+     */
+    long getMessagesRejected();
 }
@@ -14,13 +14,28 @@
 
 package com.kdgregory.logging.aws.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.kdgregory.logging.common.LogMessage;
-import com.kdgregory.logging.common.LogWriter;
+import com.kdgregory.logging.common.ScheduledLogWriter;
 import com.kdgregory.logging.common.factories.ClientFactory;
+import com.kdgregory.logging.common.util.BatchBuilder;
 import com.kdgregory.logging.common.util.DiscardAction;
 import com.kdgregory.logging.common.util.InternalLogger;
 import com.kdgregory.logging.common.util.MessageQueue;
@@ -28,6 +43,29 @@ import com.kdgregory.logging.common.util.MessageQueue;
 
 /**
  *  Manages common LogWriter activities.
+ *  <p>
+ *  By default, the writer thread builds a batch, sends it, and only then starts
+ *  to build the next batch. If the configuration enables pipelining, or if the
+ *  subclass allows multiple batches in flight (see {@link #maxConcurrentBatches}),
+ *  batches are instead sent by a pool of background threads, and the writer thread
+ *  starts on the next batch as soon as it has handed off the current one. With one
+ *  batch in flight, sends remain serial but overlap with batch assembly; with more,
+ *  the subclass must be able to process multiple batches concurrently, and there's
+ *  no guarantee of ordering between batches.
+ *  <p>
+ *  If the configuration specifies a maximum batch delay, the delay is adjusted
+ *  between the minimum and maximum values by an {@link AdaptiveBatchDelay}; the
+ *  configured <code>batchDelay</code> is used as the starting value.
+ *  <p>
+ *  If the configuration specifies a maximum latency, a batch is sent early if
+ *  waiting for the rest of the batch delay would cause its oldest message to
+ *  arrive late, allowing for the time taken by the most recent send. Latency is
+ *  measured from when the message was first queued, so includes any time that
+ *  it spent waiting behind a backlog or for a failed batch to be retried.
+ *  <p>
+ *  The writer may be run on its own thread, in which case it blocks waiting for
+ *  messages, or by a shared scheduler that calls {@link #runOnce}, in which case
+ *  it never waits for messages; see {@link ScheduledLogWriter}.
  */
 public abstract class AbstractLogWriter
 <
@@ -35,7 +73,7 @@ public abstract class AbstractLogWriter
     StatsType extends AbstractWriterStatistics,
     AWSClientType
 >
-implements LogWriter
+implements ScheduledLogWriter
 {
     // these three are provided to constructor, used both here and in subclass
     protected ConfigType config;
@@ -52,9 +90,64 @@ implements LogWriter
     private MessageQueue messageQueue;
     private Thread dispatchThread;
 
+    // null unless adaptive batch delay is enabled
+    private AdaptiveBatchDelay adaptiveDelay;
+
+    // used to estimate when a batch must be sent to meet the maximum latency
+    private volatile long lastSendLatency;
+
+    // null if disabled; shared with sender threads
+    private CircuitBreaker circuitBreaker;
+
+    // how long to wait for a circuit-breaker probe before checking again
+    private final static long PROBE_WAIT = 100;
+
+    // when scheduled, how long (and how often) we retry opening a write-ahead log
+    // that's held by a previous writer; matches the wait for a dedicated thread
+    private final static long WAL_LOCK_WAIT = 30000;
+    private final static long WAL_LOCK_RETRY_INTERVAL = 100;
+
+    // set while the writer thread sleeps because the breaker is open
+    private volatile boolean waitingForCircuitBreaker;
+
+    // these are created by run() when pipelining is enabled, otherwise null
+    private ExecutorService sender;
+    private Semaphore inFlight;
+    private int maxInFlight;
+
+    // the effective size of an empty message; lazily calculated (the calculation is
+    // idempotent, so we don't care if multiple threads do it)
+    private volatile int minMessageSize = -1;
+
+    // when scheduled, sender threads are released after this many seconds idle
+    private final static long SCHEDULED_SENDER_KEEPALIVE = 60;
+
+    // these are used when run by a shared scheduler; the listener and flags are used
+    // by other threads to signal the scheduler, the rest only by runOnce(), except
+    // the initialization result, which is set by the sender thread
+    private volatile Runnable wakeupListener;
+    private volatile Boolean initializationResult;
+    private AtomicBoolean idle = new AtomicBoolean();
+    private volatile boolean waitingForBatch;
+    private boolean started;
+    private long walLockDeadline;
+    private long idleSince;
+    private long batchReadyAt;
+    private long batchWaitTime;
+
     // updated by stop()
     private volatile long shutdownTime = Long.MAX_VALUE;
 
+    // flush requests are numbered; the writer thread records the last one that it
+    // completed (all are updated while holding the lock, which is used for notify);
+    // a request is complete once the messages enqueued before it have been sent or
+    // discarded, as measured by the queue's enqueued count at the time of request
+    private Object flushLock = new Object();
+    private volatile long flushRequested;
+    private volatile long flushCompleted;
+    private volatile long flushWatermark;
+    private volatile boolean writerExited;
+
     // these can be read via accessor methods; they're intended for testing
     private volatile boolean initializationComplete;
     private volatile int batchCount;
@@ -67,8 +160,25 @@ implements LogWriter
         this.logger = logger;
         this.clientFactory = clientFactory;
 
-        messageQueue = new MessageQueue(config.discardThreshold, config.discardAction);
+        messageQueue = new MessageQueue(config.discardThreshold, config.discardAction, config.queueType, config.priorityLanes);
+        messageQueue.setDiscardThresholdBytes(config.discardThresholdBytes);
+        messageQueue.setEnqueueTimeout(config.enqueueTimeout);
+        if ((config.spillDirectory != null) && (config.spillDirectory.length() > 0))
+        {
+            messageQueue.enableSpill(new File(config.spillDirectory), config.spillMaxBytes);
+        }
         this.stats.setMessageQueue(messageQueue);
+
+        if (config.maxBatchDelay > 0)
+        {
+            adaptiveDelay = new AdaptiveBatchDelay(config.minBatchDelay, config.maxBatchDelay, config.batchDelay);
+        }
+        this.stats.setCurrentBatchDelay(currentBatchDelay());
+
+        if (config.circuitBreakerThreshold > 0)
+        {
+            circuitBreaker = new CircuitBreaker(config.circuitBreakerThreshold, config.circuitBreakerMinInterval, config.circuitBreakerMaxInterval);
+        }
     }
 
 //----------------------------------------------------------------------------
@@ -76,7 +186,7 @@ implements LogWriter
 //----------------------------------------------------------------------------
 
     /**
-     *  Returns the current batch delay. This is intended for testing.
+     *  Returns the configured batch delay. This is intended for testing.
      */
     public long getBatchDelay()
     {
@@ -84,6 +194,16 @@ implements LogWriter
     }
 
 
+    /**
+     *  Returns the batch delay that will be used for the next batch: either the
+     *  configured delay, or the current adaptive delay.
+     */
+    public long currentBatchDelay()
+    {
+        return (adaptiveDelay != null) ? adaptiveDelay.getCurrentDelay() : config.batchDelay;
+    }
+
+
     /**
      *  Returns the number of batches processed. This is intended for testing
      */
@@ -110,6 +230,22 @@ implements LogWriter
     public void addMessage(LogMessage message)
     {
         messageQueue.enqueue(message);
+
+        // when scheduled, an idle writer must be told about the message; one that's
+        // waiting for the batch delay only needs to be told if it has a full batch
+        Runnable listener = wakeupListener;
+        if (listener != null)
+        {
+            if (idle.compareAndSet(true, false))
+            {
+                listener.run();
+            }
+            else if (waitingForBatch && queueHasFullBatch())
+            {
+                waitingForBatch = false;
+                listener.run();
+            }
+        }
     }
 
 
@@ -117,6 +253,7 @@ implements LogWriter
     public void setBatchDelay(long value)
     {
         config.batchDelay = value;
+        stats.setCurrentBatchDelay(currentBatchDelay());
     }
 
 
@@ -127,6 +264,13 @@ implements LogWriter
     }
 
 
+    @Override
+    public void setDiscardThresholdBytes(long value)
+    {
+        messageQueue.setDiscardThresholdBytes(value);
+    }
+
+
     @Override
     public void setDiscardAction(DiscardAction value)
     {
@@ -134,14 +278,67 @@ implements LogWriter
     }
 
 
+    @Override
+    public void setEnqueueTimeout(long value)
+    {
+        messageQueue.setEnqueueTimeout(value);
+    }
+
+
+    @Override
+    public boolean flush(long timeout)
+    {
+        long timeoutAt = System.currentTimeMillis() + timeout;
+        synchronized (flushLock)
+        {
+            // messages enqueued after this point don't delay the flush
+            long watermark = messageQueue.getEnqueuedMessageCount();
+            flushWatermark = watermark;
+            long request = ++flushRequested;
+            messageQueue.wakeup();
+            wakeScheduler();
+            while ((flushCompleted < request) && (messageQueue.getCompletedMessageCount() < watermark) && ! writerExited)
+            {
+                long remaining = timeoutAt - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+
+                try
+                {
+                    flushLock.wait(remaining);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            // if our own watermark was reached, so was that of any earlier request;
+            // recording this stops the writer from treating them as still pending
+            if (messageQueue.getCompletedMessageCount() >= watermark)
+            {
+                flushCompleted = Math.max(flushCompleted, request);
+                return true;
+            }
+            return (flushCompleted >= request) || messageQueue.isEmpty();
+        }
+    }
+
+
     @Override
     public void stop()
     {
         shutdownTime = System.currentTimeMillis() + config.batchDelay;
-        if (dispatchThread != null)
+
+        // interrupting the writer thread would abort a request that's in progress, so
+        // we only do that if it's waiting on the circuit breaker
+        messageQueue.wakeup();
+        Thread thread = dispatchThread;
+        if ((thread != null) && waitingForCircuitBreaker)
         {
-            dispatchThread.interrupt();
+            thread.interrupt();
         }
+        wakeScheduler();
     }
 
 //----------------------------------------------------------------------------
@@ -151,10 +348,10 @@ implements LogWriter
     @Override
     public void run()
     {
+        enableWriteAheadLogIfConfigured(true);
         if (! initialize())
         {
-            messageQueue.setDiscardThreshold(0);
-            messageQueue.setDiscardAction(DiscardAction.oldest);
+            initializationFailed();
             return;
         }
 
@@ -164,6 +361,7 @@ implements LogWriter
 
         dispatchThread = Thread.currentThread();
 
+        startSenderIfNeeded();
         initializationComplete = true;
 
         // the do-while loop ensures that we attempt to process at least one batch, even if
@@ -173,18 +371,184 @@ implements LogWriter
 
         do
         {
+            completeFlushIfPossible();
+
+            // stop() interrupts the sleep, in which case we'll try to send anyway
+            long breakerDelay = circuitBreakerDelay();
+            if (breakerDelay > 0)
+            {
+                waitingForCircuitBreaker = true;
+                Utils.sleepQuietly(breakerDelay);
+                waitingForCircuitBreaker = false;
+                continue;
+            }
+
             List<LogMessage> currentBatch = buildBatch();
             if (currentBatch.size() > 0)
             {
                 batchCount++;
-                List<LogMessage> failures = processBatch(currentBatch);
-                requeueMessages(failures);
+                sendBatch(currentBatch);
             }
         } while (keepRunning());
 
-        stopAWSClient();
-        logger.debug("stopping log-writer on thread " + Thread.currentThread().getName() 
-                     + " (#" + Thread.currentThread().getId() + ")");
+        shutdown();
+    }
+
+//----------------------------------------------------------------------------
+//  Implementation of ScheduledLogWriter
+//----------------------------------------------------------------------------
+
+    @Override
+    public void setWakeupListener(Runnable listener)
+    {
+        wakeupListener = listener;
+    }
+
+
+    /**
+     *  Does the same work as one iteration of {@link #run}, but rather than waiting
+     *  for messages or the batch delay, returns the time that it wants to be called
+     *  again. So that one slow destination can't tie up a shared thread, it never
+     *  blocks: initialization and sends (including any retries or rate-limiting
+     *  delays) happen on this writer's sender thread, which wakes the scheduler
+     *  when it's done, and a write-ahead log held by a previous writer is retried
+     *  later.
+     */
+    @Override
+    public long runOnce()
+    {
+        if (! started)
+        {
+            long now = System.currentTimeMillis();
+            if (walLockDeadline == 0)
+            {
+                walLockDeadline = now + WAL_LOCK_WAIT;
+            }
+            if (! enableWriteAheadLogIfConfigured(false))
+            {
+                if (now < walLockDeadline)
+                    return WAL_LOCK_RETRY_INTERVAL;
+
+                reportError("unable to open write-ahead log: " + config.walDirectory + " is in use", null);
+            }
+
+            started = true;
+            startScheduledSender();
+            sender.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    initializationResult = Boolean.valueOf(initialize());
+                    wakeScheduler();
+                }
+            });
+            return IDLE;
+        }
+
+        if (! initializationComplete)
+        {
+            Boolean result = initializationResult;
+            if (result == null)
+                return IDLE;
+
+            if (! result.booleanValue())
+            {
+                sender.shutdown();
+                initializationFailed();
+                return FINISHED;
+            }
+            initializationComplete = true;
+        }
+
+        completeFlushIfPossible();
+
+        long now = System.currentTimeMillis();
+        if (messageQueue.isEmpty())
+        {
+            batchReadyAt = 0;
+            if (shutdownTime <= now)
+            {
+                // batches that are still in flight may requeue failures; the sender
+                // will wake us when they complete
+                if (! inFlightBatchesComplete())
+                    return IDLE;
+                if (! messageQueue.isEmpty())
+                    return 0;
+
+                shutdown();
+                return FINISHED;
+            }
+
+            // a message may have been added before we set the flag, in which case
+            // nobody will wake us up
+            idleSince = now;
+            idle.set(true);
+            if (! messageQueue.isEmpty() && idle.compareAndSet(true, false))
+                return 0;
+
+            return (shutdownTime == Long.MAX_VALUE) ? IDLE : shutdownTime - now;
+        }
+
+        long breakerDelay = circuitBreakerDelay();
+        if (breakerDelay > 0)
+        {
+            return breakerDelay;
+        }
+
+        // rather than hand the sender a batch that it would have to hold, we wait here
+        long rateDelay = sendDelay();
+        if (rateDelay > 0)
+        {
+            return rateDelay;
+        }
+
+        if (batchReadyAt == 0)
+        {
+            batchReadyAt = Math.min(now + currentBatchDelay(), latencyDeadline(messageQueue.oldestEnqueueTime()));
+            batchWaitTime = (idleSince > 0) ? now - idleSince : 0;
+            idleSince = 0;
+        }
+
+        // as with buildBatch(), a full batch or pending flush means no waiting
+        boolean flushing = flushRequested > flushCompleted;
+        if ((now < batchReadyAt) && ! flushing)
+        {
+            // set the flag before checking, so that a producer that fills the batch
+            // after the check will wake us up
+            waitingForBatch = true;
+            if (! queueHasFullBatch())
+                return batchReadyAt - now;
+        }
+        waitingForBatch = false;
+
+        // if pipelining, we need room for another batch; the sender will wake us
+        if ((inFlight != null) && ! inFlight.tryAcquire())
+        {
+            return IDLE;
+        }
+
+        Batch batch = new Batch();
+        boolean batchFull = messageQueue.drainTo(batch);
+        batchReadyAt = 0;
+
+        if ((adaptiveDelay != null) && ! flushing)
+        {
+            adaptiveDelay.batchBuilt(batchWaitTime, batchFull, messageQueue.size());
+            stats.setCurrentBatchDelay(adaptiveDelay.getCurrentDelay());
+        }
+
+        if (batch.messages.size() > 0)
+        {
+            batchCount++;
+            stats.recordBatch(batch.messages, batch.bytes, System.currentTimeMillis());
+            dispatchBatch(batch.messages);
+        }
+        else if (inFlight != null)
+        {
+            inFlight.release();
+        }
+        return 0;
     }
 
 //----------------------------------------------------------------------------
@@ -211,14 +575,288 @@ implements LogWriter
     }
 
 
+    /**
+     *  Opens the write-ahead log, if configured. This happens on the writer thread
+     *  because it may have to wait for a previous writer (eg, before rotation) to
+     *  release the log. Failure isn't fatal: messages just aren't durable.
+     *  <p>
+     *  If not waiting, returns <code>false</code> when the log is held by another
+     *  writer, so that the caller can try again later. Otherwise returns true.
+     */
+    private boolean enableWriteAheadLogIfConfigured(boolean waitForLock)
+    {
+        if ((config.walDirectory == null) || (config.walDirectory.length() == 0))
+            return true;
+
+        try
+        {
+            int recovered = messageQueue.enableWriteAheadLog(new File(config.walDirectory), config.walMaxBytes, config.walSyncInterval, waitForLock);
+            if (recovered > 0)
+            {
+                logger.debug("recovered " + recovered + " messages from write-ahead log: " + config.walDirectory);
+            }
+        }
+        catch (OverlappingFileLockException ex)
+        {
+            return false;
+        }
+        catch (IOException ex)
+        {
+            reportError("unable to open write-ahead log: " + config.walDirectory, ex);
+        }
+        return true;
+    }
+
+
     /**
      *  A check for whether we should keep running: either we haven't been shut
      *  down or there's still messages to process
      */
     private boolean keepRunning()
     {
-        return shutdownTime > System.currentTimeMillis()
-            || ! messageQueue.isEmpty();
+        if ((shutdownTime > System.currentTimeMillis()) || ! messageQueue.isEmpty())
+            return true;
+
+        // batches that are still in flight may requeue messages that failed
+        waitForInFlightBatches();
+        return ! messageQueue.isEmpty();
+    }
+
+
+    /**
+     *  Called if initialization fails: discards anything that's been queued, and
+     *  ensures that no more messages will be retained.
+     */
+    private void initializationFailed()
+    {
+        messageQueue.setDiscardThreshold(0);
+        messageQueue.setDiscardAction(DiscardAction.oldest);
+        messageQueue.close();
+        initializationComplete = true;
+        writerExited();
+    }
+
+
+    /**
+     *  Called once the writer has been stopped and all messages have been sent.
+     */
+    private void shutdown()
+    {
+        stopSender();
+        messageQueue.close();
+        stopAWSClient();
+        writerExited();
+        logger.debug("stopping log-writer on thread " + Thread.currentThread().getName()
+                     + " (#" + Thread.currentThread().getId() + ")");
+    }
+
+
+    /**
+     *  If running on a shared scheduler, tells it to invoke the writer.
+     */
+    private void wakeScheduler()
+    {
+        Runnable listener = wakeupListener;
+        if (listener != null)
+        {
+            idle.set(false);
+            listener.run();
+        }
+    }
+
+
+    /**
+     *  Determines whether the queue holds at least a full batch of messages. This
+     *  is an estimate, based on the queue's counters rather than its contents.
+     */
+    private boolean queueHasFullBatch()
+    {
+        int count = messageQueue.size();
+        long bytes = messageQueue.bytes() + (long)count * minMessageSize();
+        return isFull(bytes, count);
+    }
+
+
+    /**
+     *  Determines whether a batch with the given size is full: there isn't room for
+     *  even an empty message. A fill target is applied by scaling the batch up to
+     *  the service limits.
+     */
+    private boolean isFull(long bytes, int count)
+    {
+        int fillPercent = ((config.batchFillPercent > 0) && (config.batchFillPercent < 100))
+                        ? config.batchFillPercent
+                        : 100;
+        long nextBytes = bytes + minMessageSize();
+        long nextCount = count + 1;
+        return ! withinServiceLimits((int)Math.min(Integer.MAX_VALUE, nextBytes * 100 / fillPercent),
+                                     (int)Math.min(Integer.MAX_VALUE, nextCount * 100 / fillPercent));
+    }
+
+
+    /**
+     *  If there's an outstanding flush request, and all messages enqueued before
+     *  the latest request have been sent or discarded, marks it as complete and
+     *  wakes the caller(s). Messages in flight aren't acknowledged until their
+     *  batch completes, so this is also called by the sender. An earlier request
+     *  may be satisfied before the latest one, so callers are woken regardless,
+     *  to check their own watermarks.
+     */
+    private void completeFlushIfPossible()
+    {
+        if (flushRequested <= flushCompleted)
+            return;
+
+        synchronized (flushLock)
+        {
+            long request = flushRequested;
+            if (messageQueue.getCompletedMessageCount() >= flushWatermark)
+            {
+                flushCompleted = request;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+
+    /**
+     *  Called when the writer thread is about to exit, to release any callers that
+     *  are waiting on a flush.
+     */
+    private void writerExited()
+    {
+        synchronized (flushLock)
+        {
+            writerExited = true;
+            flushLock.notifyAll();
+        }
+    }
+
+
+    /**
+     *  Creates the pool of threads that send batches, if pipelining is enabled.
+     */
+    private void startSenderIfNeeded()
+    {
+        if (config.pipelined || (maxConcurrentBatches() > 1))
+        {
+            maxInFlight = Math.max(1, maxConcurrentBatches());
+            inFlight = new Semaphore(maxInFlight);
+            sender = Executors.newFixedThreadPool(maxInFlight, new SenderThreadFactory(Thread.currentThread().getName()));
+        }
+    }
+
+
+    /**
+     *  Creates the pool of threads that initialize the writer and send batches when
+     *  it's run by a shared scheduler. This happens whether or not pipelining is
+     *  enabled (without it, there's only one batch in flight, so sends are still
+     *  serial). The threads exit when idle, so a quiet writer doesn't hold one.
+     */
+    private void startScheduledSender()
+    {
+        maxInFlight = Math.max(1, maxConcurrentBatches());
+        inFlight = new Semaphore(maxInFlight);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                                        maxInFlight, maxInFlight,
+                                        SCHEDULED_SENDER_KEEPALIVE, TimeUnit.SECONDS,
+                                        new LinkedBlockingQueue<Runnable>(),
+                                        new SenderThreadFactory("com-kdgregory-aws-logwriter-" + getClass().getSimpleName()));
+        executor.allowCoreThreadTimeOut(true);
+        sender = executor;
+    }
+
+
+    /**
+     *  Waits for all in-flight batches to complete, then shuts down the sender pool.
+     */
+    private void stopSender()
+    {
+        if (sender != null)
+        {
+            waitForInFlightBatches();
+            sender.shutdown();
+        }
+    }
+
+
+    /**
+     *  Sends a batch, either inline or (when pipelining) by passing it to the sender
+     *  pool. In the latter case, will block until there's room for another batch to
+     *  be in flight. In either case, any messages that weren't sent are requeued.
+     */
+    private void sendBatch(List<LogMessage> batch)
+    {
+        // we can't abandon the batch, so ignore any interrupt; it will be seen by the
+        // next dequeue
+        if (inFlight != null)
+        {
+            inFlight.acquireUninterruptibly();
+        }
+        dispatchBatch(batch);
+    }
+
+
+    /**
+     *  Sends a batch once the caller holds an in-flight permit (if pipelining); the
+     *  permit is released when the batch has been processed.
+     */
+    private void dispatchBatch(List<LogMessage> batch)
+    {
+        // with pipelining, the breaker may have opened since we built the batch
+        if ((circuitBreaker != null) && ! circuitBreaker.allowRequest())
+        {
+            requeueMessages(batch);
+            if (inFlight != null)
+            {
+                inFlight.release();
+            }
+            return;
+        }
+
+        if (sender == null)
+        {
+            long start = System.currentTimeMillis();
+            List<LogMessage> failures = processBatch(batch);
+            recordSendLatency(System.currentTimeMillis() - start);
+            recordSendOutcome(batch.size(), failures.size());
+            recordDelivery(batch, failures);
+            requeueMessages(failures);
+            return;
+        }
+
+        sender.execute(new BatchSender(batch));
+    }
+
+
+    /**
+     *  Blocks until all batches that have been passed to the sender pool have been
+     *  processed (and any failures requeued). No-op if not pipelining.
+     */
+    private void waitForInFlightBatches()
+    {
+        if (inFlight != null)
+        {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+    }
+
+
+    /**
+     *  Determines whether all batches passed to the sender pool have been processed,
+     *  without waiting. Always true if not pipelining.
+     */
+    private boolean inFlightBatchesComplete()
+    {
+        if (inFlight == null)
+            return true;
+
+        if (! inFlight.tryAcquire(maxInFlight))
+            return false;
+
+        inFlight.release(maxInFlight);
+        return true;
     }
 
 
@@ -227,42 +865,67 @@ implements LogWriter
      *  (or until shutdown) for the first message, then read as many messages
      *  as possible within the batch delay.
      *  <p>
-     *  For each message, the subclass is called to determine the effective size
-     *  of the message, and whether the aggregate batch size is within the range
-     *  accepted by the service.
+     *  Messages that are already in the queue are retrieved in bulk; we only wait
+     *  (for the remainder of the batch delay) once the queue is empty. For each
+     *  message, the subclass is called to determine the effective size of the
+     *  message, and whether the aggregate batch size is within the range accepted
+     *  by the service.
+     *  <p>
+     *  The batch is returned as soon as it's full: either it can't hold another
+     *  message within the service limits, or it's reached the configured fill
+     *  percentage. There's no point waiting out the delay once that happens. It's
+     *  also returned without waiting if there's a pending flush, or sooner than the
+     *  batch delay if needed to meet the maximum latency for its oldest message.
      */
     protected List<LogMessage> buildBatch()
     {
-        // presizing to a small-but-possible size to avoid repeated resizes
-        List<LogMessage> batch = new ArrayList<LogMessage>(512);
+        Batch batch = new Batch();
 
         // we'll wait "forever" unless there's a shutdown timestamp in effect
+        long waitStart = System.currentTimeMillis();
         LogMessage message = waitForMessage(shutdownTime);
         if (message == null)
-            return batch;
+            return batch.messages;
 
-        long batchTimeout = System.currentTimeMillis() + config.batchDelay;
-        int batchBytes = 0;
-        int batchMsgs = 0;
+        // if there's a flush pending we send whatever's in the queue right now
+        boolean flushing = flushRequested > flushCompleted;
+        long batchStart = System.currentTimeMillis();
+        long batchTimeout = batchStart + (flushing ? 0 : currentBatchDelay());
+        boolean batchFull = false;
         while (message != null)
         {
-            batchBytes += effectiveSize(message);
-            batchMsgs++;
-
             // if this message would exceed the batch limits, push it back onto the queue
             // the first message must never break this rule -- and shouldn't, as long as
             // appender checks size
-            if (! withinServiceLimits(batchBytes, batchMsgs))
+            if (! batch.add(message))
             {
                 messageQueue.requeue(message);
+                batchFull = true;
+                break;
+            }
+
+            // once full, send without waiting for the rest of the delay
+            if (batch.isFull() || messageQueue.drainTo(batch))
+            {
+                batchFull = true;
                 break;
             }
 
-            batch.add(message);
-            message = waitForMessage(batchTimeout);
+            message = waitForMessage(Math.min(batchTimeout, latencyDeadline(batch.oldestEnqueueTime)));
         }
 
-        return batch;
+        // a batch cut short by a flush doesn't say anything about the message rate
+        if ((adaptiveDelay != null) && ! flushing)
+        {
+            adaptiveDelay.batchBuilt(batchStart - waitStart, batchFull, messageQueue.size());
+            stats.setCurrentBatchDelay(adaptiveDelay.getCurrentDelay());
+        }
+
+        if (batch.messages.size() > 0)
+        {
+            stats.recordBatch(batch.messages, batch.bytes, System.currentTimeMillis());
+        }
+        return batch.messages;
     }
 
 
@@ -277,6 +940,121 @@ implements LogWriter
     }
 
 
+    /**
+     *  Returns the effective size of the smallest possible message, which is used
+     *  to decide whether a batch has room for more.
+     */
+    private int minMessageSize()
+    {
+        if (minMessageSize < 0)
+        {
+            minMessageSize = effectiveSize(new LogMessage(0, ""));
+        }
+        return minMessageSize;
+    }
+
+
+    /**
+     *  Returns the time by which a batch holding a message with the given enqueue
+     *  time must be sent, so that the message arrives within the maximum latency
+     *  (assuming that the send takes as long as the last one). Returns
+     *  <code>Long.MAX_VALUE</code> if there's no maximum or no enqueue time.
+     */
+    private long latencyDeadline(long enqueueTime)
+    {
+        if ((config.maxLatency <= 0) || (enqueueTime <= 0))
+            return Long.MAX_VALUE;
+
+        return enqueueTime + config.maxLatency - lastSendLatency;
+    }
+
+
+    /**
+     *  Records the time taken by processBatch(), and passes it to the adaptive
+     *  delay if enabled.
+     */
+    private void recordSendLatency(long latency)
+    {
+        lastSendLatency = latency;
+        if (adaptiveDelay != null)
+        {
+            adaptiveDelay.batchSent(latency);
+        }
+    }
+
+
+    /**
+     *  Returns the number of milliseconds until the circuit breaker will allow a
+     *  send; 0 if it will allow one now (or is disabled).
+     */
+    private long circuitBreakerDelay()
+    {
+        return (circuitBreaker != null) ? circuitBreaker.millisUntilRetry(PROBE_WAIT) : 0;
+    }
+
+
+    /**
+     *  Reports the outcome of a send to the circuit breaker, if enabled. A batch
+     *  where any messages were sent is considered a success (the rest are retried
+     *  normally); one where all messages failed is a failure.
+     */
+    private void recordSendOutcome(int batchSize, int failureCount)
+    {
+        if (circuitBreaker == null)
+            return;
+
+        if ((batchSize > 0) && (failureCount >= batchSize))
+        {
+            if (circuitBreaker.recordFailure())
+            {
+                logger.warn("suspending sends after repeated failures; will retry in "
+                            + circuitBreaker.millisUntilRetry(PROBE_WAIT) + " milliseconds");
+            }
+        }
+        else
+        {
+            circuitBreaker.recordSuccess();
+        }
+
+        stats.setCircuitBreakerState(circuitBreaker.getState(), circuitBreaker.getOpenCount());
+    }
+
+
+    /**
+     *  Called after a batch has been processed: tells the message queue which messages
+     *  were sent, so that they can be removed from the write-ahead log, and records
+     *  their end-to-end latency. Must be called before failures are requeued.
+     */
+    private void recordDelivery(List<LogMessage> batch, List<LogMessage> failures)
+    {
+        List<LogMessage> sent = batch;
+        if (! failures.isEmpty())
+        {
+            Set<LogMessage> failed = Collections.newSetFromMap(new IdentityHashMap<LogMessage,Boolean>());
+            failed.addAll(failures);
+            sent = new ArrayList<LogMessage>(batch.size());
+            for (LogMessage message : batch)
+            {
+                if (! failed.contains(message))
+                {
+                    sent.add(message);
+                }
+            }
+        }
+
+        messageQueue.acknowledge(sent);
+
+        long now = System.currentTimeMillis();
+        for (LogMessage message : sent)
+        {
+            if (message.getEnqueueTime() > 0)
+            {
+                stats.recordQueueLatency(now - message.getEnqueueTime());
+            }
+        }
+    }
+
+
     /**
      *  Requeues all messages in the passed list, preserving order (ie, the first
      *  passed message in the list will be the first in the queue).
@@ -290,6 +1068,123 @@ implements LogWriter
         }
     }
 
+
+    /**
+     *  Processes a single batch on a sender thread.
+     */
+    private class BatchSender
+    implements Runnable
+    {
+        private List<LogMessage> batch;
+
+        public BatchSender(List<LogMessage> batch)
+        {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                long start = System.currentTimeMillis();
+                List<LogMessage> failures = processBatch(batch);
+                recordSendLatency(System.currentTimeMillis() - start);
+                recordSendOutcome(batch.size(), failures.size());
+                recordDelivery(batch, failures);
+                requeueMessages(failures);
+            }
+            catch (RuntimeException ex)
+            {
+                // when sending inline, this would kill the writer thread; here we
+                // keep the batch, so that it will be retried
+                reportError("unexpected exception sending batch", ex);
+                recordSendOutcome(batch.size(), batch.size());
+                requeueMessages(batch);
+            }
+            finally
+            {
+                // when scheduled, the writer doesn't wait for us, so must be told
+                inFlight.release();
+                completeFlushIfPossible();
+                wakeScheduler();
+            }
+        }
+    }
+
+
+    /**
+     *  Creates daemon threads for the sender pool, named after the writer thread
+     *  (or, when scheduled, the writer class).
+     */
+    private static class SenderThreadFactory
+    implements ThreadFactory
+    {
+        private String baseName;
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        public SenderThreadFactory(String baseName)
+        {
+            this.baseName = baseName;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, baseName + "-sender-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    /**
+     *  Accumulates a batch, applying the subclass's size calculations and limits.
+     */
+    private class Batch
+    implements BatchBuilder
+    {
+        // presizing to a small-but-possible size to avoid repeated resizes
+        public List<LogMessage> messages = new ArrayList<LogMessage>(512);
+        public int bytes;
+        public long oldestEnqueueTime;
+        public long minTimestamp = Long.MAX_VALUE;
+        public long maxTimestamp = Long.MIN_VALUE;
+
+        @Override
+        public boolean add(LogMessage message)
+        {
+            int messageSize = effectiveSize(message);
+            if (! withinServiceLimits(bytes + messageSize, messages.size() + 1))
+                return false;
+
+            long timestamp = message.getTimestamp();
+            long newMinTimestamp = Math.min(minTimestamp, timestamp);
+            long newMaxTimestamp = Math.max(maxTimestamp, timestamp);
+            long maxTimespan = maxBatchTimespan();
+            if ((maxTimespan > 0) && (newMaxTimestamp - newMinTimestamp > maxTimespan))
+                return false;
+
+            messages.add(message);
+            bytes += messageSize;
+            minTimestamp = newMinTimestamp;
+            maxTimestamp = newMaxTimestamp;
+
+            long enqueueTime = message.getEnqueueTime();
+            if ((enqueueTime > 0) && ((oldestEnqueueTime == 0) || (enqueueTime < oldestEnqueueTime)))
+            {
+                oldestEnqueueTime = enqueueTime;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isFull()
+        {
+            return AbstractLogWriter.this.isFull(bytes, messages.size());
+        }
+    }
+
 //----------------------------------------------------------------------------
 //  Subclass hooks
 //----------------------------------------------------------------------------
@@ -324,6 +1219,17 @@ implements LogWriter
     protected abstract boolean withinServiceLimits(int batchBytes, int numMessages);
 
 
+    /**
+     *  Returns the maximum difference, in milliseconds, between the timestamps of
+     *  the oldest and newest messages in a batch. A message that would exceed this
+     *  is left for the next batch. The default, 0, means no limit.
+     */
+    protected long maxBatchTimespan()
+    {
+        return 0;
+    }
+
+
     /**
      *  This is called when the logwriter is stopped, to explicitly close the
      *  AWS service client. It must be implemented by the subclass because we
@@ -331,6 +1237,31 @@ implements LogWriter
      */
     protected abstract void stopAWSClient();
 
+
+    /**
+     *  Returns the number of milliseconds before the writer can send another batch
+     *  without exceeding the service's rate limits. When scheduled, the writer won't
+     *  build a batch until this is 0, so that the shared pool can run other writers
+     *  in the meantime. The default, 0, means that there's no limit.
+     */
+    protected long sendDelay()
+    {
+        return 0;
+    }
+
+
+    /**
+     *  Returns the maximum number of batches that may be in flight at once. The
+     *  default, 1, means that batches are sent serially (and, if pipelining, the
+     *  next batch is assembled while the current one is being sent). Subclasses
+     *  that can send batches concurrently may override; any value over 1 implies
+     *  pipelining.
+     */
+    protected int maxConcurrentBatches()
+    {
+        return 1;
+    }
+
 //----------------------------------------------------------------------------
 //  Subclass helpers
 //----------------------------------------------------------------------------
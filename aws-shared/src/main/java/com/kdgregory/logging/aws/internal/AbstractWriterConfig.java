@@ -15,6 +15,8 @@
 package com.kdgregory.logging.aws.internal;
 
 import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.MessageQueue;
+import com.kdgregory.logging.common.util.QueueType;
 
 /**
  *  Holds common configuration; all writer-specific config objects are subclasses.
@@ -27,6 +29,27 @@ public class AbstractWriterConfig
     public String clientFactoryMethod;
     public String clientEndpoint;
 
+    // the following are optional, with defaults that preserve existing behavior;
+    // the appender sets them after constructing the writer-specific config
+
+    public QueueType queueType = QueueType.deque;
+    public long discardThresholdBytes;
+    public String spillDirectory;
+    public long spillMaxBytes = 100 * 1024 * 1024;
+    public boolean priorityLanes;
+    public long enqueueTimeout = MessageQueue.DEFAULT_ENQUEUE_TIMEOUT;
+    public boolean pipelined;
+    public long minBatchDelay;
+    public long maxBatchDelay;
+    public int batchFillPercent;
+    public long maxLatency;
+    public int circuitBreakerThreshold;
+    public long circuitBreakerMinInterval = 1000;
+    public long circuitBreakerMaxInterval = 60000;
+    public String walDirectory;
+    public long walMaxBytes = 100 * 1024 * 1024;
+    public long walSyncInterval = 100;
+
     /**
      *  @param batchDelay           Number of milliseconds to wait after receiving first
      *                              message in batch. May be updated while running.
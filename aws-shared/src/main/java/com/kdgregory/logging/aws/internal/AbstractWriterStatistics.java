@@ -14,11 +14,18 @@
 
 package com.kdgregory.logging.aws.internal;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 
+import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.util.MessageQueue;
+import com.kdgregory.logging.common.util.Severity;
+import com.kdgregory.logging.common.util.StripedCounter;
 
 
 /**
@@ -26,12 +33,19 @@ import com.kdgregory.logging.common.util.MessageQueue;
  *  writer implementations. Concrete appender implementations hold/expose a
  *  subclass.
  *  <p>
- *  Statistics are limited to primitives and strings so that they can be read
- *  by JMX. Statistics will be read and written by different threads, so must
- *  be marked as volatile. A given statistic will only be written by appender
- *  or writer, not both, so there's no need for synchronization unless there's
- *  the possibility of multiple writers. In that case, implement an override
- *  in the subclass and synchronize there.
+ *  Statistics are limited to primitives, strings, and maps of same, so that they
+ *  can be read by JMX. Statistics will be read and written by different threads.
+ *  Values that are set, rather than accumulated, must be marked as volatile.
+ *  Counters that may be updated by multiple threads (such as pipelined senders)
+ *  are held in a {@link StripedCounter}, which is 64-bit and avoids contention;
+ *  don't synchronize, because a virtual thread that blocks on a monitor pins its
+ *  carrier thread.
+ *  <p>
+ *  Each JMX attribute is read separately, so a monitoring tool that reads several
+ *  of them may see values from different moments. {@link #snapshot} instead
+ *  reads every value in a single pass; subclasses add their own values by
+ *  overriding {@link #addToSnapshot}. It's exposed to JMX as {@link #getSnapshot},
+ *  with values converted to strings (an MXBean can't expose a map of objects).
  *  <p>
  *  Note: the MXBean interface implemented by subclasses must explicitly expose
  *  any desired getters (we can't use a superinterface because JMX introspection
@@ -46,7 +60,79 @@ public abstract class AbstractWriterStatistics
     private volatile Date lastErrorTimestamp;
     private volatile List<String> lastErrorStacktrace;
 
-    private volatile int messagesSent;
+    private StripedCounter messagesSent = new StripedCounter();
+    private volatile long currentBatchDelay;
+    private volatile String circuitBreakerState = CircuitBreaker.State.closed.toString();
+    private volatile int circuitBreakerOpenCount;
+
+    // histograms have a fixed size; latencies larger than a minute are all "too
+    // long", and batch limits are well under the maximums for size and bytes
+    private Histogram queueLatency = new Histogram(65536);
+    private Histogram queueWait = new Histogram(65536);
+    private Histogram serviceLatency = new Histogram(65536);
+    private Histogram batchSize = new Histogram(16384);
+    private Histogram batchBytes = new Histogram(8 * 1024 * 1024);
+
+
+    /**
+     *  Returns all statistics, keyed by their JMX attribute names, along with the
+     *  time that they were read (<code>Timestamp</code>). Each value is read once,
+     *  so the snapshot doesn't change after it's returned, and derived values (such
+     *  as averages) are calculated from the same reads as the values they're based
+     *  on. Counters aren't frozen while being read, so activity during the call may
+     *  be partially reflected.
+     */
+    public Map<String,Object> snapshot()
+    {
+        Map<String,Object> result = new LinkedHashMap<String,Object>();
+        result.put("Timestamp",                     new Date());
+        result.put("MessagesSent",                  Long.valueOf(getMessagesSent()));
+        result.put("MessagesDiscarded",             Long.valueOf(getMessagesDiscarded()));
+        result.put("MessagesQueued",                Integer.valueOf(getMessagesQueued()));
+        result.put("MessageBytesQueued",            Long.valueOf(getMessageBytesQueued()));
+        result.put("MessagesSpilled",               Integer.valueOf(getMessagesSpilled()));
+        result.put("MessagesBlocked",               Long.valueOf(getMessagesBlocked()));
+        result.put("BlockedTime",                   Long.valueOf(getBlockedTime()));
+        result.put("CurrentBatchDelay",             Long.valueOf(getCurrentBatchDelay()));
+        result.put("CircuitBreakerState",           getCircuitBreakerState());
+        result.put("CircuitBreakerOpenCount",       Integer.valueOf(getCircuitBreakerOpenCount()));
+        result.put("LastErrorMessage",              getLastErrorMessage());
+        result.put("LastErrorTimestamp",            getLastErrorTimestamp());
+        addToSnapshot(result);
+        return result;
+    }
+
+
+    /**
+     *  Returns the values from {@link #snapshot} as strings, for JMX. Timestamps are
+     *  formatted as ISO-8601 UTC, and null values are omitted.
+     */
+    public Map<String,String> getSnapshot()
+    {
+        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Map<String,String> result = new LinkedHashMap<String,String>();
+        for (Map.Entry<String,Object> entry : snapshot().entrySet())
+        {
+            Object value = entry.getValue();
+            if (value instanceof Date)
+                result.put(entry.getKey(), timestampFormat.format((Date)value));
+            else if (value != null)
+                result.put(entry.getKey(), String.valueOf(value));
+        }
+        return result;
+    }
+
+
+    /**
+     *  Called by {@link #snapshot} to add subclass-specific values. The default
+     *  implementation does nothing.
+     */
+    protected void addToSnapshot(Map<String,Object> snapshot)
+    {
+        // nothing here
+    }
 
 
     /**
@@ -118,25 +204,273 @@ public abstract class AbstractWriterStatistics
     /**
      *  Updates the number of messages sent with the given count. This should only
      *  be called after all failures have been identified.
+     *  <p>
+     *  This may be called concurrently by sender threads, so it uses a striped
+     *  counter rather than synchronization (which would pin a virtual thread).
+     */
+    public void updateMessagesSent(int count)
+    {
+        messagesSent.add(count);
+    }
+
+
+    public long getMessagesSent()
+    {
+        return messagesSent.sum();
+    }
+
+
+    /**
+     *  Sets the batch delay currently used by the writer. This is called whenever
+     *  the delay changes.
+     */
+    public void setCurrentBatchDelay(long value)
+    {
+        currentBatchDelay = value;
+    }
+
+
+    /**
+     *  Returns the batch delay, in milliseconds, currently used by the writer. This
+     *  is either the configured value or, if adaptive, the most recent adjustment.
+     */
+    public long getCurrentBatchDelay()
+    {
+        return currentBatchDelay;
+    }
+
+
+    /**
+     *  Updates the circuit breaker statistics. This is called by the writer after
+     *  each send.
+     */
+    public void setCircuitBreakerState(CircuitBreaker.State state, int openCount)
+    {
+        circuitBreakerState = state.toString();
+        circuitBreakerOpenCount = openCount;
+    }
+
+
+    /**
+     *  Returns the state of the writer's circuit breaker: "closed" when sending
+     *  normally, "open" when sending has been suspended due to repeated failures,
+     *  and "halfOpen" while a probe batch is being sent.
+     */
+    public String getCircuitBreakerState()
+    {
+        return circuitBreakerState;
+    }
+
+
+    /**
+     *  Returns the number of times that the writer's circuit breaker has opened.
+     */
+    public int getCircuitBreakerOpenCount()
+    {
+        return circuitBreakerOpenCount;
+    }
+
+
+    /**
+     *  Records the end-to-end latency of a message: the number of milliseconds from
+     *  when it was added to the queue until it was successfully sent. This is called
+     *  by the writer (possibly from multiple sender threads) after each send.
+     */
+    public void recordQueueLatency(long millis)
+    {
+        queueLatency.record(millis);
+    }
+
+
+    /**
+     *  Returns a histogram of end-to-end message latency, in milliseconds. Keys are
+     *  the range of each bucket (eg, "256-511"), values are the number of messages
+     *  whose latency fell into that range.
+     */
+    public Map<String,Long> getQueueLatencyHistogram()
+    {
+        return queueLatency.getCounts();
+    }
+
+
+    /**
+     *  Returns the count, percentiles (p50, p90, p99), and maximum of end-to-end
+     *  message latency, in milliseconds.
+     */
+    public Map<String,Long> getQueueLatencyPercentiles()
+    {
+        return queueLatency.getPercentiles();
+    }
+
+
+    /**
+     *  Records a batch that's about to be sent: its size in messages and bytes (as
+     *  calculated by the writer, so including any per-message overhead), and the
+     *  time that each of its messages waited in the queue.
      */
-    public synchronized void updateMessagesSent(int count)
+    public void recordBatch(List<LogMessage> messages, int bytes, long now)
     {
-        messagesSent += count;
+        batchSize.record(messages.size());
+        batchBytes.record(bytes);
+        for (LogMessage message : messages)
+        {
+            if (message.getEnqueueTime() > 0)
+            {
+                queueWait.record(now - message.getEnqueueTime());
+            }
+        }
     }
 
 
-    public int getMessagesSent()
+    /**
+     *  Returns the count, percentiles (p50, p90, p99), and maximum of the number of
+     *  messages in each batch.
+     */
+    public Map<String,Long> getBatchSizePercentiles()
     {
-        return messagesSent;
+        return batchSize.getPercentiles();
+    }
+
+
+    /**
+     *  Returns the count, percentiles (p50, p90, p99), and maximum of the number of
+     *  bytes in each batch.
+     */
+    public Map<String,Long> getBatchBytesPercentiles()
+    {
+        return batchBytes.getPercentiles();
+    }
+
+
+    /**
+     *  Returns the count, percentiles (p50, p90, p99), and maximum of the time, in
+     *  milliseconds, that messages waited in the queue before being added to a batch.
+     */
+    public Map<String,Long> getQueueWaitPercentiles()
+    {
+        return queueWait.getPercentiles();
+    }
+
+
+    /**
+     *  Records the time taken by a successful call to the service. This is called
+     *  by the writer (possibly from multiple sender threads).
+     */
+    public void recordServiceLatency(long millis)
+    {
+        serviceLatency.record(millis);
+    }
+
+
+    /**
+     *  Returns the count, percentiles (p50, p90, p99), and maximum of the time, in
+     *  milliseconds, taken by successful service calls.
+     */
+    public Map<String,Long> getServiceLatencyPercentiles()
+    {
+        return serviceLatency.getPercentiles();
+    }
+
+
+    /**
+     *  Clears all histograms, so that subsequent reads only reflect activity since
+     *  the reset.
+     */
+    public void resetHistograms()
+    {
+        queueLatency.reset();
+        queueWait.reset();
+        serviceLatency.reset();
+        batchSize.reset();
+        batchBytes.reset();
     }
 
 
     /**
      *  Returns the number of messages discarded by the current writer's message queue.
      */
-    public int getMessagesDiscarded()
+    public long getMessagesDiscarded()
     {
         return messageQueue.getDroppedMessageCount();
     }
 
+
+    /**
+     *  Returns the number of messages currently held in the writer's message queue.
+     */
+    public int getMessagesQueued()
+    {
+        return messageQueue.size();
+    }
+
+
+    /**
+     *  Returns the total size, in bytes, of the messages currently held in the
+     *  writer's message queue.
+     */
+    public long getMessageBytesQueued()
+    {
+        return messageQueue.bytes();
+    }
+
+
+    /**
+     *  Returns the number of messages currently spilled to disk. These are also
+     *  included in {@link #getMessagesQueued}.
+     */
+    public int getMessagesSpilled()
+    {
+        return messageQueue.getSpilledMessageCount();
+    }
+
+
+    /**
+     *  Returns the number of appends that had to wait for room in the writer's
+     *  message queue (only happens with the "block" discard action).
+     */
+    public long getMessagesBlocked()
+    {
+        return messageQueue.getBlockedEnqueueCount();
+    }
+
+
+    /**
+     *  Returns the total number of milliseconds that appends have spent waiting
+     *  for room in the writer's message queue.
+     */
+    public long getBlockedTime()
+    {
+        return messageQueue.getBlockedEnqueueTime();
+    }
+
+
+    /**
+     *  Returns the number of messages currently held in memory by the writer's
+     *  message queue, keyed by severity.
+     */
+    public Map<String,Integer> getMessagesQueuedBySeverity()
+    {
+        Map<String,Integer> result = new LinkedHashMap<String,Integer>();
+        for (Severity severity : Severity.values())
+        {
+            result.put(severity.toString(), Integer.valueOf(messageQueue.getMessageCount(severity)));
+        }
+        return result;
+    }
+
+
+    /**
+     *  Returns the number of messages discarded by the current writer's message
+     *  queue, keyed by severity.
+     */
+    public Map<String,Long> getMessagesDiscardedBySeverity()
+    {
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        for (Severity severity : Severity.values())
+        {
+            result.put(severity.toString(), Long.valueOf(messageQueue.getDroppedMessageCount(severity)));
+        }
+        return result;
+    }
+
 }
@@ -0,0 +1,112 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.internal;
+
+
+/**
+ *  Adjusts the batch delay between configured minimum and maximum values, based
+ *  on how the writer is being used. The writer calls {@link #batchBuilt} after
+ *  assembling each batch, and {@link #batchSent} after each send completes; it
+ *  calls {@link #getCurrentDelay} when starting to assemble a batch.
+ *  <p>
+ *  The rules are intentionally simple:
+ *  <ul>
+ *  <li> If the batch filled up, or there are still messages in the queue once it
+ *       was built, the writer is limited by throughput rather than delay. We cut
+ *       the delay in half, so that the last partial batch of a burst is sent
+ *       promptly.
+ *  <li> If the writer had to wait longer than the current delay for the first
+ *       message of the batch, messages are arriving slowly. Again we cut the delay
+ *       in half, so that those messages become visible quickly.
+ *  <li> Otherwise, messages are arriving steadily but not fast enough to fill a
+ *       batch, and each send is a small batch. We increase the delay by half, so
+ *       that more messages are combined into each request. And since there's no
+ *       benefit to building batches faster than they can be sent, the delay is
+ *       never less than the most recent send latency.
+ *  </ul>
+ *  <p>
+ *  Instances are updated by the writer and sender threads, and read by the stats
+ *  bean; values are volatile, and updates are not synchronized because only one
+ *  thread builds batches.
+ */
+public class AdaptiveBatchDelay
+{
+    private long minDelay;
+    private long maxDelay;
+
+    private volatile long currentDelay;
+    private volatile long lastLatency;
+
+
+    /**
+     *  @param  minDelay        The minimum delay, in milliseconds.
+     *  @param  maxDelay        The maximum delay, in milliseconds.
+     *  @param  initialDelay    The starting delay; this will be adjusted to fit
+     *                          between minimum and maximum.
+     */
+    public AdaptiveBatchDelay(long minDelay, long maxDelay, long initialDelay)
+    {
+        this.minDelay = Math.max(0, minDelay);
+        this.maxDelay = Math.max(this.minDelay, maxDelay);
+        this.currentDelay = clamp(initialDelay);
+    }
+
+
+    /**
+     *  Returns the delay to use for the next batch.
+     */
+    public long getCurrentDelay()
+    {
+        return currentDelay;
+    }
+
+
+    /**
+     *  Updates the delay based on the batch that was just built.
+     *
+     *  @param  waitTime        The number of milliseconds spent waiting for the first
+     *                          message of the batch.
+     *  @param  batchFull       Whether the batch was limited by service limits.
+     *  @param  queueDepth      The number of messages remaining in the queue.
+     */
+    public void batchBuilt(long waitTime, boolean batchFull, int queueDepth)
+    {
+        long delay = currentDelay;
+        if (batchFull || (queueDepth > 0) || (waitTime > delay))
+        {
+            delay = delay / 2;
+        }
+        else
+        {
+            delay = Math.max(delay + Math.max(delay / 2, 1), lastLatency);
+        }
+        currentDelay = clamp(delay);
+    }
+
+
+    /**
+     *  Records the time taken to send a batch.
+     */
+    public void batchSent(long latency)
+    {
+        lastLatency = latency;
+    }
+
+
+    private long clamp(long value)
+    {
+        return Math.min(maxDelay, Math.max(minDelay, value));
+    }
+}
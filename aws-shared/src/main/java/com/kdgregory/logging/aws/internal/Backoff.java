@@ -0,0 +1,85 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.internal;
+
+import java.util.Random;
+
+
+/**
+ *  Calculates retry delays using "decorrelated jitter": each delay is a random
+ *  value between the base delay and three times the previous delay, limited by
+ *  a maximum. This grows roughly exponentially, but because the randomness
+ *  compounds, processes that start retrying at the same time (for example, every
+ *  JVM in a fleet when a region has problems) quickly spread out rather than
+ *  retrying in lockstep.
+ *  <p>
+ *  Instances are not thread-safe; each retry loop should create its own.
+ */
+public class Backoff
+{
+    // Random is thread-safe, and each instance is seeded differently
+    private final static Random RANDOM = new Random();
+
+    private long baseDelay;
+    private long maxDelay;
+    private long lastDelay;
+
+
+    /**
+     *  @param  baseDelay   The minimum delay, in milliseconds. The first delay is
+     *                      between this value and three times this value.
+     *  @param  maxDelay    The maximum delay, in milliseconds.
+     */
+    public Backoff(long baseDelay, long maxDelay)
+    {
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.lastDelay = this.baseDelay;
+    }
+
+
+    /**
+     *  Returns the next delay, in milliseconds.
+     */
+    public long nextDelay()
+    {
+        long upperBound = Math.min(maxDelay, lastDelay * 3);
+        long range = upperBound - baseDelay;
+        long delay = (range > 0)
+                   ? baseDelay + (long)(RANDOM.nextDouble() * (range + 1))
+                   : baseDelay;
+        lastDelay = Math.min(maxDelay, delay);
+        return lastDelay;
+    }
+
+
+    /**
+     *  Sleeps for the next delay. Returns early if the thread is interrupted.
+     */
+    public void sleep()
+    {
+        Utils.sleepQuietly(nextDelay());
+    }
+
+
+    /**
+     *  Restarts the sequence from the base delay. Call this after a successful
+     *  operation, if the instance is reused.
+     */
+    public void reset()
+    {
+        lastDelay = baseDelay;
+    }
+}
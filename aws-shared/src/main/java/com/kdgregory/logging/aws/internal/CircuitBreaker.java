@@ -0,0 +1,163 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.internal;
+
+
+/**
+ *  Stops a writer from sending while its destination is failing. The writer asks
+ *  {@link #allowRequest} before each send, and reports the outcome via {@link
+ *  #recordSuccess} or {@link #recordFailure}.
+ *  <ul>
+ *  <li> While <code>closed</code>, all requests are allowed. After a configured
+ *       number of consecutive failures, the breaker opens.
+ *  <li> While <code>open</code>, no requests are allowed. The open interval is
+ *       chosen by a {@link Backoff}, so it grows (with jitter) each time that the
+ *       breaker re-opens without an intervening success.
+ *  <li> Once the interval expires, the breaker is <code>halfOpen</code>: a single
+ *       request is allowed as a probe. If it succeeds the breaker closes, if it
+ *       fails the breaker opens again.
+ *  </ul>
+ *  <p>
+ *  Instances are shared by the writer and sender threads, and read by the stats
+ *  bean, so methods are synchronized. No method blocks.
+ */
+public class CircuitBreaker
+{
+    /**
+     *  The breaker states; see class docs.
+     */
+    public enum State { closed, open, halfOpen }
+
+
+    private int failureThreshold;
+    private Backoff backoff;
+
+    private State state = State.closed;
+    private int consecutiveFailures;
+    private long reopenAt;
+    private boolean probeInFlight;
+    private int openCount;
+
+
+    /**
+     *  @param  failureThreshold    The number of consecutive failures that will open
+     *                              the breaker.
+     *  @param  minOpenInterval     The initial time, in milliseconds, that the breaker
+     *                              remains open.
+     *  @param  maxOpenInterval     The maximum time, in milliseconds, that the breaker
+     *                              remains open.
+     */
+    public CircuitBreaker(int failureThreshold, long minOpenInterval, long maxOpenInterval)
+    {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.backoff = new Backoff(minOpenInterval, maxOpenInterval);
+    }
+
+
+    /**
+     *  Returns the current state.
+     */
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+
+    /**
+     *  Returns the number of times that the breaker has opened.
+     */
+    public synchronized int getOpenCount()
+    {
+        return openCount;
+    }
+
+
+    /**
+     *  Returns the number of milliseconds until a request will be allowed; 0 if
+     *  one would be allowed now. This does not change the breaker's state.
+     *
+     *  @param  probeWait   The time to return while a probe is in flight.
+     */
+    public synchronized long millisUntilRetry(long probeWait)
+    {
+        switch (state)
+        {
+            case open:
+                return Math.max(0, reopenAt - System.currentTimeMillis());
+            case halfOpen:
+                return probeInFlight ? probeWait : 0;
+            default:
+                return 0;
+        }
+    }
+
+
+    /**
+     *  Determines whether a request may be sent. If the breaker is open and its
+     *  interval has expired, this transitions to half-open and allows the request
+     *  as a probe; the caller must report the outcome.
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state)
+        {
+            case open:
+                if (System.currentTimeMillis() < reopenAt)
+                    return false;
+                state = State.halfOpen;
+                probeInFlight = true;
+                return true;
+            case halfOpen:
+                if (probeInFlight)
+                    return false;
+                probeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+
+    /**
+     *  Records a successful request. This closes the breaker.
+     */
+    public synchronized void recordSuccess()
+    {
+        state = State.closed;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        backoff.reset();
+    }
+
+
+    /**
+     *  Records a failed request. This opens the breaker if the probe failed or the
+     *  threshold has been reached. Returns true if the breaker opened as a result
+     *  of this call.
+     */
+    public synchronized boolean recordFailure()
+    {
+        consecutiveFailures++;
+        probeInFlight = false;
+        if ((state == State.halfOpen) || ((state == State.closed) && (consecutiveFailures >= failureThreshold)))
+        {
+            state = State.open;
+            reopenAt = System.currentTimeMillis() + backoff.nextDelay();
+            openCount++;
+            return true;
+        }
+        return false;
+    }
+}
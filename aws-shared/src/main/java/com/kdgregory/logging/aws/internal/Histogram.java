@@ -0,0 +1,214 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ *  Counts values in a fixed set of log-linear buckets: values from 0 to 7 each
+ *  have their own bucket, and each power of two above that is divided into eight
+ *  equal buckets, so that a bucket's width is never more than 1/8 of its lower
+ *  bound. Values at or above the configured maximum are counted in a single
+ *  overflow bucket. Memory use is therefore fixed, regardless of how many values
+ *  are recorded, and percentiles are accurate to within 12.5%.
+ *  <p>
+ *  Instances are updated by writer or sender threads and read by the stats bean.
+ *  Buckets are atomic, so recording a value never blocks; a reader may see a
+ *  count that's in the middle of being updated, and a reset that happens during
+ *  an update may leave that update half-recorded.
+ */
+public class Histogram
+{
+    // the number of bits used to subdivide each power of two
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private AtomicLongArray buckets;
+    private AtomicLong max = new AtomicLong();
+    private long limit;
+
+
+    /**
+     *  @param  maxValue    Values at or above this, rounded up to a power of two,
+     *                      are counted in the overflow bucket.
+     */
+    public Histogram(long maxValue)
+    {
+        limit = Math.max(SUB_BUCKETS, Long.highestOneBit(Math.max(1, maxValue - 1)) * 2);
+        buckets = new AtomicLongArray(bucketFor(limit - 1) + 2);
+    }
+
+
+    /**
+     *  Records a value. Negative values are counted as 0.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        int bucket = (value < limit) ? bucketFor(value) : buckets.length() - 1;
+        buckets.incrementAndGet(bucket);
+
+        long currentMax = max.get();
+        while ((value > currentMax) && ! max.compareAndSet(currentMax, value))
+        {
+            currentMax = max.get();
+        }
+    }
+
+
+    /**
+     *  Clears all recorded values, starting a new window.
+     */
+    public void reset()
+    {
+        for (int ii = 0 ; ii < buckets.length() ; ii++)
+        {
+            buckets.set(ii, 0);
+        }
+        max.set(0);
+    }
+
+
+    /**
+     *  Returns the number of values recorded.
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int ii = 0 ; ii < buckets.length() ; ii++)
+        {
+            count += buckets.get(ii);
+        }
+        return count;
+    }
+
+
+    /**
+     *  Returns the largest value recorded, 0 if none have been.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+
+    /**
+     *  Returns the value at the given percentile (0-100): the upper bound of the
+     *  bucket holding that value, but no more than the largest recorded value.
+     *  Returns 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count : counts)
+        {
+            total += count;
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int ii = 0 ; ii < counts.length - 1 ; ii++)
+        {
+            seen += counts[ii];
+            if (seen >= rank)
+                return Math.min(upperBound(ii), max.get());
+        }
+        return max.get();
+    }
+
+
+    /**
+     *  Returns a summary of the recorded values: the count, the 50th, 90th, and
+     *  99th percentiles, and the maximum.
+     */
+    public Map<String,Long> getPercentiles()
+    {
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        result.put("count", Long.valueOf(getCount()));
+        result.put("p50",   Long.valueOf(getPercentile(50)));
+        result.put("p90",   Long.valueOf(getPercentile(90)));
+        result.put("p99",   Long.valueOf(getPercentile(99)));
+        result.put("max",   Long.valueOf(getMax()));
+        return result;
+    }
+
+
+    /**
+     *  Returns the bucket counts, combined into powers of two and keyed by a
+     *  description of the range (eg, "4-7"), in order. All ranges are reported,
+     *  even if empty, so that the keys don't change from one call to the next.
+     */
+    public Map<String,Long> getCounts()
+    {
+        long[] counts = snapshot();
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        long lower = 0;
+        long upper = 0;
+        long count = 0;
+        for (int ii = 0 ; ii < counts.length - 1 ; ii++)
+        {
+            count += counts[ii];
+            if (upperBound(ii) == upper)
+            {
+                result.put((lower == upper) ? String.valueOf(lower) : lower + "-" + upper, Long.valueOf(count));
+                lower = upper + 1;
+                upper = lower * 2 - 1;
+                count = 0;
+            }
+        }
+        result.put(limit + "+", Long.valueOf(counts[counts.length - 1]));
+        return result;
+    }
+
+
+    private long[] snapshot()
+    {
+        long[] result = new long[buckets.length()];
+        for (int ii = 0 ; ii < result.length ; ii++)
+        {
+            result[ii] = buckets.get(ii);
+        }
+        return result;
+    }
+
+
+    private static int bucketFor(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int)((value >>> shift) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.internal;
+
+
+/**
+ *  A token bucket, used to keep a sender within a service's rate limits. Tokens
+ *  accumulate at a fixed rate, up to a maximum (which allows short bursts).
+ *  <p>
+ *  Rather than blocking until enough tokens are available, {@link #reserve}
+ *  takes them immediately -- the balance may go negative -- and tells the caller
+ *  how long to wait before using them. This lets a caller reserve capacity from
+ *  several buckets and wait once, for the longest of their delays, and means that
+ *  callers are served in the order that they reserve.
+ *  <p>
+ *  Instances are thread-safe.
+ */
+public class TokenBucket
+{
+    private double capacity;
+    private double ratePerMilli;
+    private double tokens;
+    private long lastRefill;
+
+
+    /**
+     *  Creates a full bucket.
+     *
+     *  @param  capacity        The maximum number of tokens that can accumulate.
+     *  @param  ratePerSecond   The number of tokens added per second.
+     */
+    public TokenBucket(long capacity, long ratePerSecond)
+    {
+        this.capacity = capacity;
+        this.ratePerMilli = ratePerSecond / 1000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+
+    /**
+     *  Takes the specified number of tokens, returning the number of milliseconds
+     *  that the caller must wait before acting on them (0 if they were available).
+     */
+    public long reserve(long amount)
+    {
+        return reserve(amount, System.currentTimeMillis());
+    }
+
+
+    /**
+     *  Takes the specified number of tokens as of the specified time. This variant
+     *  is exposed for testing.
+     */
+    public synchronized long reserve(long amount, long now)
+    {
+        refill(now);
+        tokens -= amount;
+        return (tokens >= 0) ? 0 : (long)Math.ceil(-tokens / ratePerMilli);
+    }
+
+
+    /**
+     *  Empties the bucket, without going into debt. Call this when the service
+     *  reports throttling, which means that something else is consuming the
+     *  capacity that this bucket thought was available.
+     */
+    public void drain()
+    {
+        drain(System.currentTimeMillis());
+    }
+
+
+    /**
+     *  Empties the bucket as of the specified time. This variant is exposed for testing.
+     */
+    public synchronized void drain(long now)
+    {
+        refill(now);
+        tokens = Math.min(tokens, 0);
+    }
+
+
+    /**
+     *  Returns the number of milliseconds until the balance is no longer negative
+     *  (0 if it isn't now).
+     */
+    public long millisUntilAvailable()
+    {
+        return millisUntilAvailable(System.currentTimeMillis());
+    }
+
+
+    /**
+     *  Returns the delay as of the specified time. This variant is exposed for testing.
+     */
+    public synchronized long millisUntilAvailable(long now)
+    {
+        refill(now);
+        return (tokens >= 0) ? 0 : (long)Math.ceil(-tokens / ratePerMilli);
+    }
+
+
+    /**
+     *  Returns the current number of tokens (negative if callers are waiting).
+     */
+    public synchronized long available()
+    {
+        refill(System.currentTimeMillis());
+        return (long)Math.floor(tokens);
+    }
+
+
+    private void refill(long now)
+    {
+        if (now > lastRefill)
+        {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMilli);
+            lastRefill = now;
+        }
+    }
+}
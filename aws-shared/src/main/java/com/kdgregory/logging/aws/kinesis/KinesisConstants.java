@@ -44,6 +44,26 @@ public class KinesisConstants
     public final static int MAX_MESSAGE_BYTES = 1 * 1024 * 1024;
 
 
+    /**
+     *  Maximum number of bytes per second that can be written to a shard (this
+     *  includes partition keys).
+     */
+    public final static int MAX_SHARD_BYTES_PER_SECOND = 1024 * 1024;
+
+
+    /**
+     *  Maximum number of records per second that can be written to a shard.
+     */
+    public final static int MAX_SHARD_RECORDS_PER_SECOND = 1000;
+
+
+    /**
+     *  The error code for a record that was rejected because its shard was over
+     *  its limits.
+     */
+    public final static String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+
+
     /**
      *  Allowed characters for stream name.
      */
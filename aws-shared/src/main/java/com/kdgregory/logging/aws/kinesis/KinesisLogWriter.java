@@ -25,9 +25,11 @@ import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.model.*;
 
 import com.kdgregory.logging.aws.internal.AbstractLogWriter;
+import com.kdgregory.logging.aws.internal.Backoff;
 import com.kdgregory.logging.aws.internal.Utils;
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.factories.ClientFactory;
+import com.kdgregory.logging.common.util.Compression;
 import com.kdgregory.logging.common.util.InternalLogger;
 
 
@@ -55,15 +57,39 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     // and how long we'll sleep between attempts
     private final static int CREATE_RETRY_SLEEP = 5000;
 
+    // the most aggregated records that a batch can produce: we start a new record
+    // only when the next message doesn't fit, so any two adjacent records hold more
+    // than the maximum record size
+    private final static int MAX_AGGREGATED_RECORDS = 2 * KinesisConstants.MAX_BATCH_BYTES / KinesisConstants.MAX_MESSAGE_BYTES + 1;
+
+
     // only used for random partition keys; cheap enough we'll eagerly create
     private Random rnd = new Random();
 
+    // the expected ratio of compressed to uncompressed size, used to estimate how
+    // many messages will fit in a batch; starts pessimistic, updated as we go
+    private volatile double compressionEstimate = 1.0;
+
+    // only used for explicit shard assignment or rate limiting
+    private ShardAssigner shardAssigner;
+    private ShardRateLimiter rateLimiter;
+
 
     public KinesisLogWriter(KinesisWriterConfig config, KinesisWriterStatistics stats, InternalLogger logger, ClientFactory<AmazonKinesis> clientFactory)
     {
         super(config, stats, logger, clientFactory);
 
         stats.setActualStreamName(config.streamName);
+
+        if (config.shardRateLimit)
+        {
+            rateLimiter = new ShardRateLimiter("".equals(config.partitionKey));
+        }
+
+        if ((config.shardAssignment != ShardAssignment.none) || (rateLimiter != null))
+        {
+            shardAssigner = new ShardAssigner(config.shardAssignment);
+        }
     }
 
 
@@ -121,29 +147,67 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     @Override
     protected List<LogMessage> processBatch(List<LogMessage> currentBatch)
     {
-        PutRecordsRequest request = convertBatchToRequest(currentBatch);
-        if (request != null)
+        if (currentBatch.isEmpty())
+            return Collections.emptyList();
+
+        if ((shardAssigner != null) && shardAssigner.needsRefresh())
         {
-            List<Integer> failures = attemptToSend(request);
-            return extractFailures(currentBatch, failures);
+            refreshShards();
         }
-        else
+
+        List<List<LogMessage>> records = groupMessages(currentBatch);
+        List<Integer> recordShards = new ArrayList<Integer>(records.size());
+        List<LogMessage> deferred = new ArrayList<LogMessage>();
+        List<LogMessage> oversize = new ArrayList<LogMessage>();
+        PutRecordsRequest request = convertBatchToRequest(records, recordShards, deferred, oversize);
+        if (records.isEmpty())
         {
+            // everything was oversize, so there's nothing to send
             return Collections.emptyList();
         }
+
+        waitForCapacity(request, recordShards);
+        List<Integer> failures = attemptToSend(request, recordShards);
+        List<LogMessage> failedMessages = extractFailures(records, failures);
+        stats.updateMessagesSent(currentBatch.size() - failedMessages.size() - deferred.size() - oversize.size());
+
+        if (deferred.isEmpty())
+            return failedMessages;
+
+        // deferred messages are always at the end of the batch
+        List<LogMessage> result = new ArrayList<LogMessage>(failedMessages);
+        result.addAll(deferred);
+        return result;
+    }
+
+
+    @Override
+    protected long sendDelay()
+    {
+        return (rateLimiter != null) ? rateLimiter.millisUntilAvailable() : 0;
     }
 
 
     @Override
     protected int effectiveSize(LogMessage message)
     {
-        return message.size() + config.partitionKeyLength;
+        return config.aggregateRecords
+             ? estimateCompressedSize(message.size() + RecordAggregator.messageOverhead(message.size()))
+             : estimateCompressedSize(message.size()) + config.compression.overhead() + config.partitionKeyLength;
     }
 
 
     @Override
     protected boolean withinServiceLimits(int batchBytes, int numMessages)
     {
+        if (config.aggregateRecords)
+        {
+            // the record count limit doesn't apply, because messages are packed into
+            // a handful of records; but we have to leave room for their overhead
+            int recordOverhead = aggregatedRecordOverhead() + config.partitionKeyLength;
+            return batchBytes + MAX_AGGREGATED_RECORDS * recordOverhead < KinesisConstants.MAX_BATCH_BYTES;
+        }
+
         return (batchBytes < KinesisConstants.MAX_BATCH_BYTES)
             && (numMessages <= KinesisConstants.MAX_BATCH_COUNT);
     }
@@ -155,6 +219,14 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
         client.shutdown();
     }
 
+
+    @Override
+    protected int maxConcurrentBatches()
+    {
+        // records are independent, so batches can be sent concurrently
+        return config.parallelRequests;
+    }
+
 //----------------------------------------------------------------------------
 //  Internals
 //----------------------------------------------------------------------------
@@ -238,6 +310,53 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     }
 
 
+    /**
+     *  Retrieves the stream's open shards, and passes them to the shard assigner
+     *  (and the count to the rate limiter).
+     *  Failure isn't fatal: we continue to use the shards that we already know
+     *  about (and if we don't know any, Kinesis uses the partition key).
+     */
+    private void refreshShards()
+    {
+        try
+        {
+            List<Shard> shards = new ArrayList<Shard>();
+            String lastShardId = null;
+            boolean hasMoreShards = true;
+            while (hasMoreShards)
+            {
+                DescribeStreamRequest request = new DescribeStreamRequest()
+                                                .withStreamName(config.streamName)
+                                                .withExclusiveStartShardId(lastShardId);
+                StreamDescription description = client.describeStream(request).getStreamDescription();
+                for (Shard shard : description.getShards())
+                {
+                    lastShardId = shard.getShardId();
+
+                    // after resharding, the parent shards remain (closed) until they expire
+                    if (shard.getSequenceNumberRange().getEndingSequenceNumber() == null)
+                    {
+                        shards.add(shard);
+                    }
+                }
+                hasMoreShards = Boolean.TRUE.equals(description.getHasMoreShards())
+                             && ! description.getShards().isEmpty();
+            }
+
+            shardAssigner.setShards(shards);
+            if (rateLimiter != null)
+            {
+                rateLimiter.setShardCount(shards.size());
+            }
+            logger.debug("assigning records to " + shards.size() + " shards of stream: " + config.streamName);
+        }
+        catch (Exception ex)
+        {
+            reportError("unable to retrieve shards for stream: " + config.streamName, ex);
+        }
+    }
+
+
     /**
      *  If the caller has configured a retention period, set it.
      */
@@ -260,17 +379,133 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     }
 
 
-    private PutRecordsRequest convertBatchToRequest(List<LogMessage> batch)
+    /**
+     *  Divides the batch into the messages that will be written as each record. When
+     *  not aggregating, this is one message per record; when aggregating, messages are
+     *  packed into records up to the maximum record size.
+     */
+    private List<List<LogMessage>> groupMessages(List<LogMessage> batch)
     {
-        if (batch.isEmpty())
-            return null;
+        if (! config.aggregateRecords)
+        {
+            List<List<LogMessage>> result = new ArrayList<List<LogMessage>>(batch.size());
+            for (LogMessage message : batch)
+            {
+                result.add(Collections.singletonList(message));
+            }
+            return result;
+        }
 
-        List<PutRecordsRequestEntry> requestRecords = new ArrayList<PutRecordsRequestEntry>(batch.size());
+        List<List<LogMessage>> result = new ArrayList<List<LogMessage>>(MAX_AGGREGATED_RECORDS);
+        int maxBytes = KinesisConstants.MAX_MESSAGE_BYTES
+                     - config.partitionKeyLength
+                     - aggregatedRecordOverhead();
+
+        List<LogMessage> current = new ArrayList<LogMessage>();
+        int currentBytes = 0;
         for (LogMessage message : batch)
         {
+            int messageBytes = effectiveSize(message);
+            if (! current.isEmpty() && (currentBytes + messageBytes >= maxBytes))
+            {
+                result.add(current);
+                current = new ArrayList<LogMessage>();
+                currentBytes = 0;
+            }
+            current.add(message);
+            currentBytes += messageBytes;
+        }
+        result.add(current);
+        return result;
+    }
+
+
+    /**
+     *  Creates the request. A record that holds a single message is written as-is
+     *  (as the KPL does), so that size limits don't change for large messages.
+     *  <p>
+     *  When compressing, the batch was built using estimated sizes, so we check the
+     *  actual sizes here. A record that's too large is split in two (the passed list
+     *  is updated to match the request), and records that don't fit in the request
+     *  are removed and their messages added to <code>deferred</code>.
+     *  <p>
+     *  A single message can't be split, and may grow when compressed. If it's too
+     *  large after compression it's written uncompressed; if that's still too large
+     *  it's removed, reported, and added to <code>oversize</code>, rather than being
+     *  rejected by Kinesis and retried forever.
+     *  <p>
+     *  If we're assigning shards, the index of each record's shard is added to
+     *  <code>recordShards</code>; otherwise -1 is added.
+     */
+    private PutRecordsRequest convertBatchToRequest(List<List<LogMessage>> records, List<Integer> recordShards, List<LogMessage> deferred, List<LogMessage> oversize)
+    {
+        List<PutRecordsRequestEntry> requestRecords = new ArrayList<PutRecordsRequestEntry>(records.size());
+        long requestBytes = 0;
+        long uncompressedBytes = 0;
+        long compressedBytes = 0;
+        for (int ii = 0 ; ii < records.size() ; ii++)
+        {
+            List<LogMessage> messages = records.get(ii);
+            String key = partitionKey();
+            byte[] data = (messages.size() == 1)
+                        ? messages.get(0).getBytes()
+                        : RecordAggregator.aggregate(key, messages);
+            byte[] compressed = config.compression.compress(data);
+            int recordBytes = compressed.length + config.partitionKeyLength;
+
+            if ((messages.size() > 1) && (recordBytes >= KinesisConstants.MAX_MESSAGE_BYTES))
+            {
+                int split = messages.size() / 2;
+                records.set(ii, new ArrayList<LogMessage>(messages.subList(0, split)));
+                records.add(ii + 1, new ArrayList<LogMessage>(messages.subList(split, messages.size())));
+                ii--;
+                continue;
+            }
+
+            if (recordBytes >= KinesisConstants.MAX_MESSAGE_BYTES)
+            {
+                if (data.length + config.partitionKeyLength < KinesisConstants.MAX_MESSAGE_BYTES)
+                {
+                    compressed = data;
+                    recordBytes = data.length + config.partitionKeyLength;
+                }
+                else
+                {
+                    reportError("discarded oversize message: " + recordBytes + " bytes", null);
+                    oversize.addAll(records.remove(ii));
+                    ii--;
+                    continue;
+                }
+            }
+
+            if (! requestRecords.isEmpty()
+                && ((requestBytes + recordBytes >= KinesisConstants.MAX_BATCH_BYTES)
+                    || (requestRecords.size() >= KinesisConstants.MAX_BATCH_COUNT)))
+            {
+                List<List<LogMessage>> remaining = records.subList(ii, records.size());
+                for (List<LogMessage> remainingMessages : remaining)
+                {
+                    deferred.addAll(remainingMessages);
+                }
+                remaining.clear();
+                break;
+            }
+
+            int shard = (shardAssigner != null) ? shardAssigner.nextShard(recordBytes) : -1;
             requestRecords.add(new PutRecordsRequestEntry()
-                       .withPartitionKey(partitionKey())
-                       .withData(ByteBuffer.wrap(message.getBytes())));
+                       .withPartitionKey(key)
+                       .withExplicitHashKey((shard >= 0) ? shardAssigner.getHashKey(shard) : null)
+                       .withData(ByteBuffer.wrap(compressed)));
+            recordShards.add(Integer.valueOf(shard));
+            requestBytes += recordBytes;
+            uncompressedBytes += data.length;
+            compressedBytes += compressed.length;
+        }
+
+        if (config.compression != Compression.none)
+        {
+            stats.updateCompressedBytes(uncompressedBytes, compressedBytes);
+            updateCompressionEstimate(uncompressedBytes, compressedBytes);
         }
 
         return new PutRecordsRequest()
@@ -279,29 +514,109 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     }
 
 
+    /**
+     *  Returns the fixed overhead of an aggregated record, including compression.
+     */
+    private int aggregatedRecordOverhead()
+    {
+        return RecordAggregator.recordOverhead(config.partitionKeyLength) + config.compression.overhead();
+    }
+
+
+    /**
+     *  Returns the expected size of data after compression.
+     */
+    private int estimateCompressedSize(int size)
+    {
+        return (config.compression == Compression.none)
+             ? size
+             : (int)Math.ceil(size * compressionEstimate);
+    }
+
+
+    /**
+     *  Updates the compression estimate based on the records that we're about to
+     *  send. We add a margin so that the estimate is usually high; if it's too low
+     *  we'll have to split or defer records.
+     */
+    private void updateCompressionEstimate(long uncompressedBytes, long compressedBytes)
+    {
+        if (uncompressedBytes > 0)
+        {
+            double ratio = (double)compressedBytes / uncompressedBytes;
+            compressionEstimate = Math.max(0.01, Math.min(1.0, ratio * 1.1));
+        }
+    }
+
+
+    /**
+     *  If rate limiting, reserves capacity for the request's records, and waits
+     *  until it's available. This runs on a thread that belongs to the writer:
+     *  when scheduled, batches are sent by the writer's sender thread, and the
+     *  scheduler uses {@link #sendDelay} to hold back further batches while an
+     *  earlier one is waiting.
+     */
+    private void waitForCapacity(PutRecordsRequest request, List<Integer> recordShards)
+    {
+        if (rateLimiter == null)
+            return;
+
+        long delay = 0;
+        List<PutRecordsRequestEntry> entries = request.getRecords();
+        for (int ii = 0 ; ii < entries.size() ; ii++)
+        {
+            int recordBytes = entries.get(ii).getData().remaining() + config.partitionKeyLength;
+            delay = Math.max(delay, rateLimiter.reserve(recordShards.get(ii).intValue(), recordBytes));
+        }
+
+        if (delay > 0)
+        {
+            stats.updateRateLimitDelay(delay);
+            Utils.sleepQuietly(delay);
+        }
+    }
+
+
     /**
      *  Attempts to send current request, retrying on any request-level failure.
-     *  Returns a list of the indexes for records that failed.
+     *  Returns a list of the indexes for records that failed. Records that failed
+     *  due to throttling are counted separately from other failures, and tell the
+     *  rate limiter that we don't have the capacity that it thought we did.
      */
-    private List<Integer> attemptToSend(PutRecordsRequest request)
+    private List<Integer> attemptToSend(PutRecordsRequest request, List<Integer> recordShards)
     {
         List<Integer> failures = new ArrayList<Integer>(request.getRecords().size());
 
+        Backoff backoff = new Backoff(250, 5000);
         for (int attempt = 0 ; attempt < SEND_RETRY_LIMIT ; attempt++)
         {
             try
             {
-                PutRecordsResult response = client.putRecords(request);
+                PutRecordsResult response = sendRequest(request);
                 int ii = 0;
+                int throttled = 0;
                 for (PutRecordsResultEntry entry : response.getRecords())
                 {
-                    if (entry.getErrorCode() != null)
+                    if (KinesisConstants.THROTTLED_ERROR_CODE.equals(entry.getErrorCode()))
+                    {
+                        failures.add(Integer.valueOf(ii));
+                        throttled++;
+                        if (rateLimiter != null)
+                        {
+                            rateLimiter.throttled(recordShards.get(ii).intValue());
+                        }
+                    }
+                    else if (entry.getErrorCode() != null)
                     {
                         failures.add(Integer.valueOf(ii));
                     }
+                    else if (shardAssigner != null)
+                    {
+                        shardAssigner.checkShard(entry.getShardId());
+                    }
                     ii++;
                 }
-                stats.updateMessagesSent(request.getRecords().size() - failures.size());
+                stats.updateFailedRecords(throttled, failures.size() - throttled);
                 return failures;
             }
             catch (ResourceNotFoundException ex)
@@ -309,10 +624,17 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
                 reportError("failed to send batch: stream " + request.getStreamName() + " no longer exists", null);
                 break;
             }
+            catch (ProvisionedThroughputExceededException ex)
+            {
+                // not normally thrown by PutRecords, which reports throttling per record
+                stats.updateFailedRecords(request.getRecords().size(), 0);
+                reportError("failed to send batch: throttled", ex);
+                backoff.sleep();
+            }
             catch (Exception ex)
             {
                 reportError("failed to send batch", ex);
-                Utils.sleepQuietly(250 * (attempt + 1));
+                backoff.sleep();
             }
         }
 
@@ -326,17 +648,38 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
 
 
     /**
-     *  Re-inserts any failed records into the head of the message queue, so that they'll
-     *  be picked up by the next batch.
+     *  Calls PutRecords, tracking the number of requests in flight and their latency.
+     */
+    private PutRecordsResult sendRequest(PutRecordsRequest request)
+    {
+        stats.requestStarted();
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try
+        {
+            PutRecordsResult response = client.putRecords(request);
+            success = true;
+            return response;
+        }
+        finally
+        {
+            stats.requestFinished(success ? System.currentTimeMillis() - start : -1);
+        }
+    }
+
+
+    /**
+     *  Returns the messages from any failed records, so that they'll be requeued and
+     *  picked up by the next batch.
      */
-    private List<LogMessage> extractFailures(List<LogMessage> currentBatch, List<Integer> failureIndexes)
+    private List<LogMessage> extractFailures(List<List<LogMessage>> records, List<Integer> failureIndexes)
     {
         if (! failureIndexes.isEmpty())
         {
             List<LogMessage> messages = new ArrayList<LogMessage>(failureIndexes.size());
             for (Integer idx : failureIndexes)
             {
-                messages.add(currentBatch.get(idx.intValue()));
+                messages.addAll(records.get(idx.intValue()));
             }
             return messages;
         }
@@ -355,12 +698,12 @@ extends AbstractLogWriter<KinesisWriterConfig,KinesisWriterStatistics,AmazonKine
     {
         if ("".equals(config.partitionKey))
         {
-            StringBuilder sb = new StringBuilder(16);
-            for (int ii = 0 ; ii < config.partitionKeyLength ; ii++)
+            char[] chars = new char[config.partitionKeyLength];
+            for (int ii = 0 ; ii < chars.length ; ii++)
             {
-                sb.append((char)('0' + rnd.nextInt(10)));
+                chars[ii] = (char)('0' + rnd.nextInt(10));
             }
-            return sb.toString();
+            return new String(chars);
         }
         else
         {
@@ -15,6 +15,7 @@
 package com.kdgregory.logging.aws.kinesis;
 
 import com.kdgregory.logging.aws.internal.AbstractWriterConfig;
+import com.kdgregory.logging.common.util.Compression;
 import com.kdgregory.logging.common.util.DiscardAction;
 
 
@@ -32,6 +33,13 @@ extends AbstractWriterConfig
     public int              shardCount;
     public Integer          retentionPeriod;
 
+    // optional, set by appender after construction
+    public int              parallelRequests = 1;
+    public boolean          aggregateRecords;
+    public Compression      compression = Compression.none;
+    public ShardAssignment  shardAssignment = ShardAssignment.none;
+    public boolean          shardRateLimit;
+
 
     /**
      *  @param streamName           Name of the stream where messages will be written.
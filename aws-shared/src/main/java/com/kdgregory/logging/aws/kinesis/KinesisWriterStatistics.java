@@ -14,14 +14,33 @@
 
 package com.kdgregory.logging.aws.kinesis;
 
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.kdgregory.logging.aws.internal.AbstractWriterStatistics;
+import com.kdgregory.logging.common.util.StripedCounter;
 
 
+/**
+ *  Statistics specific to the Kinesis appender.
+ *  <p>
+ *  Since requests may be sent concurrently, the request statistics are held in
+ *  atomic variables or striped counters.
+ */
 public class KinesisWriterStatistics
 extends AbstractWriterStatistics
 implements KinesisWriterStatisticsMXBean
 {
     private volatile String actualStreamName;
+    private AtomicInteger requestsInFlight = new AtomicInteger();
+    private StripedCounter requestCount = new StripedCounter();
+    private StripedCounter totalRequestLatency = new StripedCounter();
+    private volatile long lastRequestLatency;
+    private StripedCounter uncompressedBytes = new StripedCounter();
+    private StripedCounter compressedBytes = new StripedCounter();
+    private StripedCounter throttledRecords = new StripedCounter();
+    private StripedCounter failedRecords = new StripedCounter();
+    private StripedCounter rateLimitDelay = new StripedCounter();
 
 
     public void setActualStreamName(String value)
@@ -35,4 +54,157 @@ implements KinesisWriterStatisticsMXBean
         return actualStreamName;
     }
 
+
+    /**
+     *  Called by the writer immediately before calling PutRecords.
+     */
+    public void requestStarted()
+    {
+        requestsInFlight.incrementAndGet();
+    }
+
+
+    /**
+     *  Called by the writer after PutRecords returns or throws. Latency is only
+     *  recorded for successful requests; pass a negative value for failures.
+     */
+    public void requestFinished(long latency)
+    {
+        requestsInFlight.decrementAndGet();
+        if (latency >= 0)
+        {
+            recordServiceLatency(latency);
+            lastRequestLatency = latency;
+            totalRequestLatency.add(latency);
+            requestCount.increment();
+        }
+    }
+
+
+    @Override
+    public int getRequestsInFlight()
+    {
+        return requestsInFlight.get();
+    }
+
+
+    @Override
+    public long getLastRequestLatency()
+    {
+        return lastRequestLatency;
+    }
+
+
+    @Override
+    public long getAverageRequestLatency()
+    {
+        // these are read separately, so may be slightly inconsistent
+        return averageLatency(requestCount.sum(), totalRequestLatency.sum());
+    }
+
+
+    /**
+     *  Called by the writer after compressing a record that it's about to send.
+     */
+    public void updateCompressedBytes(long bytesIn, long bytesOut)
+    {
+        uncompressedBytes.add(bytesIn);
+        compressedBytes.add(bytesOut);
+    }
+
+
+    @Override
+    public long getUncompressedBytes()
+    {
+        return uncompressedBytes.sum();
+    }
+
+
+    @Override
+    public long getCompressedBytes()
+    {
+        return compressedBytes.sum();
+    }
+
+
+    @Override
+    public double getCompressionRatio()
+    {
+        // these are read separately, so may be slightly inconsistent
+        return compressionRatio(uncompressedBytes.sum(), compressedBytes.sum());
+    }
+
+
+    /**
+     *  Called by the writer after PutRecords returns, with the number of records
+     *  that were throttled and the number that failed for other reasons.
+     */
+    public void updateFailedRecords(int throttled, int failed)
+    {
+        throttledRecords.add(throttled);
+        failedRecords.add(failed);
+    }
+
+
+    @Override
+    public long getThrottledRecords()
+    {
+        return throttledRecords.sum();
+    }
+
+
+    @Override
+    public long getFailedRecords()
+    {
+        return failedRecords.sum();
+    }
+
+
+    /**
+     *  Called by the writer when the rate limiter delays a request.
+     */
+    public void updateRateLimitDelay(long millis)
+    {
+        rateLimitDelay.add(millis);
+    }
+
+
+    @Override
+    public long getRateLimitDelay()
+    {
+        return rateLimitDelay.sum();
+    }
+
+
+    @Override
+    protected void addToSnapshot(Map<String,Object> snapshot)
+    {
+        long count = requestCount.sum();
+        long total = totalRequestLatency.sum();
+        long bytesIn = uncompressedBytes.sum();
+        long bytesOut = compressedBytes.sum();
+        snapshot.put("ActualStreamName",        actualStreamName);
+        snapshot.put("RequestsInFlight",        Integer.valueOf(getRequestsInFlight()));
+        snapshot.put("LastRequestLatency",      Long.valueOf(getLastRequestLatency()));
+        snapshot.put("AverageRequestLatency",   Long.valueOf(averageLatency(count, total)));
+        snapshot.put("UncompressedBytes",       Long.valueOf(bytesIn));
+        snapshot.put("CompressedBytes",         Long.valueOf(bytesOut));
+        snapshot.put("CompressionRatio",        Double.valueOf(compressionRatio(bytesIn, bytesOut)));
+        snapshot.put("ThrottledRecords",        Long.valueOf(getThrottledRecords()));
+        snapshot.put("FailedRecords",           Long.valueOf(getFailedRecords()));
+        snapshot.put("RateLimitDelay",          Long.valueOf(getRateLimitDelay()));
+    }
+
+
+    private static long averageLatency(long count, long total)
+    {
+        return (count > 0) ? total / count : 0;
+    }
+
+
+    private static double compressionRatio(long bytesIn, long bytesOut)
+    {
+        return (bytesOut > 0) ? (double)bytesIn / bytesOut : 0;
+    }
+
 }
@@ -16,6 +16,7 @@ package com.kdgregory.logging.aws.kinesis;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.MXBean;
 
@@ -32,6 +33,68 @@ public interface KinesisWriterStatisticsMXBean
     String getActualStreamName();
 
 
+    /**
+     *  Returns the number of PutRecords requests that are currently in progress.
+     */
+    int getRequestsInFlight();
+
+
+    /**
+     *  Returns the time, in milliseconds, taken by the most recent successful
+     *  PutRecords request.
+     */
+    long getLastRequestLatency();
+
+
+    /**
+     *  Returns the average time, in milliseconds, taken by successful PutRecords
+     *  requests.
+     */
+    long getAverageRequestLatency();
+
+
+    /**
+     *  Returns the total size of records before compression. This is zero if
+     *  compression is not enabled.
+     */
+    long getUncompressedBytes();
+
+
+    /**
+     *  Returns the total size of records after compression. This is zero if
+     *  compression is not enabled.
+     */
+    long getCompressedBytes();
+
+
+    /**
+     *  Returns the ratio of uncompressed to compressed bytes (so higher is better).
+     *  This is zero if compression is not enabled.
+     */
+    double getCompressionRatio();
+
+
+    /**
+     *  Returns the number of records that Kinesis rejected because their shard
+     *  was over its throughput limits. These records are retried.
+     */
+    long getThrottledRecords();
+
+
+    /**
+     *  Returns the number of records that Kinesis rejected for reasons other than
+     *  throttling. These records are retried.
+     */
+    long getFailedRecords();
+
+
+    /**
+     *  Returns the total time, in milliseconds, that the writer has delayed requests
+     *  to stay within shard limits. This is zero unless rate limiting is enabled.
+     */
+    long getRateLimitDelay();
+
+
     /**
      *  Returns the most recent error from the writer. This will be null if there
      *  have been no errors.
@@ -57,11 +120,133 @@ public interface KinesisWriterStatisticsMXBean
     /**
      *  Returns the number of messages successfully sent to the stream.
      */
-    int getMessagesSent();
+    long getMessagesSent();
+
+
+    /**
+     *  Returns the batch delay, in milliseconds, currently used by the writer.
+     */
+    long getCurrentBatchDelay();
+
+
+    /**
+     *  Returns the state of the writer's circuit breaker: "closed", "open", or
+     *  "halfOpen".
+     */
+    String getCircuitBreakerState();
+
+
+    /**
+     *  Returns the number of times that the writer's circuit breaker has opened.
+     */
+    int getCircuitBreakerOpenCount();
 
 
     /**
      *  Returns the number of messages discarded by the message queue.
      */
-    int getMessagesDiscarded();
+    long getMessagesDiscarded();
+
+
+    /**
+     *  Returns the number of messages currently waiting to be sent, including any
+     *  that have been spilled to disk.
+     */
+    int getMessagesQueued();
+
+
+    /**
+     *  Returns the total size, in bytes, of the messages currently waiting to be sent
+     *  that are held in memory.
+     */
+    long getMessageBytesQueued();
+
+
+    /**
+     *  Returns the number of messages currently spilled to disk, waiting to be sent.
+     */
+    int getMessagesSpilled();
+
+
+    /**
+     *  Returns the number of appends that had to wait for room in the message queue.
+     */
+    long getMessagesBlocked();
+
+
+    /**
+     *  Returns the total number of milliseconds that appends have waited for room
+     *  in the message queue.
+     */
+    long getBlockedTime();
+
+
+    /**
+     *  Returns the number of messages currently held in memory, keyed by severity.
+     */
+    Map<String,Integer> getMessagesQueuedBySeverity();
+
+
+    /**
+     *  Returns the number of messages discarded by the current writer, keyed by severity.
+     */
+    Map<String,Long> getMessagesDiscardedBySeverity();
+
+
+    /**
+     *  Returns a histogram of end-to-end message latency: the number of milliseconds
+     *  from when a message was queued until it was sent. Keys are the range of each
+     *  bucket (eg, "256-511"), values are the number of messages in that range.
+     */
+    Map<String,Long> getQueueLatencyHistogram();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of end-to-end
+     *  message latency, in milliseconds.
+     */
+    Map<String,Long> getQueueLatencyPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, that messages waited in the queue before being added to a batch.
+     */
+    Map<String,Long> getQueueWaitPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the number of
+     *  messages in each batch.
+     */
+    Map<String,Long> getBatchSizePercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the size of each
+     *  batch, in bytes.
+     */
+    Map<String,Long> getBatchBytesPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, taken by successful calls to the service.
+     */
+    Map<String,Long> getServiceLatencyPercentiles();
+
+
+    /**
+     *  Clears all histograms and percentiles, starting a new measurement window.
+     */
+    void resetHistograms();
+
+
+    /**
+     *  Returns all of the writer's statistics, keyed by attribute name, as read in a
+     *  single pass. Use this rather than reading individual attributes when you need
+     *  values that were read at the same time (for example, to calculate rates).
+     *  Values are strings; timestamps are ISO-8601 UTC.
+     */
+    Map<String,String> getSnapshot();
 }
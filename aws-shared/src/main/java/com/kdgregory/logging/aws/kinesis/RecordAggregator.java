@@ -0,0 +1,185 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.kinesis;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Packs multiple log messages into a single Kinesis record, using the format
+ *  produced by the Kinesis Producer Library (KPL). Consumers built on the Kinesis
+ *  Client Library (KCL), or that use the AWS de-aggregation libraries, will see
+ *  the individual messages; other consumers will see the aggregated record.
+ *  <p>
+ *  An aggregated record consists of a 4-byte "magic number", followed by a
+ *  Protocol Buffers encoding of the <code>AggregatedRecord</code> message, followed
+ *  by the 16-byte MD5 digest of that encoding. We only write the fields that we
+ *  need: a single-entry partition key table, and one <code>Record</code> for each
+ *  message, which refers to that partition key. The encoding is simple enough that
+ *  we write it by hand rather than add a dependency on the protobuf runtime.
+ *  <p>
+ *  Instances are stateless; all methods are static.
+ */
+public class RecordAggregator
+{
+    /**
+     *  The bytes that identify an aggregated record.
+     */
+    public final static byte[] MAGIC = new byte[] { (byte)0xF3, (byte)0x89, (byte)0x9A, (byte)0xC2 };
+
+
+    /**
+     *  The size of the digest that follows the encoded message.
+     */
+    public final static int DIGEST_BYTES = 16;
+
+
+    // protobuf tags: field number shifted left 3, OR'd with wire type (0 = varint, 2 = length-delimited)
+    private final static int TAG_PARTITION_KEY_TABLE    = (1 << 3) | 2;
+    private final static int TAG_RECORDS                = (3 << 3) | 2;
+    private final static int TAG_PARTITION_KEY_INDEX    = (1 << 3) | 0;
+    private final static int TAG_DATA                   = (3 << 3) | 2;
+
+
+    /**
+     *  Returns the number of bytes that aggregation adds to a message of the given
+     *  size (its enclosing <code>Record</code> and the field headers).
+     */
+    public static int messageOverhead(int messageBytes)
+    {
+        int recordBytes = encodedRecordSize(messageBytes);
+        return 1 + varintSize(recordBytes) + recordBytes - messageBytes;
+    }
+
+
+    /**
+     *  Returns the number of bytes that every aggregated record requires regardless
+     *  of its contents: magic number, digest, and partition key table.
+     */
+    public static int recordOverhead(int partitionKeyBytes)
+    {
+        return MAGIC.length + DIGEST_BYTES + 1 + varintSize(partitionKeyBytes) + partitionKeyBytes;
+    }
+
+
+    /**
+     *  Creates an aggregated record containing the provided messages, in order.
+     */
+    public static byte[] aggregate(String partitionKey, List<LogMessage> messages)
+    {
+        byte[] keyBytes = toUTF8(partitionKey);
+
+        int size = recordOverhead(keyBytes.length);
+        for (LogMessage message : messages)
+        {
+            size += message.size() + messageOverhead(message.size());
+        }
+
+        byte[] result = new byte[size];
+        System.arraycopy(MAGIC, 0, result, 0, MAGIC.length);
+        int off = MAGIC.length;
+
+        off = writeVarint(result, off, TAG_PARTITION_KEY_TABLE);
+        off = writeVarint(result, off, keyBytes.length);
+        System.arraycopy(keyBytes, 0, result, off, keyBytes.length);
+        off += keyBytes.length;
+
+        for (LogMessage message : messages)
+        {
+            byte[] data = message.getBytes();
+            off = writeVarint(result, off, TAG_RECORDS);
+            off = writeVarint(result, off, encodedRecordSize(data.length));
+            off = writeVarint(result, off, TAG_PARTITION_KEY_INDEX);
+            off = writeVarint(result, off, 0);
+            off = writeVarint(result, off, TAG_DATA);
+            off = writeVarint(result, off, data.length);
+            System.arraycopy(data, 0, result, off, data.length);
+            off += data.length;
+        }
+
+        MessageDigest digest = md5();
+        digest.update(result, MAGIC.length, off - MAGIC.length);
+        System.arraycopy(digest.digest(), 0, result, off, DIGEST_BYTES);
+        return result;
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the encoded size of a <code>Record</code> holding the given number
+     *  of data bytes (not including the tag and length that precede it).
+     */
+    private static int encodedRecordSize(int dataBytes)
+    {
+        return 2 + 1 + varintSize(dataBytes) + dataBytes;
+    }
+
+
+    private static int varintSize(int value)
+    {
+        int size = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+
+    private static int writeVarint(byte[] buf, int off, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buf[off++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[off++] = (byte)value;
+        return off;
+    }
+
+
+    private static byte[] toUTF8(String value)
+    {
+        try
+        {
+            return value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("UnsupportedEncodingException when converting to UTF-8");
+        }
+    }
+
+
+    private static MessageDigest md5()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException("JVM does not support MD5 (should never happen)");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.kinesis;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+
+/**
+ *  Assigns records to the open shards of a stream, by picking an explicit hash
+ *  key from each shard's range. Holds the list of shards, which the writer must
+ *  refresh when {@link #needsRefresh} says to. The writer also uses an instance
+ *  in mode <code>none</code> (which doesn't assign) to track the number of shards
+ *  for rate limiting.
+ *  <p>
+ *  The writer may build multiple requests concurrently, so all methods are
+ *  synchronized. They're only called by writer threads, and do very little work,
+ *  so contention isn't an issue.
+ */
+class ShardAssigner
+{
+    // how often we refresh the shard list even if we haven't seen a sign of resharding
+    private final static long REFRESH_INTERVAL = 5 * 60 * 1000;
+
+    // how often we halve the accumulated load for leastLoaded assignment; this makes
+    // the load reflect recent activity, on roughly the timescale of shard limits
+    private final static long DECAY_INTERVAL = 1000;
+
+    private ShardAssignment mode;
+
+    private Set<String> shardIds = new HashSet<String>();
+    private String[] hashKeys = new String[0];
+    private long[] load = new long[0];
+    private int next;
+
+    private long lastRefresh;
+    private long lastDecay;
+    private boolean stale = true;
+
+
+    public ShardAssigner(ShardAssignment mode)
+    {
+        this.mode = mode;
+    }
+
+
+    /**
+     *  Replaces the current shard list. Callers should pass only open shards.
+     */
+    public synchronized void setShards(List<Shard> shards)
+    {
+        shardIds.clear();
+        hashKeys = new String[shards.size()];
+        load = new long[shards.size()];
+        for (int ii = 0 ; ii < shards.size() ; ii++)
+        {
+            Shard shard = shards.get(ii);
+            shardIds.add(shard.getShardId());
+            hashKeys[ii] = shard.getHashKeyRange().getStartingHashKey();
+        }
+
+        next = 0;
+        lastRefresh = System.currentTimeMillis();
+        stale = false;
+    }
+
+
+    /**
+     *  Returns the number of shards that records are currently assigned to.
+     */
+    public synchronized int getShardCount()
+    {
+        return hashKeys.length;
+    }
+
+
+    /**
+     *  Returns true if the shard list should be refreshed: it's never been set,
+     *  is old, or {@link #checkShard} has seen a shard that it doesn't contain.
+     *  Also resets the refresh timer, so that a failed refresh won't be retried
+     *  until the next interval.
+     */
+    public synchronized boolean needsRefresh()
+    {
+        long now = System.currentTimeMillis();
+        if (stale || (now - lastRefresh > REFRESH_INTERVAL))
+        {
+            lastRefresh = now;
+            stale = false;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  Called with the shard ID that Kinesis reports for a successful record. If
+     *  it's not one that we know about, the stream has been resharded.
+     */
+    public synchronized void checkShard(String shardId)
+    {
+        if ((shardId != null) && ! shardIds.contains(shardId))
+        {
+            stale = true;
+        }
+    }
+
+
+    /**
+     *  Returns the index of the shard for the next record, or -1 if there are no
+     *  known shards or the assigner isn't assigning records (in which case Kinesis
+     *  will use the partition key).
+     */
+    public synchronized int nextShard(int recordBytes)
+    {
+        if ((mode == ShardAssignment.none) || (hashKeys.length == 0))
+            return -1;
+
+        return (mode == ShardAssignment.leastLoaded)
+             ? leastLoadedShard(recordBytes)
+             : rotate();
+    }
+
+
+    /**
+     *  Returns the explicit hash key for the specified shard, null if passed -1
+     *  (or an index that's no longer valid because the shards were refreshed).
+     */
+    public synchronized String getHashKey(int shard)
+    {
+        return ((shard >= 0) && (shard < hashKeys.length)) ? hashKeys[shard] : null;
+    }
+
+
+    private int rotate()
+    {
+        int idx = next;
+        next = (next + 1) % hashKeys.length;
+        return idx;
+    }
+
+
+    private int leastLoadedShard(int recordBytes)
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastDecay > DECAY_INTERVAL)
+        {
+            for (int ii = 0 ; ii < load.length ; ii++)
+            {
+                load[ii] /= 2;
+            }
+            lastDecay = now;
+        }
+
+        // starting the search at a rotating index spreads records between shards
+        // that have the same load
+        int start = rotate();
+        int best = start;
+        for (int ii = 1 ; ii < load.length ; ii++)
+        {
+            int idx = (start + ii) % load.length;
+            if (load[idx] < load[best])
+                best = idx;
+        }
+
+        load[best] += recordBytes;
+        return best;
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.kinesis;
+
+
+/**
+ *  Controls how the Kinesis writer assigns records to shards.
+ */
+public enum ShardAssignment
+{
+    /**
+     *  Kinesis assigns records to shards by hashing their partition keys. This
+     *  is the default.
+     */
+    none,
+
+    /**
+     *  The writer assigns each record to the next shard in turn, by setting its
+     *  explicit hash key.
+     */
+    roundRobin,
+
+    /**
+     *  The writer assigns each record to the shard that it has recently sent the
+     *  fewest bytes to, by setting its explicit hash key.
+     */
+    leastLoaded;
+
+
+    public static ShardAssignment lookup(String value)
+    {
+        for (ShardAssignment assignment : values())
+        {
+            if (assignment.toString().equals(value))
+                return assignment;
+        }
+        throw new IllegalArgumentException("invalid shardAssignment: " + value);
+    }
+}
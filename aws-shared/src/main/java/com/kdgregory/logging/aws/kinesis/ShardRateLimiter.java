@@ -0,0 +1,125 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.kinesis;
+
+import com.kdgregory.logging.aws.internal.TokenBucket;
+
+
+/**
+ *  Keeps the writer within the Kinesis per-shard limits on bytes and records per
+ *  second. When the writer knows which shard a record will go to (because it's
+ *  assigning them), each shard has its own pair of token buckets; otherwise, a
+ *  single pair of buckets is sized for the number of shards that records can go
+ *  to: all of them with a random partition key, one with a fixed key.
+ *  <p>
+ *  Until the writer retrieves the stream's shards, it assumes that there's only
+ *  one.
+ */
+class ShardRateLimiter
+{
+    private boolean randomPartitionKey;
+
+    private TokenBucket[] shardBytes;
+    private TokenBucket[] shardRecords;
+    private TokenBucket streamBytes;
+    private TokenBucket streamRecords;
+
+
+    public ShardRateLimiter(boolean randomPartitionKey)
+    {
+        this.randomPartitionKey = randomPartitionKey;
+        setShardCount(1);
+    }
+
+
+    /**
+     *  Resizes the limiter for the current number of open shards. This discards
+     *  any accumulated tokens or debt.
+     */
+    public synchronized void setShardCount(int shardCount)
+    {
+        shardBytes = new TokenBucket[shardCount];
+        shardRecords = new TokenBucket[shardCount];
+        for (int ii = 0 ; ii < shardCount ; ii++)
+        {
+            shardBytes[ii] = createBytesBucket(1);
+            shardRecords[ii] = createRecordsBucket(1);
+        }
+
+        int streamShards = randomPartitionKey ? Math.max(1, shardCount) : 1;
+        streamBytes = createBytesBucket(streamShards);
+        streamRecords = createRecordsBucket(streamShards);
+    }
+
+
+    /**
+     *  Reserves capacity for a record, returning the number of milliseconds that
+     *  the caller must wait before sending it.
+     *
+     *  @param  shard       The index of the shard that the record will be written
+     *                      to, or -1 if not known.
+     *  @param  recordBytes The size of the record, including partition key.
+     */
+    public synchronized long reserve(int shard, int recordBytes)
+    {
+        boolean knownShard = (shard >= 0) && (shard < shardBytes.length);
+        TokenBucket bytes = knownShard ? shardBytes[shard] : streamBytes;
+        TokenBucket records = knownShard ? shardRecords[shard] : streamRecords;
+        return Math.max(bytes.reserve(recordBytes), records.reserve(1));
+    }
+
+
+    /**
+     *  Returns the number of milliseconds until no bucket is in debt: after that,
+     *  the writer can send another request without waiting for capacity that's
+     *  been reserved by earlier requests.
+     */
+    public synchronized long millisUntilAvailable()
+    {
+        long delay = Math.max(streamBytes.millisUntilAvailable(), streamRecords.millisUntilAvailable());
+        for (int ii = 0 ; ii < shardBytes.length ; ii++)
+        {
+            delay = Math.max(delay, shardBytes[ii].millisUntilAvailable());
+            delay = Math.max(delay, shardRecords[ii].millisUntilAvailable());
+        }
+        return delay;
+    }
+
+
+    /**
+     *  Called when Kinesis throttles a record: something else is using the shard's
+     *  capacity, so we give up whatever we thought we had.
+     */
+    public synchronized void throttled(int shard)
+    {
+        boolean knownShard = (shard >= 0) && (shard < shardBytes.length);
+        (knownShard ? shardBytes[shard] : streamBytes).drain();
+        (knownShard ? shardRecords[shard] : streamRecords).drain();
+    }
+
+
+    private static TokenBucket createBytesBucket(int shards)
+    {
+        long rate = (long)shards * KinesisConstants.MAX_SHARD_BYTES_PER_SECOND;
+        return new TokenBucket(rate, rate);
+    }
+
+
+    private static TokenBucket createRecordsBucket(int shards)
+    {
+        long rate = (long)shards * KinesisConstants.MAX_SHARD_RECORDS_PER_SECOND;
+        return new TokenBucket(rate, rate);
+    }
+}
@@ -26,6 +26,7 @@ import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.*;
 
 import com.kdgregory.logging.aws.internal.AbstractLogWriter;
+import com.kdgregory.logging.aws.internal.Backoff;
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.factories.ClientFactory;
 import com.kdgregory.logging.common.util.InternalLogger;
@@ -34,6 +35,9 @@ import com.kdgregory.logging.common.util.InternalLogger;
 public class SNSLogWriter
 extends AbstractLogWriter<SNSWriterConfig,SNSWriterStatistics,AmazonSNS>
 {
+    // this controls the number of times that we try to publish a message
+    private final static int SEND_RETRY_LIMIT = 3;
+
     // this is set when configuring by name, exposed for testing
     protected String topicArn;
 
@@ -80,20 +84,16 @@ extends AbstractLogWriter<SNSWriterConfig,SNSWriterStatistics,AmazonSNS>
         List<LogMessage> failures = new ArrayList<LogMessage>();
         for (LogMessage message : currentBatch)
         {
-            try
+            PublishRequest request = new PublishRequest()
+                                     .withTopicArn(topicArn)
+                                     .withMessage(message.getMessage());
+            if (config.subject != null)
             {
-                PublishRequest request = new PublishRequest()
-                                         .withTopicArn(topicArn)
-                                         .withMessage(message.getMessage());
-                if (config.subject != null)
-                {
-                    request.setSubject(config.subject);
-                }
-                client.publish(request);
+                request.setSubject(config.subject);
             }
-            catch (Exception ex)
+
+            if (! attemptToPublish(request))
             {
-                stats.setLastError(null, ex);
                 failures.add(message);
             }
         }
@@ -126,6 +126,35 @@ extends AbstractLogWriter<SNSWriterConfig,SNSWriterStatistics,AmazonSNS>
 //  Internal
 //----------------------------------------------------------------------------
 
+    /**
+     *  Attempts to publish a single message, retrying with backoff on failure.
+     *  Returns true if the message was published.
+     */
+    private boolean attemptToPublish(PublishRequest request)
+    {
+        Backoff backoff = new Backoff(100, 2000);
+        for (int attempt = 0 ; attempt < SEND_RETRY_LIMIT ; attempt++)
+        {
+            try
+            {
+                long start = System.currentTimeMillis();
+                client.publish(request);
+                stats.recordServiceLatency(System.currentTimeMillis() - start);
+                return true;
+            }
+            catch (Exception ex)
+            {
+                stats.setLastError(null, ex);
+                if (attempt < SEND_RETRY_LIMIT - 1)
+                {
+                    backoff.sleep();
+                }
+            }
+        }
+        return false;
+    }
+
+
     /**
      *  Attempts to find the configured topicArn in the list of topics for
      *  the current account. Returns true (and configures the writer) if
@@ -14,6 +14,8 @@
 
 package com.kdgregory.logging.aws.sns;
 
+import java.util.Map;
+
 import com.kdgregory.logging.aws.internal.AbstractWriterStatistics;
 
 
@@ -47,4 +49,12 @@ implements SNSWriterStatisticsMXBean
     {
         return actualTopicArn;
     }
+
+
+    @Override
+    protected void addToSnapshot(Map<String,Object> snapshot)
+    {
+        snapshot.put("ActualTopicName",     actualTopicName);
+        snapshot.put("ActualTopicArn",      actualTopicArn);
+    }
 }
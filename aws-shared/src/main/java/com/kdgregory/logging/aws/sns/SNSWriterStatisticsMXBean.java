@@ -16,6 +16,7 @@ package com.kdgregory.logging.aws.sns;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.MXBean;
 
@@ -64,11 +65,133 @@ public interface SNSWriterStatisticsMXBean
     /**
      *  Returns the number of messages successfully sent to the topic.
      */
-    int getMessagesSent();
+    long getMessagesSent();
+
+
+    /**
+     *  Returns the batch delay, in milliseconds, currently used by the writer.
+     */
+    long getCurrentBatchDelay();
+
+
+    /**
+     *  Returns the state of the writer's circuit breaker: "closed", "open", or
+     *  "halfOpen".
+     */
+    String getCircuitBreakerState();
+
+
+    /**
+     *  Returns the number of times that the writer's circuit breaker has opened.
+     */
+    int getCircuitBreakerOpenCount();
 
 
     /**
      *  Returns the number of messages discarded by the message queue.
      */
-    int getMessagesDiscarded();
+    long getMessagesDiscarded();
+
+
+    /**
+     *  Returns the number of messages currently waiting to be sent, including any
+     *  that have been spilled to disk.
+     */
+    int getMessagesQueued();
+
+
+    /**
+     *  Returns the total size, in bytes, of the messages currently waiting to be sent
+     *  that are held in memory.
+     */
+    long getMessageBytesQueued();
+
+
+    /**
+     *  Returns the number of messages currently spilled to disk, waiting to be sent.
+     */
+    int getMessagesSpilled();
+
+
+    /**
+     *  Returns the number of appends that had to wait for room in the message queue.
+     */
+    long getMessagesBlocked();
+
+
+    /**
+     *  Returns the total number of milliseconds that appends have waited for room
+     *  in the message queue.
+     */
+    long getBlockedTime();
+
+
+    /**
+     *  Returns the number of messages currently held in memory, keyed by severity.
+     */
+    Map<String,Integer> getMessagesQueuedBySeverity();
+
+
+    /**
+     *  Returns the number of messages discarded by the current writer, keyed by severity.
+     */
+    Map<String,Long> getMessagesDiscardedBySeverity();
+
+
+    /**
+     *  Returns a histogram of end-to-end message latency: the number of milliseconds
+     *  from when a message was queued until it was sent. Keys are the range of each
+     *  bucket (eg, "256-511"), values are the number of messages in that range.
+     */
+    Map<String,Long> getQueueLatencyHistogram();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of end-to-end
+     *  message latency, in milliseconds.
+     */
+    Map<String,Long> getQueueLatencyPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, that messages waited in the queue before being added to a batch.
+     */
+    Map<String,Long> getQueueWaitPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the number of
+     *  messages in each batch.
+     */
+    Map<String,Long> getBatchSizePercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the size of each
+     *  batch, in bytes.
+     */
+    Map<String,Long> getBatchBytesPercentiles();
+
+
+    /**
+     *  Returns the count, 50th/90th/99th percentiles, and maximum of the time, in
+     *  milliseconds, taken by successful calls to the service.
+     */
+    Map<String,Long> getServiceLatencyPercentiles();
+
+
+    /**
+     *  Clears all histograms and percentiles, starting a new measurement window.
+     */
+    void resetHistograms();
+
+
+    /**
+     *  Returns all of the writer's statistics, keyed by attribute name, as read in a
+     *  single pass. Use this rather than reading individual attributes when you need
+     *  values that were read at the same time (for example, to calculate rates).
+     *  Values are strings; timestamps are ISO-8601 UTC.
+     */
+    Map<String,String> getSnapshot();
 }
@@ -16,28 +16,51 @@ package com.kdgregory.logging.common;
 
 import java.io.UnsupportedEncodingException;
 
+import com.kdgregory.logging.common.util.Severity;
+
 
 /**
- *  Holder for an in-queue logging message. Each instance has a timestamp and the
- *  message, stored as both a string and UTF-8 encoded bytes.
+ *  Holder for an in-queue logging message. Each instance has a timestamp, the
+ *  message's severity, and the message, stored as both a string and UTF-8 encoded
+ *  bytes.
  */
 public class LogMessage
 implements Comparable<LogMessage>
 {
     private long timestamp;
+    private Severity severity;
     private String message;
     private byte[] messageBytes;
 
+    // assigned by the write-ahead log, if enabled
+    private long sequence = -1;
+
+    // assigned by the message queue
+    private long enqueueTime;
+
 
     /**
-     *  Constructs an instance from a simple string.
+     *  Constructs an instance from a simple string, with default severity.
      *
      *  @throws RuntimeException if UTF-8 encoding is not supported by the JVM (which
      *          should never happen).
      */
     public LogMessage(long timestamp, String message)
+    {
+        this(timestamp, message, Severity.info);
+    }
+
+
+    /**
+     *  Constructs an instance from a simple string, with explicit severity.
+     *
+     *  @throws RuntimeException if UTF-8 encoding is not supported by the JVM (which
+     *          should never happen).
+     */
+    public LogMessage(long timestamp, String message, Severity severity)
     {
         this.timestamp = timestamp;
+        this.severity = severity;
         this.message = message;
         try
         {
@@ -59,6 +82,15 @@ implements Comparable<LogMessage>
     }
 
 
+    /**
+     *  Returns the severity of the original logging event.
+     */
+    public Severity getSeverity()
+    {
+        return severity;
+    }
+
+
     /**
      *  Returns the size of the message after conversion to UTF-8.
      */
@@ -86,6 +118,50 @@ implements Comparable<LogMessage>
     }
 
 
+    /**
+     *  Returns the sequence number assigned by a write-ahead log, -1 if the message
+     *  has not been logged.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+
+    /**
+     *  Sets the message's write-ahead log sequence number. This is called by the log
+     *  (or when restoring a message that was previously logged), before the message
+     *  is added to a queue.
+     */
+    public void setSequence(long value)
+    {
+        sequence = value;
+    }
+
+
+    /**
+     *  Returns the time that the message was first added to a queue, 0 if it hasn't
+     *  been. Unlike the timestamp, this is not affected by the time taken to format
+     *  the event, or by a caller-supplied timestamp; it's the starting point for
+     *  the writer's latency calculations.
+     */
+    public long getEnqueueTime()
+    {
+        return enqueueTime;
+    }
+
+
+    /**
+     *  Sets the message's enqueue time. This is called by the queue (or when restoring
+     *  a message that was previously queued); a requeued message retains its original
+     *  enqueue time.
+     */
+    public void setEnqueueTime(long value)
+    {
+        enqueueTime = value;
+    }
+
+
     /**
      *  Compares instances based on their timestamp.
      *  <p>
@@ -42,6 +42,21 @@ extends Runnable
     void stop();
 
 
+    /**
+     *  Sends all queued messages without waiting for the batch delay, and waits for
+     *  them to be acknowledged by the destination. Returns <code>true</code> if all
+     *  messages queued before the call were sent or discarded (messages that can't
+     *  be sent are retained in the queue, so they will prevent this), <code>false</code>
+     *  if the timeout expired first.
+     *  <p>
+     *  Messages added by other threads while the flush is in progress may or may not
+     *  be sent, but the flush doesn't wait for them.
+     *
+     *  @param  timeout     The maximum number of milliseconds to wait.
+     */
+    boolean flush(long timeout);
+
+
     /**
      *  Sets the batch delay for the writer. The appender is assumed to expose a delay
      *  parameter, and this method allows it to change the writer's delay at runtime.
@@ -59,9 +74,23 @@ extends Runnable
     void setDiscardThreshold(int value);
 
 
+    /**
+     *  Updates the writer's byte-based discard threshold: the maximum total size of
+     *  the messages stored in its queue. Zero means no limit.
+     */
+    void setDiscardThresholdBytes(long value);
+
+
     /**
      *  Updates the writer's discard action: how it discards messages once the threshold
      *  has been reached.
      */
     void setDiscardAction(DiscardAction value);
+
+
+    /**
+     *  Updates the number of milliseconds that an append will wait for room in the
+     *  queue, when the discard action is "block".
+     */
+    void setEnqueueTimeout(long value);
 }
@@ -0,0 +1,61 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common;
+
+
+/**
+ *  A writer that can be driven by a shared scheduler, rather than occupying a
+ *  thread of its own. Instead of calling <code>run()</code>, the scheduler calls
+ *  {@link #runOnce} repeatedly; each call does a bounded amount of work and says
+ *  when the writer next needs attention. Between calls, the writer uses the
+ *  wakeup listener to tell the scheduler that something has happened (such as a
+ *  message arriving while idle) that should cause an earlier call.
+ *  <p>
+ *  The scheduler must never make concurrent calls to <code>runOnce()</code> for
+ *  the same writer. Extra calls are harmless.
+ */
+public interface ScheduledLogWriter
+extends LogWriter
+{
+    /**
+     *  Returned by {@link #runOnce} when the writer has nothing to do until the
+     *  wakeup listener is called.
+     */
+    long IDLE = Long.MAX_VALUE;
+
+    /**
+     *  Returned by {@link #runOnce} when the writer has shut down, and should no
+     *  longer be called.
+     */
+    long FINISHED = -1;
+
+
+    /**
+     *  Sets the listener that's invoked when the writer needs to be run before the
+     *  time it last requested. This must be called before the first call to
+     *  {@link #runOnce}. The listener may be invoked from any thread, including
+     *  application threads that are logging, so must not block.
+     */
+    void setWakeupListener(Runnable listener);
+
+
+    /**
+     *  Performs one step of the writer's work without waiting for messages: the first
+     *  call initializes the writer, later calls send a batch if one is ready. Returns
+     *  the number of milliseconds until the writer wants to be called again (0 means
+     *  right away), {@link #IDLE}, or {@link #FINISHED}.
+     */
+    long runOnce();
+}
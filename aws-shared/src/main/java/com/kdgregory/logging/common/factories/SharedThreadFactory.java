@@ -0,0 +1,235 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.factories;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kdgregory.logging.common.LogWriter;
+import com.kdgregory.logging.common.ScheduledLogWriter;
+
+
+/**
+ *  A {@link ThreadFactory} that runs writers on a small pool of threads that's
+ *  shared by all appenders in the JVM, rather than giving each writer its own
+ *  thread. Writers are invoked when their batch delay expires or when a message
+ *  arrives for an idle writer, so the number of threads doesn't depend on the
+ *  number of appenders.
+ *  <p>
+ *  Writers that don't implement {@link ScheduledLogWriter} are started on their
+ *  own thread, via {@link DefaultThreadFactory}.
+ *  <p>
+ *  Writers must not block in <code>runOnce()</code>, because that would hold up
+ *  every other writer on the same pool thread. {@link
+ *  com.kdgregory.logging.aws.internal.AbstractLogWriter} hands initialization
+ *  and sends to a sender thread of its own.
+ */
+public class SharedThreadFactory implements ThreadFactory
+{
+    /**
+     *  The number of threads in the default pool. This may be changed by setting
+     *  the system property <code>com.kdgregory.logging.sharedThreadCount</code>.
+     */
+    public final static int DEFAULT_THREAD_COUNT
+        = Integer.getInteger("com.kdgregory.logging.sharedThreadCount",
+                             Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())))
+                 .intValue();
+
+    private static ScheduledExecutorService defaultExecutor;
+
+    private ScheduledExecutorService executor;
+    private ThreadFactory fallback;
+
+
+    /**
+     *  Creates an instance that uses the JVM-wide default pool.
+     */
+    public SharedThreadFactory(String appenderName)
+    {
+        this(defaultExecutor(), appenderName);
+    }
+
+
+    /**
+     *  Creates an instance that uses the provided pool. This is intended for
+     *  testing, and for applications that want to control the pool's lifecycle.
+     */
+    public SharedThreadFactory(ScheduledExecutorService executor, String appenderName)
+    {
+        this.executor = executor;
+        this.fallback = new DefaultThreadFactory(appenderName);
+    }
+
+
+    @Override
+    public void startLoggingThread(LogWriter writer, UncaughtExceptionHandler exceptionHandler)
+    {
+        if (! (writer instanceof ScheduledLogWriter))
+        {
+            fallback.startLoggingThread(writer, exceptionHandler);
+            return;
+        }
+
+        final WriterTask task = new WriterTask((ScheduledLogWriter)writer, exceptionHandler);
+        task.writer.setWakeupListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                task.wakeup();
+            }
+        });
+        task.wakeup();
+    }
+
+
+    /**
+     *  Returns the JVM-wide pool, creating it if necessary.
+     */
+    private static synchronized ScheduledExecutorService defaultExecutor()
+    {
+        if (defaultExecutor == null)
+        {
+            defaultExecutor = new ScheduledThreadPoolExecutor(DEFAULT_THREAD_COUNT, new PoolThreadFactory());
+        }
+        return defaultExecutor;
+    }
+
+
+    /**
+     *  Invokes the writer, and then reschedules it based on the writer's response.
+     *  Wakeups that arrive while the writer is running cause it to be run again
+     *  immediately; those that arrive while it's waiting cancel the wait.
+     */
+    private class WriterTask
+    implements Runnable
+    {
+        private ScheduledLogWriter writer;
+        private UncaughtExceptionHandler exceptionHandler;
+
+        // all guarded by synchronization on this object
+        private boolean running;
+        private boolean rerun;
+        private boolean finished;
+        private ScheduledFuture<?> timer;
+
+        public WriterTask(ScheduledLogWriter writer, UncaughtExceptionHandler exceptionHandler)
+        {
+            this.writer = writer;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        public void wakeup()
+        {
+            synchronized (this)
+            {
+                if (finished)
+                    return;
+
+                if (running)
+                {
+                    rerun = true;
+                    return;
+                }
+
+                if (timer != null)
+                {
+                    timer.cancel(false);
+                    timer = null;
+                }
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                // a cancelled timer may still fire, or a wakeup may have raced
+                // with a timer; either way, only one invocation runs the writer
+                if (finished)
+                    return;
+
+                if (running)
+                {
+                    rerun = true;
+                    return;
+                }
+
+                running = true;
+                rerun = false;
+                timer = null;
+            }
+
+            long delay = ScheduledLogWriter.FINISHED;
+            try
+            {
+                delay = writer.runOnce();
+            }
+            catch (Throwable ex)
+            {
+                exceptionHandler.uncaughtException(Thread.currentThread(), ex);
+            }
+
+            boolean runNow = false;
+            synchronized (this)
+            {
+                running = false;
+                if (delay == ScheduledLogWriter.FINISHED)
+                {
+                    finished = true;
+                }
+                else if (rerun || (delay <= 0))
+                {
+                    runNow = true;
+                }
+                else if (delay != ScheduledLogWriter.IDLE)
+                {
+                    timer = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            if (runNow)
+            {
+                executor.execute(this);
+            }
+        }
+    }
+
+
+    /**
+     *  Creates the daemon threads for the default pool.
+     */
+    private static class PoolThreadFactory
+    implements java.util.concurrent.ThreadFactory
+    {
+        private AtomicInteger threadNumber = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable);
+            thread.setName("com-kdgregory-aws-logwriter-shared-" + threadNumber.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
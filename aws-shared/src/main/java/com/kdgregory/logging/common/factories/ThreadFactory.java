@@ -33,7 +33,9 @@ import com.kdgregory.logging.common.LogWriter;
  *  will be caught).
  *  <p>
  *  <code>DefaultThreadFactory</code> provides a standard implementation of this
- *  interface. This module also provides <code>NullThreadFactory</code> and
+ *  interface, <code>SharedThreadFactory</code> runs writers on a pool that's shared
+ *  between appenders, and <code>VirtualThreadFactory</code> runs them on virtual
+ *  threads (when supported by the JVM). This module also provides <code>NullThreadFactory</code> and
  *  <code>InlineThreadFactory</code>, which are used for unit tests.
  */
 public interface ThreadFactory
@@ -0,0 +1,111 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.factories;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kdgregory.logging.common.LogWriter;
+
+
+/**
+ *  A {@link ThreadFactory} that starts each writer on a virtual thread, if the JVM
+ *  supports them (JDK 21 and later). Writers spend almost all of their time waiting
+ *  for messages or for a response from AWS, so they don't need a platform thread of
+ *  their own. If virtual threads aren't available, this delegates to
+ *  {@link DefaultThreadFactory}.
+ *  <p>
+ *  Since this library is compiled for older JDKs, virtual threads are created via
+ *  reflection. The reflective lookup happens once, when this class is loaded.
+ */
+public class VirtualThreadFactory implements ThreadFactory
+{
+    // these are null if virtual threads aren't supported
+    private static Method ofVirtualMethod;
+    private static Method nameMethod;
+    private static Method unstartedMethod;
+
+    static
+    {
+        try
+        {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method name = builderClass.getMethod("name", String.class);
+            Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+
+            ofVirtualMethod = ofVirtual;
+            nameMethod = name;
+            unstartedMethod = unstarted;
+        }
+        catch (Exception ignored)
+        {
+            // pre-JDK21, or preview not enabled
+        }
+    }
+
+
+    private AtomicInteger threadNumber = new AtomicInteger(0);
+    private String appenderName;
+    private ThreadFactory fallback;
+
+
+    public VirtualThreadFactory(String appenderName)
+    {
+        this.appenderName = appenderName;
+        this.fallback = new DefaultThreadFactory(appenderName);
+    }
+
+
+    /**
+     *  Returns true if the JVM supports virtual threads, false if this factory will
+     *  create platform threads.
+     */
+    public static boolean isSupported()
+    {
+        return ofVirtualMethod != null;
+    }
+
+
+    @Override
+    public void startLoggingThread(LogWriter writer, UncaughtExceptionHandler exceptionHandler)
+    {
+        Thread writerThread = null;
+        if (isSupported())
+        {
+            try
+            {
+                Object builder = ofVirtualMethod.invoke(null);
+                builder = nameMethod.invoke(builder, "com-kdgregory-aws-logwriter-" + appenderName + "-" + threadNumber.getAndIncrement());
+                writerThread = (Thread)unstartedMethod.invoke(builder, writer);
+            }
+            catch (Exception ignored)
+            {
+                // shouldn't happen if the methods were found, but fall back if it does
+            }
+        }
+
+        if (writerThread == null)
+        {
+            fallback.startLoggingThread(writer, exceptionHandler);
+            return;
+        }
+
+        // virtual threads are always daemon threads, and have a fixed priority
+        writerThread.setUncaughtExceptionHandler(exceptionHandler);
+        writerThread.start();
+    }
+}
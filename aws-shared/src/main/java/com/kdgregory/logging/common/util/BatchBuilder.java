@@ -0,0 +1,41 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Accumulates messages for {@link MessageQueue#drainTo}. The implementation is
+ *  responsible for tracking the batch's size and applying the destination's
+ *  limits on message count and bytes.
+ */
+public interface BatchBuilder
+{
+    /**
+     *  Adds a message to the batch, if it fits within the batch's limits. Returns
+     *  false, without adding the message, if it does not.
+     */
+    boolean add(LogMessage message);
+
+
+    /**
+     *  Returns true if the batch should not accept any more messages, either because
+     *  it's at the destination's limits or because it's reached a configured fill
+     *  level. This allows the batch to be sent without waiting for a message that
+     *  won't fit.
+     */
+    boolean isFull();
+}
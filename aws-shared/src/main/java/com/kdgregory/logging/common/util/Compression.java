@@ -0,0 +1,164 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ *  Selects the compression applied to a record before it's written. All formats
+ *  are standard, so can be decompressed by consumers without this library.
+ *  <p>
+ *  Each value is stateless, and may be called from multiple threads.
+ */
+public enum Compression
+{
+    /**
+     *  No compression; data is returned as-is. This is the default.
+     */
+    none(0)
+    {
+        @Override
+        public byte[] compress(byte[] data)
+        {
+            return data;
+        }
+    },
+
+    /**
+     *  GZIP format (RFC 1952), as produced by <code>GZIPOutputStream</code>.
+     */
+    gzip(18)
+    {
+        @Override
+        public byte[] compress(byte[] data)
+        {
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+                GZIPOutputStream out = new GZIPOutputStream(bos);
+                out.write(data);
+                out.close();
+                return bos.toByteArray();
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException("IOException when writing to memory (should never happen)", ex);
+            }
+        }
+    },
+
+    /**
+     *  ZLIB format (RFC 1950), as produced by <code>DeflaterOutputStream</code>.
+     *  This is what HTTP calls "deflate".
+     */
+    deflate(6)
+    {
+        @Override
+        public byte[] compress(byte[] data)
+        {
+            Deflater deflater = new Deflater();
+            try
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+                DeflaterOutputStream out = new DeflaterOutputStream(bos, deflater);
+                out.write(data);
+                out.close();
+                return bos.toByteArray();
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException("IOException when writing to memory (should never happen)", ex);
+            }
+            finally
+            {
+                // the stream doesn't release native memory for a deflater that it didn't create
+                deflater.end();
+            }
+        }
+    },
+
+    /**
+     *  LZ4 frame format, using a pure-Java compressor. This compresses less than
+     *  the others, but is several times faster.
+     */
+    lz4(LZ4Compressor.FRAME_OVERHEAD)
+    {
+        @Override
+        public byte[] compress(byte[] data)
+        {
+            return LZ4Compressor.compress(data);
+        }
+    };
+
+
+    private int overhead;
+
+    private Compression(int overhead)
+    {
+        this.overhead = overhead;
+    }
+
+
+    /**
+     *  Compresses the passed data.
+     */
+    public abstract byte[] compress(byte[] data);
+
+
+    /**
+     *  Returns the fixed number of bytes that this format adds to its output
+     *  (headers and trailers), regardless of how well the data compresses.
+     */
+    public int overhead()
+    {
+        return overhead;
+    }
+
+
+    /**
+     *  Returns the largest possible output size for the given input size, which
+     *  happens when the data is incompressible.
+     */
+    public int maxCompressedSize(int size)
+    {
+        if (this == none)
+            return size;
+
+        // LZ4 stores incompressible blocks as-is, with 4 bytes of overhead (one of
+        // which is part of the frame overhead); for deflate we use zlib's bound for
+        // arbitrary compression parameters, because the tighter stored-block bound
+        // doesn't hold for all zlib versions
+        int blockOverhead = (this == lz4)
+                          ? 4 * (size / LZ4Compressor.BLOCK_SIZE)
+                          : ((size + 7) >> 3) + ((size + 63) >> 6) + 5;
+        return size + overhead + blockOverhead;
+    }
+
+
+    public static Compression lookup(String value)
+    {
+        for (Compression compression : values())
+        {
+            if (compression.toString().equals(value))
+                return compression;
+        }
+        throw new IllegalArgumentException("invalid compression: " + value);
+    }
+}
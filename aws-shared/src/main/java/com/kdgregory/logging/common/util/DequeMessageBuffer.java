@@ -0,0 +1,96 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  A {@link MessageBuffer} backed by a <code>LinkedBlockingDeque</code>. Every
+ *  operation takes the deque's lock.
+ */
+class DequeMessageBuffer
+implements MessageBuffer
+{
+    private LinkedBlockingDeque<LogMessage> deque = new LinkedBlockingDeque<LogMessage>();
+
+
+    @Override
+    public void addLast(LogMessage message)
+    {
+        deque.addLast(message);
+    }
+
+
+    @Override
+    public void addFirst(LogMessage message)
+    {
+        deque.addFirst(message);
+    }
+
+
+    @Override
+    public LogMessage pollFirst()
+    {
+        return deque.pollFirst();
+    }
+
+
+    @Override
+    public void drainTo(List<LogMessage> target, int maxMessages)
+    {
+        // this takes the lock once, rather than once per message
+        deque.drainTo(target, maxMessages);
+    }
+
+
+    @Override
+    public LogMessage removeForDiscard(boolean oldest)
+    {
+        return oldest ? deque.pollFirst() : deque.pollLast();
+    }
+
+
+    @Override
+    public boolean canRemoveNewest()
+    {
+        return true;
+    }
+
+
+    @Override
+    public LogMessage peekFirst()
+    {
+        return deque.peekFirst();
+    }
+
+
+    @Override
+    public int size()
+    {
+        return deque.size();
+    }
+
+
+    @Override
+    public List<LogMessage> toList()
+    {
+        return new ArrayList<LogMessage>(deque);
+    }
+}
@@ -19,7 +19,13 @@ public enum DiscardAction
     /**
      *  Discard newest messages once threshold is reached.
      */
-    newest;
+    newest,
+
+    /**
+     *  Block the caller until there's room in the queue, for a limited time; if
+     *  there's still no room, discard the oldest message.
+     */
+    block;
 
 
     public static DiscardAction lookup(String value)
@@ -0,0 +1,507 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Holds messages that have overflowed a {@link MessageQueue}, in a series of
+ *  memory-mapped segment files. Messages are appended to the last segment and
+ *  read from the first; a segment is deleted once it has been read completely
+ *  (the last segment is instead rewound, so that a queue that's hovering around
+ *  its threshold doesn't continually create and delete files).
+ *  <p>
+ *  Each record consists of a 4-byte length, an 8-byte timestamp, a 1-byte severity
+ *  (its ordinal), and the UTF-8 message bytes. If the message has a write-ahead log
+ *  sequence number, the high bit of the severity byte is set and the 8-byte sequence
+ *  number follows it; similarly, the next bit flags an 8-byte enqueue time. Since
+ *  segments are only read by this process, there's no file header and no attempt
+ *  to recover segments after a restart (that's the job of the {@link WriteAheadLog}).
+ *  Segment files are deleted as they're consumed and when the spill is closed; if
+ *  the process exits without closing it, they're left behind.
+ *  <p>
+ *  The total size of all segments is limited. If appending a message would require
+ *  a new segment that exceeds that limit, either the oldest segment is discarded
+ *  (along with all of its messages), or the new message is rejected, at the choice
+ *  of the caller. Discarded messages are counted by severity, but severity is not
+ *  otherwise considered: the spill is strictly first-in, first-out.
+ *  <p>
+ *  All methods are synchronized: appends happen on application threads, which are
+ *  already serialized by the appender, and reads happen on the writer thread.
+ */
+class DiskSpill
+{
+    // each record has a length, timestamp, and severity
+    private final static int RECORD_HEADER_SIZE = 13;
+
+    // which may be followed by a sequence number, flagged in the severity byte
+    private final static int SEQUENCE_SIZE = 8;
+    private final static int SEQUENCE_FLAG = 0x80;
+
+    // and/or the time that the message was enqueued
+    private final static int ENQUEUE_TIME_SIZE = 8;
+    private final static int ENQUEUE_TIME_FLAG = 0x40;
+
+    // segment sizes are based on the overall limit, but kept reasonable
+    private final static int MIN_SEGMENT_SIZE = 4096;
+    private final static int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private File directory;
+    private long maxBytes;
+    private int segmentSize;
+
+    private LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long allocatedBytes;
+    private int messageCount;
+    private long messageBytes;
+
+    // used to release mapped buffers; see unmap()
+    private static boolean useBufferCleaner;
+    private static Object unsafe;
+    private static Method invokeCleanerMethod;
+
+    static
+    {
+        String specVersion = System.getProperty("java.specification.version", "");
+        if (specVersion.startsWith("1."))
+        {
+            useBufferCleaner = true;
+        }
+        else
+        {
+            try
+            {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+                invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (Throwable ignored)
+            {
+                // buffers will be released by the garbage collector
+            }
+        }
+    }
+
+
+    /**
+     *  @param  directory       The directory where segment files are created. It will
+     *                          be created if it does not already exist.
+     *  @param  maxBytes        The maximum total size of all segment files.
+     */
+    public DiskSpill(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = (int)Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / 4));
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Appends a message to the spill.
+     *
+     *  @param  message         The message.
+     *  @param  discardOldest   If true, and there isn't room for the message, the
+     *                          oldest segment(s) will be discarded to make room. If
+     *                          false, the message will be rejected.
+     *  @param  discards        Incremented, by severity ordinal, for each message that
+     *                          is discarded to make room.
+     *
+     *  @return The number of messages discarded to make room, or -1 if this message
+     *          was rejected because there was no room.
+     *
+     *  @throws IOException if unable to create or write a segment file. If this
+     *          happens, the message has not been written.
+     */
+    public synchronized int append(LogMessage message, boolean discardOldest, int[] discards)
+    throws IOException
+    {
+        int recordSize = recordSize(message);
+        if (recordSize > maxBytes)
+            return -1;
+
+        int discarded = 0;
+
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if ((segment == null) || (segment.remaining() < recordSize))
+        {
+            int newSegmentSize = Math.max(segmentSize, recordSize);
+            while (allocatedBytes + newSegmentSize > maxBytes)
+            {
+                if (! discardOldest || segments.isEmpty())
+                    return -1;
+
+                discarded += removeFirstSegment(discards);
+            }
+            segment = new Segment(newSegmentSize);
+            segments.add(segment);
+            allocatedBytes += newSegmentSize;
+        }
+
+        segment.write(message);
+        messageCount++;
+        messageBytes += message.size();
+        return discarded;
+    }
+
+
+    /**
+     *  Removes and returns the oldest message in the spill, null if it's empty.
+     */
+    public synchronized LogMessage poll()
+    {
+        while (! segments.isEmpty())
+        {
+            Segment segment = segments.getFirst();
+            if (segment.hasMoreRecords())
+            {
+                LogMessage message = segment.read();
+                messageCount--;
+                messageBytes -= message.size();
+                if (! segment.hasMoreRecords() && (segments.size() == 1))
+                {
+                    segment.rewind();
+                }
+                return message;
+            }
+            if (segments.size() == 1)
+                return null;
+
+            removeFirstSegment(null);
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns the number of messages in the spill.
+     */
+    public synchronized int size()
+    {
+        return messageCount;
+    }
+
+
+    /**
+     *  Returns the total size of the messages in the spill (not including record
+     *  overhead or unused space in segment files).
+     */
+    public synchronized long bytes()
+    {
+        return messageBytes;
+    }
+
+
+    /**
+     *  Returns the contents of the spill, without removing them. This is intended
+     *  for testing.
+     */
+    public synchronized List<LogMessage> toList()
+    {
+        List<LogMessage> result = new ArrayList<LogMessage>(messageCount);
+        for (Segment segment : segments)
+        {
+            segment.readAll(result);
+        }
+        return result;
+    }
+
+
+    /**
+     *  Returns the segment files currently in use. This is intended for testing.
+     */
+    public synchronized List<File> getFiles()
+    {
+        List<File> result = new ArrayList<File>(segments.size());
+        for (Segment segment : segments)
+        {
+            result.add(segment.file);
+        }
+        return result;
+    }
+
+
+    /**
+     *  Discards all messages and deletes all segment files, returning the number
+     *  of messages that were discarded (which are also counted, by severity ordinal,
+     *  in the passed array).
+     */
+    public synchronized int close(int[] discards)
+    {
+        int discarded = 0;
+        while (! segments.isEmpty())
+        {
+            discarded += removeFirstSegment(discards);
+        }
+        return discarded;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Mapped buffers aren't released until garbage-collected, which prevents
+     *  deleting the file on some platforms. Through Java 8 we call the buffer's
+     *  cleaner directly; from Java 9 on, that's an illegal reflective access, so
+     *  we use <code>Unsafe.invokeCleaner()</code>, which is exported for exactly
+     *  this purpose. If neither is available, we leave it to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            if (invokeCleanerMethod != null)
+            {
+                invokeCleanerMethod.invoke(unsafe, buffer);
+            }
+            else if (useBufferCleaner)
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                {
+                    Method cleanMethod = cleaner.getClass().getMethod("clean");
+                    cleanMethod.setAccessible(true);
+                    cleanMethod.invoke(cleaner);
+                }
+            }
+        }
+        catch (Throwable ignored)
+        {
+            // fall back to the garbage collector
+        }
+    }
+
+
+    /**
+     *  Returns the number of bytes needed to store a message.
+     */
+    private static int recordSize(LogMessage message)
+    {
+        return RECORD_HEADER_SIZE
+             + ((message.getSequence() >= 0) ? SEQUENCE_SIZE : 0)
+             + ((message.getEnqueueTime() > 0) ? ENQUEUE_TIME_SIZE : 0)
+             + message.size();
+    }
+
+
+    /**
+     *  Closes and deletes the first segment, returning the number of messages that
+     *  it contained. If passed an array, it's incremented with the count of those
+     *  messages by severity.
+     */
+    private int removeFirstSegment(int[] discards)
+    {
+        Segment segment = segments.removeFirst();
+        if (discards != null)
+        {
+            for (int ii = 0 ; ii < discards.length ; ii++)
+            {
+                discards[ii] += segment.recordCountBySeverity[ii];
+            }
+        }
+        allocatedBytes -= segment.capacity;
+        messageCount -= segment.recordCount;
+        messageBytes -= segment.recordBytes;
+        segment.delete();
+        return segment.recordCount;
+    }
+
+
+    /**
+     *  Manages a single segment file.
+     */
+    private class Segment
+    {
+        public File file;
+        public int capacity;
+        private RandomAccessFile raf;
+        private MappedByteBuffer buffer;
+        private int writePos;
+        private int readPos;
+
+        // these track unread records, so that they can be reported if discarded
+        public int recordCount;
+        public long recordBytes;
+        public int[] recordCountBySeverity = new int[Severity.values().length];
+
+        public Segment(int capacity)
+        throws IOException
+        {
+            if (! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory())
+                throw new IOException("unable to create spill directory: " + directory);
+
+            this.capacity = capacity;
+            this.file = File.createTempFile("logwriter-", ".spill", directory);
+            try
+            {
+                raf = new RandomAccessFile(file, "rw");
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            catch (IOException ex)
+            {
+                delete();
+                throw ex;
+            }
+        }
+
+        public int remaining()
+        {
+            return capacity - writePos;
+        }
+
+        public boolean hasMoreRecords()
+        {
+            return readPos < writePos;
+        }
+
+        public void write(LogMessage message)
+        {
+            byte[] bytes = message.getBytes();
+            int severity = message.getSeverity().ordinal();
+            int dataPos = writePos + RECORD_HEADER_SIZE;
+            if (message.getSequence() >= 0)
+            {
+                severity |= SEQUENCE_FLAG;
+                buffer.putLong(dataPos, message.getSequence());
+                dataPos += SEQUENCE_SIZE;
+            }
+            if (message.getEnqueueTime() > 0)
+            {
+                severity |= ENQUEUE_TIME_FLAG;
+                buffer.putLong(dataPos, message.getEnqueueTime());
+                dataPos += ENQUEUE_TIME_SIZE;
+            }
+            buffer.putInt(writePos, bytes.length);
+            buffer.putLong(writePos + 4, message.getTimestamp());
+            buffer.put(writePos + 12, (byte)severity);
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(dataPos);
+            dup.put(bytes);
+            writePos = dataPos + bytes.length;
+            recordCount++;
+            recordBytes += bytes.length;
+            recordCountBySeverity[message.getSeverity().ordinal()]++;
+        }
+
+        public LogMessage read()
+        {
+            LogMessage message = readAt(readPos);
+            readPos += recordSize(message);
+            recordCount--;
+            recordBytes -= message.size();
+            recordCountBySeverity[message.getSeverity().ordinal()]--;
+            return message;
+        }
+
+        public void readAll(List<LogMessage> result)
+        {
+            int pos = readPos;
+            while (pos < writePos)
+            {
+                LogMessage message = readAt(pos);
+                result.add(message);
+                pos += recordSize(message);
+            }
+        }
+
+        public void rewind()
+        {
+            readPos = 0;
+            writePos = 0;
+        }
+
+        public void delete()
+        {
+            unmap();
+            try
+            {
+                if (raf != null) raf.close();
+            }
+            catch (IOException ignored)
+            {
+                // nothing we can do about it
+            }
+            file.delete();
+        }
+
+        private LogMessage readAt(int pos)
+        {
+            int length = buffer.getInt(pos);
+            long timestamp = buffer.getLong(pos + 4);
+            int severityByte = buffer.get(pos + 12) & 0xFF;
+            Severity severity = Severity.values()[severityByte & ~(SEQUENCE_FLAG | ENQUEUE_TIME_FLAG)];
+            int dataPos = pos + RECORD_HEADER_SIZE;
+            long sequence = -1;
+            if ((severityByte & SEQUENCE_FLAG) != 0)
+            {
+                sequence = buffer.getLong(dataPos);
+                dataPos += SEQUENCE_SIZE;
+            }
+            long enqueueTime = 0;
+            if ((severityByte & ENQUEUE_TIME_FLAG) != 0)
+            {
+                enqueueTime = buffer.getLong(dataPos);
+                dataPos += ENQUEUE_TIME_SIZE;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(dataPos);
+            dup.get(bytes);
+            try
+            {
+                LogMessage message = new LogMessage(timestamp, new String(bytes, "UTF-8"), severity);
+                message.setSequence(sequence);
+                message.setEnqueueTime(enqueueTime);
+                return message;
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                throw new RuntimeException("UnsupportedEncodingException when converting from UTF-8");
+            }
+        }
+
+        private void unmap()
+        {
+            if (buffer == null)
+                return;
+
+            DiskSpill.unmap(buffer);
+            buffer = null;
+        }
+    }
+}
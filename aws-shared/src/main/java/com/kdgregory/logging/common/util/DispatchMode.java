@@ -0,0 +1,51 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+
+/**
+ *  Selects how appenders run their log writers.
+ */
+public enum DispatchMode
+{
+    /**
+     *  Each writer runs on its own thread. This is the default.
+     */
+    dedicated,
+
+    /**
+     *  Writers run on a small pool of threads that's shared by all appenders, and
+     *  are invoked only when they have work to do. Intended for applications that
+     *  have many appenders.
+     */
+    shared,
+
+    /**
+     *  Each writer runs on its own virtual thread. Requires JDK 21 or later; on
+     *  earlier JVMs this behaves like <code>dedicated</code>.
+     */
+    virtual;
+
+
+    public static DispatchMode lookup(String value)
+    {
+        for (DispatchMode mode : values())
+        {
+            if (mode.toString().equals(value))
+                return mode;
+        }
+        throw new IllegalArgumentException("invalid dispatchMode: " + value);
+    }
+}
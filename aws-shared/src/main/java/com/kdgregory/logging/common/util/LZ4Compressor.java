@@ -0,0 +1,228 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.Arrays;
+
+
+/**
+ *  A pure-Java compressor that produces the LZ4 frame format, so that its output
+ *  can be read by the <code>lz4</code> command-line program or any LZ4 library.
+ *  <p>
+ *  The compressor is the simple "fast" variant: a single-probe hash table of the
+ *  last position where each 4-byte sequence appeared, with matches extended
+ *  forward as far as possible. It doesn't look for better matches, so compresses
+ *  less than LZ4's high-compression mode (and much less than deflate), but it
+ *  is cheap enough to run on every record.
+ *  <p>
+ *  Frames use independent 4 MB blocks, with no block or content checksums (the
+ *  transport has its own). Blocks that don't compress are stored as-is.
+ */
+class LZ4Compressor
+{
+    /**
+     *  Maximum number of uncompressed bytes in a block.
+     */
+    public final static int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     *  Bytes added to the output for a single-block frame: magic number, frame
+     *  descriptor, block size, and end mark.
+     */
+    public final static int FRAME_OVERHEAD = 15;
+
+
+    // frame descriptor: version 1, independent blocks, no checksums or content size,
+    // 4 MB maximum block size; the last byte is the descriptor checksum (second byte
+    // of the xxHash32 of the first two)
+    private final static byte[] FRAME_HEADER = new byte[] { 0x04, 0x22, 0x4D, 0x18, 0x60, 0x70, 0x73 };
+
+    // the high bit of a block size indicates that the block is stored uncompressed
+    private final static int UNCOMPRESSED_FLAG = 0x80000000;
+
+    // format constraints: the last 5 bytes of a block are always literals, and the
+    // last match must start at least 12 bytes before the end
+    private final static int MIN_MATCH = 4;
+    private final static int LAST_LITERALS = 5;
+    private final static int MF_LIMIT = 12;
+    private final static int MAX_OFFSET = 65535;
+
+    private final static int HASH_BITS = 14;
+
+
+    /**
+     *  Compresses the passed data into a single frame.
+     */
+    public static byte[] compress(byte[] data)
+    {
+        int blockCount = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        byte[] buf = new byte[FRAME_OVERHEAD + 4 * blockCount + maxBlockSize(Math.min(data.length, BLOCK_SIZE)) * Math.max(blockCount, 1)];
+
+        System.arraycopy(FRAME_HEADER, 0, buf, 0, FRAME_HEADER.length);
+        int off = FRAME_HEADER.length;
+
+        int[] table = new int[1 << HASH_BITS];
+        for (int start = 0 ; start < data.length ; start += BLOCK_SIZE)
+        {
+            int len = Math.min(BLOCK_SIZE, data.length - start);
+            int compressedLen = compressBlock(data, start, len, buf, off + 4, table);
+            if (compressedLen < len)
+            {
+                writeIntLE(buf, off, compressedLen);
+                off += 4 + compressedLen;
+            }
+            else
+            {
+                writeIntLE(buf, off, len | UNCOMPRESSED_FLAG);
+                System.arraycopy(data, start, buf, off + 4, len);
+                off += 4 + len;
+            }
+        }
+
+        writeIntLE(buf, off, 0);
+        off += 4;
+        return Arrays.copyOf(buf, off);
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the worst-case size of a compressed block (all literals).
+     */
+    private static int maxBlockSize(int len)
+    {
+        return len + len / 255 + 16;
+    }
+
+
+    /**
+     *  Compresses a single block, returning the number of bytes written. The table
+     *  is reused between blocks, and is reset here.
+     */
+    private static int compressBlock(byte[] src, int srcOff, int len, byte[] dst, int dstOff, int[] table)
+    {
+        // table entries are positions relative to srcOff, plus one so that zero means empty
+        Arrays.fill(table, 0);
+
+        int end = srcOff + len;
+        int matchLimit = end - LAST_LITERALS;
+        int searchLimit = end - MF_LIMIT;
+
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        while (ip < searchLimit)
+        {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash] - 1 + srcOff;
+            table[hash] = ip - srcOff + 1;
+
+            if ((ref < srcOff) || (ip - ref > MAX_OFFSET) || (readInt(src, ref) != sequence))
+            {
+                ip++;
+                continue;
+            }
+
+            int matchLen = MIN_MATCH;
+            while ((ip + matchLen < matchLimit) && (src[ref + matchLen] == src[ip + matchLen]))
+            {
+                matchLen++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        op = writeLiterals(src, anchor, end - anchor, dst, op);
+        return op - dstOff;
+    }
+
+
+    /**
+     *  Writes a sequence consisting of literals followed by a match, returning
+     *  the updated output position.
+     */
+    private static int writeSequence(byte[] src, int litOff, int litLen, byte[] dst, int op, int offset, int matchLen)
+    {
+        int tokenPos = op++;
+        int matchCode = matchLen - MIN_MATCH;
+
+        op = writeLength(dst, op, litLen);
+        System.arraycopy(src, litOff, dst, op, litLen);
+        op += litLen;
+
+        dst[op++] = (byte)offset;
+        dst[op++] = (byte)(offset >>> 8);
+
+        op = writeLength(dst, op, matchCode);
+        dst[tokenPos] = (byte)((Math.min(litLen, 15) << 4) | Math.min(matchCode, 15));
+        return op;
+    }
+
+
+    /**
+     *  Writes the final sequence of a block, which has only literals.
+     */
+    private static int writeLiterals(byte[] src, int litOff, int litLen, byte[] dst, int op)
+    {
+        dst[op++] = (byte)(Math.min(litLen, 15) << 4);
+        op = writeLength(dst, op, litLen);
+        System.arraycopy(src, litOff, dst, op, litLen);
+        return op + litLen;
+    }
+
+
+    /**
+     *  Writes the continuation bytes for a length that doesn't fit in its 4-bit
+     *  token field.
+     */
+    private static int writeLength(byte[] dst, int op, int len)
+    {
+        if (len >= 15)
+        {
+            len -= 15;
+            while (len >= 255)
+            {
+                dst[op++] = (byte)255;
+                len -= 255;
+            }
+            dst[op++] = (byte)len;
+        }
+        return op;
+    }
+
+
+    private static int readInt(byte[] buf, int off)
+    {
+        return (buf[off] & 0xFF)
+             | ((buf[off + 1] & 0xFF) << 8)
+             | ((buf[off + 2] & 0xFF) << 16)
+             | ((buf[off + 3] & 0xFF) << 24);
+    }
+
+
+    private static void writeIntLE(byte[] buf, int off, int value)
+    {
+        buf[off]     = (byte)value;
+        buf[off + 1] = (byte)(value >>> 8);
+        buf[off + 2] = (byte)(value >>> 16);
+        buf[off + 3] = (byte)(value >>> 24);
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  A {@link MessageBuffer} that holds a separate "lane" for each {@link Severity},
+ *  so that messages can be discarded from the least important lane first.
+ *  <p>
+ *  Messages are retrieved in timestamp order across all lanes, by comparing the
+ *  first message in each lane. Within a lane, order is preserved; messages in
+ *  different lanes with the same timestamp may be retrieved in any order. Bulk
+ *  retrieval merges the lanes in a single pass, looking only at the lane that
+ *  it just took a message from.
+ *  <p>
+ *  Each lane is a {@link DequeMessageBuffer}, because discarding the newest message
+ *  of a given lane requires removing from its end.
+ */
+class LaneMessageBuffer
+implements MessageBuffer
+{
+    private MessageBuffer[] lanes;
+
+
+    public LaneMessageBuffer()
+    {
+        lanes = new MessageBuffer[Severity.values().length];
+        for (int ii = 0 ; ii < lanes.length ; ii++)
+        {
+            lanes[ii] = new DequeMessageBuffer();
+        }
+    }
+
+
+    @Override
+    public void addLast(LogMessage message)
+    {
+        lanes[message.getSeverity().ordinal()].addLast(message);
+    }
+
+
+    @Override
+    public void addFirst(LogMessage message)
+    {
+        lanes[message.getSeverity().ordinal()].addFirst(message);
+    }
+
+
+    @Override
+    public LogMessage pollFirst()
+    {
+        // if another thread discards the message that we pick, we'll get the
+        // next message in that lane; it's still very close to being in order
+        int lane = oldestLane();
+        return (lane >= 0) ? lanes[lane].pollFirst() : null;
+    }
+
+
+    @Override
+    public void drainTo(List<LogMessage> target, int maxMessages)
+    {
+        // we remember the head of each lane, so only need to look at a lane again
+        // after taking from it; a lane that's empty when we start stays that way
+        LogMessage[] heads = new LogMessage[lanes.length];
+        for (int ii = 0 ; ii < lanes.length ; ii++)
+        {
+            heads[ii] = lanes[ii].peekFirst();
+        }
+
+        int count = 0;
+        while (count < maxMessages)
+        {
+            int lane = -1;
+            for (int ii = 0 ; ii < heads.length ; ii++)
+            {
+                if ((heads[ii] != null) && ((lane < 0) || (heads[ii].getTimestamp() < heads[lane].getTimestamp())))
+                {
+                    lane = ii;
+                }
+            }
+            if (lane < 0)
+                return;
+
+            // as with pollFirst(), a concurrent discard means we get the next message
+            LogMessage message = lanes[lane].pollFirst();
+            if (message != null)
+            {
+                target.add(message);
+                count++;
+            }
+            heads[lane] = lanes[lane].peekFirst();
+        }
+    }
+
+
+    @Override
+    public LogMessage removeForDiscard(boolean oldest)
+    {
+        for (MessageBuffer lane : lanes)
+        {
+            LogMessage message = lane.removeForDiscard(oldest);
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
+
+    @Override
+    public boolean canRemoveNewest()
+    {
+        return true;
+    }
+
+
+    @Override
+    public LogMessage peekFirst()
+    {
+        int lane = oldestLane();
+        return (lane >= 0) ? lanes[lane].peekFirst() : null;
+    }
+
+
+    @Override
+    public int size()
+    {
+        int size = 0;
+        for (MessageBuffer lane : lanes)
+        {
+            size += lane.size();
+        }
+        return size;
+    }
+
+
+    @Override
+    public List<LogMessage> toList()
+    {
+        // sort is stable, so order within a lane is preserved
+        List<LogMessage> result = new ArrayList<LogMessage>();
+        for (MessageBuffer lane : lanes)
+        {
+            result.addAll(lane.toList());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+
+    /**
+     *  Returns the index of the lane whose first message has the lowest timestamp,
+     *  -1 if all lanes are empty.
+     */
+    private int oldestLane()
+    {
+        int result = -1;
+        long resultTimestamp = Long.MAX_VALUE;
+        for (int ii = 0 ; ii < lanes.length ; ii++)
+        {
+            LogMessage message = lanes[ii].peekFirst();
+            if ((message != null) && ((result < 0) || (message.getTimestamp() < resultTimestamp)))
+            {
+                result = ii;
+                resultTimestamp = message.getTimestamp();
+            }
+        }
+        return result;
+    }
+}
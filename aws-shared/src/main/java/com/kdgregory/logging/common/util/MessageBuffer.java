@@ -0,0 +1,86 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.List;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  The storage behind a {@link MessageQueue}. Implementations must be safe for
+ *  concurrent use by multiple producers and consumers, but are not responsible
+ *  for counting, discarding, or blocking; those are handled by the queue.
+ */
+interface MessageBuffer
+{
+    /**
+     *  Adds a message to the end of the buffer.
+     */
+    void addLast(LogMessage message);
+
+
+    /**
+     *  Adds a message to the start of the buffer.
+     */
+    void addFirst(LogMessage message);
+
+
+    /**
+     *  Removes and returns the message at the start of the buffer, null if empty.
+     */
+    LogMessage pollFirst();
+
+
+    /**
+     *  Removes up to <code>maxMessages</code> from the start of the buffer, adding
+     *  them to the passed list in order. Implementations should do this with less
+     *  overhead than repeated calls to {@link #pollFirst}.
+     */
+    void drainTo(List<LogMessage> target, int maxMessages);
+
+
+    /**
+     *  Removes and returns a message to be discarded: either the oldest or newest
+     *  message of least importance. Returns null if the buffer is empty, or if the
+     *  implementation can't remove the newest message.
+     */
+    LogMessage removeForDiscard(boolean oldest);
+
+
+    /**
+     *  Returns true if {@link #removeForDiscard} can remove the newest message.
+     */
+    boolean canRemoveNewest();
+
+
+    /**
+     *  Returns the message at the start of the buffer, without removing it.
+     */
+    LogMessage peekFirst();
+
+
+    /**
+     *  Returns the number of messages in the buffer, as recorded by the buffer.
+     *  This may be an O(N) operation, and is intended for testing.
+     */
+    int size();
+
+
+    /**
+     *  Returns the buffer's contents, in order. This is intended for testing.
+     */
+    List<LogMessage> toList();
+}
@@ -14,22 +14,63 @@
 
 package com.kdgregory.logging.common.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.kdgregory.logging.common.LogMessage;
 
 
 /**
  *  A thread-safe message queue that keeps track of the current number of entries
- *  and optionally discards messages after its size reaches a given threshold.
+ *  and their total size, and optionally discards messages after either reaches a
+ *  given threshold.
  *  <p>
  *  Implementation note: all operations are coded as update queue followed by update
- *  count. This means that it is possible that {@link #size()} may not reflect the
- *  actual size of the queue at any given point in time (but usually will).
+ *  count. This means that it is possible that {@link #size()} and {@link #bytes()}
+ *  may not reflect the actual contents of the queue at any given point in time (but
+ *  usually will).
+ *  <p>
+ *  Optionally, messages that would otherwise be discarded can be "spilled" to disk
+ *  (see {@link #enableSpill}). Once any message has been spilled, all subsequent
+ *  messages are spilled until the writer has caught up, so that order is preserved.
+ *  <p>
+ *  Independently, messages can be recorded in a {@link WriteAheadLog} (see {@link
+ *  #enableWriteAheadLog}), so that they survive the death of the process. The writer
+ *  is responsible for calling {@link #acknowledge} once messages have been sent;
+ *  the queue acknowledges messages that it discards.
+ *  <p>
+ *  The queue also counts the messages that have entered it, and the messages that
+ *  have left it for good (acknowledged or discarded). Comparing these lets a caller
+ *  wait for the messages that were enqueued before some point, without waiting for
+ *  the queue to be empty.
+ *  <p>
+ *  Messages are held in a {@link MessageBuffer}, selected by {@link QueueType}. The
+ *  queue itself is responsible for counting, discarding, and waking a consumer that
+ *  is blocked in {@link #dequeue(long)}; only one thread may block at a time (the
+ *  writer thread), although any thread may call the non-blocking methods.
+ *  <p>
+ *  If constructed with priority lanes, the in-memory queue holds a separate lane for
+ *  each message {@link Severity}, and discards always take from the least-important
+ *  non-empty lane (using the discard action to pick the oldest or newest message in
+ *  that lane). Messages are still retrieved in timestamp order. Counts of queued and
+ *  dropped messages are maintained by severity regardless of whether lanes are used.
+ *  These are updated on every enqueue, so use a {@link StripedCounter} to avoid
+ *  contention between producers; the total count and size, which are read on every
+ *  enqueue to apply the discard threshold, are simple atomics.
+ *  <p>
+ *  The "block" discard action makes {@link #enqueue} wait for room in the queue, up
+ *  to a configurable timeout, after which it discards the oldest message. Producers
+ *  that must wait use a lock and condition; the consumer only touches them if it
+ *  sees that a producer is waiting, so there's no cost when the queue isn't full.
  */
 public class MessageQueue
 {
@@ -38,18 +79,76 @@ public class MessageQueue
 //  Instance variables and constructor
 //----------------------------------------------------------------------------
 
-    private LinkedBlockingDeque<LogMessage> messageQueue = new LinkedBlockingDeque<LogMessage>();
+    // drainTo() reads in chunks, starting small and growing to this size
+    private final static int MAX_DRAIN_CHUNK = 1024;
+
+    // how long a "block" enqueue waits for room, in milliseconds, unless changed
+    public final static long DEFAULT_ENQUEUE_TIMEOUT = 1000;
+
+    private MessageBuffer messageQueue;
     private AtomicInteger messageCount = new AtomicInteger();
-    private AtomicInteger droppedMessageCount = new AtomicInteger();
+    private AtomicLong messageBytes = new AtomicLong();
+    private StripedCounter droppedMessageCount = new StripedCounter();
+    private StripedCounter enqueuedMessageCount = new StripedCounter();
+    private StripedCounter acknowledgedMessageCount = new StripedCounter();
+    private StripedCounter[] messageCountBySeverity = createCounters(Severity.values().length);
+    private StripedCounter[] droppedMessageCountBySeverity = createCounters(Severity.values().length);
 
     private volatile int discardThreshold;
+    private volatile long discardThresholdBytes;
     private volatile DiscardAction discardAction;
+    private volatile long enqueueTimeout = DEFAULT_ENQUEUE_TIMEOUT;
+
+    // the thread blocked in dequeue(long), if any
+    private volatile Thread waitingConsumer;
+
+    // set by wakeup(), to make a waiting dequeue return without a message
+    private volatile boolean wakeupRequested;
+
+    // used by producers that are waiting for room in the queue
+    private ReentrantLock producerLock = new ReentrantLock();
+    private Condition spaceAvailable = producerLock.newCondition();
+    private AtomicInteger waitingProducers = new AtomicInteger();
+    private AtomicLong blockedEnqueueCount = new AtomicLong();
+    private AtomicLong blockedEnqueueNanos = new AtomicLong();
+
+    // null unless spill-to-disk is enabled
+    private volatile DiskSpill spill;
+
+    // null unless the write-ahead log is enabled
+    private volatile WriteAheadLog wal;
 
 
     public MessageQueue(int discardThreshold, DiscardAction discardAction)
+    {
+        this(discardThreshold, discardAction, QueueType.deque);
+    }
+
+
+    public MessageQueue(int discardThreshold, DiscardAction discardAction, QueueType queueType)
+    {
+        this(discardThreshold, discardAction, queueType, false);
+    }
+
+
+    /**
+     *  Base constructor.
+     *
+     *  @param  discardThreshold    The maximum number of messages held in memory.
+     *  @param  discardAction       What to do once that threshold is reached.
+     *  @param  queueType           The type of the in-memory buffer. Ignored if using
+     *                              priority lanes, since each lane must be able to
+     *                              discard its newest message.
+     *  @param  priorityLanes       If true, messages are held in separate lanes by
+     *                              severity, and discards take from the lowest lane.
+     */
+    public MessageQueue(int discardThreshold, DiscardAction discardAction, QueueType queueType, boolean priorityLanes)
     {
         this.discardThreshold = discardThreshold;
         this.discardAction = discardAction;
+        this.messageQueue = priorityLanes                  ? new LaneMessageBuffer()
+                          : (queueType == QueueType.ring)  ? new RingMessageBuffer(discardThreshold + 1)
+                          : new DequeMessageBuffer();
     }
 
 
@@ -58,11 +157,14 @@ public class MessageQueue
 //----------------------------------------------------------------------------
 
     /**
-     *  Changes the discard threshold.
+     *  Changes the discard threshold. Note that this does not resize a ring buffer,
+     *  which is sized from the threshold given to the constructor; messages over its
+     *  capacity are held in a secondary deque.
      */
     public void setDiscardThreshold(int value)
     {
         discardThreshold = value;
+        wakeProducers();
     }
 
 
@@ -75,12 +177,33 @@ public class MessageQueue
     }
 
 
+    /**
+     *  Changes the byte-based discard threshold: the maximum total size, per
+     *  {@link LogMessage#size}, of the messages in the queue. This is applied
+     *  in addition to the count-based threshold; 0 disables it (the default).
+     */
+    public void setDiscardThresholdBytes(long value)
+    {
+        discardThresholdBytes = value;
+    }
+
+
+    /**
+     *  Returns the current byte-based discard threshold; this is intended for testing.
+     */
+    public long getDiscardThresholdBytes()
+    {
+        return discardThresholdBytes;
+    }
+
+
     /**
      *  Changes the discard action
      */
     public void setDiscardAction(DiscardAction value)
     {
         discardAction = value;
+        wakeProducers();
     }
 
 
@@ -93,12 +216,218 @@ public class MessageQueue
     }
 
 
+    /**
+     *  Changes the number of milliseconds that {@link #enqueue} will wait for room
+     *  in the queue when the discard action is "block".
+     */
+    public void setEnqueueTimeout(long value)
+    {
+        enqueueTimeout = value;
+    }
+
+
+    /**
+     *  Returns the current enqueue timeout; this is intended for testing.
+     */
+    public long getEnqueueTimeout()
+    {
+        return enqueueTimeout;
+    }
+
+
+    /**
+     *  Returns the number of calls to {@link #enqueue} that had to wait for room in
+     *  the queue (whether or not room became available).
+     */
+    public long getBlockedEnqueueCount()
+    {
+        return blockedEnqueueCount.get();
+    }
+
+
+    /**
+     *  Returns the total time, in milliseconds, that callers have spent waiting in
+     *  {@link #enqueue}.
+     */
+    public long getBlockedEnqueueTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(blockedEnqueueNanos.get());
+    }
+
+
+    /**
+     *  Enables spilling messages to disk once the discard threshold is reached,
+     *  rather than discarding them. The discard action then applies once the
+     *  spill reaches its maximum size: "oldest" discards the oldest spilled
+     *  messages, "newest" discards the message being enqueued, and "none"
+     *  keeps the message in memory.
+     *
+     *  @param  directory   The directory where spill files are written; it will be
+     *                      created if necessary.
+     *  @param  maxBytes    The maximum total size of spill files.
+     */
+    public void enableSpill(File directory, long maxBytes)
+    {
+        spill = new DiskSpill(directory, maxBytes);
+    }
+
+
+    /**
+     *  Enables the write-ahead log: every message added by {@link #enqueue} is also
+     *  written to a segment file in the given directory, and remains there until
+     *  passed to {@link #acknowledge} (or discarded). Messages left in the directory
+     *  by a previous process are added to the front of the queue, and messages that
+     *  were already in the (in-memory) queue are written to the log.
+     *
+     *  @param  directory       The directory where log files are written; it will be
+     *                          created if necessary. Must not be shared with another
+     *                          queue.
+     *  @param  maxBytes        The maximum total size of log files.
+     *  @param  syncInterval    Milliseconds between syncs to disk; 0 syncs on every
+     *                          message.
+     *
+     *  @return The number of messages recovered from a previous process.
+     *
+     *  @throws IOException if unable to open the log, in which case the queue is
+     *          unchanged.
+     */
+    public int enableWriteAheadLog(File directory, long maxBytes, long syncInterval)
+    throws IOException
+    {
+        return enableWriteAheadLog(directory, maxBytes, syncInterval, true);
+    }
+
+
+    /**
+     *  Enables the write-ahead log, optionally without waiting if the directory is
+     *  held by another queue in this JVM (which happens briefly when an appender
+     *  replaces its writer).
+     *
+     *  @throws java.nio.channels.OverlappingFileLockException if <code>waitForLock</code> is false
+     *          and the directory is in use within this JVM. The queue is unchanged,
+     *          and the caller may try again later.
+     */
+    public int enableWriteAheadLog(File directory, long maxBytes, long syncInterval, boolean waitForLock)
+    throws IOException
+    {
+        WriteAheadLog newWal = new WriteAheadLog(directory, maxBytes, syncInterval);
+        List<LogMessage> recovered = newWal.open(waitForLock);
+        wal = newWal;
+
+        // the log ignores messages that producers have logged since we set it
+        for (LogMessage message : messageQueue.toList())
+        {
+            newWal.append(message);
+        }
+
+        // the log doesn't record enqueue time, so latency starts now
+        long now = System.currentTimeMillis();
+        for (int ii = recovered.size() - 1 ; ii >= 0 ; ii--)
+        {
+            LogMessage message = recovered.get(ii);
+            message.setEnqueueTime(now);
+            requeue(message);
+        }
+        enqueuedMessageCount.add(recovered.size());
+        return recovered.size();
+    }
+
+
+    /**
+     *  Acknowledges that messages have been sent (or will never be sent), so that
+     *  they can be removed from the write-ahead log, and are counted as completed.
+     */
+    public void acknowledge(List<LogMessage> messages)
+    {
+        acknowledgedMessageCount.add(messages.size());
+        WriteAheadLog currentWal = wal;
+        if (currentWal != null)
+        {
+            currentWal.acknowledge(messages);
+        }
+    }
+
+
+    /**
+     *  Returns the files currently used by the write-ahead log. This is intended
+     *  for testing.
+     */
+    public List<File> getWriteAheadLogFiles()
+    {
+        WriteAheadLog currentWal = wal;
+        return (currentWal != null) ? currentWal.getFiles() : Collections.<File>emptyList();
+    }
+
+
+    /**
+     *  Returns the number of messages currently spilled to disk.
+     */
+    public int getSpilledMessageCount()
+    {
+        DiskSpill currentSpill = spill;
+        return (currentSpill != null) ? currentSpill.size() : 0;
+    }
+
+
+    /**
+     *  Returns the files currently used to hold spilled messages. This is intended
+     *  for testing.
+     */
+    public List<File> getSpillFiles()
+    {
+        DiskSpill currentSpill = spill;
+        return (currentSpill != null) ? currentSpill.getFiles() : Collections.<File>emptyList();
+    }
+
+
+    /**
+     *  Returns the number of messages that have been passed to {@link #enqueue},
+     *  including those that were immediately discarded, plus those recovered from
+     *  the write-ahead log.
+     */
+    public long getEnqueuedMessageCount()
+    {
+        return enqueuedMessageCount.sum();
+    }
+
+
+    /**
+     *  Returns the number of messages that have left the queue for good: they've
+     *  either been acknowledged or discarded. Messages that are dequeued and then
+     *  requeued aren't counted until one of those happens.
+     */
+    public long getCompletedMessageCount()
+    {
+        return acknowledgedMessageCount.sum() + droppedMessageCount.sum();
+    }
+
+
     /**
      *  Returns the number of messages that have been dropped.
      */
-    public int getDroppedMessageCount()
+    public long getDroppedMessageCount()
     {
-        return droppedMessageCount.get();
+        return droppedMessageCount.sum();
+    }
+
+
+    /**
+     *  Returns the number of messages with the given severity that are currently held
+     *  in memory (spilled messages are not counted). Like {@link #size}, this might
+     *  not be exact.
+     */
+    public int getMessageCount(Severity severity)
+    {
+        return (int)messageCountBySeverity[severity.ordinal()].sum();
+    }
+
+
+    /**
+     *  Returns the number of messages with the given severity that have been dropped.
+     */
+    public long getDroppedMessageCount(Severity severity)
+    {
+        return droppedMessageCountBySeverity[severity.ordinal()].sum();
     }
 
 
@@ -112,20 +441,80 @@ public class MessageQueue
      */
     public boolean isEmpty()
     {
-        return (messageQueue.peek() == null);
+        return (messageQueue.peekFirst() == null)
+            && (getSpilledMessageCount() == 0);
+    }
+
+
+    /**
+     *  Returns the enqueue time of the message at the front of the in-memory queue,
+     *  0 if that portion of the queue is empty. Spilled messages are not considered:
+     *  they're always newer than the messages held in memory.
+     */
+    public long oldestEnqueueTime()
+    {
+        LogMessage message = messageQueue.peekFirst();
+        return (message != null) ? message.getEnqueueTime() : 0;
     }
 
 
     /**
      *  Adds a message to the end of the queue.
      *  <p>
-     *  Note: discard policy is checked after adding the message. If the policy is
-     *  "newest", then this message will be removed.
+     *  Note: if the policy is "newest" and the queue is already at its threshold,
+     *  then this message is discarded without being added. If the policy is "block"
+     *  and the queue is at its threshold, then this method waits for room before
+     *  adding the message. In all cases, the discard policy is checked after adding
+     *  the message.
+     *  <p>
+     *  The message's enqueue time is set, unless it already has one.
      */
     public void enqueue(LogMessage message)
     {
+        enqueuedMessageCount.increment();
+        if (message.getEnqueueTime() == 0)
+        {
+            message.setEnqueueTime(System.currentTimeMillis());
+        }
+
+        WriteAheadLog currentWal = wal;
+        if ((currentWal != null) && (message.getSequence() < 0))
+        {
+            try
+            {
+                currentWal.append(message);
+            }
+            catch (IOException ignored)
+            {
+                // no way to report this; the message just isn't durable
+            }
+        }
+
+        DiskSpill currentSpill = spill;
+        if ((currentSpill != null)
+            && ((currentSpill.size() > 0) || isFull(message.size()))
+            && spillMessage(currentSpill, message))
+        {
+            wakeConsumer();
+            return;
+        }
+
+        // if the buffer can discard its newest entry, we let applyDiscard() pick the
+        // victim, because it might not be this message
+        if ((discardAction == DiscardAction.newest) && ! messageQueue.canRemoveNewest() && isFull(message.size()))
+        {
+            recordDrop(message);
+            return;
+        }
+
+        if ((discardAction == DiscardAction.block) && isFull(message.size()))
+        {
+            waitForSpace(message.size());
+        }
+
         messageQueue.addLast(message);
-        messageCount.incrementAndGet();
+        recordAdd(message);
+        wakeConsumer();
         applyDiscard();
     }
 
@@ -135,13 +524,19 @@ public class MessageQueue
      *  <p>
      *  Note: discard policy is checked after adding the message. If the policy is
      *  "oldest", then this message will be removed (assuming that someone else
-     *  has not dequeued it).
+     *  has not dequeued it). The exception is when spill-to-disk is enabled: since
+     *  requeued messages are older than anything in the spill, they're retained
+     *  in memory even if that exceeds the threshold.
      */
     public void requeue(LogMessage message)
     {
         messageQueue.addFirst(message);
-        messageCount.incrementAndGet();
-        applyDiscard();
+        recordAdd(message);
+        wakeConsumer();
+        if (spill == null)
+        {
+            applyDiscard();
+        }
     }
 
 
@@ -150,48 +545,191 @@ public class MessageQueue
      */
     public LogMessage dequeue()
     {
-        LogMessage message = messageQueue.poll();
+        LogMessage message = messageQueue.pollFirst();
         if (message != null)
         {
-            messageCount.decrementAndGet();
+            recordRemove(message);
+            wakeProducers();
+            return message;
         }
-        return message;
+
+        DiskSpill currentSpill = spill;
+        return (currentSpill != null) ? currentSpill.poll() : null;
     }
 
 
     /**
      *  Removes a message from the front of the queue, waiting for a specified number of
      *  milliseconds if the queue is empty. Returns null if there are no messages in the
-     *  desired time, or if the thread is interrupted.
+     *  desired time, if the thread is interrupted, or if {@link #wakeup} is called.
      */
     public LogMessage dequeue(long waitTime)
     {
         // the wait time is calculated, so might not be positive
         if (waitTime < 0) waitTime = 0;
 
+        // this matches the behavior of BlockingQueue.poll(), and ensures that the
+        // flag is cleared before the writer talks to AWS
+        if (Thread.interrupted())
+            return null;
+
+        LogMessage message = dequeue();
+        if ((message != null) || (waitTime == 0))
+            return message;
+
+        // note: computing elapsed time rather than a deadline avoids overflow when
+        //       the caller passes Long.MAX_VALUE
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(waitTime);
+        long start = System.nanoTime();
+
+        waitingConsumer = Thread.currentThread();
         try
         {
-            LogMessage message = messageQueue.poll(waitTime, TimeUnit.MILLISECONDS);
-            if (message != null)
+            while (true)
             {
-                messageCount.decrementAndGet();
+                // must check after publishing ourselves as the waiter, so that we
+                // can't miss a message added between the check and the park
+                message = dequeue();
+                if (message != null)
+                    return message;
+
+                if (wakeupRequested)
+                {
+                    wakeupRequested = false;
+                    return null;
+                }
+
+                long remaining = waitNanos - (System.nanoTime() - start);
+                if (remaining <= 0)
+                    return null;
+
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    return null;
             }
-            return message;
         }
-        catch (InterruptedException ex)
+        finally
         {
-            return null;
+            waitingConsumer = null;
         }
     }
 
 
+    /**
+     *  Causes the current call to {@link #dequeue(long)} to return null if there are
+     *  no messages in the queue; if there isn't a current call, the next one that has
+     *  to wait will return immediately. Unlike interrupting the consumer thread, this
+     *  won't affect anything else that it's doing.
+     */
+    public void wakeup()
+    {
+        wakeupRequested = true;
+        wakeConsumer();
+    }
+
+
+    /**
+     *  Removes messages from the front of the queue and adds them to the passed batch,
+     *  until the queue is empty, the batch rejects a message (which remains at the
+     *  front of the queue), or the batch reports that it's full. Does not wait for
+     *  messages.
+     *  <p>
+     *  Messages are retrieved from the underlying buffer in chunks, which for the
+     *  default queue type means one lock acquisition per chunk rather than one per
+     *  message. Chunks start small, so that a batch that only holds a few messages
+     *  doesn't pay to return unused messages to the queue.
+     *
+     *  @return <code>true</code> if the batch is full (either it rejected a message or
+     *          said so), <code>false</code> if the queue has been emptied.
+     */
+    public boolean drainTo(BatchBuilder batch)
+    {
+        if (batch.isFull())
+            return true;
+
+        List<LogMessage> chunk = new ArrayList<LogMessage>();
+        int chunkSize = 1;
+        while (true)
+        {
+            chunk.clear();
+            messageQueue.drainTo(chunk, chunkSize);
+            if (chunk.isEmpty())
+                break;
+
+            for (int ii = 0 ; ii < chunk.size() ; ii++)
+            {
+                LogMessage message = chunk.get(ii);
+                if (! batch.add(message))
+                {
+                    returnToBuffer(chunk, ii);
+                    return true;
+                }
+                recordRemove(message);
+                if (batch.isFull())
+                {
+                    returnToBuffer(chunk, ii + 1);
+                    return true;
+                }
+            }
+            wakeProducers();
+            chunkSize = Math.min(chunkSize * 2, MAX_DRAIN_CHUNK);
+        }
+
+        DiskSpill currentSpill = spill;
+        if (currentSpill != null)
+        {
+            LogMessage message;
+            while ((message = currentSpill.poll()) != null)
+            {
+                if (! batch.add(message))
+                {
+                    // it's older than anything remaining in the spill, and nothing
+                    // but requeues go into memory while spilling, so order is kept
+                    messageQueue.addFirst(message);
+                    recordAdd(message);
+                    return true;
+                }
+                if (batch.isFull())
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     *  Returns the unused portion of a drain chunk to the front of the buffer. These
+     *  were never removed from the count, so this doesn't update it.
+     */
+    private void returnToBuffer(List<LogMessage> chunk, int fromIndex)
+    {
+        for (int ii = chunk.size() - 1 ; ii >= fromIndex ; ii--)
+        {
+            messageQueue.addFirst(chunk.get(ii));
+        }
+        wakeProducers();
+    }
+
+
     /**
      *  Returns the current number of elements in the queue, as recorded by the atomic
-     *  counter. This is an O(1) operation, but might not be exact.
+     *  counter, plus any that have been spilled to disk. This is an O(1) operation, but
+     *  might not be exact.
      */
     public int size()
     {
-        return messageCount.get();
+        return messageCount.get() + getSpilledMessageCount();
+    }
+
+
+    /**
+     *  Returns the total size of the messages held in memory, as recorded by an atomic
+     *  counter. Like {@link #size}, this is O(1) but might not be exact.
+     */
+    public long bytes()
+    {
+        return messageBytes.get();
     }
 
 
@@ -201,7 +739,7 @@ public class MessageQueue
      */
     public int queueSize()
     {
-        return messageQueue.size();
+        return messageQueue.size() + getSpilledMessageCount();
     }
 
 
@@ -210,7 +748,41 @@ public class MessageQueue
      */
     public List<LogMessage> toList()
     {
-        return new ArrayList<LogMessage>(messageQueue);
+        List<LogMessage> result = messageQueue.toList();
+        DiskSpill currentSpill = spill;
+        if (currentSpill != null)
+        {
+            result.addAll(currentSpill.toList());
+        }
+        return result;
+    }
+
+
+    /**
+     *  Disables spill-to-disk, deleting any spill files. Messages remaining in those
+     *  files are counted as dropped. Messages held in memory are not affected, and
+     *  the queue may continue to be used.
+     *  <p>
+     *  Also closes the write-ahead log, if enabled. Its files are deleted if all
+     *  messages have been acknowledged, otherwise they remain for the next process.
+     */
+    public void close()
+    {
+        WriteAheadLog currentWal = wal;
+        wal = null;
+        if (currentWal != null)
+        {
+            currentWal.close();
+        }
+
+        DiskSpill currentSpill = spill;
+        spill = null;
+        if (currentSpill != null)
+        {
+            int[] discards = new int[Severity.values().length];
+            droppedMessageCount.add(currentSpill.close(discards));
+            recordSpillDrops(discards);
+        }
     }
 
 
@@ -218,14 +790,200 @@ public class MessageQueue
 //  Internals
 //----------------------------------------------------------------------------
 
+    /**
+     *  Unblocks the thread waiting in {@link #dequeue(long)}, if there is one.
+     */
+    private void wakeConsumer()
+    {
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+
+    /**
+     *  Waits until there's room in the queue for a message of the given size, the
+     *  enqueue timeout expires, or the thread is interrupted (in which case the
+     *  interrupt flag remains set). Time spent waiting is added to the statistics.
+     */
+    private void waitForSpace(int messageSize)
+    {
+        long start = System.nanoTime();
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(enqueueTimeout);
+        waitingProducers.incrementAndGet();
+        producerLock.lock();
+        try
+        {
+            // these are checked while holding the lock, so we can't miss a wakeup
+            while ((discardAction == DiscardAction.block) && isFull(messageSize))
+            {
+                long remaining = waitNanos - (System.nanoTime() - start);
+                if (remaining <= 0)
+                    break;
+                spaceAvailable.awaitNanos(remaining);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            producerLock.unlock();
+            waitingProducers.decrementAndGet();
+            blockedEnqueueCount.incrementAndGet();
+            blockedEnqueueNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     *  Signals any producers that are waiting for room in the queue. This is a
+     *  no-op unless a producer is waiting.
+     */
+    private void wakeProducers()
+    {
+        if (waitingProducers.get() == 0)
+            return;
+
+        producerLock.lock();
+        try
+        {
+            spaceAvailable.signalAll();
+        }
+        finally
+        {
+            producerLock.unlock();
+        }
+    }
+
+
+    private void recordAdd(LogMessage message)
+    {
+        messageCount.incrementAndGet();
+        messageBytes.addAndGet(message.size());
+        messageCountBySeverity[message.getSeverity().ordinal()].increment();
+    }
+
+
+    private void recordRemove(LogMessage message)
+    {
+        messageCount.decrementAndGet();
+        messageBytes.addAndGet(-message.size());
+        messageCountBySeverity[message.getSeverity().ordinal()].decrement();
+    }
+
+
+    private void recordDrop(LogMessage message)
+    {
+        droppedMessageCount.increment();
+        droppedMessageCountBySeverity[message.getSeverity().ordinal()].increment();
+
+        // a discarded message will never be sent, so shouldn't be replayed
+        WriteAheadLog currentWal = wal;
+        if ((currentWal != null) && (message.getSequence() >= 0))
+        {
+            currentWal.acknowledge(Collections.singletonList(message));
+        }
+    }
+
+
+    private static StripedCounter[] createCounters(int count)
+    {
+        StripedCounter[] result = new StripedCounter[count];
+        for (int ii = 0 ; ii < count ; ii++)
+        {
+            result[ii] = new StripedCounter();
+        }
+        return result;
+    }
+
+
+    private void recordSpillDrops(int[] discards)
+    {
+        for (int ii = 0 ; ii < discards.length ; ii++)
+        {
+            if (discards[ii] > 0)
+            {
+                droppedMessageCountBySeverity[ii].add(discards[ii]);
+            }
+        }
+    }
+
+
+    /**
+     *  Writes a message to the spill, applying the discard action if the spill is
+     *  full. Returns false if the message should instead be added to memory, either
+     *  because the spill is full and we're not discarding, or because of an error
+     *  writing to disk.
+     */
+    private boolean spillMessage(DiskSpill currentSpill, LogMessage message)
+    {
+        DiscardAction action = discardAction;
+        try
+        {
+            int[] discards = new int[Severity.values().length];
+            int discarded = currentSpill.append(message, action == DiscardAction.oldest, discards);
+            if (discarded >= 0)
+            {
+                if (discarded > 0)
+                {
+                    droppedMessageCount.add(discarded);
+                    recordSpillDrops(discards);
+                }
+                return true;
+            }
+            else if ((action == DiscardAction.none) || (action == DiscardAction.block))
+            {
+                // for block, the caller will wait for room in memory
+                return false;
+            }
+            else
+            {
+                recordDrop(message);
+                return true;
+            }
+        }
+        catch (IOException ex)
+        {
+            // no way to report this; the caller applies normal in-memory discard
+            return false;
+        }
+    }
+
+
+    /**
+     *  Determines whether adding a message of the given size would put the in-memory
+     *  queue over either threshold.
+     */
+    private boolean isFull(int additionalBytes)
+    {
+        long bytesLimit = discardThresholdBytes;
+        return (messageCount.get() >= discardThreshold)
+            || ((bytesLimit > 0) && (bytes() + additionalBytes > bytesLimit));
+    }
+
+
+    /**
+     *  Determines whether the in-memory queue is currently over either threshold.
+     */
+    private boolean isOverThreshold()
+    {
+        long bytesLimit = discardThresholdBytes;
+        return (messageCount.get() > discardThreshold)
+            || ((bytesLimit > 0) && (bytes() > bytesLimit));
+    }
+
+
     /**
      *  Checks the current queue size, and applies the discard policy if it's
-     *  above the threshold.
+     *  above either threshold.
      */
     private void applyDiscard()
     {
         if (discardAction == DiscardAction.none) return;
-        if (size() <= discardThreshold) return;
 
         // note: with concurrent enqueues/dequeues, there is a race condition
         // between size() and actual queue size -- however, it's close enough
@@ -233,16 +991,18 @@ public class MessageQueue
         // actual queue size, which is an O(N) operation, would have its own
         // race condition)
 
-        while (size() > discardThreshold)
+        while (isOverThreshold())
         {
-            LogMessage discarded = (discardAction == DiscardAction.oldest)
-                                 ? messageQueue.pollFirst()
-                                 : messageQueue.pollLast();
-            if (discarded != null)
+            // if blocking, we've waited as long as we're going to and discard oldest
+            LogMessage discarded = messageQueue.removeForDiscard(discardAction != DiscardAction.newest);
+            if (discarded == null)
             {
-                messageCount.decrementAndGet();
-                droppedMessageCount.incrementAndGet();
+                // either a consumer emptied the queue out from under us, or the
+                // buffer can't remove its newest entry; either way, we're done
+                break;
             }
+            recordRemove(discarded);
+            recordDrop(discarded);
         }
     }
 }
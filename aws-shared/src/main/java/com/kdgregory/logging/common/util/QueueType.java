@@ -0,0 +1,44 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+
+/**
+ *  Selects the data structure that {@link MessageQueue} uses to hold messages.
+ */
+public enum QueueType
+{
+    /**
+     *  A linked deque, guarded by a single lock. This is the default.
+     */
+    deque,
+
+    /**
+     *  A bounded ring buffer that application threads can add to without taking
+     *  a lock. Intended for applications where many threads log concurrently.
+     */
+    ring;
+
+
+    public static QueueType lookup(String value)
+    {
+        for (QueueType type : values())
+        {
+            if (type.toString().equals(value))
+                return type;
+        }
+        throw new IllegalArgumentException("invalid queueType: " + value);
+    }
+}
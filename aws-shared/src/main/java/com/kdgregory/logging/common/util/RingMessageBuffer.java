@@ -0,0 +1,337 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  A {@link MessageBuffer} whose normal path is a bounded, array-based ring that
+ *  producers and consumers update with compare-and-swap rather than a lock. Each
+ *  slot carries a sequence number, which tells a producer whether the slot is
+ *  free and a consumer whether it has been filled (this is Dmitry Vyukov's
+ *  bounded MPMC queue). Multiple consumers are supported because discarding the
+ *  oldest message happens on the application thread.
+ *  <p>
+ *  Two lock-based deques handle the cases that a ring can't:
+ *  <ul>
+ *  <li> Requeued messages go into a "front" deque, which is read before the ring.
+ *  <li> If the ring is full, messages go into an "overflow" deque, which is read
+ *       after the ring. Once anything is in the overflow, all new messages go
+ *       there until it has been drained, so that order is preserved.
+ *  </ul>
+ *  Each deque has an atomic count, so that the common case doesn't touch them.
+ *  <p>
+ *  The ring can't remove its newest entry, so {@link #removeForDiscard} can only
+ *  remove the newest message if it's in the overflow.
+ *  <p>
+ *  The ring's capacity is fixed when the buffer is created. Changing the queue's
+ *  discard threshold afterward doesn't resize it: the threshold still applies to
+ *  all messages, in the ring or the overflow, but raising it means that more of
+ *  those messages will be held in the (locked) overflow deque.
+ */
+class RingMessageBuffer
+implements MessageBuffer
+{
+    // the ring is sized from the discard threshold; these keep it reasonable
+    private final static int MIN_CAPACITY = 16;
+    private final static int MAX_CAPACITY = 65536;
+
+    // how many times a consumer yields while waiting for a producer to store the
+    // message at a position that it's claimed, before giving up
+    private final static int MAX_POLL_YIELDS = 100;
+
+    private LogMessage[] slots;
+    private AtomicLongArray sequences;
+    private int mask;
+
+    // note: these are updated by different threads, and could share a cache
+    //       line; padding them is not worth the added complexity
+    private AtomicLong head = new AtomicLong();
+    private AtomicLong tail = new AtomicLong();
+
+    private LinkedBlockingDeque<LogMessage> front = new LinkedBlockingDeque<LogMessage>();
+    private AtomicInteger frontCount = new AtomicInteger();
+
+    private LinkedBlockingDeque<LogMessage> overflow = new LinkedBlockingDeque<LogMessage>();
+    private AtomicInteger overflowCount = new AtomicInteger();
+
+
+    /**
+     *  @param  expectedSize    The number of messages that the ring should hold
+     *                          before overflowing. This is rounded up to a power
+     *                          of two, and limited to a reasonable maximum.
+     */
+    public RingMessageBuffer(int expectedSize)
+    {
+        int capacity = MIN_CAPACITY;
+        while ((capacity < expectedSize) && (capacity < MAX_CAPACITY))
+        {
+            capacity <<= 1;
+        }
+
+        slots = new LogMessage[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int ii = 0 ; ii < capacity ; ii++)
+        {
+            sequences.set(ii, ii);
+        }
+        mask = capacity - 1;
+    }
+
+
+//----------------------------------------------------------------------------
+//  MessageBuffer
+//----------------------------------------------------------------------------
+
+    @Override
+    public void addLast(LogMessage message)
+    {
+        if ((overflowCount.get() == 0) && offer(message))
+            return;
+
+        overflow.addLast(message);
+        overflowCount.incrementAndGet();
+    }
+
+
+    @Override
+    public void addFirst(LogMessage message)
+    {
+        front.addFirst(message);
+        frontCount.incrementAndGet();
+    }
+
+
+    @Override
+    public LogMessage pollFirst()
+    {
+        if (frontCount.get() > 0)
+        {
+            LogMessage message = front.pollFirst();
+            if (message != null)
+            {
+                frontCount.decrementAndGet();
+                return message;
+            }
+        }
+
+        LogMessage message = poll();
+        if (message != null)
+            return message;
+
+        // if a producer still hasn't stored its message, the overflow (if any) holds
+        // later messages; we report empty and let the caller try again
+        if (tail.get() > head.get())
+            return null;
+
+        return pollOverflow(true);
+    }
+
+
+    @Override
+    public void drainTo(List<LogMessage> target, int maxMessages)
+    {
+        // the ring doesn't take a lock, so there's no benefit to a special
+        // implementation; and we still need to check front and overflow
+        for (int ii = 0 ; ii < maxMessages ; ii++)
+        {
+            LogMessage message = pollFirst();
+            if (message == null)
+                return;
+            target.add(message);
+        }
+    }
+
+
+    @Override
+    public LogMessage removeForDiscard(boolean oldest)
+    {
+        return oldest ? pollFirst() : pollOverflow(false);
+    }
+
+
+    @Override
+    public boolean canRemoveNewest()
+    {
+        return false;
+    }
+
+
+    @Override
+    public LogMessage peekFirst()
+    {
+        if (frontCount.get() > 0)
+        {
+            LogMessage message = front.peekFirst();
+            if (message != null)
+                return message;
+        }
+
+        LogMessage message = peek();
+        if (message != null)
+            return message;
+
+        return (overflowCount.get() > 0) ? overflow.peekFirst() : null;
+    }
+
+
+    @Override
+    public int size()
+    {
+        long ringSize = tail.get() - head.get();
+        return front.size() + (int)Math.max(0, ringSize) + overflow.size();
+    }
+
+
+    @Override
+    public List<LogMessage> toList()
+    {
+        List<LogMessage> result = new ArrayList<LogMessage>(front);
+        for (long pos = head.get() ; pos < tail.get() ; pos++)
+        {
+            int idx = (int)(pos & mask);
+            if (sequences.get(idx) == pos + 1)
+            {
+                LogMessage message = slots[idx];
+                if (message != null)
+                    result.add(message);
+            }
+        }
+        result.addAll(overflow);
+        return result;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Attempts to add a message to the ring, returning false if it's full.
+     *  <p>
+     *  The slot is written before its sequence number is published, and read
+     *  after the sequence number is checked, so the atomic array provides the
+     *  necessary happens-before ordering for the (non-volatile) slot array.
+     */
+    private boolean offer(LogMessage message)
+    {
+        long pos = tail.get();
+        while (true)
+        {
+            int idx = (int)(pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0)
+            {
+                if (tail.compareAndSet(pos, pos + 1))
+                {
+                    slots[idx] = message;
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0)
+            {
+                // slot hasn't been consumed from the previous lap
+                return false;
+            }
+            else
+            {
+                // another producer claimed this position
+                pos = tail.get();
+            }
+        }
+    }
+
+
+    /**
+     *  Attempts to remove a message from the ring, returning null if it's empty.
+     *  If the next position has been claimed by a producer, waits briefly for that
+     *  producer to store its message (which it does immediately after claiming);
+     *  if the producer has been descheduled, returns null rather than spinning.
+     */
+    private LogMessage poll()
+    {
+        int yields = 0;
+        long pos = head.get();
+        while (true)
+        {
+            int idx = (int)(pos & mask);
+            long diff = sequences.get(idx) - (pos + 1);
+            if (diff == 0)
+            {
+                if (head.compareAndSet(pos, pos + 1))
+                {
+                    LogMessage message = slots[idx];
+                    slots[idx] = null;
+                    sequences.set(idx, pos + mask + 1);
+                    return message;
+                }
+                pos = head.get();
+            }
+            else if (diff < 0)
+            {
+                // slot hasn't been filled: if the ring is empty we're done, but if a
+                // producer has claimed the position and not yet stored its message,
+                // we give it a chance to do so (the caller must not read a later
+                // message from the overflow if we give up)
+                if ((tail.get() <= pos) || (yields++ >= MAX_POLL_YIELDS))
+                    return null;
+
+                Thread.yield();
+                pos = head.get();
+            }
+            else
+            {
+                // another consumer took this position
+                pos = head.get();
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the first message in the ring without removing it. Another thread
+     *  may remove the message concurrently, so this is only a hint.
+     */
+    private LogMessage peek()
+    {
+        long pos = head.get();
+        int idx = (int)(pos & mask);
+        return (sequences.get(idx) == pos + 1) ? slots[idx] : null;
+    }
+
+
+    private LogMessage pollOverflow(boolean fromFront)
+    {
+        if (overflowCount.get() == 0)
+            return null;
+
+        LogMessage message = fromFront ? overflow.pollFirst() : overflow.pollLast();
+        if (message != null)
+        {
+            overflowCount.decrementAndGet();
+        }
+        return message;
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+
+/**
+ *  The severity of a log message, independent of logging framework. Frameworks
+ *  have different sets of levels; each is mapped onto one of these bands. The
+ *  order of declaration is significant: later values are more important.
+ */
+public enum Severity
+{
+    /** Trace and debug messages. */
+    debug,
+
+    /** Informational messages. This is the default for messages without a level. */
+    info,
+
+    /** Warnings. */
+    warn,
+
+    /** Errors and fatal errors. */
+    error;
+
+
+    public static Severity lookup(String value)
+    {
+        for (Severity severity : values())
+        {
+            if (severity.toString().equals(value))
+                return severity;
+        }
+        throw new IllegalArgumentException("invalid severity: " + value);
+    }
+}
@@ -0,0 +1,156 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ *  A 64-bit counter that can be updated by many threads without contention, in
+ *  the manner of <code>java.util.concurrent.atomic.LongAdder</code> (which isn't
+ *  available in the JDKs that we support).
+ *  <p>
+ *  Updates start out applied to a single atomic value. The first time that an
+ *  update fails due to contention, the counter allocates a set of stripes, each
+ *  on its own cache line, and from then on each thread updates the stripe picked
+ *  by its thread ID. Reading the counter sums the base value and all stripes, so
+ *  is more expensive than an update; that's the right tradeoff for statistics,
+ *  which are updated on every message but read only by monitoring tools.
+ *  <p>
+ *  The sum is not an atomic snapshot: updates that happen while it's being
+ *  calculated may or may not be included. Similarly, {@link #reset} is not atomic
+ *  with respect to concurrent updates.
+ */
+public class StripedCounter
+{
+    // each stripe is padded to 64 bytes, so that stripes don't share a cache line
+    private final static int PAD = 8;
+
+    // enough stripes that concurrent threads are unlikely to collide
+    private final static int NUM_STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    private AtomicLong base = new AtomicLong();
+    private AtomicReference<AtomicLongArray> stripes = new AtomicReference<AtomicLongArray>();
+
+
+    /**
+     *  Adds the specified value (which may be negative) to the counter.
+     */
+    public void add(long value)
+    {
+        AtomicLongArray current = stripes.get();
+        if (current == null)
+        {
+            long expected = base.get();
+            if (base.compareAndSet(expected, expected + value))
+                return;
+
+            stripes.compareAndSet(null, new AtomicLongArray(NUM_STRIPES * PAD));
+            current = stripes.get();
+        }
+
+        // if another thread is using the same stripe, try the next one rather than
+        // spinning; both threads are likely to use them again
+        int index = stripeFor(Thread.currentThread());
+        long expected = current.get(index);
+        if (! current.compareAndSet(index, expected, expected + value))
+        {
+            current.getAndAdd((index + PAD) % current.length(), value);
+        }
+    }
+
+
+    /**
+     *  Adds one to the counter.
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+
+    /**
+     *  Subtracts one from the counter.
+     */
+    public void decrement()
+    {
+        add(-1);
+    }
+
+
+    /**
+     *  Returns the current value of the counter.
+     */
+    public long sum()
+    {
+        long result = base.get();
+        AtomicLongArray current = stripes.get();
+        if (current != null)
+        {
+            for (int ii = 0 ; ii < current.length() ; ii += PAD)
+            {
+                result += current.get(ii);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     *  Resets the counter to zero. Stripes are retained, since the contention that
+     *  caused them to be created is likely to continue.
+     */
+    public void reset()
+    {
+        base.set(0);
+        AtomicLongArray current = stripes.get();
+        if (current != null)
+        {
+            for (int ii = 0 ; ii < current.length() ; ii += PAD)
+            {
+                current.set(ii, 0);
+            }
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.valueOf(sum());
+    }
+
+
+    private static int stripeFor(Thread thread)
+    {
+        // thread IDs are sequential, so are spread by a multiplicative hash
+        long id = thread.getId();
+        int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (NUM_STRIPES - 1)) * PAD;
+    }
+
+
+    private static int stripeCount(int processors)
+    {
+        int count = 1;
+        while ((count < processors * 2) && (count < 64))
+        {
+            count <<= 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,802 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Records every message added to a {@link MessageQueue} in a series of segment
+ *  files, so that messages that haven't been sent when the JVM dies (for example,
+ *  <code>kill -9</code> or an out-of-memory error) can be sent by the next process
+ *  that uses the same directory.
+ *  <p>
+ *  Each message is written to the current segment as it's appended, so it's in the
+ *  operating system's buffers before the appender returns; that's sufficient to
+ *  survive the death of the JVM. Protecting against a crash of the machine requires
+ *  <code>fsync</code>, which is far too expensive to call for every message. Instead,
+ *  segments are synced in a "group commit": a single background thread (shared by
+ *  all logs in the JVM) syncs each log at a configured interval, so that a crash
+ *  loses at most that interval's messages. An interval of 0 syncs on every append.
+ *  <p>
+ *  Each message is assigned a sequence number, which is stored in the message. The
+ *  writer acknowledges messages once they've been sent (or discarded); a segment is
+ *  deleted (or, if it's the current segment, truncated) once all of its messages
+ *  have been acknowledged. Individual acknowledgements aren't recorded, so after a
+ *  restart every message in a remaining segment is replayed: delivery is at-least-
+ *  once, not exactly-once.
+ *  <p>
+ *  Each record consists of a 4-byte length, an 8-byte timestamp, a 1-byte severity,
+ *  a 4-byte CRC-32 of the message, and the UTF-8 message bytes. When replaying, a
+ *  segment is read up to the first record that's incomplete or doesn't match its
+ *  checksum (ie, a write interrupted by the crash).
+ *  <p>
+ *  The total size of all segments is limited. If appending a message would exceed
+ *  that limit, the oldest segments are deleted whether or not their messages have
+ *  been acknowledged; those messages remain in the queue, but won't survive a crash.
+ *  <p>
+ *  Only one process may use a directory at a time; this is enforced with a lock file.
+ *  Methods are guarded by a <code>ReentrantLock</code> rather than synchronization,
+ *  because appends happen on application threads.
+ */
+class WriteAheadLog
+{
+    // each record has a length, timestamp, severity, and checksum
+    private final static int RECORD_HEADER_SIZE = 17;
+
+    // segment sizes are based on the overall limit, but kept reasonable
+    private final static int MIN_SEGMENT_SIZE = 4096;
+    private final static int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // if another log in this JVM holds the directory, we'll wait this long for it
+    // to close; this happens when an appender replaces its writer
+    private final static long LOCK_WAIT_TIME = 30000;
+    private final static long LOCK_RETRY_INTERVAL = 100;
+
+    private final static String LOCK_FILE_NAME = "wal.lock";
+    private final static String SEGMENT_PREFIX = "wal-";
+    private final static String SEGMENT_SUFFIX = ".log";
+
+    // shared by all logs in the JVM; created when first needed
+    private static ScheduledThreadPoolExecutor syncExecutor;
+
+    private File directory;
+    private long maxBytes;
+    private long syncInterval;
+    private long segmentSize;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+    private ScheduledFuture<?> syncTask;
+
+    private LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSegmentNumber;
+    private long nextSequence;
+    private long allocatedBytes;
+    private boolean closed;
+
+    private CRC32 crc = new CRC32();
+    private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(8192);
+
+    // these are reported for testing and benchmarking
+    private volatile long appendCount;
+    private volatile long syncCount;
+    private volatile long evictedCount;
+
+
+    /**
+     *  @param  directory       The directory where segment files are created. It will
+     *                          be created if it does not already exist.
+     *  @param  maxBytes        The maximum total size of all segment files.
+     *  @param  syncInterval    The number of milliseconds between syncs; 0 to sync
+     *                          every append.
+     */
+    public WriteAheadLog(File directory, long maxBytes, long syncInterval)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.syncInterval = syncInterval;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / 4));
+    }
+
+
+//----------------------------------------------------------------------------
+//  Public methods
+//----------------------------------------------------------------------------
+
+    /**
+     *  Opens the log, returning any messages left by a previous process (in the
+     *  order that they were written). These messages have been re-written to the
+     *  log, and have new sequence numbers; the caller should add them to its queue
+     *  before any new messages. Old segments are deleted once their messages have
+     *  been re-written and synced.
+     *
+     *  @throws IOException if unable to create the directory or its files, or if
+     *          another process is using the directory.
+     */
+    public List<LogMessage> open()
+    throws IOException
+    {
+        return open(true);
+    }
+
+
+    /**
+     *  Opens the log, optionally without waiting for another log in this JVM to
+     *  release the directory.
+     *
+     *  @throws OverlappingFileLockException if <code>waitForLock</code> is false
+     *          and another log in this JVM holds the directory; the caller may
+     *          try again later.
+     */
+    public List<LogMessage> open(boolean waitForLock)
+    throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory())
+                throw new IOException("unable to create write-ahead log directory: " + directory);
+
+            acquireFileLock(waitForLock);
+
+            File[] oldFiles = segmentFiles();
+            List<LogMessage> recovered = new ArrayList<LogMessage>();
+            for (File file : oldFiles)
+            {
+                readSegment(file, recovered);
+                nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(file) + 1);
+            }
+
+            for (LogMessage message : recovered)
+            {
+                appendInternal(message);
+            }
+
+            Segment current = segments.isEmpty() ? null : segments.getLast();
+            if (current != null)
+            {
+                current.sync();
+            }
+
+            for (File file : oldFiles)
+            {
+                file.delete();
+            }
+
+            if (syncInterval > 0)
+            {
+                syncTask = syncExecutor().scheduleWithFixedDelay(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        sync();
+                    }
+                }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+            }
+
+            return recovered;
+        }
+        catch (IOException ex)
+        {
+            releaseFileLock();
+            throw ex;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Writes a message to the log, and assigns its sequence number. This is a no-op
+     *  if the log has been closed or the message has already been logged.
+     *
+     *  @throws IOException if unable to write. The message has not been assigned a
+     *          sequence number, and the log remains usable.
+     */
+    public void append(LogMessage message)
+    throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (closed || (message.getSequence() >= 0))
+                return;
+
+            Segment segment = appendInternal(message);
+            if (syncInterval <= 0)
+            {
+                segment.sync();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Acknowledges that messages have been sent or discarded. Messages that were
+     *  never logged, or whose segments have already been removed, are ignored.
+     */
+    public void acknowledge(List<LogMessage> messages)
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+                return;
+
+            for (LogMessage message : messages)
+            {
+                acknowledgeInternal(message.getSequence());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Forces the current segment to disk, if it has been written since the last
+     *  sync. This is normally called by the background thread.
+     */
+    public void sync()
+    {
+        Segment segment = null;
+        lock.lock();
+        try
+        {
+            if (closed || segments.isEmpty())
+                return;
+
+            segment = segments.getLast();
+            if (! segment.dirty)
+                return;
+            segment.dirty = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // syncing doesn't need the lock, so producers can keep appending
+        try
+        {
+            segment.channel.force(false);
+            syncCount++;
+        }
+        catch (IOException ignored)
+        {
+            // either the segment was closed out from under us (in which case it was
+            // either synced or is no longer needed), or there's an I/O error that
+            // will also be reported by the next append
+        }
+    }
+
+
+    /**
+     *  Stops the background sync and closes all segment files. If all messages have
+     *  been acknowledged the files are deleted; otherwise they're synced and left for
+     *  the next process. Subsequent appends and acknowledgements are ignored.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            if (syncTask != null)
+            {
+                syncTask.cancel(false);
+            }
+
+            for (Segment segment : segments)
+            {
+                if (segment.outstanding > 0)
+                {
+                    try
+                    {
+                        segment.sync();
+                    }
+                    catch (IOException ignored)
+                    {
+                        // nothing we can do about it
+                    }
+                    segment.closeChannel();
+                }
+                else
+                {
+                    segment.delete();
+                }
+            }
+            segments.clear();
+            allocatedBytes = 0;
+            releaseFileLock();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Returns the number of messages that have been written and not acknowledged.
+     */
+    public int outstanding()
+    {
+        lock.lock();
+        try
+        {
+            int count = 0;
+            for (Segment segment : segments)
+            {
+                count += segment.outstanding;
+            }
+            return count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Returns the segment files currently in use. This is intended for testing.
+     */
+    public List<File> getFiles()
+    {
+        lock.lock();
+        try
+        {
+            List<File> result = new ArrayList<File>(segments.size());
+            for (Segment segment : segments)
+            {
+                result.add(segment.file);
+            }
+            return result;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     *  Returns the number of messages that have been appended.
+     */
+    public long getAppendCount()
+    {
+        return appendCount;
+    }
+
+
+    /**
+     *  Returns the number of times that the background thread has synced the log.
+     */
+    public long getSyncCount()
+    {
+        return syncCount;
+    }
+
+
+    /**
+     *  Returns the number of unacknowledged messages whose segments were deleted to
+     *  stay within the size limit.
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount;
+    }
+
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns the executor used for background syncs, creating it if necessary.
+     */
+    private static synchronized ScheduledThreadPoolExecutor syncExecutor()
+    {
+        if (syncExecutor == null)
+        {
+            syncExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "com-kdgregory-aws-logwriter-wal-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return syncExecutor;
+    }
+
+
+    /**
+     *  Writes a message to the current segment, rolling to a new segment (and
+     *  evicting old segments) if necessary. Must be called with the lock held.
+     */
+    private Segment appendInternal(LogMessage message)
+    throws IOException
+    {
+        byte[] bytes = message.getBytes();
+        int recordSize = RECORD_HEADER_SIZE + bytes.length;
+
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if ((segment == null) || ((segment.size > 0) && (segment.size + recordSize > segmentSize)))
+        {
+            if (segment != null)
+            {
+                // the background thread only syncs the current segment
+                segment.sync();
+                segment.dirty = false;
+            }
+            segment = new Segment(nextSegmentNumber++, nextSequence);
+            segments.add(segment);
+        }
+
+        while ((allocatedBytes + recordSize > maxBytes) && (segments.size() > 1))
+        {
+            Segment evicted = segments.removeFirst();
+            allocatedBytes -= evicted.size;
+            evictedCount += evicted.outstanding;
+            evicted.delete();
+        }
+
+        if (recordBuffer.capacity() < recordSize)
+        {
+            recordBuffer = ByteBuffer.allocateDirect(Math.max(recordSize, recordBuffer.capacity() * 2));
+        }
+
+        crc.reset();
+        crc.update(bytes);
+
+        recordBuffer.clear();
+        recordBuffer.putInt(bytes.length);
+        recordBuffer.putLong(message.getTimestamp());
+        recordBuffer.put((byte)message.getSeverity().ordinal());
+        recordBuffer.putInt((int)crc.getValue());
+        recordBuffer.put(bytes);
+        recordBuffer.flip();
+
+        segment.write(recordBuffer);
+        allocatedBytes += recordSize;
+
+        message.setSequence(nextSequence++);
+        segment.nextSequence = nextSequence;
+        segment.outstanding++;
+        appendCount++;
+        return segment;
+    }
+
+
+    /**
+     *  Decrements the outstanding count for the segment holding the given sequence
+     *  number, and removes or truncates that segment if nothing remains outstanding.
+     *  Must be called with the lock held.
+     */
+    private void acknowledgeInternal(long sequence)
+    {
+        if (sequence < 0)
+            return;
+
+        Iterator<Segment> itx = segments.iterator();
+        while (itx.hasNext())
+        {
+            Segment segment = itx.next();
+            if (sequence < segment.firstSequence)
+                return;
+            if (sequence >= segment.nextSequence)
+                continue;
+
+            segment.outstanding--;
+            if (segment.outstanding > 0)
+                return;
+
+            if (segment == segments.getLast())
+            {
+                try
+                {
+                    segment.truncate();
+                }
+                catch (IOException ignored)
+                {
+                    // a failed truncate just means the messages will be replayed
+                }
+            }
+            else
+            {
+                itx.remove();
+                allocatedBytes -= segment.size;
+                segment.delete();
+            }
+            return;
+        }
+    }
+
+
+    /**
+     *  Reads the records in a segment file, stopping at the first invalid record.
+     */
+    private static void readSegment(File file, List<LogMessage> messages)
+    throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            long fileSize = raf.length();
+            if (fileSize > Integer.MAX_VALUE)
+                fileSize = Integer.MAX_VALUE;
+
+            ByteBuffer buf = ByteBuffer.allocate((int)fileSize);
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining() && (channel.read(buf) >= 0))
+            {
+                // read() doesn't promise to fill the buffer
+            }
+            buf.flip();
+
+            CRC32 checksum = new CRC32();
+            Severity[] severities = Severity.values();
+            while (buf.remaining() >= RECORD_HEADER_SIZE)
+            {
+                int length = buf.getInt();
+                long timestamp = buf.getLong();
+                int severity = buf.get();
+                int expectedChecksum = buf.getInt();
+                if ((length < 0) || (length > buf.remaining()) || (severity < 0) || (severity >= severities.length))
+                    return;
+
+                byte[] bytes = new byte[length];
+                buf.get(bytes);
+                checksum.reset();
+                checksum.update(bytes);
+                if ((int)checksum.getValue() != expectedChecksum)
+                    return;
+
+                messages.add(new LogMessage(timestamp, new String(bytes, "UTF-8"), severities[severity]));
+            }
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("UnsupportedEncodingException when converting from UTF-8");
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /**
+     *  Returns the existing segment files in the directory, in the order that they
+     *  were created.
+     */
+    private File[] segmentFiles()
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return new File[0];
+
+        List<File> result = new ArrayList<File>();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && (segmentNumber(file) >= 0))
+            {
+                result.add(file);
+            }
+        }
+
+        File[] sorted = result.toArray(new File[result.size()]);
+        Arrays.sort(sorted);    // names are zero-padded, so lexical order is numeric order
+        return sorted;
+    }
+
+
+    /**
+     *  Extracts the number from a segment file's name, -1 if it isn't valid.
+     */
+    private static long segmentNumber(File file)
+    {
+        String name = file.getName();
+        try
+        {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (RuntimeException ex)
+        {
+            return -1;
+        }
+    }
+
+
+    /**
+     *  Locks the directory. If it's locked by another process this fails immediately,
+     *  but if locked within this JVM it waits for the lock to be released (or, if not
+     *  waiting, rethrows the <code>OverlappingFileLockException</code>).
+     */
+    private void acquireFileLock(boolean waitForLock)
+    throws IOException
+    {
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        long timeout = System.currentTimeMillis() + LOCK_WAIT_TIME;
+        while (true)
+        {
+            try
+            {
+                fileLock = lockFile.getChannel().tryLock();
+                break;
+            }
+            catch (OverlappingFileLockException ex)
+            {
+                if (! waitForLock)
+                {
+                    releaseFileLock();
+                    throw ex;
+                }
+                if (System.currentTimeMillis() > timeout)
+                    break;
+                try
+                {
+                    Thread.sleep(LOCK_RETRY_INTERVAL);
+                }
+                catch (InterruptedException ex2)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        if (fileLock == null)
+        {
+            releaseFileLock();
+            throw new IOException("write-ahead log directory is in use: " + directory);
+        }
+    }
+
+
+    private void releaseFileLock()
+    {
+        try
+        {
+            if (fileLock != null) fileLock.release();
+            if (lockFile != null) lockFile.close();
+        }
+        catch (IOException ignored)
+        {
+            // nothing we can do about it
+        }
+        fileLock = null;
+        lockFile = null;
+    }
+
+
+    /**
+     *  Manages a single segment file. All fields are guarded by the log's lock,
+     *  except that the channel may be synced without it.
+     */
+    private class Segment
+    {
+        public File file;
+        public FileChannel channel;
+        public long size;
+        public boolean dirty;
+
+        // sequence numbers of the messages in this segment, and how many of them
+        // are outstanding
+        public long firstSequence;
+        public long nextSequence;
+        public int outstanding;
+
+        private RandomAccessFile raf;
+
+        public Segment(long segmentNumber, long firstSequence)
+        throws IOException
+        {
+            this.file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+            this.firstSequence = firstSequence;
+            this.nextSequence = firstSequence;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+        }
+
+        public void write(ByteBuffer buf)
+        throws IOException
+        {
+            while (buf.hasRemaining())
+            {
+                channel.write(buf);
+            }
+            size = channel.position();
+            dirty = true;
+        }
+
+        public void sync()
+        throws IOException
+        {
+            channel.force(false);
+        }
+
+        /**
+         *  Discards the contents of the segment, so that it can be reused.
+         */
+        public void truncate()
+        throws IOException
+        {
+            allocatedBytes -= size;
+            channel.truncate(0);
+            channel.position(0);
+            size = 0;
+            firstSequence = nextSequence;
+        }
+
+        public void closeChannel()
+        {
+            try
+            {
+                raf.close();
+            }
+            catch (IOException ignored)
+            {
+                // nothing we can do about it
+            }
+        }
+
+        public void delete()
+        {
+            closeChannel();
+            file.delete();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import com.kdgregory.logging.aws.internal.AbstractLogWriter;
 import com.kdgregory.logging.aws.internal.AbstractWriterConfig;
 import com.kdgregory.logging.common.factories.ClientFactory;
 import com.kdgregory.logging.common.factories.DefaultThreadFactory;
+import com.kdgregory.logging.common.factories.ThreadFactory;
 import com.kdgregory.logging.common.factories.WriterFactory;
 import com.kdgregory.logging.common.util.MessageQueue;
 
@@ -68,6 +69,12 @@ public abstract class AbstractLogWriterTest
      */
     protected MessageQueue messageQueue;
 
+    /**
+     *  Used by createWriter() to start the writer. Tests may replace this before
+     *  creating the writer.
+     */
+    protected ThreadFactory threadFactory = new DefaultThreadFactory("test");
+
     /**
      *  This is set by the writer thread's uncaught exception handler. It should
      *  be checked by tearDown() to verify no unexpcted exceptions.
@@ -113,7 +120,7 @@ public abstract class AbstractLogWriterTest
         writer = (WriterType)factory.newLogWriter(config, stats, internalLogger);
         messageQueue = ClassUtil.getFieldValue(writer, "messageQueue", MessageQueue.class);
 
-        new DefaultThreadFactory("test").startLoggingThread(writer, defaultUncaughtExceptionHandler);
+        threadFactory.startLoggingThread(writer, defaultUncaughtExceptionHandler);
 
         // we'll spin until either the writer is initialized, signals an error,
         // or a 5-second timeout expires
@@ -130,6 +137,25 @@ public abstract class AbstractLogWriterTest
     }
 
 
+    /**
+     *  Waits for the writer to finish initializing, successfully or not. This is for
+     *  tests of failed initialization: {@link #createWriter} returns as soon as an
+     *  error is reported, which may be before the writer has responded to it.
+     */
+    protected void waitForInitialization()
+    throws Exception
+    {
+        for (int ii = 0 ; ii < 100 ; ii++)
+        {
+            if (writer.isInitializationComplete())
+                return;
+            Thread.sleep(50);
+        }
+
+        fail("writer did not finish initialization");
+    }
+
+
 //----------------------------------------------------------------------------
 //  Utility methods to synchronize main and writer threads.
 //----------------------------------------------------------------------------
@@ -160,7 +186,7 @@ public abstract class AbstractLogWriterTest
      */
     protected void assertStatisticsMessagesSent(String message, int expected)
     {
-        int actual = 0;
+        long actual = 0;
         for (int ii = 0 ; ii < 10 ; ii++)
         {
             actual = ((AbstractWriterStatistics)stats).getMessagesSent();
@@ -182,6 +208,21 @@ public abstract class AbstractLogWriterTest
     }
 
 
+    /**
+     *  Waits until the writer has taken all messages from its queue, or the timeout
+     *  expires. Callers should assert the queue size afterward.
+     */
+    protected void waitForQueueToDrain(int secondsToWait)
+    {
+        for (int ii = 0 ; ii < secondsToWait * 10 ; ii++)
+        {
+            if (messageQueue.size() == 0)
+                return;
+            ThreadUtil.sleepQuietly(100);
+        }
+    }
+
+
     /**
      *  Asserts that an error message has been reported to the statistics object,
      *  with timestamp.
@@ -0,0 +1,110 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.logging.aws.internal.AdaptiveBatchDelay;
+
+
+public class TestAdaptiveBatchDelay
+{
+    @Test
+    public void testInitialDelayClamped() throws Exception
+    {
+        assertEquals("within range",        200L,   new AdaptiveBatchDelay(100, 1000, 200).getCurrentDelay());
+        assertEquals("below minimum",       100L,   new AdaptiveBatchDelay(100, 1000, 10).getCurrentDelay());
+        assertEquals("above maximum",       1000L,  new AdaptiveBatchDelay(100, 1000, 2000).getCurrentDelay());
+        assertEquals("max below min",       100L,   new AdaptiveBatchDelay(100, 50, 2000).getCurrentDelay());
+    }
+
+
+    @Test
+    public void testSteadyTrafficIncreasesDelay() throws Exception
+    {
+        AdaptiveBatchDelay delay = new AdaptiveBatchDelay(10, 1000, 100);
+
+        delay.batchBuilt(50, false, 0);
+        assertEquals("after first batch",   150L,   delay.getCurrentDelay());
+
+        delay.batchBuilt(50, false, 0);
+        assertEquals("after second batch",  225L,   delay.getCurrentDelay());
+
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            delay.batchBuilt(50, false, 0);
+        }
+        assertEquals("limited by maximum",  1000L,  delay.getCurrentDelay());
+    }
+
+
+    @Test
+    public void testIncreaseFromZero() throws Exception
+    {
+        AdaptiveBatchDelay delay = new AdaptiveBatchDelay(0, 1000, 0);
+
+        delay.batchBuilt(0, false, 0);
+        assertEquals("moves off zero",      1L,     delay.getCurrentDelay());
+    }
+
+
+    @Test
+    public void testFullBatchDecreasesDelay() throws Exception
+    {
+        AdaptiveBatchDelay delay = new AdaptiveBatchDelay(10, 1000, 400);
+
+        delay.batchBuilt(0, true, 0);
+        assertEquals("after full batch",    200L,   delay.getCurrentDelay());
+
+        delay.batchBuilt(0, false, 12);
+        assertEquals("after backlog",       100L,   delay.getCurrentDelay());
+
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            delay.batchBuilt(0, true, 0);
+        }
+        assertEquals("limited by minimum",  10L,    delay.getCurrentDelay());
+    }
+
+
+    @Test
+    public void testSlowArrivalDecreasesDelay() throws Exception
+    {
+        AdaptiveBatchDelay delay = new AdaptiveBatchDelay(10, 1000, 400);
+
+        delay.batchBuilt(5000, false, 0);
+        assertEquals("after long wait",     200L,   delay.getCurrentDelay());
+    }
+
+
+    @Test
+    public void testSendLatencyRaisesDelay() throws Exception
+    {
+        AdaptiveBatchDelay delay = new AdaptiveBatchDelay(10, 1000, 100);
+
+        delay.batchSent(600);
+        delay.batchBuilt(50, false, 0);
+        assertEquals("matches latency",     600L,   delay.getCurrentDelay());
+
+        delay.batchSent(5000);
+        delay.batchBuilt(50, false, 0);
+        assertEquals("limited by maximum",  1000L,  delay.getCurrentDelay());
+
+        // latency doesn't prevent decrease when there's a backlog
+        delay.batchBuilt(50, true, 0);
+        assertEquals("decreased",           500L,   delay.getCurrentDelay());
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.logging.aws.internal.Backoff;
+
+
+public class TestBackoff
+{
+    @Test
+    public void testDelaysWithinBounds() throws Exception
+    {
+        Backoff backoff = new Backoff(100, 5000);
+
+        long previous = 100;
+        for (int ii = 0 ; ii < 1000 ; ii++)
+        {
+            long delay = backoff.nextDelay();
+            assertTrue("delay >= base (was " + delay + ")",                 delay >= 100);
+            assertTrue("delay <= max (was " + delay + ")",                  delay <= 5000);
+            assertTrue("delay <= 3 * previous (was " + delay + ")",         delay <= previous * 3);
+            previous = delay;
+        }
+    }
+
+
+    @Test
+    public void testDelaysGrowAndSpread() throws Exception
+    {
+        // with enough iterations, delays should approach the maximum, and two
+        // instances started together should not produce the same sequence
+
+        Backoff backoff1 = new Backoff(100, 100000);
+        Backoff backoff2 = new Backoff(100, 100000);
+
+        long max = 0;
+        boolean differ = false;
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            long delay1 = backoff1.nextDelay();
+            long delay2 = backoff2.nextDelay();
+            max = Math.max(max, delay1);
+            differ |= (delay1 != delay2);
+        }
+
+        assertTrue("delays grew (max was " + max + ")",                     max > 1000);
+        assertTrue("instances not in lockstep",                             differ);
+    }
+
+
+    @Test
+    public void testReset() throws Exception
+    {
+        Backoff backoff = new Backoff(100, 100000);
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            backoff.nextDelay();
+        }
+
+        backoff.reset();
+        long delay = backoff.nextDelay();
+        assertTrue("after reset (was " + delay + ")",                       delay <= 300);
+    }
+
+
+    @Test
+    public void testMaxBelowBase() throws Exception
+    {
+        Backoff backoff = new Backoff(100, 50);
+        assertEquals("first delay",                 100L,   backoff.nextDelay());
+        assertEquals("second delay",                100L,   backoff.nextDelay());
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.logging.aws.internal.CircuitBreaker;
+import com.kdgregory.logging.aws.internal.CircuitBreaker.State;
+
+
+public class TestCircuitBreaker
+{
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(3, 10000, 10000);
+
+        assertTrue("initially allows requests",                 breaker.allowRequest());
+        assertFalse("first failure",                            breaker.recordFailure());
+        assertFalse("second failure",                           breaker.recordFailure());
+        breaker.recordSuccess();
+        assertFalse("success resets count",                     breaker.recordFailure());
+        assertFalse("second failure after success",             breaker.recordFailure());
+        assertEquals("state before threshold",                  State.closed,   breaker.getState());
+        assertEquals("delay before threshold",                  0L,             breaker.millisUntilRetry(100));
+
+        assertTrue("third consecutive failure opens breaker",   breaker.recordFailure());
+        assertEquals("state after threshold",                   State.open,     breaker.getState());
+        assertEquals("open count",                              1,              breaker.getOpenCount());
+        assertFalse("open breaker rejects requests",            breaker.allowRequest());
+
+        long delay = breaker.millisUntilRetry(100);
+        assertTrue("delay reflects open interval (was " + delay + ")",          (delay > 9000) && (delay <= 10000));
+    }
+
+
+    @Test
+    public void testHalfOpenProbe() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 50);
+
+        breaker.recordFailure();
+        assertEquals("state after failure",                     State.open,     breaker.getState());
+
+        Thread.sleep(75);
+
+        assertEquals("delay after interval",                    0L,             breaker.millisUntilRetry(100));
+        assertTrue("probe allowed",                             breaker.allowRequest());
+        assertEquals("state during probe",                      State.halfOpen, breaker.getState());
+        assertFalse("second request rejected during probe",     breaker.allowRequest());
+        assertEquals("delay during probe",                      100L,           breaker.millisUntilRetry(100));
+
+        breaker.recordSuccess();
+        assertEquals("state after successful probe",            State.closed,   breaker.getState());
+        assertTrue("allows requests",                           breaker.allowRequest());
+    }
+
+
+    @Test
+    public void testFailedProbeReopens() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(5, 50, 50);
+
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            breaker.recordFailure();
+        }
+        Thread.sleep(75);
+
+        assertTrue("probe allowed",                             breaker.allowRequest());
+        assertTrue("failed probe reopens immediately",          breaker.recordFailure());
+        assertEquals("state after failed probe",                State.open,     breaker.getState());
+        assertEquals("open count",                              2,              breaker.getOpenCount());
+        assertFalse("rejects requests",                         breaker.allowRequest());
+    }
+}
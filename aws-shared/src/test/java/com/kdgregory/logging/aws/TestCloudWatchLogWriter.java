@@ -14,7 +14,15 @@
 
 package com.kdgregory.logging.aws;
 
+import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Before;
@@ -24,6 +32,7 @@ import static org.junit.Assert.*;
 
 import net.sf.kdgcommons.lang.ClassUtil;
 import net.sf.kdgcommons.lang.StringUtil;
+import net.sf.kdgcommons.lang.ThreadUtil;
 
 import static net.sf.kdgcommons.test.StringAsserts.*;
 
@@ -37,6 +46,8 @@ import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterFactory;
 import com.kdgregory.logging.aws.testhelpers.TestingException;
 import com.kdgregory.logging.aws.testhelpers.cloudwatch.MockCloudWatchClient;
 import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.factories.SharedThreadFactory;
+import com.kdgregory.logging.common.factories.VirtualThreadFactory;
 import com.kdgregory.logging.common.util.DiscardAction;
 import com.kdgregory.logging.common.util.MessageQueue;
 
@@ -137,10 +148,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence
-        // will call describeLogStreams when checking stream existence, as well as for each putLogEvents
+        // will call describeLogStreams when checking stream existence, which provides the sequence token
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
@@ -156,10 +167,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message three"));
         mock.allowWriterThread();
 
-        // will call describeLogStreams for each putLogEvents
+        // uses the sequence token from the previous putLogEvents, so doesn't describe again
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
@@ -169,6 +180,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
         assertStatisticsMessagesSent(3);
 
+        assertEquals("stats: describeLogStreams calls",         1L,                 stats.getDescribeLogStreamsCalls());
+        assertEquals("stats: putLogEvents calls",               2L,                 stats.getPutLogEventsCalls());
+        assertEquals("stats: describe/put ratio",               0.5,                stats.getDescribeToPutRatio(), 0.0);
+
         internalLogger.assertInternalDebugLog();
         internalLogger.assertInternalErrorLog();
     }
@@ -185,10 +200,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence
-        // will call describeLogStreams when checking stream existence, after creating stream, and for each putLogEvents
+        // will call describeLogStreams when checking stream existence and after creating stream
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
         assertEquals("createLogStream: group name",             "argle",            mock.createLogStreamGroupName);
@@ -206,10 +221,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message three"));
         mock.allowWriterThread();
 
-        // will call describeLogStreams for each putLogEvents
+        // uses the sequence token from the previous putLogEvents, so doesn't describe again
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    4,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
@@ -236,10 +251,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence, as well as after creating group
-        // will call describeLogStreams when checking stream existence, after creating stream, and for each putLogEvents
+        // will call describeLogStreams when checking stream existence and after creating stream
 
         assertEquals("describeLogGroups: invocation count",     2,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        1,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogGroup: group name",              "griffy",           mock.createLogGroupGroupName);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
@@ -258,10 +273,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message three"));
         mock.allowWriterThread();
 
-        // will call describeLogStreams for each putLogEvents
+        // uses the sequence token from the previous putLogEvents, so doesn't describe again
 
         assertEquals("describeLogGroups: invocation count",     2,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    4,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        1,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
@@ -292,7 +307,7 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         // this is an "existing group and stream" test, but with twice the describe calls
 
         assertEquals("describeLogGroups: invocation count",     2,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    4,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
@@ -359,6 +374,7 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         };
 
         createWriter();
+        waitForInitialization();
 
         // we don't need to write any messages; writer should fail to initialize
 
@@ -413,6 +429,68 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
     }
 
 
+    @Test
+    public void testCircuitBreaker() throws Exception
+    {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        mock = new MockCloudWatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                if (failing.get())
+                    throw new TestingException("service unavailable");
+                return super.putLogEvents(request);
+            }
+        };
+
+        config.circuitBreakerThreshold = 3;
+        config.circuitBreakerMinInterval = 500;
+        config.circuitBreakerMaxInterval = 500;
+
+        createWriter();
+
+        assertEquals("initial breaker state",                           "closed",               stats.getCircuitBreakerState());
+
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), "message one"));
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+        assertEquals("breaker state after two failures",                "closed",               stats.getCircuitBreakerState());
+
+        mock.allowWriterThread();
+        long openedAt = System.currentTimeMillis();
+
+        // the breaker is updated after the mock releases us
+        for (int ii = 0 ; ii < 50 && stats.getCircuitBreakerOpenCount() == 0 ; ii++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("breaker state after three failures",              "open",                 stats.getCircuitBreakerState());
+        assertEquals("breaker open count",                              1,                      stats.getCircuitBreakerOpenCount());
+
+        // the probe isn't sent until the open interval expires
+
+        failing.set(false);
+        mock.allowWriterThread();
+        long elapsed = System.currentTimeMillis() - openedAt;
+
+        for (int ii = 0 ; ii < 50 && ! "closed".equals(stats.getCircuitBreakerState()) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertTrue("waited for open interval (was " + elapsed + ")",                            elapsed >= 300);
+        assertEquals("putLogEvents: invocation count",                  4,                      mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last message",                      "message one",          mock.mostRecentEvents.get(0).getMessage());
+        assertEquals("breaker state after probe",                       "closed",               stats.getCircuitBreakerState());
+        assertEquals("breaker open count after probe",                  1,                      stats.getCircuitBreakerOpenCount());
+
+        assertStatisticsMessagesSent(1);
+
+        internalLogger.assertInternalWarningLog("suspending sends after repeated failures.*");
+    }
+
+
     @Test
     public void testInvalidSequenceTokenException() throws Exception
     {
@@ -438,6 +516,7 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         assertEquals("putLogEvents: invocation count",                  3,                      mock.putLogEventsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",            3,                      mock.describeLogStreamsInvocationCount);
         assertEquals("putLogEvents: last call #/messages",              1,                      mock.mostRecentEvents.size());
         assertEquals("putLogEvents: last message",                      "message one",          mock.mostRecentEvents.get(0).getMessage());
 
@@ -481,6 +560,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         assertRegex("statistics: error message",                        ".*repeated InvalidSequenceTokenException.*",
                                                                         stats.getLastErrorMessage());
 
+        // the mock releases the main thread before the writer records the last retry
+        for (int ii = 0 ; (ii < 10) && (stats.getWriterRaceRetries() < 6) ; ii++)
+            ThreadUtil.sleepQuietly(10);
+
         assertEquals("stats: writer race retries",                      6,                      stats.getWriterRaceRetries());
         assertEquals("stats: unrecovered writer race retries",          1,                      stats.getUnrecoveredWriterRaceRetries());
 
@@ -541,6 +624,181 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
     }
 
 
+    @Test
+    public void testMessagesOutsideTimeRange() throws Exception
+    {
+        long now = System.currentTimeMillis();
+
+        createWriter();
+
+        // the first message is too far from the others to be in the same batch; when
+        // it's discarded that batch is empty, so there's only one call to putLogEvents
+
+        writer.addMessage(new LogMessage(now - 15 * 86400000L, "too old"));
+        writer.addMessage(new LogMessage(now, "just right"));
+        writer.addMessage(new LogMessage(now + 3 * 3600000L, "too new"));
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",                  1,                      mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",              1,                      mock.mostRecentEvents.size());
+        assertEquals("putLogEvents: last message",                      "just right",           mock.mostRecentEvents.get(0).getMessage());
+
+        assertStatisticsMessagesSent(1);
+        assertEquals("stats: messages too old",                         1,                      stats.getMessagesTooOld());
+        assertEquals("stats: messages too new",                         1,                      stats.getMessagesTooNew());
+
+        internalLogger.assertInternalWarningLog("discarded 1 .* too old and 0 .*",
+                                                "discarded 0 .* too old and 1 .*");
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testBatchTimespan() throws Exception
+    {
+        long now = System.currentTimeMillis();
+
+        createWriter();
+
+        writer.addMessage(new LogMessage(now - 3 * 86400000L, "old 1"));
+        writer.addMessage(new LogMessage(now - 3 * 86400000L + 1000, "old 2"));
+        writer.addMessage(new LogMessage(now, "new"));
+
+        // the writer starts on the next batch as soon as the first is sent, so we can
+        // only verify the number of calls at the end
+
+        mock.allowWriterThread();
+
+        assertEquals("first batch: #/messages",                         2,                      mock.mostRecentEvents.size());
+        assertEquals("first batch: last message",                       "old 2",                mock.mostRecentEvents.get(1).getMessage());
+
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",                  2,                      mock.putLogEventsInvocationCount);
+        assertEquals("second batch: #/messages",                        1,                      mock.mostRecentEvents.size());
+        assertEquals("second batch: message",                           "new",                  mock.mostRecentEvents.get(0).getMessage());
+
+        assertStatisticsMessagesSent(3);
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testRejectedBatchIsSplit() throws Exception
+    {
+        mock = new MockCloudWatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                for (InputLogEvent event : request.getLogEvents())
+                {
+                    if (event.getMessage().equals("bad"))
+                        throw new InvalidParameterException("Log event too large");
+                }
+                return super.putLogEvents(request);
+            }
+        };
+
+        createWriter();
+
+        // all messages have the same timestamp, so will remain in the order written
+        long now = System.currentTimeMillis();
+        writer.addMessage(new LogMessage(now, "message 0"));
+        writer.addMessage(new LogMessage(now, "message 1"));
+        writer.addMessage(new LogMessage(now, "bad"));
+        writer.addMessage(new LogMessage(now, "message 3"));
+
+        // calls: all four (fail), first two (succeed), last two (fail), "bad" (fail), last (succeed)
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            mock.allowWriterThread();
+        }
+
+        assertEquals("putLogEvents: invocation count",                  5,                      mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",              1,                      mock.mostRecentEvents.size());
+        assertEquals("putLogEvents: last message",                      "message 3",            mock.mostRecentEvents.get(0).getMessage());
+
+        assertStatisticsMessagesSent(3);
+        assertEquals("stats: messages rejected",                        1,                      stats.getMessagesRejected());
+
+        internalLogger.assertInternalErrorLog(".*rejected by CloudWatch.*");
+        internalLogger.assertInternalErrorLogExceptionTypes(InvalidParameterException.class);
+    }
+
+
+    @Test
+    public void testInvalidParameterNotCausedByEvents() throws Exception
+    {
+        // an error that isn't due to the batch's events won't be fixed by splitting it
+        mock = new MockCloudWatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                // this mentions things that could be event-related, but isn't
+                throw new InvalidParameterException("1 validation error detected: Value at 'logEvents.1.member.timestamp' failed to satisfy constraint: too large");
+            }
+        };
+
+        createWriter();
+
+        long now = System.currentTimeMillis();
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            writer.addMessage(new LogMessage(now, "message " + ii));
+        }
+
+        // as with other exceptions, the batch should be retried intact
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",                  2,                      mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",              4,                      mock.mostRecentEvents.size());
+
+        assertStatisticsErrorMessage("failed to send batch");
+        assertEquals("stats: messages rejected",                        0,                      stats.getMessagesRejected());
+
+        internalLogger.assertInternalErrorLog("failed to send.*", "failed to send.*");
+        internalLogger.assertInternalErrorLogExceptionTypes(InvalidParameterException.class, InvalidParameterException.class);
+    }
+
+
+    @Test
+    public void testIgnoredLogEvents() throws Exception
+    {
+        // CloudWatch may accept a batch but ignore some events
+        mock = new MockCloudWatchClient()
+        {
+            @Override
+            protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
+            {
+                return super.putLogEvents(request)
+                       .withRejectedLogEventsInfo(new RejectedLogEventsInfo()
+                                                  .withTooOldLogEventEndIndex(Integer.valueOf(1))
+                                                  .withTooNewLogEventStartIndex(Integer.valueOf(2)));
+            }
+        };
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: last call #/messages",              3,                      mock.mostRecentEvents.size());
+
+        assertStatisticsMessagesSent(1);
+        assertEquals("stats: messages too old",                         1,                      stats.getMessagesTooOld());
+        assertEquals("stats: messages too new",                         1,                      stats.getMessagesTooNew());
+
+        internalLogger.assertInternalWarningLog("CloudWatch ignored 1 .* too old and 1 .*");
+        internalLogger.assertInternalErrorLog();
+    }
+
+
     @Test
     public void testRecoveryFromLogStreamDeletion() throws Exception
     {
@@ -552,11 +810,11 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence
-        // will call describeLogStreams when checking stream existence, as well as for each putLogEvents
+        // will call describeLogStreams when checking stream existence, which provides the sequence token
         // stream exists, so no creation methods called
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
@@ -568,16 +826,17 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message two"));
         mock.allowWriterThread();
 
-        // we'll do another invoke of describeLogStream to discover that stream no longer exists,
-        // followed by an invoke of both describes and then a create, then describeStream to verify creation,
-        // followed by another stream describe before the putLogEvents
-        // ... but we'll never see the actual failure state
+        // putLogEvents fails because the stream doesn't exist; the writer then calls both
+        // describes, creates the stream, and calls describeStream to verify creation (which
+        // also gives it the sequence token) ... and requeues the batch
+
+        mock.allowWriterThread();
 
         assertEquals("describeLogGroups: invocation count",     2,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    6,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
-        assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: invocation count",          3,                  mock.putLogEventsInvocationCount);
         assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
         assertEquals("putLogEvents: last message",              "message two",      mock.mostRecentEvents.get(0).getMessage());
 
@@ -592,18 +851,88 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message three"));
         mock.allowWriterThread();
 
-        // this should be fine: another describeStream, followed by a putLogEvents
+        // this should be fine: putLogEvents with the sequence token from the last call
 
         assertEquals("describeLogGroups: invocation count",     2,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    7,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       1,                  mock.createLogStreamInvocationCount);
-        assertEquals("putLogEvents: invocation count",          3,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: invocation count",          4,                  mock.putLogEventsInvocationCount);
         assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
         assertEquals("putLogEvents: last message",              "message three",    mock.mostRecentEvents.get(0).getMessage());
     }
 
 
+    @Test
+    public void testMultipleLogStreams() throws Exception
+    {
+        config.logStreamCount = 3;
+
+        createWriter();
+
+        // with the default batch delay, each batch is sent before the next is built,
+        // so they rotate through the streams
+
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+            mock.allowWriterThread();
+        }
+
+        // will call describeLogStreams to check each stream's existence, and again after creating it
+
+        assertEquals("describeLogStreams: invocation count",    6,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("createLogStream: invocation count",       3,                  mock.createLogStreamInvocationCount);
+        assertEquals("putLogEvents: invocation count",          4,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: stream names",              "[bargle-0, bargle-1, bargle-2, bargle-0]",
+                                                                mock.putLogEventsStreamNames.toString());
+
+        assertEquals("stats: actual log stream name",           "bargle-0,bargle-1,bargle-2",
+                                                                stats.getActualLogStreamName());
+        assertStatisticsMessagesSent(4);
+
+        internalLogger.assertInternalDebugLog("creat.*stream.*bargle-0", "creat.*stream.*bargle-1", "creat.*stream.*bargle-2");
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testMultipleLogStreamsSendConcurrently() throws Exception
+    {
+        config.logStreamCount = 3;
+        config.batchDelay = 300;
+
+        createWriter();
+
+        // each batch holds ten of these, so we have three batches
+
+        String message = StringUtil.repeat('X', 100000);
+        for (int ii = 0 ; ii < 25 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+        }
+
+        // the mock counts each call before blocking it, so all three are in flight
+
+        for (int ii = 0 ; (ii < 50) && (mock.putLogEventsInvocationCount < 3) ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals("putLogEvents: concurrent invocations",    3,                  mock.putLogEventsInvocationCount);
+
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            mock.allowWriterThread();
+        }
+
+        assertEquals("putLogEvents: stream names",              "[bargle-0, bargle-1, bargle-2]",
+                                                                new TreeSet<String>(mock.putLogEventsStreamNames).toString());
+        assertStatisticsMessagesSent(25);
+
+        internalLogger.assertInternalErrorLog();
+    }
+
+
     @Test
     public void testDiscardOldest() throws Exception
     {
@@ -676,6 +1005,36 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
     }
 
 
+    @Test
+    public void testDiscardByBytes() throws Exception
+    {
+        // each message is 10 bytes, so the byte limit is reached before the count limit
+        config.discardAction = DiscardAction.oldest;
+        config.discardThreshold = 1000;
+        config.discardThresholdBytes = 100;
+
+        // this test doesn't need a background thread running
+
+        writer = new CloudWatchLogWriter(config, stats, internalLogger, dummyClientFactory);
+        messageQueue = ClassUtil.getFieldValue(writer, "messageQueue", MessageQueue.class);
+
+        for (int ii = 0 ; ii < 20 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), String.format("message %2d", ii)));
+        }
+
+        List<LogMessage> messages = messageQueue.toList();
+
+        assertEquals("number of messages in queue",     10,             messages.size());
+        assertEquals("oldest message in queue",         "message 10",   messages.get(0).getMessage());
+        assertEquals("newest message in queue",         "message 19",   messages.get(9).getMessage());
+
+        assertEquals("stats: messages queued",          10,             stats.getMessagesQueued());
+        assertEquals("stats: bytes queued",             100L,           stats.getMessageBytesQueued());
+        assertEquals("stats: messages discarded",       10,             stats.getMessagesDiscarded());
+    }
+
+
     @Test
     public void testReconfigureDiscardProperties() throws Exception
     {
@@ -689,15 +1048,78 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
         assertEquals("initial discard threshold",   123,                    messageQueue.getDiscardThreshold());
         assertEquals("initial discard action",      DiscardAction.none,     messageQueue.getDiscardAction());
+        assertEquals("initial enqueue timeout",     1000L,                  messageQueue.getEnqueueTimeout());
 
         writer.setDiscardAction(DiscardAction.newest);
         writer.setDiscardThreshold(456);
+        writer.setDiscardThresholdBytes(789);
+        writer.setEnqueueTimeout(1011);
 
         assertEquals("updated discard threshold",   456,                    messageQueue.getDiscardThreshold());
+        assertEquals("updated enqueue timeout",     1011L,                  messageQueue.getEnqueueTimeout());
+        assertEquals("updated discard bytes",       789L,                   messageQueue.getDiscardThresholdBytes());
         assertEquals("updated discard action",      DiscardAction.newest,   messageQueue.getDiscardAction());
     }
 
 
+    @Test
+    public void testWriteAheadLogRecovery() throws Exception
+    {
+        File walDirectory = File.createTempFile("TestCloudWatchLogWriter", "");
+        walDirectory.delete();
+
+        try
+        {
+            // simulate a previous writer that didn't get to send its messages
+            MessageQueue previous = new MessageQueue(1000, DiscardAction.oldest);
+            previous.enableWriteAheadLog(walDirectory, 1024 * 1024, 0);
+            previous.enqueue(new LogMessage(System.currentTimeMillis(), "message one"));
+            previous.enqueue(new LogMessage(System.currentTimeMillis(), "message two"));
+            previous.close();
+
+            config.walDirectory = walDirectory.getPath();
+            createWriter();
+
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message three"));
+            mock.allowWriterThread();
+
+            assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+            assertEquals("putLogEvents: last call #/messages",      3,                  mock.mostRecentEvents.size());
+            assertEquals("putLogEvents: last message (0)",          "message one",      mock.mostRecentEvents.get(0).getMessage());
+            assertEquals("putLogEvents: last message (1)",          "message two",      mock.mostRecentEvents.get(1).getMessage());
+            assertEquals("putLogEvents: last message (2)",          "message three",    mock.mostRecentEvents.get(2).getMessage());
+
+            // messages are acknowledged after the mock releases us
+            messageQueue = ClassUtil.getFieldValue(writer, "messageQueue", MessageQueue.class);
+            List<File> files = messageQueue.getWriteAheadLogFiles();
+            assertEquals("number of log files",                     1,                  files.size());
+            for (int ii = 0 ; (ii < 50) && (files.get(0).length() > 0) ; ii++)
+            {
+                Thread.sleep(20);
+            }
+            assertEquals("log file truncated after send",           0L,                 files.get(0).length());
+
+            writer.stop();
+            joinWriterThread();
+
+            internalLogger.assertInternalDebugLog("recovered 2 messages from write-ahead log.*", "stopping log.writer.*");
+            internalLogger.assertInternalErrorLog();
+        }
+        finally
+        {
+            File[] files = walDirectory.listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    file.delete();
+                }
+            }
+            walDirectory.delete();
+        }
+    }
+
+
     @Test
     public void testCountBasedBatching() throws Exception
     {
@@ -722,10 +1144,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence
-        // will call describeLogStreams when checking stream existence, as well as for each putLogEvents
+        // will call describeLogStreams when checking stream existence, which provides the sequence token
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
@@ -736,10 +1158,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
         mock.allowWriterThread();
 
-        // one more call to describeLogStreams, to get sequence token
+        // uses the sequence token from the previous putLogEvents, so doesn't describe again
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
@@ -754,14 +1176,374 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
 
     @Test
-    public void testSizeBasedBatching() throws Exception
+    public void testFullBatchSentImmediately() throws Exception
     {
-        // don't let discard threshold get in the way of the test
         config.discardThreshold = Integer.MAX_VALUE;
         config.discardAction = DiscardAction.none;
 
-        // increasing delay because it will take time to create the messages
-        config.batchDelay = 300;
+        // long enough that the test would fail if we waited for it
+        config.batchDelay = 30000;
+
+        final String testMessage = "test";
+        final int numMessages = 10000;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        long start = System.currentTimeMillis();
+        mock.allowWriterThread();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      10000,              mock.mostRecentEvents.size());
+        assertTrue("sent without waiting for batch delay (was " + elapsed + ")",    elapsed < 5000);
+
+        assertStatisticsMessagesSent(numMessages);
+    }
+
+
+    @Test
+    public void testBatchFillPercent() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 30000;
+        config.batchFillPercent = 25;
+
+        final String testMessage = "test";
+        final int numMessages = 2500;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        long start = System.currentTimeMillis();
+        mock.allowWriterThread();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      2500,               mock.mostRecentEvents.size());
+        assertTrue("sent without waiting for batch delay (was " + elapsed + ")",    elapsed < 5000);
+
+        assertStatisticsMessagesSent(numMessages);
+    }
+
+
+    @Test
+    public void testMaxLatency() throws Exception
+    {
+        // the batch delay would hold the message long past its latency target
+        config.batchDelay = 2000;
+        config.maxLatency = 200;
+
+        createWriter();
+
+        long start = System.currentTimeMillis();
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), "message one"));
+        mock.allowWriterThread();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
+        assertTrue("waited until near latency target (was " + elapsed + ")",    elapsed >= 150);
+        assertTrue("did not wait for batch delay (was " + elapsed + ")",        elapsed < 1000);
+
+        // latency is recorded after the mock releases us
+        Map<String,Long> histogram = stats.getQueueLatencyHistogram();
+        for (int ii = 0 ; (ii < 50) && ! histogram.values().contains(Long.valueOf(1)) ; ii++)
+        {
+            Thread.sleep(20);
+            histogram = stats.getQueueLatencyHistogram();
+        }
+        assertEquals("latency histogram: 64-127",               Long.valueOf(0),    histogram.get("64-127"));
+        assertEquals("latency histogram: 128-511",              1L,                 histogram.get("128-255").longValue() + histogram.get("256-511").longValue());
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testBatchStatistics() throws Exception
+    {
+        createWriter();
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        // each message is 9 bytes, plus 26 bytes of overhead
+        assertEquals("batch size",          "{count=1, p50=10, p90=10, p99=10, max=10}",        stats.getBatchSizePercentiles().toString());
+        assertEquals("batch bytes",         "{count=1, p50=350, p90=350, p99=350, max=350}",    stats.getBatchBytesPercentiles().toString());
+        assertEquals("queue wait count",    Long.valueOf(10),                                   stats.getQueueWaitPercentiles().get("count"));
+        assertTrue("queue wait reflects batch delay",                                           stats.getQueueWaitPercentiles().get("max").longValue() >= 90);
+
+        // service latency is recorded after the mock releases us
+        for (int ii = 0 ; (ii < 50) && (stats.getServiceLatencyPercentiles().get("count").longValue() == 0) ; ii++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals("service latency count",   Long.valueOf(1),                                stats.getServiceLatencyPercentiles().get("count"));
+
+        stats.resetHistograms();
+        assertEquals("batch size after reset",  "{count=0, p50=0, p90=0, p99=0, max=0}",        stats.getBatchSizePercentiles().toString());
+    }
+
+
+    @Test
+    public void testStatisticsSnapshot() throws Exception
+    {
+        createWriter();
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        // messages sent is updated after the mock releases us
+        for (int ii = 0 ; (ii < 50) && (stats.getMessagesSent() == 0) ; ii++)
+        {
+            Thread.sleep(20);
+        }
+
+        Map<String,Object> snapshot = stats.snapshot();
+        assertNotNull("timestamp",                                                      snapshot.get("Timestamp"));
+        assertEquals("messages sent",           Long.valueOf(10),                       snapshot.get("MessagesSent"));
+        assertEquals("messages discarded",      Long.valueOf(0),                        snapshot.get("MessagesDiscarded"));
+        assertEquals("messages queued",         Integer.valueOf(0),                     snapshot.get("MessagesQueued"));
+        assertEquals("circuit breaker",         "closed",                               snapshot.get("CircuitBreakerState"));
+        assertEquals("log group name",          "argle",                                snapshot.get("ActualLogGroupName"));
+        assertEquals("log stream name",         "bargle",                               snapshot.get("ActualLogStreamName"));
+        assertEquals("describe calls",          Long.valueOf(1),                        snapshot.get("DescribeLogStreamsCalls"));
+        assertEquals("put calls",               Long.valueOf(1),                        snapshot.get("PutLogEventsCalls"));
+        assertEquals("describe/put ratio",      Double.valueOf(1.0),                    snapshot.get("DescribeToPutRatio"));
+    }
+
+
+    @Test
+    public void testFlush() throws Exception
+    {
+        // long enough that the test would fail if we waited for it
+        config.batchDelay = 30000;
+
+        createWriter();
+
+        assertTrue("flush of empty writer",                                         writer.flush(1000));
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+
+        final AtomicBoolean flushResult = new AtomicBoolean();
+        Thread flushThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushResult.set(writer.flush(5000));
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        flushThread.start();
+        mock.allowWriterThread();
+        flushThread.join();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("flush succeeded",                                               flushResult.get());
+        assertTrue("flush did not wait for batch delay (was " + elapsed + ")",      elapsed < 5000);
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      10,                 mock.mostRecentEvents.size());
+
+        assertStatisticsMessagesSent(10);
+
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testFlushTimeout() throws Exception
+    {
+        config.batchDelay = 30000;
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+
+        // the mock won't complete the send until we release it
+        assertFalse("flush timed out",                                              writer.flush(250));
+
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: last call #/messages",      10,                 mock.mostRecentEvents.size());
+        assertTrue("second flush succeeded",                                        writer.flush(1000));
+    }
+
+
+    @Test
+    public void testFlushWithConcurrentProducers() throws Exception
+    {
+        config.batchDelay = 30000;
+        config.discardThreshold = Integer.MAX_VALUE;
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "before flush " + ii));
+        }
+
+        final AtomicBoolean flushResult = new AtomicBoolean();
+        Thread flushThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushResult.set(writer.flush(2000));
+            }
+        });
+        flushThread.start();
+
+        // once the flush has started sending, we keep logging so that the queue is
+        // never empty; the flush must only wait for the messages logged before it
+        // (the mock counts the call before waiting for us to release it)
+
+        for (int ii = 0 ; (ii < 100) && (mock.putLogEventsInvocationCount == 0) ; ii++)
+        {
+            Thread.sleep(10);
+        }
+        final AtomicBoolean keepLogging = new AtomicBoolean(true);
+        Thread producerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int count = 0;
+                while (keepLogging.get())
+                {
+                    writer.addMessage(new LogMessage(System.currentTimeMillis(), "during flush " + count++));
+                    ThreadUtil.sleepQuietly(1);
+                }
+            }
+        });
+        producerThread.start();
+
+        long start = System.currentTimeMillis();
+        mock.allowWriterThread();
+        flushThread.join();
+        long elapsed = System.currentTimeMillis() - start;
+
+        keepLogging.set(false);
+        producerThread.join();
+
+        assertTrue("flush succeeded",                                               flushResult.get());
+        assertTrue("flush did not wait for later messages (was " + elapsed + ")",   elapsed < 1000);
+        assertEquals("putLogEvents: first call #/messages",     10,                 mock.mostRecentEvents.size());
+
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testPipelinedBatching() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.pipelined = true;
+
+        final String testMessage = "test";
+        final int numMessages = 15000;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        // the second batch is built while the first is waiting in putLogEvents
+        waitForQueueToDrain(5);
+        assertEquals("queue drained while first batch in flight",   0,                  messageQueue.size());
+        assertEquals("putLogEvents: invocation count, pre-release", 1,                  mock.putLogEventsInvocationCount);
+
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      10000,              mock.mostRecentEvents.size());
+
+        // but it's not sent until the first batch has completed
+
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      5000,               mock.mostRecentEvents.size());
+
+        assertStatisticsMessagesSent(numMessages);
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testAdaptiveBatchDelay() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 400;
+        config.minBatchDelay = 50;
+        config.maxBatchDelay = 2000;
+
+        final String testMessage = "test";
+        final int numMessages = 15000;
+
+        createWriter();
+        assertEquals("initial delay",                           400L,               stats.getCurrentBatchDelay());
+
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: last call #/messages",      10000,              mock.mostRecentEvents.size());
+        assertEquals("delay after full batch",                  200L,               stats.getCurrentBatchDelay());
+
+        mock.allowWriterThread();
+
+        // the actual value depends on how long the first send took, but it can't be less than this
+        assertEquals("putLogEvents: last call #/messages",      5000,               mock.mostRecentEvents.size());
+        assertTrue("delay after partial batch",                                     stats.getCurrentBatchDelay() >= 300L);
+
+        assertStatisticsMessagesSent(numMessages);
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testSizeBasedBatching() throws Exception
+    {
+        // don't let discard threshold get in the way of the test
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+
+        // increasing delay because it will take time to create the messages
+        config.batchDelay = 300;
 
         final String testMessage = StringUtil.randomAlphaString(1024, 1024);
         final int numMessages = 1500;
@@ -777,10 +1559,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         mock.allowWriterThread();
 
         // will call describeLogGroups when checking group existence
-        // will call describeLogStreams when checking stream existence, as well as for each putLogEvents
+        // will call describeLogStreams when checking stream existence, which provides the sequence token
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    2,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
@@ -791,10 +1573,10 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
         mock.allowWriterThread();
 
-        // one more call to describeLogStreams, to get sequence token
+        // uses the sequence token from the previous putLogEvents, so doesn't describe again
 
         assertEquals("describeLogGroups: invocation count",     1,                  mock.describeLogGroupsInvocationCount);
-        assertEquals("describeLogStreams: invocation count",    3,                  mock.describeLogStreamsInvocationCount);
+        assertEquals("describeLogStreams: invocation count",    1,                  mock.describeLogStreamsInvocationCount);
         assertEquals("createLogGroup: invocation count",        0,                  mock.createLogGroupInvocationCount);
         assertEquals("createLogStream: invocation count",       0,                  mock.createLogStreamInvocationCount);
         assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
@@ -845,7 +1627,7 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
 
         writer.addMessage(new LogMessage(System.currentTimeMillis(), "message one"));
 
-        // the immediate stop should interrupt waitForMessage, but there's no guarantee
+        // the immediate stop should wake waitForMessage, but there's no guarantee
         writer.stop();
 
         // the batch should still be processed
@@ -861,4 +1643,222 @@ extends AbstractLogWriterTest<CloudWatchLogWriter,CloudWatchWriterConfig,CloudWa
         internalLogger.assertInternalDebugLog("stopping log.writer.*");
         internalLogger.assertInternalErrorLog();
     }
+
+
+    @Test
+    public void testSharedScheduler() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 200;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        threadFactory = new SharedThreadFactory(executor, "test");
+
+        try
+        {
+            createWriter();
+            assertNull("no dedicated writer thread",                                    ClassUtil.getFieldValue(writer, "dispatchThread", Thread.class));
+
+            // a partial batch waits for the batch delay
+
+            long start = System.currentTimeMillis();
+            for (int ii = 0 ; ii < 10 ; ii++)
+            {
+                writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+            }
+
+            mock.allowWriterThread();
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+            assertEquals("putLogEvents: last call #/messages",      10,                 mock.mostRecentEvents.size());
+            assertTrue("waited for batch delay (was " + elapsed + ")",                  elapsed >= 200);
+
+            // a full batch is sent immediately
+
+            config.batchDelay = 30000;
+            start = System.currentTimeMillis();
+            for (int ii = 0 ; ii < 10000 ; ii++)
+            {
+                writer.addMessage(new LogMessage(System.currentTimeMillis(), "test"));
+            }
+
+            mock.allowWriterThread();
+            elapsed = System.currentTimeMillis() - start;
+
+            assertEquals("putLogEvents: invocation count",          2,                  mock.putLogEventsInvocationCount);
+            assertEquals("putLogEvents: last call #/messages",      10000,              mock.mostRecentEvents.size());
+            assertTrue("did not wait for batch delay (was " + elapsed + ")",            elapsed < 5000);
+
+            // and the writer goes back to waiting for messages
+
+            config.batchDelay = 200;
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "last message"));
+
+            mock.allowWriterThread();
+
+            assertEquals("putLogEvents: invocation count",          3,                  mock.putLogEventsInvocationCount);
+            assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
+
+            assertStatisticsMessagesSent(10011);
+
+            // stopping the writer should run it on the scheduler, where it will shut down
+
+            writer.stop();
+            for (int ii = 0 ; ii < 50 && mock.shutdownInvocationCount == 0 ; ii++)
+            {
+                Thread.sleep(50);
+            }
+            assertEquals("shutdown: invocation count",              1,                  mock.shutdownInvocationCount);
+
+            internalLogger.assertInternalDebugLog("stopping log.writer.*");
+            internalLogger.assertInternalErrorLog();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void testSharedSchedulerDoesNotWaitForSend() throws Exception
+    {
+        config.batchDelay = 100;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        threadFactory = new SharedThreadFactory(executor, "test");
+
+        try
+        {
+            createWriter();
+
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message one"));
+
+            // the mock won't complete the send until we release it, so if the writer
+            // were sending on the (only) pool thread, the probe could not run
+
+            for (int ii = 0 ; (ii < 100) && (mock.putLogEventsInvocationCount == 0) ; ii++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+
+            Future<Boolean> probe = executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return Boolean.TRUE;
+                }
+            });
+            assertEquals("pool thread available",                   Boolean.TRUE,       probe.get(5, TimeUnit.SECONDS));
+
+            mock.allowWriterThread();
+
+            assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
+            assertStatisticsMessagesSent(1);
+            internalLogger.assertInternalErrorLog();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void testSharedSchedulerDoesNotWaitForWriteAheadLog() throws Exception
+    {
+        File walDirectory = File.createTempFile("TestCloudWatchLogWriter", "");
+        walDirectory.delete();
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        threadFactory = new SharedThreadFactory(executor, "test");
+
+        try
+        {
+            // simulate a previous writer that hasn't yet released the log
+            MessageQueue previous = new MessageQueue(1000, DiscardAction.oldest);
+            previous.enableWriteAheadLog(walDirectory, 1024 * 1024, 0);
+            previous.enqueue(new LogMessage(System.currentTimeMillis(), "message one"));
+
+            config.walDirectory = walDirectory.getPath();
+            writer = (CloudWatchLogWriter)mock.newWriterFactory().newLogWriter(config, stats, internalLogger);
+            threadFactory.startLoggingThread(writer, defaultUncaughtExceptionHandler);
+
+            // the writer should retry rather than block the (only) pool thread
+            Future<Boolean> probe = executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return Boolean.TRUE;
+                }
+            });
+            assertEquals("pool thread available",                   Boolean.TRUE,       probe.get(5, TimeUnit.SECONDS));
+            assertFalse("writer waiting for log",                                       writer.isInitializationComplete());
+
+            previous.close();
+            for (int ii = 0 ; (ii < 100) && ! writer.isInitializationComplete() ; ii++)
+            {
+                Thread.sleep(50);
+            }
+            assertTrue("writer initialized once log released",                          writer.isInitializationComplete());
+
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message two"));
+            mock.allowWriterThread();
+
+            assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+            assertEquals("putLogEvents: last call #/messages",      2,                  mock.mostRecentEvents.size());
+            assertEquals("putLogEvents: last message (0)",          "message one",      mock.mostRecentEvents.get(0).getMessage());
+            assertEquals("putLogEvents: last message (1)",          "message two",      mock.mostRecentEvents.get(1).getMessage());
+
+            writer.stop();
+            for (int ii = 0 ; ii < 50 && mock.shutdownInvocationCount == 0 ; ii++)
+            {
+                Thread.sleep(50);
+            }
+            assertEquals("shutdown: invocation count",              1,                  mock.shutdownInvocationCount);
+
+            internalLogger.assertInternalDebugLog("recovered 1 messages from write-ahead log.*", "stopping log.writer.*");
+            internalLogger.assertInternalErrorLog();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            File[] files = walDirectory.listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    file.delete();
+                }
+            }
+            walDirectory.delete();
+        }
+    }
+
+
+    @Test
+    public void testVirtualThreadFactory() throws Exception
+    {
+        // on JDK 21+ this runs on a virtual thread; on earlier JVMs it falls back to a platform thread
+
+        threadFactory = new VirtualThreadFactory("test");
+
+        createWriter();
+
+        Thread dispatchThread = ClassUtil.getFieldValue(writer, "dispatchThread", Thread.class);
+        assertTrue("writer thread name (was " + dispatchThread.getName() + ")",     dispatchThread.getName().startsWith("com-kdgregory-aws-logwriter-test-"));
+
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), "message one"));
+        mock.allowWriterThread();
+
+        assertEquals("putLogEvents: invocation count",          1,                  mock.putLogEventsInvocationCount);
+        assertEquals("putLogEvents: last call #/messages",      1,                  mock.mostRecentEvents.size());
+
+        assertStatisticsMessagesSent(1);
+    }
 }
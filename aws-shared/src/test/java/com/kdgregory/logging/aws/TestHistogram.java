@@ -0,0 +1,155 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.logging.aws.internal.Histogram;
+
+
+public class TestHistogram
+{
+    @Test
+    public void testBuckets() throws Exception
+    {
+        Histogram histogram = new Histogram(16);
+
+        histogram.record(-1);
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(15);
+        histogram.record(16);
+        histogram.record(1000000);
+
+        Map<String,Long> counts = histogram.getCounts();
+        assertEquals("bucket labels",   "[0, 1, 2-3, 4-7, 8-15, 16+]",  counts.keySet().toString());
+        assertEquals("bucket counts",   "[2, 1, 2, 1, 1, 2]",           counts.values().toString());
+        assertEquals("total count",     9L,                             histogram.getCount());
+    }
+
+
+    @Test
+    public void testMaxValueRoundedUp() throws Exception
+    {
+        Histogram histogram = new Histogram(10);
+
+        histogram.record(15);
+        histogram.record(16);
+
+        Map<String,Long> counts = histogram.getCounts();
+        assertEquals("bucket labels",   "[0, 1, 2-3, 4-7, 8-15, 16+]",  counts.keySet().toString());
+        assertEquals("bucket counts",   "[0, 0, 0, 0, 1, 1]",           counts.values().toString());
+    }
+
+
+    @Test
+    public void testPercentiles() throws Exception
+    {
+        Histogram histogram = new Histogram(65536);
+
+        assertEquals("empty histogram", "{count=0, p50=0, p90=0, p99=0, max=0}",   histogram.getPercentiles().toString());
+
+        for (int ii = 1 ; ii <= 1000 ; ii++)
+        {
+            histogram.record(ii);
+        }
+
+        // buckets above 8 are 1/8 of their power of two, and we report the upper bound
+
+        assertEquals("count",           1000L,      histogram.getCount());
+        assertEquals("max",             1000L,      histogram.getMax());
+        assertEquals("p50",             511L,       histogram.getPercentile(50));
+        assertEquals("p90",             959L,       histogram.getPercentile(90));
+        assertEquals("p99",             1000L,      histogram.getPercentile(99));
+        assertEquals("p0",              1L,         histogram.getPercentile(0));
+        assertEquals("summary",         "{count=1000, p50=511, p90=959, p99=1000, max=1000}",
+                                        histogram.getPercentiles().toString());
+    }
+
+
+    @Test
+    public void testPercentilesInOverflow() throws Exception
+    {
+        Histogram histogram = new Histogram(16);
+
+        histogram.record(1);
+        histogram.record(100);
+        histogram.record(200);
+
+        // values in the overflow bucket are reported as the maximum
+
+        assertEquals("p10",             1L,         histogram.getPercentile(10));
+        assertEquals("p50",             200L,       histogram.getPercentile(50));
+        assertEquals("p99",             200L,       histogram.getPercentile(99));
+    }
+
+
+    @Test
+    public void testReset() throws Exception
+    {
+        Histogram histogram = new Histogram(1024);
+
+        histogram.record(10);
+        histogram.record(100);
+        histogram.reset();
+
+        assertEquals("count after reset",   0L,     histogram.getCount());
+        assertEquals("max after reset",     0L,     histogram.getMax());
+
+        histogram.record(20);
+        assertEquals("max after new value", 20L,    histogram.getMax());
+        assertEquals("p50 after new value", 20L,    histogram.getPercentile(50));
+    }
+
+
+    @Test
+    public void testConcurrentUpdates() throws Exception
+    {
+        final Histogram histogram = new Histogram(65536);
+        final int threadCount = 8;
+        final int valuesPerThread = 100000;
+
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0 ; ii < threadCount ; ii++)
+        {
+            final int threadNum = ii;
+            threads[ii] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int jj = 0 ; jj < valuesPerThread ; jj++)
+                    {
+                        histogram.record(jj % 1000 + threadNum);
+                    }
+                }
+            });
+            threads[ii].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals("count",   (long)threadCount * valuesPerThread,    histogram.getCount());
+        assertEquals("max",     999L + threadCount - 1,                 histogram.getMax());
+    }
+}
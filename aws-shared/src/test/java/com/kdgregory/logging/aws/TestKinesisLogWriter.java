@@ -14,11 +14,20 @@
 
 package com.kdgregory.logging.aws;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -27,6 +36,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import static net.sf.kdgcommons.test.StringAsserts.*;
 
+import net.sf.kdgcommons.io.IOUtil;
 import net.sf.kdgcommons.lang.ClassUtil;
 import net.sf.kdgcommons.lang.StringUtil;
 
@@ -38,9 +48,13 @@ import com.kdgregory.logging.aws.kinesis.KinesisWriterStatistics;
 import com.kdgregory.logging.aws.kinesis.KinesisLogWriter;
 import com.kdgregory.logging.aws.kinesis.KinesisWriterConfig;
 import com.kdgregory.logging.aws.kinesis.KinesisWriterFactory;
+import com.kdgregory.logging.aws.kinesis.ShardAssignment;
 import com.kdgregory.logging.aws.testhelpers.TestingException;
+import com.kdgregory.logging.aws.testhelpers.kinesis.KinesisDeaggregator;
 import com.kdgregory.logging.aws.testhelpers.kinesis.MockKinesisClient;
 import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.factories.SharedThreadFactory;
+import com.kdgregory.logging.common.util.Compression;
 import com.kdgregory.logging.common.util.DiscardAction;
 import com.kdgregory.logging.common.util.MessageQueue;
 
@@ -75,6 +89,68 @@ extends AbstractLogWriterTest<KinesisLogWriter,KinesisWriterConfig,KinesisWriter
     }
 
 
+    /**
+     *  Reads a decompressing stream.
+     */
+    private static byte[] decompress(InputStream in)
+    throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtil.copy(in, out);
+        in.close();
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Counts the messages in a list of deflate-compressed, aggregated records.
+     */
+    private static int countMessages(List<PutRecordsRequestEntry> records)
+    throws Exception
+    {
+        int count = 0;
+        for (PutRecordsRequestEntry entry : records)
+        {
+            byte[] compressed = BinaryUtils.copyAllBytesFrom(entry.getData());
+            byte[] uncompressed = decompress(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+            count += new KinesisDeaggregator(entry.getPartitionKey(), uncompressed).getMessages().size();
+        }
+        return count;
+    }
+
+
+    /**
+     *  Returns a string of random two-byte characters. LZ4 can't find any matches,
+     *  so stores the data as-is, plus its own overhead.
+     */
+    private static String incompressibleString(int numBytes)
+    {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder(numBytes / 2);
+        for (int ii = 0 ; ii < numBytes / 2 ; ii++)
+        {
+            sb.append((char)(0x100 + rnd.nextInt(0x700)));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     *  Returns the number of records sent to each shard by the last putRecords.
+     */
+    private Map<String,Integer> recordsByShard()
+    {
+        Map<String,Integer> result = new TreeMap<String,Integer>();
+        for (PutRecordsRequestEntry entry : mock.putRecordsSourceRecords)
+        {
+            String shardId = mock.shardForHashKey(entry.getExplicitHashKey());
+            Integer count = result.get(shardId);
+            result.put(shardId, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
+        }
+        return result;
+    }
+
+
     // the following variable and function are used by testStaticClientFactory
 
     private static MockKinesisClient staticFactoryMock;
@@ -355,6 +431,7 @@ extends AbstractLogWriterTest<KinesisLogWriter,KinesisWriterConfig,KinesisWriter
         };
 
         createWriter();
+        waitForInitialization();
 
         assertEquals("describeStream: invocation count",            1,                          mock.describeStreamInvocationCount);
         assertEquals("createStream: invocation count",              0,                          mock.createStreamInvocationCount);
@@ -638,6 +715,83 @@ extends AbstractLogWriterTest<KinesisLogWriter,KinesisWriterConfig,KinesisWriter
         internalLogger.assertInternalErrorLog();
     }
 
+    @Test
+    public void testPipelinedBatching() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.pipelined = true;
+        config.parallelRequests = 2;
+
+        final String testMessage = "test";
+        final int numMessages = 1500;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        // two batches are sent concurrently, and the third is built while they're in flight
+        waitForQueueToDrain(5);
+        assertEquals("queue drained while batches in flight",   0,                      messageQueue.size());
+        assertEquals("putRecords: concurrent invocations",      2,                      mock.putRecordsInvocationCount);
+
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+
+        assertEquals("putRecords: invocation count",            3,                      mock.putRecordsInvocationCount);
+        assertEquals("putRecords: last batch size",             500,                    mock.putRecordsSourceRecords.size());
+
+        assertStatisticsMessagesSent(numMessages);
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testParallelRequests() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.parallelRequests = 3;
+
+        final String testMessage = "test";
+        final int numMessages = 2000;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), testMessage));
+        }
+
+        // three requests should be outstanding, with the fourth batch waiting for them
+        waitForQueueToDrain(5);
+        assertEquals("queue drained while batches in flight",   0,                      messageQueue.size());
+        assertEquals("putRecords: concurrent invocations",      3,                      mock.putRecordsInvocationCount);
+        assertEquals("stats: requests in flight",               3,                      stats.getRequestsInFlight());
+
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            mock.allowWriterThread();
+        }
+
+        assertEquals("putRecords: invocation count",            4,                      mock.putRecordsInvocationCount);
+
+        assertStatisticsMessagesSent(numMessages);
+        assertEquals("stats: requests in flight after send",    0,                      stats.getRequestsInFlight());
+        assertTrue("stats: last request latency",                                       stats.getLastRequestLatency() >= 50);
+        assertTrue("stats: average request latency",                                    stats.getAverageRequestLatency() >= 50);
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
     @Test
     public void testSizeBasedBatching() throws Exception
     {
@@ -697,6 +851,555 @@ extends AbstractLogWriterTest<KinesisLogWriter,KinesisWriterConfig,KinesisWriter
     }
 
 
+    @Test
+    public void testAggregatedRecords() throws Exception
+    {
+        config.aggregateRecords = true;
+
+        createWriter();
+
+        List<String> expectedMessages = new ArrayList<String>();
+        for (int ii = 0 ; ii < 600 ; ii++)
+        {
+            String message = "message " + ii;
+            expectedMessages.add(message);
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+        }
+
+        mock.allowWriterThread();
+
+        // without aggregation this would take two requests, because of the record count limit
+
+        assertEquals("putRecords: invocation count",                1,                          mock.putRecordsInvocationCount);
+        assertEquals("putRecords: source record count",             1,                          mock.putRecordsSourceRecords.size());
+        assertEquals("putRecords: source record partition key",     DEFAULT_PARTITION_KEY,      mock.putRecordsSourceRecords.get(0).getPartitionKey());
+
+        KinesisDeaggregator deaggregator = new KinesisDeaggregator(mock.putRecordsSourceRecords.get(0));
+        assertTrue("record was aggregated",                                                     deaggregator.isAggregated());
+        assertEquals("de-aggregated messages",                      expectedMessages,           deaggregator.getMessages());
+        assertEquals("de-aggregated partition keys",                new HashSet<String>(Arrays.asList(DEFAULT_PARTITION_KEY)),
+                                                                    new HashSet<String>(deaggregator.getPartitionKeys()));
+
+        assertStatisticsMessagesSent(600);
+
+        internalLogger.assertInternalDebugLog();
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testAggregatedRecordsSizeLimits() throws Exception
+    {
+        // don't let discard threshold get in the way of the test
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.aggregateRecords = true;
+
+        // a random key lets us verify that each aggregated record gets its own key
+        config.partitionKey = "";
+
+        final String testMessage = StringUtil.randomAlphaString(100000, 100000);
+        final int numMessages = 63;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), ii + " " + testMessage));
+        }
+
+        // 10 messages fit into a record, and a batch is limited to 5 MB (52 messages),
+        // so the first batch holds 5 full records and a final record with 2 messages;
+        // the second batch holds one full record and one with a single message
+
+        mock.allowWriterThread();
+
+        assertEquals("first batch: record count",                   6,                          mock.putRecordsSourceRecords.size());
+
+        List<String> actualMessages = new ArrayList<String>();
+        int totalBytes = 0;
+        for (PutRecordsRequestEntry entry : mock.putRecordsSourceRecords)
+        {
+            int recordBytes = entry.getData().remaining() + entry.getPartitionKey().length();
+            assertTrue("record size (was " + recordBytes + ")",                                 recordBytes < 1024 * 1024);
+            totalBytes += recordBytes;
+
+            KinesisDeaggregator deaggregator = new KinesisDeaggregator(entry);
+            assertEquals("partition key",                           entry.getPartitionKey(),    deaggregator.getPartitionKeys().get(0));
+            actualMessages.addAll(deaggregator.getMessages());
+        }
+        assertTrue("batch size (was " + totalBytes + ")",                                       totalBytes < 5 * 1024 * 1024);
+        assertEquals("first batch: message count",                  52,                         actualMessages.size());
+        assertEquals("first message",                               "0 " + testMessage,         actualMessages.get(0));
+        assertEquals("last message",                                "51 " + testMessage,        actualMessages.get(51));
+
+        mock.allowWriterThread();
+
+        assertEquals("second batch: record count",                  2,                          mock.putRecordsSourceRecords.size());
+        assertEquals("second batch: first message",                 "52 " + testMessage,
+                                                                    new KinesisDeaggregator(mock.putRecordsSourceRecords.get(0)).getMessages().get(0));
+        assertFalse("second batch: last record holds single message (not aggregated)",
+                                                                    new KinesisDeaggregator(mock.putRecordsSourceRecords.get(1)).isAggregated());
+
+        assertStatisticsMessagesSent(numMessages);
+    }
+
+
+    @Test
+    public void testAggregatedRecordErrorHandling() throws Exception
+    {
+        config.aggregateRecords = true;
+
+        // the mock client will fail the first record of the first request
+        mock = new MockKinesisClient(DEFAULT_STREAM_NAME)
+        {
+            @Override
+            public PutRecordsResult putRecords(PutRecordsRequest request)
+            {
+                PutRecordsResult result = super.putRecords(request);
+                if (putRecordsInvocationCount == 1)
+                {
+                    result.getRecords().get(0).setErrorCode("ProvisionedThroughputExceededException");
+                    result.setFailedRecordCount(Integer.valueOf(1));
+                }
+                return result;
+            }
+        };
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+
+        mock.allowWriterThread();
+
+        assertEquals("first batch: failed records",                 1,                          mock.putRecordsFailures.size());
+        assertStatisticsMessagesSent("first batch: messages sent",  0);
+
+        mock.allowWriterThread();
+
+        assertEquals("second batch: successful records",            1,                          mock.putRecordsSuccesses.size());
+        assertEquals("second batch: message count",                 10,                         new KinesisDeaggregator(mock.putRecordsSuccesses.get(0)).getMessages().size());
+        assertStatisticsMessagesSent("second batch: messages sent", 10);
+    }
+
+
+    @Test
+    public void testCompressedRecords() throws Exception
+    {
+        config.aggregateRecords = true;
+        config.compression = Compression.gzip;
+
+        createWriter();
+
+        List<String> expectedMessages = new ArrayList<String>();
+        for (int ii = 0 ; ii < 600 ; ii++)
+        {
+            String message = "{\"level\": \"INFO\", \"message\": \"message " + ii + "\"}";
+            expectedMessages.add(message);
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+        }
+
+        mock.allowWriterThread();
+
+        assertEquals("putRecords: source record count",             1,                          mock.putRecordsSourceRecords.size());
+
+        PutRecordsRequestEntry entry = mock.putRecordsSourceRecords.get(0);
+        byte[] compressed = BinaryUtils.copyAllBytesFrom(entry.getData());
+        byte[] uncompressed = decompress(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+
+        KinesisDeaggregator deaggregator = new KinesisDeaggregator(entry.getPartitionKey(), uncompressed);
+        assertTrue("record was aggregated",                                                     deaggregator.isAggregated());
+        assertEquals("de-aggregated messages",                      expectedMessages,           deaggregator.getMessages());
+
+        assertStatisticsMessagesSent(600);
+        assertEquals("stats: uncompressed bytes",                   uncompressed.length,        stats.getUncompressedBytes());
+        assertEquals("stats: compressed bytes",                     compressed.length,          stats.getCompressedBytes());
+        assertTrue("stats: compression ratio (was " + stats.getCompressionRatio() + ")",        stats.getCompressionRatio() > 4);
+    }
+
+
+    @Test
+    public void testCompressedBatchLimits() throws Exception
+    {
+        // don't let discard threshold get in the way of the test
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.aggregateRecords = true;
+        config.compression = Compression.deflate;
+
+        StringBuilder sb = new StringBuilder(100000);
+        while (sb.length() < 100000)
+        {
+            sb.append("the quick brown fox jumps over the lazy dog ");
+        }
+        final String testMessage = sb.toString();
+        final int numMessages = 200;
+
+        createWriter();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), ii + " " + testMessage));
+        }
+
+        // the writer doesn't know how well the first batch will compress, so limits it
+        // to 5 MB uncompressed; after that it knows, so can send all remaining messages
+        // (over 10 MB uncompressed) in a single request
+
+        mock.allowWriterThread();
+        assertEquals("first batch: message count",                  52,                         countMessages(mock.putRecordsSourceRecords));
+
+        mock.allowWriterThread();
+        assertEquals("second batch: message count",                 numMessages - 52,           countMessages(mock.putRecordsSourceRecords));
+
+        assertStatisticsMessagesSent(numMessages);
+        assertTrue("stats: compressed bytes",                                                   stats.getCompressedBytes() < stats.getUncompressedBytes() / 10);
+    }
+
+
+    @Test
+    public void testCompressionEstimateTooLow() throws Exception
+    {
+        config.discardThreshold = Integer.MAX_VALUE;
+        config.discardAction = DiscardAction.none;
+        config.batchDelay = 300;
+        config.aggregateRecords = true;
+        config.compression = Compression.deflate;
+
+        createWriter();
+
+        // the first batch compresses extremely well, so the writer will expect
+        // the second to do the same
+
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), StringUtil.repeat('A', 500000)));
+        mock.allowWriterThread();
+        assertEquals("first batch: message count",                  1,                          countMessages(mock.putRecordsSourceRecords));
+
+        // random letters compress to about 60% of their original size, so the second batch
+        // must be split into multiple records, and some records deferred
+
+        final int numMessages = 100;
+        List<String> expectedMessages = new ArrayList<String>();
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            String message = ii + " " + StringUtil.randomAlphaString(100000, 100000);
+            expectedMessages.add(message);
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+        }
+
+        List<String> actualMessages = new ArrayList<String>();
+        while (actualMessages.size() < numMessages)
+        {
+            mock.allowWriterThread();
+
+            int requestBytes = 0;
+            for (PutRecordsRequestEntry entry : mock.putRecordsSourceRecords)
+            {
+                int recordBytes = entry.getData().remaining() + entry.getPartitionKey().length();
+                assertTrue("record size (was " + recordBytes + ")",                             recordBytes < 1024 * 1024);
+                requestBytes += recordBytes;
+
+                byte[] compressed = BinaryUtils.copyAllBytesFrom(entry.getData());
+                byte[] uncompressed = decompress(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+                actualMessages.addAll(new KinesisDeaggregator(entry.getPartitionKey(), uncompressed).getMessages());
+            }
+            assertTrue("request size (was " + requestBytes + ")",                               requestBytes < 5 * 1024 * 1024);
+            assertTrue("too many requests",                                                     mock.putRecordsInvocationCount < 10);
+        }
+
+        assertEquals("all messages sent, in order",                 expectedMessages,           actualMessages);
+        assertStatisticsMessagesSent(numMessages + 1);
+    }
+
+
+    @Test
+    public void testIncompressibleMessageSentUncompressed() throws Exception
+    {
+        config.compression = Compression.lz4;
+
+        // the message fits uncompressed, but compression pushes it past the Kinesis limit
+
+        LogMessage message = new LogMessage(System.currentTimeMillis(), incompressibleString(1024 * 1024 - DEFAULT_PARTITION_KEY.length() - 2));
+        assertTrue("compressed message is too large",                                           Compression.lz4.compress(message.getBytes()).length + DEFAULT_PARTITION_KEY.length() >= 1024 * 1024);
+
+        createWriter();
+        writer.addMessage(message);
+        mock.allowWriterThread();
+
+        assertEquals("putRecords: invocation count",                1,                          mock.putRecordsInvocationCount);
+        assertEquals("putRecords: source record count",             1,                          mock.putRecordsSourceRecords.size());
+        assertArrayEquals("record was sent uncompressed",           message.getBytes(),         BinaryUtils.copyAllBytesFrom(mock.putRecordsSourceRecords.get(0).getData()));
+
+        assertStatisticsMessagesSent(1);
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testOversizeMessageDiscarded() throws Exception
+    {
+        config.compression = Compression.lz4;
+
+        // the appender wouldn't let this message through, but nothing stops a direct caller
+
+        final String bigMessage = incompressibleString(1024 * 1024);
+        final String smallMessage = "this message is sent";
+
+        createWriter();
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), bigMessage));
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), smallMessage));
+        mock.allowWriterThread();
+
+        assertEquals("putRecords: invocation count",                1,                          mock.putRecordsInvocationCount);
+        assertEquals("putRecords: source record count",             1,                          mock.putRecordsSourceRecords.size());
+
+        byte[] compressed = BinaryUtils.copyAllBytesFrom(mock.putRecordsSourceRecords.get(0).getData());
+        assertArrayEquals("sent message",                           Compression.lz4.compress(smallMessage.getBytes("UTF-8")), compressed);
+
+        assertStatisticsMessagesSent(1);
+        assertEquals("messages in queue",                           0,                          messageQueue.size());
+        internalLogger.assertInternalErrorLog("discarded oversize message.*");
+    }
+
+
+    @Test
+    public void testRoundRobinShardAssignment() throws Exception
+    {
+        config.shardAssignment = ShardAssignment.roundRobin;
+
+        // the original shard is closed, and will be skipped; small pages verify that we
+        // retrieve all shards
+        mock.reshard(4);
+        mock.describeShardsPageSize = 3;
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 12 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        assertEquals("describeStream: invocation count",            3,                          mock.describeStreamInvocationCount);
+        assertEquals("records by shard",                            "{shardId-000000000001=3, shardId-000000000002=3, shardId-000000000003=3, shardId-000000000004=3}",
+                                                                    recordsByShard().toString());
+        assertEquals("partition key is still sent",                 DEFAULT_PARTITION_KEY,      mock.putRecordsSourceRecords.get(0).getPartitionKey());
+
+        assertStatisticsMessagesSent(12);
+
+        internalLogger.assertInternalDebugLog("assigning records to 4 shards.*");
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testLeastLoadedShardAssignment() throws Exception
+    {
+        config.shardAssignment = ShardAssignment.leastLoaded;
+        mock.reshard(2);
+
+        createWriter();
+
+        writer.addMessage(new LogMessage(System.currentTimeMillis(), StringUtil.repeat('X', 1000)));
+        for (int ii = 0 ; ii < 50 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        // the small messages are all sent to the second shard, because together they
+        // don't add up to the size of the large message
+
+        assertEquals("records by shard",                            "{shardId-000000000001=1, shardId-000000000002=50}",
+                                                                    recordsByShard().toString());
+        assertStatisticsMessagesSent(51);
+    }
+
+
+    @Test
+    public void testShardAssignmentAfterResharding() throws Exception
+    {
+        config.shardAssignment = ShardAssignment.roundRobin;
+        mock.reshard(2);
+
+        createWriter();
+
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        assertEquals("before resharding: describe count",           2,                          mock.describeStreamInvocationCount);
+        assertEquals("before resharding: records by shard",         "{shardId-000000000001=2, shardId-000000000002=2}",
+                                                                    recordsByShard().toString());
+
+        // the first batch after resharding goes to the new shards that cover the old
+        // hash keys, and tells the writer that its shard list is stale
+
+        mock.reshard(3);
+        for (int ii = 0 ; ii < 4 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        assertEquals("first batch after resharding: describe count",    2,                      mock.describeStreamInvocationCount);
+        assertEquals("first batch after resharding: records by shard",  "{shardId-000000000003=2, shardId-000000000004=2}",
+                                                                        recordsByShard().toString());
+
+        for (int ii = 0 ; ii < 6 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+        mock.allowWriterThread();
+
+        assertEquals("second batch after resharding: describe count",   3,                      mock.describeStreamInvocationCount);
+        assertEquals("second batch after resharding: records by shard", "{shardId-000000000003=2, shardId-000000000004=2, shardId-000000000005=2}",
+                                                                        recordsByShard().toString());
+
+        assertStatisticsMessagesSent(14);
+    }
+
+
+    @Test
+    public void testShardRateLimit() throws Exception
+    {
+        config.shardRateLimit = true;
+
+        createWriter();
+
+        // a single shard accepts 1,000 records per second, and each request holds 500,
+        // so the third request has to wait (note that the writer doesn't wait for the
+        // main thread before reserving capacity, so we can only check the total delay)
+
+        for (int ii = 0 ; ii < 1500 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), "message " + ii));
+        }
+
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+        mock.allowWriterThread();
+
+        assertEquals("putRecords: invocation count",                3,                          mock.putRecordsInvocationCount);
+        assertEquals("third batch: records sent",                   500,                        mock.putRecordsSuccesses.size());
+        assertTrue("rate limit delay",                                                          stats.getRateLimitDelay() > 0);
+        assertTrue("rate limit delay bounded",                                                  stats.getRateLimitDelay() <= 500);
+
+        assertStatisticsMessagesSent(1500);
+        internalLogger.assertInternalDebugLog("assigning records to 1 shards.*");
+        internalLogger.assertInternalErrorLog();
+    }
+
+
+    @Test
+    public void testShardRateLimitWithSharedScheduler() throws Exception
+    {
+        config.shardRateLimit = true;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        threadFactory = new SharedThreadFactory(executor, "test");
+
+        // a second writer, without rate limiting, shares the scheduler's only thread
+
+        KinesisWriterConfig config2 = new KinesisWriterConfig(
+            DEFAULT_STREAM_NAME, DEFAULT_PARTITION_KEY, DEFAULT_PARTITION_KEY.length(),
+            100, 10000, DiscardAction.oldest, null, null, false, 0, null);
+        KinesisWriterStatistics stats2 = new KinesisWriterStatistics();
+        MockKinesisClient mock2 = new MockKinesisClient(DEFAULT_STREAM_NAME);
+        KinesisLogWriter writer2 = (KinesisLogWriter)mock2.newWriterFactory().newLogWriter(config2, stats2, internalLogger);
+
+        try
+        {
+            createWriter();
+            threadFactory.startLoggingThread(writer2, defaultUncaughtExceptionHandler);
+
+            // a shard accepts 1 MB per second, so this batch has to wait almost a second
+
+            String message = StringUtil.repeat('X', 100000);
+            for (int ii = 0 ; ii < 20 ; ii++)
+            {
+                writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+            }
+
+            writer2.addMessage(new LogMessage(System.currentTimeMillis(), "unrelated"));
+            mock2.allowWriterThread();
+
+            assertEquals("second writer: records sent",                 1,                          mock2.putRecordsSuccesses.size());
+            assertEquals("rate-limited writer: still waiting",          0,                          mock.putRecordsInvocationCount);
+
+            mock.allowWriterThread();
+
+            assertEquals("rate-limited writer: records sent",           20,                         mock.putRecordsSuccesses.size());
+            assertTrue("rate limit delay",                                                          stats.getRateLimitDelay() > 0);
+
+            assertStatisticsMessagesSent(20);
+            internalLogger.assertInternalErrorLog();
+        }
+        finally
+        {
+            writer2.stop();
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void testThrottledRecords() throws Exception
+    {
+        config.shardRateLimit = true;
+
+        // the mock client will throttle the first record of the first request, and fail the second
+        mock = new MockKinesisClient(DEFAULT_STREAM_NAME)
+        {
+            @Override
+            public PutRecordsResult putRecords(PutRecordsRequest request)
+            {
+                PutRecordsResult result = super.putRecords(request);
+                if (putRecordsInvocationCount == 1)
+                {
+                    result.getRecords().get(0).setErrorCode("ProvisionedThroughputExceededException");
+                    result.getRecords().get(1).setErrorCode("InternalFailure");
+                    result.setFailedRecordCount(Integer.valueOf(2));
+                }
+                return result;
+            }
+        };
+
+        createWriter();
+
+        // large messages, so that the retry needs more capacity than refills during the batch delay
+
+        String message = StringUtil.repeat('X', 200000);
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            writer.addMessage(new LogMessage(System.currentTimeMillis(), message));
+        }
+
+        mock.allowWriterThread();
+
+        assertEquals("first batch: failed records",                 2,                          mock.putRecordsFailures.size());
+        assertStatisticsMessagesSent("first batch: messages sent",  3);
+        assertEquals("first batch: throttled records stat",         1L,                         stats.getThrottledRecords());
+        assertEquals("first batch: failed records stat",            1L,                         stats.getFailedRecords());
+
+        // throttling empties the bucket, so the retry has to wait
+
+        mock.allowWriterThread();
+
+        assertEquals("second batch: successful records",            2,                          mock.putRecordsSuccesses.size());
+        assertEquals("second batch: throttled records stat",        1L,                         stats.getThrottledRecords());
+        assertEquals("second batch: failed records stat",           1L,                         stats.getFailedRecords());
+        assertTrue("second batch: rate limit delay",                                            stats.getRateLimitDelay() > 0);
+
+        assertStatisticsMessagesSent(5);
+    }
+
+
     @Test
     public void testStaticClientFactory() throws Exception
     {
@@ -214,6 +214,7 @@ extends AbstractLogWriterTest<SNSLogWriter,SNSWriterConfig,SNSWriterStatistics,A
 
         config.topicName = TEST_TOPIC_NAME;
         createWriter();
+        waitForInitialization();
 
         assertEquals("invocations of listTopics",           1,                      mock.listTopicsInvocationCount);
         assertEquals("invocations of createTopic",          0,                      mock.createTopicInvocationCount);
@@ -343,6 +344,7 @@ extends AbstractLogWriterTest<SNSLogWriter,SNSWriterConfig,SNSWriterStatistics,A
 
         config.topicArn = TEST_TOPIC_ARN;
         createWriter();
+        waitForInitialization();
 
         assertEquals("invocations of listTopics",           1,                      mock.listTopicsInvocationCount);
         assertEquals("invocations of createTopic",          0,                      mock.createTopicInvocationCount);
@@ -392,6 +394,7 @@ extends AbstractLogWriterTest<SNSLogWriter,SNSWriterConfig,SNSWriterStatistics,A
     {
         config.topicName = "x%$!";
         createWriter();
+        waitForInitialization();
 
         assertStatisticsErrorMessage("invalid topic name: .*"); // invalid name has special regex characters
 
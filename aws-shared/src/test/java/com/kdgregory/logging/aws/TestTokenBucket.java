@@ -0,0 +1,97 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.kdgregory.logging.aws.internal.TokenBucket;
+
+
+public class TestTokenBucket
+{
+    @Test
+    public void testBurstThenWait() throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.currentTimeMillis();
+
+        assertEquals("within capacity",             0L,         bucket.reserve(600, now));
+        assertEquals("exhausts capacity",           0L,         bucket.reserve(400, now));
+        assertEquals("one token over",              1L,         bucket.reserve(1, now));
+        assertEquals("callers queue behind debt",   501L,       bucket.reserve(500, now));
+
+        // after the debt is repaid, tokens accumulate again
+        assertEquals("after waiting",               0L,         bucket.reserve(100, now + 601));
+    }
+
+
+    @Test
+    public void testRefillLimitedByCapacity() throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.currentTimeMillis();
+
+        bucket.reserve(1000, now);
+
+        // a long idle period doesn't allow more than a full bucket
+        assertEquals("full bucket after idle",      0L,         bucket.reserve(1000, now + 60000));
+        assertEquals("nothing left",                100L,       bucket.reserve(100, now + 60000));
+    }
+
+
+    @Test
+    public void testLargeReservation() throws Exception
+    {
+        // a reservation larger than the capacity is allowed, but waits for the refill
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.currentTimeMillis();
+
+        assertEquals("five seconds worth",          4000L,      bucket.reserve(5000, now));
+    }
+
+
+    @Test
+    public void testDrain() throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.currentTimeMillis();
+
+        bucket.drain(now);
+        assertEquals("after drain",                 100L,       bucket.reserve(100, now));
+
+        // draining doesn't forgive debt
+        bucket.drain(now);
+        assertEquals("drain with debt",             200L,       bucket.reserve(100, now));
+    }
+
+
+    @Test
+    public void testMillisUntilAvailable() throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.currentTimeMillis();
+
+        assertEquals("full bucket",                 0L,         bucket.millisUntilAvailable(now));
+
+        bucket.reserve(1500, now);
+        assertEquals("in debt",                     500L,       bucket.millisUntilAvailable(now));
+        assertEquals("partially repaid",            200L,       bucket.millisUntilAvailable(now + 300));
+        assertEquals("repaid",                      0L,         bucket.millisUntilAvailable(now + 500));
+
+        // checking doesn't take any tokens
+        assertEquals("still available",             0L,         bucket.reserve(100, now + 600));
+    }
+}
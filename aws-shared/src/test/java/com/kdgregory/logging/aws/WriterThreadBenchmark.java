@@ -0,0 +1,284 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.*;
+
+import com.kdgregory.logging.aws.cloudwatch.CloudWatchLogWriter;
+import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterConfig;
+import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterStatistics;
+import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.factories.ClientFactory;
+import com.kdgregory.logging.common.factories.DefaultThreadFactory;
+import com.kdgregory.logging.common.factories.SharedThreadFactory;
+import com.kdgregory.logging.common.factories.ThreadFactory;
+import com.kdgregory.logging.common.factories.VirtualThreadFactory;
+import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.DispatchMode;
+import com.kdgregory.logging.common.util.InternalLogger;
+
+
+/**
+ *  Compares the dispatch modes for an application with many appenders: starts a
+ *  configurable number of CloudWatch writers (talking to a stub client that sleeps
+ *  to simulate service latency), and reports the number of live threads, the heap
+ *  in use, and the time taken to send a fixed number of messages through each
+ *  writer. This is not run as part of the build; invoke it manually:
+ *  <pre>
+ *      java -cp target/classes:target/test-classes:AWS_SDK_JARS \
+ *           com.kdgregory.logging.aws.WriterThreadBenchmark [WRITERS [MESSAGES [LATENCY]]]
+ *  </pre>
+ *  Where <code>WRITERS</code> is the number of writers (default 500), <code>MESSAGES</code>
+ *  is the number of messages written to each writer (default 1,000), and <code>LATENCY</code>
+ *  is the simulated PutLogEvents latency in milliseconds (default 50). The virtual mode is
+ *  only run on JVMs that support virtual threads.
+ *  <p>
+ *  Note that platform thread stacks are allocated outside the heap, so the thread
+ *  count is a better indication of memory savings than the heap size.
+ */
+public class WriterThreadBenchmark
+{
+    public static void main(String[] argv)
+    throws Exception
+    {
+        int numWriters = (argv.length > 0) ? Integer.parseInt(argv[0]) : 500;
+        int messagesPerWriter = (argv.length > 1) ? Integer.parseInt(argv[1]) : 1000;
+        long latency = (argv.length > 2) ? Long.parseLong(argv[2]) : 50;
+
+        System.out.println("writers: " + numWriters + ", messages per writer: " + messagesPerWriter + ", latency: " + latency + " ms");
+        System.out.println(String.format("baseline: %,6d threads, %,8d KB heap", liveThreads(), heapUsed() / 1024));
+
+        for (DispatchMode mode : DispatchMode.values())
+        {
+            if ((mode == DispatchMode.virtual) && ! VirtualThreadFactory.isSupported())
+            {
+                System.out.println("virtual threads not supported by this JVM");
+                continue;
+            }
+
+            Result result = run(mode, numWriters, messagesPerWriter, latency);
+            System.out.println(String.format(
+                               "%-9s %,6d threads, %,8d KB heap, %,6d ms to send all messages",
+                               mode, result.threads, result.heapBytes / 1024, result.elapsedMillis));
+        }
+    }
+
+
+    private static Result run(DispatchMode mode, int numWriters, int messagesPerWriter, long latency)
+    throws Exception
+    {
+        ClientFactory<AWSLogs> clientFactory = new StubClientFactory(latency);
+        ThreadFactory threadFactory = threadFactory(mode);
+        UncaughtExceptionHandler exceptionHandler = new UncaughtExceptionHandler()
+        {
+            @Override
+            public void uncaughtException(Thread t, Throwable ex)
+            {
+                ex.printStackTrace();
+            }
+        };
+
+        List<CloudWatchLogWriter> writers = new ArrayList<CloudWatchLogWriter>(numWriters);
+        List<CloudWatchWriterStatistics> stats = new ArrayList<CloudWatchWriterStatistics>(numWriters);
+        for (int ii = 0 ; ii < numWriters ; ii++)
+        {
+            CloudWatchWriterConfig config = new CloudWatchWriterConfig("benchmark", "stream-" + ii, 250, 10000, DiscardAction.oldest, null, null);
+            CloudWatchWriterStatistics writerStats = new CloudWatchWriterStatistics();
+            CloudWatchLogWriter writer = new CloudWatchLogWriter(config, writerStats, new NullLogger(), clientFactory);
+            threadFactory.startLoggingThread(writer, exceptionHandler);
+            writers.add(writer);
+            stats.add(writerStats);
+        }
+
+        for (CloudWatchLogWriter writer : writers)
+        {
+            while (! writer.isInitializationComplete())
+            {
+                Thread.sleep(10);
+            }
+        }
+
+        Result result = new Result();
+        result.threads = liveThreads();
+        result.heapBytes = heapUsed();
+
+        long start = System.currentTimeMillis();
+        for (int ii = 0 ; ii < messagesPerWriter ; ii++)
+        {
+            for (CloudWatchLogWriter writer : writers)
+            {
+                writer.addMessage(new LogMessage(System.currentTimeMillis(), "benchmark message " + ii));
+            }
+        }
+
+        long expected = (long)numWriters * messagesPerWriter;
+        while (messagesSent(stats) < expected)
+        {
+            Thread.sleep(10);
+        }
+        result.elapsedMillis = System.currentTimeMillis() - start;
+
+        for (CloudWatchLogWriter writer : writers)
+        {
+            writer.stop();
+        }
+
+        // give the writers a chance to exit before the next run measures threads
+        Thread.sleep(1000);
+        return result;
+    }
+
+
+    private static ThreadFactory threadFactory(DispatchMode mode)
+    {
+        switch (mode)
+        {
+            case shared:
+                return new SharedThreadFactory("benchmark");
+            case virtual:
+                return new VirtualThreadFactory("benchmark");
+            default:
+                return new DefaultThreadFactory("benchmark");
+        }
+    }
+
+
+    private static long messagesSent(List<CloudWatchWriterStatistics> stats)
+    {
+        long total = 0;
+        for (CloudWatchWriterStatistics writerStats : stats)
+        {
+            total += writerStats.getMessagesSent();
+        }
+        return total;
+    }
+
+
+    private static int liveThreads()
+    {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+
+    private static long heapUsed()
+    throws Exception
+    {
+        for (int ii = 0 ; ii < 3 ; ii++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+
+    private static class Result
+    {
+        public int threads;
+        public long heapBytes;
+        public long elapsedMillis;
+    }
+
+
+    /**
+     *  Creates a client that responds to the calls made by the writer, sleeping
+     *  on PutLogEvents to simulate network latency.
+     */
+    private static class StubClientFactory
+    implements ClientFactory<AWSLogs>, InvocationHandler
+    {
+        private long latency;
+        private AtomicInteger sequence = new AtomicInteger();
+
+        public StubClientFactory(long latency)
+        {
+            this.latency = latency;
+        }
+
+        @Override
+        public AWSLogs createClient()
+        {
+            return (AWSLogs)Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] { AWSLogs.class },
+                                this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+        {
+            String methodName = method.getName();
+            if (methodName.equals("describeLogGroups"))
+            {
+                DescribeLogGroupsRequest request = (DescribeLogGroupsRequest)args[0];
+                return new DescribeLogGroupsResult()
+                       .withLogGroups(new LogGroup().withLogGroupName(request.getLogGroupNamePrefix()));
+            }
+            else if (methodName.equals("describeLogStreams"))
+            {
+                DescribeLogStreamsRequest request = (DescribeLogStreamsRequest)args[0];
+                return new DescribeLogStreamsResult()
+                       .withLogStreams(new LogStream()
+                                       .withLogStreamName(request.getLogStreamNamePrefix())
+                                       .withUploadSequenceToken(String.valueOf(sequence.get())));
+            }
+            else if (methodName.equals("putLogEvents"))
+            {
+                Thread.sleep(latency);
+                return new PutLogEventsResult()
+                       .withNextSequenceToken(String.valueOf(sequence.incrementAndGet()));
+            }
+            else
+            {
+                // shutdown and anything else that we don't care about
+                return null;
+            }
+        }
+    }
+
+
+    private static class NullLogger
+    implements InternalLogger
+    {
+        @Override
+        public void debug(String message)
+        {
+            // nothing here
+        }
+
+        @Override
+        public void warn(String message)
+        {
+            System.err.println(message);
+        }
+
+        @Override
+        public void error(String message, Throwable ex)
+        {
+            System.err.println(message);
+        }
+    }
+}
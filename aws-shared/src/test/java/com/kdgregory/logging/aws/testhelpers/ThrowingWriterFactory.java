@@ -60,6 +60,13 @@ public class ThrowingWriterFactory<C,S> implements WriterFactory<C,S>
                     // not used
                 }
 
+                @Override
+                public boolean flush(long timeout)
+                {
+                    // not used
+                    return true;
+                }
+
                 @Override
                 public void setBatchDelay(long value)
                 {
@@ -72,11 +79,23 @@ public class ThrowingWriterFactory<C,S> implements WriterFactory<C,S>
                     // not used
                 }
 
+                @Override
+                public void setDiscardThresholdBytes(long value)
+                {
+                    // not used
+                }
+
                 @Override
                 public void setDiscardAction(DiscardAction value)
                 {
                     // not used
                 }
+
+                @Override
+                public void setEnqueueTimeout(long value)
+                {
+                    // not used
+                }
             };
         }
 }
@@ -19,7 +19,10 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 
 import com.amazonaws.services.logs.AWSLogs;
@@ -76,8 +79,10 @@ implements InvocationHandler
     private int maxLogStreamNamesInBatch;
 
     // the sequence token used for putLogEvents(); start with arbitrary value to
-    // verify that we're actually retrieving it from describe
+    // verify that we're actually retrieving it from describe; each stream has its
+    // own token, starting with this value
     protected int putLogEventsSequenceToken = (int)(System.currentTimeMillis() % 143);
+    private Map<String,Integer> putLogEventsSequenceTokens = new HashMap<String,Integer>();
 
     // these semaphores coordinate the calls to PutLogEvents with the assertions
     // that we make in the main thread; note that both start unacquired
@@ -102,6 +107,9 @@ implements InvocationHandler
     // the list of events passed to the most recent putLogEvents call
     public volatile List<InputLogEvent> mostRecentEvents = new ArrayList<InputLogEvent>();
 
+    // the stream names passed to all putLogEvents calls, in order
+    public List<String> putLogEventsStreamNames = Collections.synchronizedList(new ArrayList<String>());
+
 
     /**
      *  Constructs an instance using the default name list.
@@ -223,7 +231,8 @@ implements InvocationHandler
             {
                 allowWriterThread.acquire();
                 PutLogEventsRequest request = (PutLogEventsRequest)args[0];
-                if (Integer.parseInt(request.getSequenceToken()) != putLogEventsSequenceToken)
+                putLogEventsStreamNames.add(request.getLogStreamName());
+                if (Integer.parseInt(request.getSequenceToken()) != getSequenceToken(request.getLogStreamName()))
                 {
                     System.err.println("putLogEvents called with invalid sequence token: " + request.getSequenceToken());
                     throw new IllegalArgumentException("putLogEvents called with invalid sequence token: " + request.getSequenceToken());
@@ -291,7 +300,7 @@ implements InvocationHandler
             if ((namePrefix == null) || name.startsWith(namePrefix))
                 logStreams.add(new LogStream()
                                .withLogStreamName(name)
-                               .withUploadSequenceToken(String.valueOf(putLogEventsSequenceToken)));
+                               .withUploadSequenceToken(String.valueOf(getSequenceToken(name))));
         }
 
         String nextToken = (max == logStreamNames.size()) ? null : String.valueOf(max);
@@ -318,10 +327,33 @@ implements InvocationHandler
     }
 
 
+    // default implementation is successful, unless the stream has been removed
     protected PutLogEventsResult putLogEvents(PutLogEventsRequest request)
     {
+        if (! logStreamNames.contains(request.getLogStreamName()))
+            throw new ResourceNotFoundException("log stream does not exist: " + request.getLogStreamName());
+
+        int nextToken = getSequenceToken(request.getLogStreamName()) + 1;
+        synchronized (putLogEventsSequenceTokens)
+        {
+            putLogEventsSequenceTokens.put(request.getLogStreamName(), Integer.valueOf(nextToken));
+        }
+
         return new PutLogEventsResult()
-               .withNextSequenceToken(String.valueOf(++putLogEventsSequenceToken));
+               .withNextSequenceToken(String.valueOf(nextToken));
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private int getSequenceToken(String streamName)
+    {
+        synchronized (putLogEventsSequenceTokens)
+        {
+            Integer token = putLogEventsSequenceTokens.get(streamName);
+            return (token != null) ? token.intValue() : putLogEventsSequenceToken;
+        }
     }
 
 }
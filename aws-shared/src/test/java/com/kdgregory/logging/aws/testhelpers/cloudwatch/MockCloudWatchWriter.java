@@ -33,12 +33,16 @@ implements LogWriter
     public LogMessage lastMessage;
 
     public boolean stopped;
+    public int flushCount;
+    public long lastFlushTimeout;
 
     public String logGroup;
     public String logStream;
     public long batchDelay;
     public int discardThreshold;
+    public long discardThresholdBytes;
     public DiscardAction discardAction;
+    public long enqueueTimeout;
 
 
     public MockCloudWatchWriter(CloudWatchWriterConfig config)
@@ -47,7 +51,9 @@ implements LogWriter
         this.logStream = config.logStreamName;
         this.batchDelay = config.batchDelay;
         this.discardThreshold = config.discardThreshold;
+        this.discardThresholdBytes = config.discardThresholdBytes;
         this.discardAction = config.discardAction;
+        this.enqueueTimeout = config.enqueueTimeout;
     }
 
 //----------------------------------------------------------------------------
@@ -69,6 +75,15 @@ implements LogWriter
     }
 
 
+    @Override
+    public boolean flush(long timeout)
+    {
+        flushCount++;
+        lastFlushTimeout = timeout;
+        return true;
+    }
+
+
     @Override
     public void setBatchDelay(long value)
     {
@@ -82,12 +97,26 @@ implements LogWriter
         this.discardThreshold = value;
     }
 
+
+    @Override
+    public void setDiscardThresholdBytes(long value)
+    {
+        this.discardThresholdBytes = value;
+    }
+
     @Override
     public void setDiscardAction(DiscardAction value)
     {
         this.discardAction = value;
     }
 
+
+    @Override
+    public void setEnqueueTimeout(long value)
+    {
+        this.enqueueTimeout = value;
+    }
+
 //----------------------------------------------------------------------------
 //  Runnable
 //----------------------------------------------------------------------------
@@ -0,0 +1,229 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.aws.testhelpers.kinesis;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.util.BinaryUtils;
+
+
+/**
+ *  Extracts the messages from a record written by the Kinesis writer, following
+ *  the same rules as the KCL: a record that starts with the KPL magic number and
+ *  ends with a valid digest is de-aggregated, anything else is a single message.
+ *  <p>
+ *  This is written independently of the production aggregator, from the format
+ *  description, so that it can catch mistakes in that code. It parses any valid
+ *  encoding (for example, skipping fields that we don't write), and throws if it
+ *  finds a structural error.
+ */
+public class KinesisDeaggregator
+{
+    private final static byte[] MAGIC = new byte[] { (byte)0xF3, (byte)0x89, (byte)0x9A, (byte)0xC2 };
+
+    private boolean isAggregated;
+    private List<String> partitionKeyTable = new ArrayList<String>();
+    private List<String> partitionKeys = new ArrayList<String>();
+    private List<String> messages = new ArrayList<String>();
+
+
+    public KinesisDeaggregator(PutRecordsRequestEntry entry)
+    throws Exception
+    {
+        this(entry.getPartitionKey(), BinaryUtils.copyAllBytesFrom(entry.getData()));
+    }
+
+
+    /**
+     *  Constructs from the record's data, for use when that data has been transformed
+     *  (eg, decompressed).
+     */
+    public KinesisDeaggregator(String partitionKey, byte[] data)
+    throws Exception
+    {
+        isAggregated = (data.length > MAGIC.length + 16)
+                    && Arrays.equals(MAGIC, Arrays.copyOfRange(data, 0, MAGIC.length))
+                    && digestMatches(data);
+
+        if (isAggregated)
+        {
+            parseAggregatedRecord(new Decoder(data, MAGIC.length, data.length - 16));
+        }
+        else
+        {
+            partitionKeys.add(partitionKey);
+            messages.add(new String(data, "UTF-8"));
+        }
+    }
+
+//----------------------------------------------------------------------------
+//  Accessors
+//----------------------------------------------------------------------------
+
+    /**
+     *  Returns true if the record was aggregated.
+     */
+    public boolean isAggregated()
+    {
+        return isAggregated;
+    }
+
+
+    /**
+     *  Returns the messages from the record, in order.
+     */
+    public List<String> getMessages()
+    {
+        return messages;
+    }
+
+
+    /**
+     *  Returns the partition key associated with each message.
+     */
+    public List<String> getPartitionKeys()
+    {
+        return partitionKeys;
+    }
+
+//----------------------------------------------------------------------------
+//  Internals
+//----------------------------------------------------------------------------
+
+    private static boolean digestMatches(byte[] data)
+    throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data, MAGIC.length, data.length - MAGIC.length - 16);
+        return Arrays.equals(digest.digest(), Arrays.copyOfRange(data, data.length - 16, data.length));
+    }
+
+
+    private void parseAggregatedRecord(Decoder decoder)
+    throws Exception
+    {
+        while (decoder.hasMore())
+        {
+            int tag = (int)decoder.readVarint();
+            switch (tag >>> 3)
+            {
+                case 1 :
+                    partitionKeyTable.add(new String(decoder.readBytes(), "UTF-8"));
+                    break;
+                case 3 :
+                    byte[] record = decoder.readBytes();
+                    parseRecord(new Decoder(record, 0, record.length));
+                    break;
+                default :
+                    decoder.skip(tag & 0x07);
+            }
+        }
+    }
+
+
+    private void parseRecord(Decoder decoder)
+    throws Exception
+    {
+        Long keyIndex = null;
+        byte[] data = null;
+        while (decoder.hasMore())
+        {
+            int tag = (int)decoder.readVarint();
+            switch (tag >>> 3)
+            {
+                case 1 :
+                    keyIndex = Long.valueOf(decoder.readVarint());
+                    break;
+                case 3 :
+                    data = decoder.readBytes();
+                    break;
+                default :
+                    decoder.skip(tag & 0x07);
+            }
+        }
+
+        if ((keyIndex == null) || (data == null))
+            throw new IllegalStateException("record missing required field");
+
+        // note: this depends on the partition key table preceding the records, which is
+        //       how both the KPL and our writer order fields
+        partitionKeys.add(partitionKeyTable.get(keyIndex.intValue()));
+        messages.add(new String(data, "UTF-8"));
+    }
+
+
+    /**
+     *  Reads protobuf primitives from a region of a byte array.
+     */
+    private static class Decoder
+    {
+        private byte[] buf;
+        private int off;
+        private int end;
+
+        public Decoder(byte[] buf, int off, int end)
+        {
+            this.buf = buf;
+            this.off = off;
+            this.end = end;
+        }
+
+        public boolean hasMore()
+        {
+            return off < end;
+        }
+
+        public long readVarint()
+        {
+            long value = 0;
+            for (int shift = 0 ; shift < 64 ; shift += 7)
+            {
+                if (off >= end)
+                    throw new IllegalStateException("truncated varint");
+                int b = buf[off++] & 0xFF;
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalStateException("malformed varint");
+        }
+
+        public byte[] readBytes()
+        {
+            int len = (int)readVarint();
+            if (off + len > end)
+                throw new IllegalStateException("truncated field");
+            byte[] result = Arrays.copyOfRange(buf, off, off + len);
+            off += len;
+            return result;
+        }
+
+        public void skip(int wireType)
+        {
+            switch (wireType)
+            {
+                case 0 : readVarint(); break;
+                case 1 : off += 8; break;
+                case 2 : readBytes(); break;
+                case 5 : off += 4; break;
+                default : throw new IllegalStateException("unsupported wire type: " + wireType);
+            }
+        }
+    }
+}
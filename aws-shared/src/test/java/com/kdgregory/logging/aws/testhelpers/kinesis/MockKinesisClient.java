@@ -17,6 +17,7 @@ package com.kdgregory.logging.aws.testhelpers.kinesis;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -68,6 +69,11 @@ implements InvocationHandler
     // by default all describes return ACTIVE if the stream exists
     public int creatingStatusCount;
 
+    // the shards returned by describeStream (both open and closed), and the
+    // number returned by a single call; see reshard()
+    public volatile List<Shard> shards = new ArrayList<Shard>();
+    public int describeShardsPageSize = 100;
+
     // the number of times each method was invoked
     public volatile int describeStreamInvocationCount;
     public volatile int createStreamInvocationCount;
@@ -104,6 +110,7 @@ implements InvocationHandler
     public MockKinesisClient(String... streamNames)
     {
         knownStreams.addAll(Arrays.asList(streamNames));
+        reshard(1);
     }
 
 
@@ -115,6 +122,7 @@ implements InvocationHandler
     public MockKinesisClient(int creatingStatusCount)
     {
         this.creatingStatusCount = creatingStatusCount;
+        reshard(1);
     }
 
 
@@ -133,6 +141,56 @@ implements InvocationHandler
     }
 
 
+    /**
+     *  Simulates resharding: closes all existing shards, and adds the specified
+     *  number of new shards, evenly dividing the hash key space.
+     */
+    public void reshard(int count)
+    {
+        List<Shard> newShards = new ArrayList<Shard>();
+        for (Shard shard : shards)
+        {
+            newShards.add(shard.clone().withSequenceNumberRange(
+                            new SequenceNumberRange().withStartingSequenceNumber("0").withEndingSequenceNumber("1")));
+        }
+
+        BigInteger keySpace = BigInteger.ONE.shiftLeft(128);
+        for (int ii = 0 ; ii < count ; ii++)
+        {
+            BigInteger start = keySpace.multiply(BigInteger.valueOf(ii)).divide(BigInteger.valueOf(count));
+            BigInteger end = keySpace.multiply(BigInteger.valueOf(ii + 1)).divide(BigInteger.valueOf(count)).subtract(BigInteger.ONE);
+            newShards.add(new Shard()
+                          .withShardId(String.format("shardId-%012d", newShards.size()))
+                          .withHashKeyRange(new HashKeyRange()
+                                            .withStartingHashKey(start.toString())
+                                            .withEndingHashKey(end.toString()))
+                          .withSequenceNumberRange(new SequenceNumberRange().withStartingSequenceNumber("0")));
+        }
+
+        shards = newShards;
+    }
+
+
+    /**
+     *  Returns the ID of the open shard that would receive a record with the given
+     *  explicit hash key. If the key is null, returns the first open shard.
+     */
+    public String shardForHashKey(String explicitHashKey)
+    {
+        BigInteger key = (explicitHashKey != null) ? new BigInteger(explicitHashKey) : null;
+        for (Shard shard : shards)
+        {
+            if (shard.getSequenceNumberRange().getEndingSequenceNumber() != null)
+                continue;
+            if ((key == null)
+                || ((key.compareTo(new BigInteger(shard.getHashKeyRange().getStartingHashKey())) >= 0)
+                    && (key.compareTo(new BigInteger(shard.getHashKeyRange().getEndingHashKey())) <= 0)))
+                return shard.getShardId();
+        }
+        throw new IllegalArgumentException("no shard for hash key: " + explicitHashKey);
+    }
+
+
     /**
      *  Creates a client proxy outside of the writer factory.
      */
@@ -257,6 +315,21 @@ implements InvocationHandler
             streamDesc.setStreamStatus(StreamStatus.ACTIVE);
         }
 
+        List<Shard> allShards = shards;
+        int start = 0;
+        if (request.getExclusiveStartShardId() != null)
+        {
+            for (Shard shard : allShards)
+            {
+                start++;
+                if (shard.getShardId().equals(request.getExclusiveStartShardId()))
+                    break;
+            }
+        }
+        int end = Math.min(start + describeShardsPageSize, allShards.size());
+        streamDesc.setShards(new ArrayList<Shard>(allShards.subList(start, end)));
+        streamDesc.setHasMoreShards(Boolean.valueOf(end < allShards.size()));
+
         return new DescribeStreamResult().withStreamDescription(streamDesc);
     }
 
@@ -279,8 +352,9 @@ implements InvocationHandler
         List<PutRecordsResultEntry> resultRecords = new ArrayList<PutRecordsResultEntry>(request.getRecords().size());
         for (int ii = 0 ; ii < request.getRecords().size() ; ii++)
         {
-            PutRecordsResultEntry resultRecord = new PutRecordsResultEntry();
-            // TODO - at the present time we're not verifying shard ID or sequence number
+            PutRecordsResultEntry resultRecord = new PutRecordsResultEntry()
+                                                 .withShardId(shardForHashKey(request.getRecords().get(ii).getExplicitHashKey()));
+            // TODO - at the present time we're not verifying sequence number
             resultRecords.add(resultRecord);
         }
         return new PutRecordsResult()
@@ -64,6 +64,14 @@ implements LogWriter
     }
 
 
+    @Override
+    public boolean flush(long timeout)
+    {
+        // messages are "sent" as soon as they're added
+        return true;
+    }
+
+
     @Override
     public void setBatchDelay(long value)
     {
@@ -77,12 +85,26 @@ implements LogWriter
         // ignored for now
     }
 
+
+    @Override
+    public void setDiscardThresholdBytes(long value)
+    {
+        // ignored for now
+    }
+
     @Override
     public void setDiscardAction(DiscardAction value)
     {
         // ignored for now
     }
 
+
+    @Override
+    public void setEnqueueTimeout(long value)
+    {
+        // ignored for now
+    }
+
 //----------------------------------------------------------------------------
 //  Runnable
 //----------------------------------------------------------------------------
@@ -0,0 +1,140 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Compares the cost of assembling batches one message at a time (as the writer
+ *  did originally) with {@link MessageQueue#drainTo}. The queue is pre-filled, so
+ *  this measures only batch assembly. Batches use CloudWatch limits (10,000 messages
+ *  or 1 MB, with 26 bytes of overhead per message). This is not run as part of the
+ *  build; invoke it manually:
+ *  <pre>
+ *      java -cp target/classes:target/test-classes \
+ *           com.kdgregory.logging.common.util.DrainToBenchmark [MESSAGES [ITERATIONS]]
+ *  </pre>
+ *  Where <code>MESSAGES</code> is the number of messages per run (default 1,000,000),
+ *  and <code>ITERATIONS</code> is the number of timed runs for each combination of
+ *  queue type and assembly method (default 5), following an untimed warmup run.
+ */
+public class DrainToBenchmark
+{
+    private final static int MAX_BATCH_COUNT = 10000;
+    private final static int MAX_BATCH_BYTES = 1048576;
+    private final static int MESSAGE_OVERHEAD = 26;
+
+
+    public static void main(String[] argv)
+    throws Exception
+    {
+        int numMessages = (argv.length > 0) ? Integer.parseInt(argv[0]) : 1000000;
+        int iterations = (argv.length > 1) ? Integer.parseInt(argv[1]) : 5;
+
+        System.out.println("messages per run: " + numMessages);
+
+        for (QueueType queueType : QueueType.values())
+        {
+            for (boolean useDrain : new boolean[] { false, true })
+            {
+                run(queueType, useDrain, numMessages);
+                for (int ii = 0 ; ii < iterations ; ii++)
+                {
+                    long elapsed = run(queueType, useDrain, numMessages);
+                    System.out.println(String.format(
+                                       "%-6s %-8s run %d: %,6d ms, %,6d ns/message",
+                                       queueType, (useDrain ? "drainTo" : "dequeue"), ii,
+                                       elapsed / 1000000, elapsed / numMessages));
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Fills a queue, then builds batches until it's empty. Returns elapsed nanoseconds
+     *  for the latter step.
+     */
+    private static long run(QueueType queueType, boolean useDrain, int numMessages)
+    {
+        MessageQueue queue = new MessageQueue(Integer.MAX_VALUE, DiscardAction.none, queueType);
+        LogMessage message = new LogMessage(System.currentTimeMillis(), "a benchmark message of moderate length");
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            queue.enqueue(message);
+        }
+
+        int received = 0;
+        long start = System.nanoTime();
+        while (! queue.isEmpty())
+        {
+            Batch batch = new Batch();
+            if (useDrain)
+            {
+                queue.drainTo(batch);
+            }
+            else
+            {
+                // this mirrors the original implementation of AbstractLogWriter.buildBatch()
+                LogMessage m;
+                while ((m = queue.dequeue(0)) != null)
+                {
+                    if (! batch.add(m))
+                    {
+                        queue.requeue(m);
+                        break;
+                    }
+                }
+            }
+            received += batch.messages.size();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (received != numMessages)
+            throw new IllegalStateException("expected " + numMessages + " messages, received " + received);
+
+        return elapsed;
+    }
+
+
+    private static class Batch
+    implements BatchBuilder
+    {
+        public List<LogMessage> messages = new ArrayList<LogMessage>(512);
+        public int bytes;
+
+        @Override
+        public boolean add(LogMessage message)
+        {
+            int messageSize = message.size() + MESSAGE_OVERHEAD;
+            if ((messages.size() >= MAX_BATCH_COUNT) || (bytes + messageSize > MAX_BATCH_BYTES))
+                return false;
+
+            messages.add(message);
+            bytes += messageSize;
+            return true;
+        }
+
+        @Override
+        public boolean isFull()
+        {
+            return messages.size() >= MAX_BATCH_COUNT;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Compares the queue types under contention: a configurable number of producer
+ *  threads enqueue messages as fast as they can, while a single consumer thread
+ *  drains the queue the way that the writer does. Since producers call the queue
+ *  directly, this shows the queue's best case; an appender's producers may be
+ *  serialized by the logging framework (see <code>AppendBenchmark</code> in the
+ *  log4j1 appenders). This is not run as part of the build; invoke it manually:
+ *  <pre>
+ *      java -cp target/classes:target/test-classes \
+ *           com.kdgregory.logging.common.util.MessageQueueBenchmark [THREADS [MESSAGES [ITERATIONS]]]
+ *  </pre>
+ *  Where <code>THREADS</code> is the number of producers (default 64), <code>MESSAGES</code>
+ *  is the number of messages per producer (default 100,000), and <code>ITERATIONS</code>
+ *  is the number of timed runs for each queue type (default 5), following an untimed
+ *  warmup run.
+ */
+public class MessageQueueBenchmark
+{
+    public static void main(String[] argv)
+    throws Exception
+    {
+        int numThreads = (argv.length > 0) ? Integer.parseInt(argv[0]) : 64;
+        int messagesPerThread = (argv.length > 1) ? Integer.parseInt(argv[1]) : 100000;
+        int iterations = (argv.length > 2) ? Integer.parseInt(argv[2]) : 5;
+
+        System.out.println("producers: " + numThreads + ", messages per producer: " + messagesPerThread);
+
+        for (QueueType queueType : QueueType.values())
+        {
+            run(queueType, numThreads, messagesPerThread);
+            for (int ii = 0 ; ii < iterations ; ii++)
+            {
+                Result result = run(queueType, numThreads, messagesPerThread);
+                System.out.println(String.format(
+                                   "%-6s run %d: %,6d ms, %,12d messages/sec, %,9d dropped",
+                                   queueType, ii, result.elapsedMillis, result.messagesPerSecond(), result.dropped));
+            }
+        }
+    }
+
+
+    private static Result run(QueueType queueType, int numThreads, final int messagesPerThread)
+    throws Exception
+    {
+        // we use the default discard settings, because that's what most people will run
+        final MessageQueue queue = new MessageQueue(10000, DiscardAction.oldest, queueType);
+        final LogMessage message = new LogMessage(System.currentTimeMillis(), "benchmark message");
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> producers = new ArrayList<Thread>(numThreads);
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            Thread producer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        startLatch.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    for (int jj = 0 ; jj < messagesPerThread ; jj++)
+                    {
+                        queue.enqueue(message);
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        Consumer consumer = new Consumer(queue);
+        Thread consumerThread = new Thread(consumer);
+        consumerThread.start();
+
+        long start = System.currentTimeMillis();
+        startLatch.countDown();
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        consumer.running = false;
+        consumerThread.join();
+
+        return new Result((long)numThreads * messagesPerThread, elapsed, queue.getDroppedMessageCount());
+    }
+
+
+    private static class Consumer
+    implements Runnable
+    {
+        private MessageQueue queue;
+        public volatile boolean running = true;
+
+        public Consumer(MessageQueue queue)
+        {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run()
+        {
+            while (running || ! queue.isEmpty())
+            {
+                queue.dequeue(100);
+            }
+        }
+    }
+
+
+    private static class Result
+    {
+        public long messages;
+        public long elapsedMillis;
+        public long dropped;
+
+        public Result(long messages, long elapsedMillis, long dropped)
+        {
+            this.messages = messages;
+            this.elapsedMillis = elapsedMillis;
+            this.dropped = dropped;
+        }
+
+        public long messagesPerSecond()
+        {
+            return (elapsedMillis == 0) ? 0 : (messages * 1000 / elapsedMillis);
+        }
+    }
+}
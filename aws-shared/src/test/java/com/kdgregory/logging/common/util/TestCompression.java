@@ -0,0 +1,292 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestCompression
+{
+//----------------------------------------------------------------------------
+//  Support code
+//----------------------------------------------------------------------------
+
+    /**
+     *  Decompresses using the JDK for gzip and deflate, and a decoder written from
+     *  the LZ4 frame and block format specifications for lz4.
+     */
+    public static byte[] decompress(Compression compression, byte[] data)
+    throws Exception
+    {
+        switch (compression)
+        {
+            case none :
+                return data;
+            case gzip :
+                return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+            case deflate :
+                return readAll(new InflaterInputStream(new ByteArrayInputStream(data)));
+            case lz4 :
+                return decompressLZ4(data);
+            default :
+                throw new IllegalArgumentException("unsupported compression: " + compression);
+        }
+    }
+
+
+    private static byte[] readAll(InputStream in)
+    throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int count;
+        while ((count = in.read(buf)) > 0)
+        {
+            out.write(buf, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+
+    private static byte[] decompressLZ4(byte[] data)
+    {
+        assertEquals("magic number",    0x184D2204,     readIntLE(data, 0));
+
+        int flags = data[4] & 0xFF;
+        assertEquals("version",         1,              flags >>> 6);
+        assertEquals("no checksums, content size, or dictionary", 0, flags & 0x1F);
+        // descriptor checksum is verified by the lz4 command-line program; we verify it by
+        // comparing to a known-good value for our descriptor
+        assertEquals("descriptor checksum", 0x73,       data[6] & 0xFF);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int off = 7;
+        while (true)
+        {
+            int blockSize = readIntLE(data, off);
+            off += 4;
+            if (blockSize == 0)
+                break;
+
+            if ((blockSize & 0x80000000) != 0)
+            {
+                blockSize &= 0x7FFFFFFF;
+                out.write(data, off, blockSize);
+            }
+            else
+            {
+                byte[] block = decompressBlock(data, off, blockSize);
+                out.write(block, 0, block.length);
+            }
+            off += blockSize;
+        }
+
+        assertEquals("frame ends at end of data", data.length, off);
+        return out.toByteArray();
+    }
+
+
+    private static byte[] decompressBlock(byte[] src, int off, int len)
+    {
+        int end = off + len;
+        byte[] dst = new byte[1024];
+        int op = 0;
+        while (true)
+        {
+            int token = src[off++] & 0xFF;
+
+            int litLen = token >>> 4;
+            if (litLen == 15)
+            {
+                int b;
+                do
+                {
+                    b = src[off++] & 0xFF;
+                    litLen += b;
+                } while (b == 255);
+            }
+            dst = ensureCapacity(dst, op + litLen);
+            System.arraycopy(src, off, dst, op, litLen);
+            off += litLen;
+            op += litLen;
+
+            if (off == end)
+                break;
+
+            int offset = (src[off] & 0xFF) | ((src[off + 1] & 0xFF) << 8);
+            off += 2;
+            assertTrue("offset within output (was " + offset + ")", (offset > 0) && (offset <= op));
+
+            int matchLen = token & 0x0F;
+            if (matchLen == 15)
+            {
+                int b;
+                do
+                {
+                    b = src[off++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += 4;
+
+            // matches may overlap their output, so must copy byte-by-byte
+            dst = ensureCapacity(dst, op + matchLen);
+            for (int ii = 0 ; ii < matchLen ; ii++)
+            {
+                dst[op] = dst[op - offset];
+                op++;
+            }
+            assertTrue("block ends with literals", off < end);
+        }
+        return Arrays.copyOf(dst, op);
+    }
+
+
+    private static byte[] ensureCapacity(byte[] buf, int size)
+    {
+        return (size <= buf.length) ? buf : Arrays.copyOf(buf, Math.max(size, buf.length * 2));
+    }
+
+
+    private static int readIntLE(byte[] buf, int off)
+    {
+        return (buf[off] & 0xFF)
+             | ((buf[off + 1] & 0xFF) << 8)
+             | ((buf[off + 2] & 0xFF) << 16)
+             | ((buf[off + 3] & 0xFF) << 24);
+    }
+
+
+    /**
+     *  Generates something that looks like a batch of log messages: lots of
+     *  repetition, with some variation.
+     */
+    private static byte[] logLikeData(int size)
+    throws Exception
+    {
+        Random rnd = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 200);
+        while (sb.length() < size)
+        {
+            sb.append("{\"timestamp\":\"2024-01-01T12:34:").append(rnd.nextInt(60))
+              .append("Z\",\"level\":\"INFO\",\"logger\":\"com.example.Service\",\"message\":\"request ")
+              .append(rnd.nextInt(1000000)).append(" completed in ").append(rnd.nextInt(500)).append(" ms\"}\n");
+        }
+        return sb.toString().substring(0, size).getBytes("UTF-8");
+    }
+
+
+    private static byte[] randomData(int size)
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+
+    private static void assertRoundTrip(String message, Compression compression, byte[] data)
+    throws Exception
+    {
+        byte[] compressed = compression.compress(data);
+        assertTrue(message + ": within max compressed size (was " + compressed.length + ")",
+                   compressed.length <= compression.maxCompressedSize(data.length));
+        assertTrue(message + ": round trip",
+                   Arrays.equals(data, decompress(compression, compressed)));
+    }
+
+//----------------------------------------------------------------------------
+//  Testcases
+//----------------------------------------------------------------------------
+
+    @Test
+    public void testLookup() throws Exception
+    {
+        assertEquals("gzip",            Compression.gzip,       Compression.lookup("gzip"));
+        assertEquals("lz4",             Compression.lz4,        Compression.lookup("lz4"));
+
+        try
+        {
+            Compression.lookup("bogus");
+            fail("lookup of invalid value should have thrown");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertEquals("exception message",   "invalid compression: bogus",   ex.getMessage());
+        }
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for (Compression compression : Compression.values())
+        {
+            assertRoundTrip(compression + " empty",             compression,    new byte[0]);
+            assertRoundTrip(compression + " short",             compression,    "hello".getBytes("UTF-8"));
+            assertRoundTrip(compression + " log data",          compression,    logLikeData(100000));
+            assertRoundTrip(compression + " random data",       compression,    randomData(100000));
+            assertRoundTrip(compression + " repeated byte",     compression,    new byte[100000]);
+        }
+    }
+
+
+    @Test
+    public void testCompressionRatio() throws Exception
+    {
+        byte[] data = logLikeData(1000000);
+
+        assertEquals("none",    data.length,    Compression.none.compress(data).length);
+        assertTrue("gzip",                      Compression.gzip.compress(data).length < data.length / 4);
+        assertTrue("deflate",                   Compression.deflate.compress(data).length < data.length / 4);
+        assertTrue("lz4",                       Compression.lz4.compress(data).length < data.length / 2);
+    }
+
+
+    @Test
+    public void testLZ4EdgeCases() throws Exception
+    {
+        // inputs around the minimum size for a match (13 bytes)
+        for (int size = 1 ; size < 32 ; size++)
+        {
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte)'A');
+            assertRoundTrip("size " + size,                     Compression.lz4,    data);
+        }
+
+        // a match longer than can be encoded with one continuation byte, and a
+        // literal run longer than can be encoded with one continuation byte
+        byte[] data = new byte[2000];
+        System.arraycopy(randomData(600), 0, data, 0, 600);
+        assertRoundTrip("long literals and match",              Compression.lz4,    data);
+
+        // incompressible data is stored as-is
+        byte[] random = randomData(10000);
+        byte[] compressed = Compression.lz4.compress(random);
+        assertEquals("stored block size",   random.length + LZ4Compressor.FRAME_OVERHEAD,  compressed.length);
+
+        // multiple blocks
+        assertRoundTrip("multiple blocks",                      Compression.lz4,    logLikeData(LZ4Compressor.BLOCK_SIZE * 2 + 12345));
+    }
+}
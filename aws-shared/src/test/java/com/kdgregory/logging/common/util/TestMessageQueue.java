@@ -14,22 +14,84 @@
 
 package com.kdgregory.logging.common.util;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 import static org.junit.Assert.*;
 
+import net.sf.kdgcommons.lang.StringUtil;
+
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.util.DiscardAction;
 import com.kdgregory.logging.common.util.MessageQueue;
+import com.kdgregory.logging.common.util.QueueType;
 
 
+/**
+ *  All tests are run against all queue types.
+ */
+@RunWith(Parameterized.class)
 public class TestMessageQueue
 {
+    @Parameters
+    public static Collection<Object[]> queueTypes()
+    {
+        List<Object[]> result = new ArrayList<Object[]>();
+        for (QueueType queueType : QueueType.values())
+        {
+            result.add(new Object[] { queueType });
+        }
+        return result;
+    }
+
+
+    private QueueType queueType;
+
+    public TestMessageQueue(QueueType queueType)
+    {
+        this.queueType = queueType;
+    }
+
+
+    // used by spill tests
+    private File spillDirectory;
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        spillDirectory = File.createTempFile("TestMessageQueue", "");
+        spillDirectory.delete();
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        File[] files = spillDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+
     LogMessage m1 = new LogMessage(System.currentTimeMillis(), "m1");
     LogMessage m2 = new LogMessage(System.currentTimeMillis(), "m2");
     LogMessage m3 = new LogMessage(System.currentTimeMillis(), "m3");
@@ -38,7 +100,7 @@ public class TestMessageQueue
     @Test
     public void testBasicOperation() throws Exception
     {
-        MessageQueue queue = new MessageQueue(1000, DiscardAction.none);
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType);
 
         assertTrue("newly constructed queue is empty",              queue.isEmpty());
 
@@ -73,7 +135,7 @@ public class TestMessageQueue
     @Test
     public void testDequeueWithTimout() throws Exception
     {
-        MessageQueue queue = new MessageQueue(1000, DiscardAction.none);
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType);
 
         queue.enqueue(m1);
 
@@ -114,7 +176,7 @@ public class TestMessageQueue
         final int minExpectedMessages   = (int)(expectedMessagesAtEnd * .8);
         final int maxExpectedMessages   = (int)(expectedMessagesAtEnd * 1.2);
 
-        final MessageQueue queue = new MessageQueue(100000, DiscardAction.none);
+        final MessageQueue queue = new MessageQueue(100000, DiscardAction.none, queueType);
 
         final List<Thread> threads = new ArrayList<Thread>(numThreads);
         for (int threadIdx = 0 ; threadIdx < numThreads ; threadIdx++)
@@ -163,7 +225,7 @@ public class TestMessageQueue
     @Test
     public void testInterruptDuringDequeue() throws Exception
     {
-        final MessageQueue queue = new MessageQueue(1000, DiscardAction.oldest);
+        final MessageQueue queue = new MessageQueue(1000, DiscardAction.oldest, queueType);
         final AtomicReference<Object> lastDequeue = new AtomicReference<Object>();
 
         Thread readerThread = new Thread(new Runnable()
@@ -201,13 +263,50 @@ public class TestMessageQueue
     }
 
 
+    @Test
+    public void testWakeupDuringDequeue() throws Exception
+    {
+        final MessageQueue queue = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        final AtomicReference<Object> lastDequeue = new AtomicReference<Object>();
+
+        Thread readerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int attempt = 0 ; attempt < 3 ; attempt++)
+                {
+                    lastDequeue.set(queue.dequeue(Long.MAX_VALUE));
+                }
+            }
+        });
+        readerThread.start();
+
+        queue.enqueue(m1);
+        waitForReference(lastDequeue, m1, 2);
+        assertSame("after first enqueue, was able to retrieve", m1, lastDequeue.get());
+
+        waitForReaderToBlock(readerThread, 2);
+        queue.wakeup();
+        waitForReference(lastDequeue, null, 2);
+        assertNull("after wakeup, retrieved null", lastDequeue.get());
+
+        // the wakeup is consumed, so the next dequeue waits for a message
+        queue.enqueue(m2);
+        waitForReference(lastDequeue, m2, 2);
+        assertSame("after second enqueue, was able to retrieve", m2, lastDequeue.get());
+
+        readerThread.join();
+    }
+
+
     @Test
     public void testDiscardNone() throws Exception
     {
         final int discardThreshold = 10;
         final int messagesToEnqueue = 20;
 
-        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.none);
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.none, queueType);
 
         for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
         {
@@ -225,7 +324,7 @@ public class TestMessageQueue
         final int messagesToEnqueue = 20;
         final int expectedDiscards = messagesToEnqueue - discardThreshold;
 
-        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.oldest);
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.oldest, queueType);
 
         for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
         {
@@ -248,7 +347,7 @@ public class TestMessageQueue
         final int messagesToEnqueue = 20;
         final int expectedDiscards = messagesToEnqueue - discardThreshold;
 
-        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.newest);
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.newest, queueType);
 
         for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
         {
@@ -264,6 +363,67 @@ public class TestMessageQueue
     }
 
 
+    @Test
+    public void testDiscardBlockTimeout() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(2, DiscardAction.block, queueType);
+        queue.setEnqueueTimeout(200);
+
+        queue.enqueue(m1);
+        queue.enqueue(m2);
+        assertEquals("no blocking before threshold",    0L,     queue.getBlockedEnqueueCount());
+
+        long start = System.currentTimeMillis();
+        queue.enqueue(m3);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("enqueue waited for timeout (was " + elapsed + ")",      elapsed >= 180);
+        assertEquals("blocked enqueues",                1L,     queue.getBlockedEnqueueCount());
+        assertTrue("blocked time recorded",                     queue.getBlockedEnqueueTime() >= 180);
+
+        // after the timeout we discard oldest
+        assertEquals("queue size",                      2,      queue.size());
+        assertEquals("dropped messages",                1,      queue.getDroppedMessageCount());
+        assertSame("first message in queue",            m2,     queue.toList().get(0));
+        assertSame("second message in queue",           m3,     queue.toList().get(1));
+    }
+
+
+    @Test
+    public void testDiscardBlockUnblockedByDequeue() throws Exception
+    {
+        final MessageQueue queue = new MessageQueue(2, DiscardAction.block, queueType);
+        queue.setEnqueueTimeout(5000);
+
+        queue.enqueue(m1);
+        queue.enqueue(m2);
+
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queue.enqueue(m3);
+            }
+        });
+        producer.start();
+
+        waitForProducerToBlock(producer, 2);
+        assertTrue("producer is blocked",                       producer.isAlive());
+
+        assertSame("dequeued message",                  m1,     queue.dequeue());
+
+        producer.join(1000);
+        assertFalse("producer has finished",                    producer.isAlive());
+
+        assertEquals("dropped messages",                0,      queue.getDroppedMessageCount());
+        assertEquals("blocked enqueues",                1L,     queue.getBlockedEnqueueCount());
+        assertTrue("blocked time less than timeout",            queue.getBlockedEnqueueTime() < 5000);
+        assertSame("first message in queue",            m2,     queue.toList().get(0));
+        assertSame("second message in queue",           m3,     queue.toList().get(1));
+    }
+
+
     @Test
     public void testUpdateDiscard() throws Exception
     {
@@ -271,7 +431,7 @@ public class TestMessageQueue
         final int newDiscardThreshold = 5;
         final int messagesToEnqueue = 20;
 
-        MessageQueue queue = new MessageQueue(originalDiscardThreshold, DiscardAction.newest);
+        MessageQueue queue = new MessageQueue(originalDiscardThreshold, DiscardAction.newest, queueType);
 
         for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
         {
@@ -295,14 +455,790 @@ public class TestMessageQueue
         assertNotSame("oldest message was discarded",           originalOldestMessage,  queue.toList().get(0));
     }
 
+
+    @Test
+    public void testByteCount() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType);
+
+        assertEquals("newly constructed queue",         0L,     queue.bytes());
+
+        queue.enqueue(new LogMessage(0, "abcd"));
+        queue.enqueue(new LogMessage(0, "\u00e9t\u00e9"));     // 2 chars of 2 bytes, 1 char of 1 byte
+        assertEquals("after enqueues",                  9L,     queue.bytes());
+
+        queue.requeue(new LogMessage(0, "x"));
+        assertEquals("after requeue",                   10L,    queue.bytes());
+
+        queue.dequeue();
+        queue.dequeue();
+        assertEquals("after dequeues",                  5L,     queue.bytes());
+
+        queue.dequeue(100);
+        assertEquals("after final dequeue",             0L,     queue.bytes());
+    }
+
+
+    @Test
+    public void testDiscardOldestByBytes() throws Exception
+    {
+        final int discardThresholdBytes = 100;
+        final int messagesToEnqueue = 20;
+
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        queue.setDiscardThresholdBytes(discardThresholdBytes);
+
+        // each message is 10 bytes
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(System.currentTimeMillis(), String.format("message %2d", ii)));
+        }
+
+        assertEquals("queue size",                  10,                             queue.size());
+        assertEquals("queue bytes",                 (long)discardThresholdBytes,    queue.bytes());
+        assertEquals("number of dropped messages",  10,                             queue.getDroppedMessageCount());
+
+        List<LogMessage> messages = queue.toList();
+        assertEquals("first message in queue",  "message 10", messages.get(0).getMessage());
+        assertEquals("last message in queue",   "message 19", messages.get(9).getMessage());
+
+        // a single large message displaces multiple small ones
+        queue.enqueue(new LogMessage(System.currentTimeMillis(), StringUtil.repeat('X', 35)));
+
+        assertEquals("queue size after large message",  7,                              queue.size());
+        assertEquals("queue bytes after large message", 95L,                            queue.bytes());
+        assertEquals("first message after large",       "message 14",                   queue.toList().get(0).getMessage());
+    }
+
+
+    @Test
+    public void testDiscardNewestByBytes() throws Exception
+    {
+        final int discardThresholdBytes = 100;
+        final int messagesToEnqueue = 20;
+
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.newest, queueType);
+        queue.setDiscardThresholdBytes(discardThresholdBytes);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(System.currentTimeMillis(), String.format("message %2d", ii)));
+        }
+
+        assertEquals("queue size",                  10,                             queue.size());
+        assertEquals("queue bytes",                 (long)discardThresholdBytes,    queue.bytes());
+        assertEquals("number of dropped messages",  10,                             queue.getDroppedMessageCount());
+
+        List<LogMessage> messages = queue.toList();
+        assertEquals("first message in queue",  "message  0", messages.get(0).getMessage());
+        assertEquals("last message in queue",   "message  9", messages.get(9).getMessage());
+    }
+
+
+    @Test
+    public void testOrderingBeyondInitialCapacity() throws Exception
+    {
+        // the ring buffer is sized from the discard threshold, so with discard
+        // disabled we'll overflow it; order must be preserved regardless
+
+        final int discardThreshold = 10;
+        final int messagesToEnqueue = 100;
+
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.none, queueType);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(System.currentTimeMillis(), String.valueOf(ii)));
+        }
+        queue.requeue(m1);
+
+        assertEquals("reported counter size",   messagesToEnqueue + 1,  queue.size());
+        assertEquals("reported queue size",     messagesToEnqueue + 1,  queue.queueSize());
+        assertSame("requeued message is first", m1,                     queue.dequeue());
+
+        // dequeue half, then add more, to ensure that we've wrapped
+        for (int ii = 0 ; ii < messagesToEnqueue / 2 ; ii++)
+        {
+            assertEquals("first pass, message " + ii, String.valueOf(ii), queue.dequeue().getMessage());
+        }
+        for (int ii = messagesToEnqueue ; ii < messagesToEnqueue * 2 ; ii++)
+        {
+            queue.enqueue(new LogMessage(System.currentTimeMillis(), String.valueOf(ii)));
+        }
+        for (int ii = messagesToEnqueue / 2 ; ii < messagesToEnqueue * 2 ; ii++)
+        {
+            assertEquals("second pass, message " + ii, String.valueOf(ii), queue.dequeue().getMessage());
+        }
+
+        assertTrue("queue is empty at end", queue.isEmpty());
+        assertEquals("reported counter size at end", 0, queue.size());
+    }
+
+
+    @Test
+    public void testConcurrentProducersSingleConsumer() throws Exception
+    {
+        // this mimics actual use: many application threads, one writer thread
+        // that blocks waiting for messages; every message must be delivered
+        // once, and messages from any given thread must stay in order
+
+        final int numThreads            = 8;
+        final int messagesPerThread     = 20000;
+        final int totalMessages         = numThreads * messagesPerThread;
+
+        final MessageQueue queue = new MessageQueue(100, DiscardAction.none, queueType);
+
+        final List<Thread> threads = new ArrayList<Thread>(numThreads);
+        for (int threadIdx = 0 ; threadIdx < numThreads ; threadIdx++)
+        {
+            final int myThreadIdx = threadIdx;
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int ii = 0 ; ii < messagesPerThread ; ii++)
+                    {
+                        queue.enqueue(new LogMessage(ii, String.valueOf(myThreadIdx)));
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+
+        long[] lastTimestamps = new long[numThreads];
+        Arrays.fill(lastTimestamps, -1);
+        int received = 0;
+        while (received < totalMessages)
+        {
+            LogMessage message = queue.dequeue(2000);
+            assertNotNull("received message " + received + " within timeout", message);
+
+            int threadIdx = Integer.parseInt(message.getMessage());
+            assertEquals("message from thread " + threadIdx + " in order",
+                         lastTimestamps[threadIdx] + 1, message.getTimestamp());
+            lastTimestamps[threadIdx] = message.getTimestamp();
+            received++;
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertTrue("queue is empty at end", queue.isEmpty());
+        assertEquals("reported counter size at end", 0, queue.size());
+        assertEquals("no messages dropped", 0, queue.getDroppedMessageCount());
+    }
+
+
+    @Test
+    public void testDrainTo() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType);
+
+        for (int ii = 0 ; ii < 12 ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, "message " + ii));
+        }
+
+        TestBatch batch1 = new TestBatch(5, Integer.MAX_VALUE);
+        assertTrue("first drain: batch is full",                queue.drainTo(batch1));
+        assertEquals("first drain: batch size",         5,      batch1.messages.size());
+        assertEquals("first drain: first message",      0,      batch1.messages.get(0).getTimestamp());
+        assertEquals("first drain: last message",       4,      batch1.messages.get(4).getTimestamp());
+        assertEquals("first drain: queue size",         7,      queue.size());
+        assertEquals("first drain: queue contents",     7,      queue.queueSize());
+
+        // each message is 9 bytes, so this will take 2
+        TestBatch batch2 = new TestBatch(Integer.MAX_VALUE, 20);
+        assertTrue("second drain: batch is full",               queue.drainTo(batch2));
+        assertEquals("second drain: batch size",        2,      batch2.messages.size());
+        assertEquals("second drain: first message",     5,      batch2.messages.get(0).getTimestamp());
+        assertEquals("second drain: queue size",        5,      queue.size());
+
+        TestBatch batch3 = new TestBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertFalse("third drain: queue was emptied",           queue.drainTo(batch3));
+        assertEquals("third drain: batch size",         5,      batch3.messages.size());
+        assertEquals("third drain: first message",      7,      batch3.messages.get(0).getTimestamp());
+        assertEquals("third drain: last message",       11,     batch3.messages.get(4).getTimestamp());
+        assertEquals("third drain: queue size",         0,      queue.size());
+        assertEquals("third drain: queue bytes",        0L,     queue.bytes());
+        assertTrue("third drain: queue is empty",               queue.isEmpty());
+
+        TestBatch batch4 = new TestBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertFalse("drain of empty queue",                     queue.drainTo(batch4));
+        assertEquals("drain of empty queue: batch size",    0,  batch4.messages.size());
+    }
+
+
+    @Test
+    public void testDrainToExactlyFull() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType);
+
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, "message " + ii));
+        }
+
+        // the batch fills on the last message in the queue; it doesn't need to see another
+        TestBatch batch1 = new TestBatch(5, Integer.MAX_VALUE);
+        assertTrue("first drain: batch is full",                queue.drainTo(batch1));
+        assertEquals("first drain: batch size",         5,      batch1.messages.size());
+        assertEquals("first drain: queue size",         0,      queue.size());
+
+        queue.enqueue(new LogMessage(5, "message 5"));
+
+        // a batch that's already full doesn't take anything
+        assertTrue("second drain: batch is full",               queue.drainTo(batch1));
+        assertEquals("second drain: batch size",        5,      batch1.messages.size());
+        assertEquals("second drain: queue size",        1,      queue.size());
+    }
+
+
+    @Test
+    public void testDrainToFromSpill() throws Exception
+    {
+        final int discardThreshold = 10;
+        final int messagesToEnqueue = 100;
+
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.oldest, queueType);
+        queue.enableSpill(spillDirectory, 1024 * 1024);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, "message " + ii));
+        }
+
+        // this batch will take all in-memory messages and some spilled messages
+        TestBatch batch1 = new TestBatch(25, Integer.MAX_VALUE);
+        assertTrue("first drain: batch is full",                queue.drainTo(batch1));
+        assertEquals("first drain: last message",       24,     batch1.messages.get(24).getTimestamp());
+        assertEquals("first drain: queue size",         75,     queue.size());
+
+        TestBatch batch2 = new TestBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertFalse("second drain: queue was emptied",          queue.drainTo(batch2));
+        assertEquals("second drain: batch size",        75,     batch2.messages.size());
+        assertEquals("second drain: first message",     25,     batch2.messages.get(0).getTimestamp());
+        assertEquals("second drain: last message",      99,     batch2.messages.get(74).getTimestamp());
+        assertTrue("second drain: queue is empty",              queue.isEmpty());
+
+        queue.close();
+    }
+
+
+    @Test
+    public void testSpillToDisk() throws Exception
+    {
+        final int discardThreshold = 10;
+        final int messagesToEnqueue = 100;
+
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.oldest, queueType);
+        queue.enableSpill(spillDirectory, 1024 * 1024);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, "message " + ii, Severity.values()[ii % Severity.values().length]));
+        }
+
+        assertEquals("reported size",                   messagesToEnqueue,                      queue.size());
+        assertEquals("spilled messages",                messagesToEnqueue - discardThreshold,   queue.getSpilledMessageCount());
+        assertEquals("bytes in memory",                 90L,                                    queue.bytes());
+        assertEquals("no messages dropped",             0,                                      queue.getDroppedMessageCount());
+        assertEquals("spill files",                     1,                                      spillDirectory.listFiles().length);
+
+        // a requeued message goes to the front of memory
+        queue.requeue(m1);
+        assertSame("requeued message is first", m1, queue.dequeue());
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            LogMessage message = queue.dequeue();
+            assertEquals("message " + ii + " text",        "message " + ii,    message.getMessage());
+            assertEquals("message " + ii + " timestamp",   ii,                 message.getTimestamp());
+            assertEquals("message " + ii + " severity",    Severity.values()[ii % Severity.values().length],
+                                                                               message.getSeverity());
+        }
+
+        assertTrue("queue is empty after reading",              queue.isEmpty());
+        assertEquals("reported size after reading",     0,      queue.size());
+        assertNull("dequeue after reading",                     queue.dequeue());
+
+        // once the spill has been drained, new messages go to memory
+        queue.enqueue(m2);
+        assertEquals("spilled messages after enqueue",  0,      queue.getSpilledMessageCount());
+        assertSame("message after enqueue",             m2,     queue.dequeue());
+
+        queue.close();
+        assertEquals("spill files after close",         0,      spillDirectory.listFiles().length);
+    }
+
+
+    @Test
+    public void testEnqueueTime() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(2, DiscardAction.oldest, queueType);
+        queue.enableSpill(spillDirectory, 1024 * 1024);
+
+        assertEquals("oldest enqueue time, empty queue",        0L,                     queue.oldestEnqueueTime());
+
+        LogMessage preset = new LogMessage(0, "preset");
+        preset.setEnqueueTime(1234);
+
+        long start = System.currentTimeMillis();
+        queue.enqueue(m1);
+        queue.enqueue(preset);
+        Thread.sleep(20);
+        queue.enqueue(m2);      // this one goes to the spill
+        long finish = System.currentTimeMillis();
+
+        assertTrue("enqueue time set",                          (m1.getEnqueueTime() >= start) && (m1.getEnqueueTime() <= finish));
+        assertEquals("existing enqueue time retained",          1234L,                  preset.getEnqueueTime());
+        assertEquals("oldest enqueue time",                     m1.getEnqueueTime(),    queue.oldestEnqueueTime());
+
+        LogMessage dequeued = queue.dequeue();
+        queue.requeue(dequeued);
+        assertEquals("enqueue time retained by requeue",        m1.getEnqueueTime(),    queue.oldestEnqueueTime());
+
+        queue.dequeue();
+        queue.dequeue();
+        LogMessage spilled = queue.dequeue();
+        assertEquals("spilled message",                         "m2",                   spilled.getMessage());
+        assertEquals("enqueue time retained by spill",          m2.getEnqueueTime(),    spilled.getEnqueueTime());
+
+        queue.close();
+    }
+
+
+    @Test
+    public void testSpillLimitDiscardOldest() throws Exception
+    {
+        // the spill limit is divided into four segments; each record is 31 bytes
+        // (13 bytes overhead, 8 bytes enqueue time, 10 bytes content), so 132 fit
+        // in a segment; we'll fill five segments and part of a sixth, so the first
+        // two are discarded
+
+        final int discardThreshold = 10;
+        final int spillMaxBytes = 4 * 4096;
+        final int messagesPerSegment = 4096 / 31;
+        final int messagesToEnqueue = discardThreshold + 5 * messagesPerSegment + 100;
+        final int expectedDiscards = 2 * messagesPerSegment;
+
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.oldest, queueType);
+        queue.enableSpill(spillDirectory, spillMaxBytes);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, String.format("msg %6d", ii)));
+        }
+
+        assertEquals("dropped messages",            expectedDiscards,                       queue.getDroppedMessageCount());
+        assertEquals("dropped messages, by severity", expectedDiscards,                     queue.getDroppedMessageCount(Severity.info));
+        assertEquals("reported size",               messagesToEnqueue - expectedDiscards,   queue.size());
+        assertEquals("spill files",                 4,                                      queue.getSpillFiles().size());
+
+        List<LogMessage> messages = queue.toList();
+        assertEquals("last in-memory message",      discardThreshold - 1,                       messages.get(discardThreshold - 1).getTimestamp());
+        assertEquals("first spilled message",       discardThreshold + expectedDiscards,        messages.get(discardThreshold).getTimestamp());
+        assertEquals("last spilled message",        messagesToEnqueue - 1,                      messages.get(messages.size() - 1).getTimestamp());
+
+        queue.close();
+        assertEquals("dropped messages after close",    messagesToEnqueue - discardThreshold,   queue.getDroppedMessageCount());
+        assertEquals("reported size after close",       discardThreshold,                       queue.size());
+        assertEquals("spill files after close",         0,                                      spillDirectory.listFiles().length);
+    }
+
+
+    @Test
+    public void testSpillLimitDiscardNewest() throws Exception
+    {
+        final int discardThreshold = 10;
+        final int spillMaxBytes = 4 * 4096;
+        final int messagesPerSegment = 4096 / 31;
+        final int messagesToEnqueue = discardThreshold + 1000;
+        final int expectedSpilled = 4 * messagesPerSegment;
+
+        MessageQueue queue = new MessageQueue(discardThreshold, DiscardAction.newest, queueType);
+        queue.enableSpill(spillDirectory, spillMaxBytes);
+
+        for (int ii = 0 ; ii < messagesToEnqueue ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, String.format("msg %6d", ii)));
+        }
+
+        assertEquals("spilled messages",            expectedSpilled,                                        queue.getSpilledMessageCount());
+        assertEquals("dropped messages",            messagesToEnqueue - discardThreshold - expectedSpilled, queue.getDroppedMessageCount());
+
+        List<LogMessage> messages = queue.toList();
+        assertEquals("last spilled message",        discardThreshold + expectedSpilled - 1,                 messages.get(messages.size() - 1).getTimestamp());
+
+        queue.close();
+    }
+
+
+    @Test
+    public void testPriorityLanesDiscardOldest() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(5, DiscardAction.oldest, queueType, true);
+
+        for (LogMessage message : createMixedSeverityMessages())
+        {
+            queue.enqueue(message);
+        }
+
+        // the two oldest debug messages are discarded; everything else is in timestamp order
+        assertEquals("queue size",                      5,                  queue.size());
+        assertEquals("dropped messages",                2,                  queue.getDroppedMessageCount());
+        assertEquals("dropped debug messages",          2,                  queue.getDroppedMessageCount(Severity.debug));
+        assertEquals("dropped error messages",          0,                  queue.getDroppedMessageCount(Severity.error));
+        assertEquals("queued debug messages",           1,                  queue.getMessageCount(Severity.debug));
+        assertEquals("queued info messages",            1,                  queue.getMessageCount(Severity.info));
+        assertEquals("queued warn messages",            1,                  queue.getMessageCount(Severity.warn));
+        assertEquals("queued error messages",           2,                  queue.getMessageCount(Severity.error));
+        assertEquals("queue contents",                  "e0,i0,w0,e1,d2",   joinMessages(queue.toList()));
+
+        List<LogMessage> dequeued = new ArrayList<LogMessage>();
+        LogMessage message;
+        while ((message = queue.dequeue()) != null)
+        {
+            dequeued.add(message);
+        }
+        assertEquals("dequeue order",                   "e0,i0,w0,e1,d2",   joinMessages(dequeued));
+        assertEquals("queued error messages after",     0,                  queue.getMessageCount(Severity.error));
+
+        // once there's nothing less important, higher lanes are discarded
+        queue.setDiscardThreshold(2);
+        queue.enqueue(new LogMessage(10, "e10", Severity.error));
+        queue.enqueue(new LogMessage(11, "e11", Severity.error));
+        queue.enqueue(new LogMessage(12, "w12", Severity.warn));
+        queue.enqueue(new LogMessage(13, "e13", Severity.error));
+
+        assertEquals("second round: queue contents",    "e11,e13",          joinMessages(queue.toList()));
+        assertEquals("second round: dropped warn",      1,                  queue.getDroppedMessageCount(Severity.warn));
+        assertEquals("second round: dropped error",     1,                  queue.getDroppedMessageCount(Severity.error));
+    }
+
+
+    @Test
+    public void testPriorityLanesDiscardNewest() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(5, DiscardAction.newest, queueType, true);
+
+        for (LogMessage message : createMixedSeverityMessages())
+        {
+            queue.enqueue(message);
+        }
+
+        // each time we go over the threshold, the newest debug message is discarded
+        assertEquals("queue size",                      5,                  queue.size());
+        assertEquals("dropped debug messages",          2,                  queue.getDroppedMessageCount(Severity.debug));
+        assertEquals("queue contents",                  "e0,d0,i0,w0,e1",   joinMessages(queue.toList()));
+
+        // a requeued message goes to the front of its lane, but is still retrieved in order
+        LogMessage first = queue.dequeue();
+        LogMessage second = queue.dequeue();
+        queue.requeue(second);
+        queue.requeue(first);
+        assertEquals("after requeue",                   "e0,d0,i0,w0,e1",   joinMessages(queue.toList()));
+        assertSame("first dequeue after requeue",       first,              queue.dequeue());
+    }
+
+
+    @Test
+    public void testPriorityLanesDrainTo() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.none, queueType, true);
+
+        for (LogMessage message : createMixedSeverityMessages())
+        {
+            queue.enqueue(message);
+        }
+
+        // messages are merged across lanes in timestamp order
+        TestBatch batch1 = new TestBatch(4, Integer.MAX_VALUE);
+        assertTrue("first drain: batch is full",                queue.drainTo(batch1));
+        assertEquals("first drain: contents",           "e0,d0,i0,d1",          joinMessages(batch1.messages));
+
+        TestBatch batch2 = new TestBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertFalse("second drain: queue was emptied",          queue.drainTo(batch2));
+        assertEquals("second drain: contents",          "w0,e1,d2",             joinMessages(batch2.messages));
+        assertEquals("queued error messages after",     0,                      queue.getMessageCount(Severity.error));
+    }
+
+
+    @Test
+    public void testWriteAheadLogAcknowledge() throws Exception
+    {
+        MessageQueue queue = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        assertEquals("recovered messages",              0,                  queue.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0));
+
+        queue.enqueue(m1);
+        queue.enqueue(m2);
+        queue.enqueue(m3);
+
+        List<File> files = queue.getWriteAheadLogFiles();
+        assertEquals("log files",                       1,                  files.size());
+        assertTrue("messages written to log",                               files.get(0).length() > 0);
+        assertEquals("first sequence number",           0L,                 m1.getSequence());
+        assertEquals("last sequence number",            2L,                 m3.getSequence());
+
+        // a requeued message isn't logged twice
+        LogMessage message = queue.dequeue();
+        queue.requeue(message);
+        assertEquals("sequence after requeue",          0L,                 queue.dequeue().getSequence());
+
+        queue.acknowledge(Arrays.asList(m1, m2));
+        assertTrue("partially acknowledged segment retained",               files.get(0).length() > 0);
+
+        queue.dequeue();
+        queue.dequeue();
+        queue.acknowledge(Arrays.asList(m3));
+        assertEquals("fully acknowledged segment truncated", 0L,            files.get(0).length());
+
+        queue.close();
+        assertEquals("log files after close",           0,                  queue.getWriteAheadLogFiles().size());
+        assertFalse("segment file deleted",                                 files.get(0).exists());
+    }
+
+
+    @Test
+    public void testWriteAheadLogReplay() throws Exception
+    {
+        MessageQueue queue1 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        queue1.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0);
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            queue1.enqueue(new LogMessage(ii, "message " + ii, Severity.values()[ii % Severity.values().length]));
+        }
+
+        // acknowledgements are tracked by segment, so a partially acknowledged segment
+        // is replayed in its entirety
+        queue1.acknowledge(Arrays.asList(queue1.dequeue(), queue1.dequeue()));
+        queue1.close();
+
+        // the new queue may have messages before the log is opened; the replayed
+        // messages go in front of them
+
+        MessageQueue queue2 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        queue2.enqueue(m1);
+        assertEquals("recovered messages",              5,                  queue2.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0));
+        assertEquals("queue size",                      6,                  queue2.size());
+        assertEquals("queue contents",                  "message 0,message 1,message 2,message 3,message 4,m1",
+                                                                            joinMessages(queue2.toList()));
+        assertTrue("existing message was logged",                           m1.getSequence() >= 0);
+
+        List<LogMessage> messages = queue2.toList();
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            assertEquals("message " + ii + " timestamp",    (long)ii,                                   messages.get(ii).getTimestamp());
+            assertEquals("message " + ii + " severity",     Severity.values()[ii % Severity.values().length],
+                                                                                                        messages.get(ii).getSeverity());
+        }
+
+        // once everything has been acknowledged, nothing is replayed
+        List<LogMessage> sent = new ArrayList<LogMessage>();
+        while (! queue2.isEmpty())
+        {
+            sent.add(queue2.dequeue());
+        }
+        queue2.acknowledge(sent);
+        queue2.close();
+
+        MessageQueue queue3 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        assertEquals("recovered messages after acknowledge",    0,          queue3.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0));
+        queue3.close();
+    }
+
+
+    @Test
+    public void testWriteAheadLogIncompleteRecord() throws Exception
+    {
+        MessageQueue queue1 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        queue1.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0);
+        queue1.enqueue(m1);
+        queue1.enqueue(m2);
+        File file = queue1.getWriteAheadLogFiles().get(0);
+        queue1.close();
+
+        // simulate a write interrupted by a crash: a header with only part of the message
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(100);
+        raf.writeLong(System.currentTimeMillis());
+        raf.write(0);
+        raf.writeInt(12345678);
+        raf.write("incomplete".getBytes("UTF-8"));
+        raf.close();
+
+        MessageQueue queue2 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        assertEquals("recovered messages",              2,                  queue2.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0));
+        assertEquals("queue contents",                  "m1,m2",            joinMessages(queue2.toList()));
+        queue2.close();
+    }
+
+
+    @Test
+    public void testWriteAheadLogDiscardsAreAcknowledged() throws Exception
+    {
+        MessageQueue queue1 = new MessageQueue(2, DiscardAction.oldest, queueType);
+        queue1.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0);
+        for (int ii = 0 ; ii < 10 ; ii++)
+        {
+            queue1.enqueue(new LogMessage(ii, "message " + ii));
+        }
+        assertEquals("dropped messages",                8,                  queue1.getDroppedMessageCount());
+
+        // if the discarded messages weren't acknowledged, the segment would be retained
+        queue1.acknowledge(Arrays.asList(queue1.dequeue(), queue1.dequeue()));
+        queue1.close();
+
+        MessageQueue queue2 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        assertEquals("recovered messages",              0,                  queue2.enableWriteAheadLog(spillDirectory, 1024 * 1024, 0));
+        queue2.close();
+    }
+
+
+    @Test
+    public void testWriteAheadLogSegments() throws Exception
+    {
+        // 64k limit gives 16k segments; each record is 27 bytes (17 bytes overhead, 10
+        // bytes content), so 606 fit in a segment
+
+        final int messagesPerSegment = 16384 / 27;
+        final int numMessages = 4 * messagesPerSegment;
+
+        MessageQueue queue = new MessageQueue(100000, DiscardAction.oldest, queueType);
+        queue.enableWriteAheadLog(spillDirectory, 65536, 0);
+        for (int ii = 0 ; ii < numMessages ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, String.format("msg %6d", ii)));
+        }
+        assertEquals("log files",                       4,                  queue.getWriteAheadLogFiles().size());
+
+        // acknowledging the first segment deletes it
+
+        List<LogMessage> sent = new ArrayList<LogMessage>();
+        for (int ii = 0 ; ii < messagesPerSegment ; ii++)
+        {
+            sent.add(queue.dequeue());
+        }
+        queue.acknowledge(sent);
+        assertEquals("log files after acknowledge",     3,                  queue.getWriteAheadLogFiles().size());
+
+        // exceeding the size limit evicts the oldest segments, even if not acknowledged
+
+        for (int ii = 0 ; ii < 2 * messagesPerSegment ; ii++)
+        {
+            queue.enqueue(new LogMessage(ii, String.format("msg %6d", ii)));
+        }
+        assertEquals("log files after eviction",        4,                  queue.getWriteAheadLogFiles().size());
+        assertEquals("queue size",                      5 * messagesPerSegment, queue.size());
+
+        queue.close();
+    }
+
+
+    @Test
+    public void testWriteAheadLogWithSpill() throws Exception
+    {
+        File walDirectory = new File(spillDirectory, "wal");
+
+        MessageQueue queue1 = new MessageQueue(2, DiscardAction.oldest, queueType);
+        queue1.enableSpill(spillDirectory, 1024 * 1024);
+        queue1.enableWriteAheadLog(walDirectory, 1024 * 1024, 0);
+        for (int ii = 0 ; ii < 5 ; ii++)
+        {
+            queue1.enqueue(new LogMessage(ii, "message " + ii));
+        }
+        assertEquals("spilled messages",                3,                  queue1.getSpilledMessageCount());
+
+        // messages read from the spill retain their sequence number, so can be acknowledged
+        List<LogMessage> sent = new ArrayList<LogMessage>();
+        while (! queue1.isEmpty())
+        {
+            sent.add(queue1.dequeue());
+        }
+        assertEquals("sequence of last spilled message", 4L,                sent.get(4).getSequence());
+        queue1.acknowledge(sent);
+        queue1.close();
+
+        MessageQueue queue2 = new MessageQueue(1000, DiscardAction.oldest, queueType);
+        assertEquals("recovered messages",              0,                  queue2.enableWriteAheadLog(walDirectory, 1024 * 1024, 0));
+        queue2.close();
+
+        for (File file : walDirectory.listFiles())
+        {
+            file.delete();
+        }
+        walDirectory.delete();
+    }
+
 //----------------------------------------------------------------------------
 //  Support code
 //----------------------------------------------------------------------------
 
     /**
-     *  Waits until the queue is blocked inside the poll() function. It does
+     *  Creates messages with a variety of severities and increasing timestamps.
+     *  Each message's text is the first letter of its severity and an index.
+     */
+    private static List<LogMessage> createMixedSeverityMessages()
+    {
+        List<LogMessage> result = new ArrayList<LogMessage>();
+        result.add(new LogMessage(0, "e0", Severity.error));
+        result.add(new LogMessage(1, "d0", Severity.debug));
+        result.add(new LogMessage(2, "i0", Severity.info));
+        result.add(new LogMessage(3, "d1", Severity.debug));
+        result.add(new LogMessage(4, "w0", Severity.warn));
+        result.add(new LogMessage(5, "e1", Severity.error));
+        result.add(new LogMessage(6, "d2", Severity.debug));
+        return result;
+    }
+
+
+    /**
+     *  Returns the text of the passed messages, comma-separated.
+     */
+    private static String joinMessages(List<LogMessage> messages)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (LogMessage message : messages)
+        {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(message.getMessage());
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     *  Waits until a producer is blocked inside the enqueue() function, waiting for
+     *  room in the queue.
+     */
+    private static void waitForProducerToBlock(Thread thread, int secondsToWait)
+    throws Exception
+    {
+        for (int attempt = 0 ; attempt < (secondsToWait * 10) ; attempt++)
+        {
+            for (StackTraceElement elem : thread.getStackTrace())
+            {
+                if (elem.getClassName().equals(MessageQueue.class.getName()) && elem.getMethodName().equals("waitForSpace"))
+                    return;
+            }
+            Thread.sleep(100);
+        }
+        fail("producer did not block within " + secondsToWait + " seconds");
+    }
+
+
+    /**
+     *  Waits until the reader is parked inside the dequeue() function. It does
      *  this by looking at the thread's stack trace. Note: this will break if
-     *  we switch to a different underlying queue type.
+     *  we change the way that dequeue() waits.
      */
     private static void waitForReaderToBlock(Thread thread, int secondsToWait)
     throws Exception
@@ -310,11 +1246,11 @@ public class TestMessageQueue
         for (int attempt = 0 ; attempt < (secondsToWait * 10) ; attempt++)
         {
             StackTraceElement[] stackTrace = thread.getStackTrace();
-            // we use indexed access to verify that poll() is not the bottom of the call chain (it should be position 4)
+            // we use indexed access to verify that parkNanos() is not the bottom of the call chain
             for (int ii = 1 ; ii < stackTrace.length ; ii++)
             {
                 StackTraceElement elem = stackTrace[ii];
-                if (elem.getClassName().equals("java.util.concurrent.LinkedBlockingDeque") && elem.getMethodName().equals("poll"))
+                if (elem.getClassName().equals("java.util.concurrent.locks.LockSupport") && elem.getMethodName().equals("parkNanos"))
                     return;
                 Thread.sleep(100);
             }
@@ -322,6 +1258,42 @@ public class TestMessageQueue
     }
 
 
+    /**
+     *  A batch that enforces simple count and byte limits.
+     */
+    private static class TestBatch
+    implements BatchBuilder
+    {
+        public List<LogMessage> messages = new ArrayList<LogMessage>();
+        private int maxMessages;
+        private int maxBytes;
+        private int bytes;
+
+        public TestBatch(int maxMessages, int maxBytes)
+        {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean add(LogMessage message)
+        {
+            if ((messages.size() >= maxMessages) || (bytes + message.size() > maxBytes))
+                return false;
+
+            messages.add(message);
+            bytes += message.size();
+            return true;
+        }
+
+        @Override
+        public boolean isFull()
+        {
+            return (messages.size() >= maxMessages) || (bytes >= maxBytes);
+        }
+    }
+
+
     /**
      *  Waits for the passed AtomicReference to contain the desired value, checking
      *  evey 100 milliseconds.
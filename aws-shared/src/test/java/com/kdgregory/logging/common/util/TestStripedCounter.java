@@ -0,0 +1,80 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestStripedCounter
+{
+    @Test
+    public void testSingleThread() throws Exception
+    {
+        StripedCounter counter = new StripedCounter();
+        assertEquals("initial value",           0L,                 counter.sum());
+
+        counter.increment();
+        counter.increment();
+        counter.add(10);
+        counter.decrement();
+        assertEquals("after updates",           11L,                counter.sum());
+        assertEquals("toString",                "11",               counter.toString());
+
+        counter.add(Integer.MAX_VALUE);
+        counter.add(Integer.MAX_VALUE);
+        assertEquals("exceeds 32 bits",         11L + 2L * Integer.MAX_VALUE,   counter.sum());
+
+        counter.reset();
+        assertEquals("after reset",             0L,                 counter.sum());
+    }
+
+
+    @Test
+    public void testConcurrentUpdates() throws Exception
+    {
+        final int numThreads = 8;
+        final int incrementsPerThread = 100000;
+        final StripedCounter counter = new StripedCounter();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int jj = 0 ; jj < incrementsPerThread ; jj++)
+                    {
+                        counter.increment();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals("no lost updates",         (long)numThreads * incrementsPerThread,     counter.sum());
+    }
+}
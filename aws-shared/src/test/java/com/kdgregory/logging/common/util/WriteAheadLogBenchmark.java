@@ -0,0 +1,174 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.logging.common.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.kdgregory.logging.common.LogMessage;
+
+
+/**
+ *  Measures the cost of the write-ahead log: a configurable number of producer
+ *  threads enqueue messages as fast as they can, while a single consumer thread
+ *  dequeues and acknowledges them in batches, the way that the writer does. Each
+ *  run compares a queue without the log, with the default (100 ms) sync interval,
+ *  and with a sync after every message. This is not run as part of the build;
+ *  invoke it manually:
+ *  <pre>
+ *      java -cp target/classes:target/test-classes \
+ *           com.kdgregory.logging.common.util.WriteAheadLogBenchmark [THREADS [MESSAGES [ITERATIONS]]]
+ *  </pre>
+ *  Where <code>THREADS</code> is the number of producers (default 8), <code>MESSAGES</code>
+ *  is the number of messages per producer (default 10,000), and <code>ITERATIONS</code>
+ *  is the number of timed runs for each configuration (default 3), following an
+ *  untimed warmup run. The log is written to a temporary directory, so results
+ *  depend on the filesystem that holds <code>java.io.tmpdir</code>.
+ */
+public class WriteAheadLogBenchmark
+{
+    private final static long[] SYNC_INTERVALS = { -1, 100, 0 };
+
+
+    public static void main(String[] argv)
+    throws Exception
+    {
+        int numThreads = (argv.length > 0) ? Integer.parseInt(argv[0]) : 8;
+        int messagesPerThread = (argv.length > 1) ? Integer.parseInt(argv[1]) : 10000;
+        int iterations = (argv.length > 2) ? Integer.parseInt(argv[2]) : 3;
+
+        System.out.println("producers: " + numThreads + ", messages per producer: " + messagesPerThread);
+
+        for (long syncInterval : SYNC_INTERVALS)
+        {
+            String label = (syncInterval < 0) ? "no wal" : "sync " + syncInterval;
+            run(syncInterval, numThreads, messagesPerThread);
+            for (int ii = 0 ; ii < iterations ; ii++)
+            {
+                long elapsed = run(syncInterval, numThreads, messagesPerThread);
+                long messages = (long)numThreads * messagesPerThread;
+                System.out.println(String.format(
+                                   "%-8s run %d: %,6d ms, %,12d messages/sec",
+                                   label, ii, elapsed, (elapsed == 0) ? 0 : messages * 1000 / elapsed));
+            }
+        }
+    }
+
+
+    private static long run(long syncInterval, int numThreads, final int messagesPerThread)
+    throws Exception
+    {
+        File directory = File.createTempFile("WriteAheadLogBenchmark", "");
+        directory.delete();
+
+        final MessageQueue queue = new MessageQueue(10000, DiscardAction.oldest);
+        if (syncInterval >= 0)
+        {
+            queue.enableWriteAheadLog(directory, 100 * 1024 * 1024, syncInterval);
+        }
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> producers = new ArrayList<Thread>(numThreads);
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            Thread producer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        startLatch.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    for (int jj = 0 ; jj < messagesPerThread ; jj++)
+                    {
+                        // the log assigns a sequence number to each message, so can't reuse them
+                        queue.enqueue(new LogMessage(System.currentTimeMillis(), "benchmark message"));
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        Consumer consumer = new Consumer(queue);
+        Thread consumerThread = new Thread(consumer);
+        consumerThread.start();
+
+        long start = System.currentTimeMillis();
+        startLatch.countDown();
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        consumer.running = false;
+        consumerThread.join();
+        queue.close();
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+
+        return elapsed;
+    }
+
+
+    private static class Consumer
+    implements Runnable
+    {
+        private MessageQueue queue;
+        public volatile boolean running = true;
+
+        public Consumer(MessageQueue queue)
+        {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run()
+        {
+            List<LogMessage> batch = new ArrayList<LogMessage>();
+            while (running || ! queue.isEmpty())
+            {
+                LogMessage message = queue.dequeue(100);
+                if (message != null)
+                {
+                    batch.add(message);
+                }
+                if ((batch.size() >= 1000) || ((message == null) && ! batch.isEmpty()))
+                {
+                    queue.acknowledge(batch);
+                    batch.clear();
+                }
+            }
+            queue.acknowledge(batch);
+        }
+    }
+}
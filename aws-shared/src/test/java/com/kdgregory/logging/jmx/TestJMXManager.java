@@ -14,12 +14,15 @@
 
 package com.kdgregory.logging.jmx;
 
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
 
+import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -28,10 +31,14 @@ import static org.junit.Assert.*;
 import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterStatistics;
 import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterStatisticsMXBean;
 import com.kdgregory.logging.aws.internal.AbstractWriterStatistics;
+import com.kdgregory.logging.aws.kinesis.KinesisWriterStatistics;
+import com.kdgregory.logging.aws.sns.SNSWriterStatistics;
 import com.kdgregory.logging.aws.testhelpers.TestableInternalLogger;
 import com.kdgregory.logging.aws.testhelpers.jmx.MockMBeanServer;
 import com.kdgregory.logging.common.jmx.AbstractJMXManager;
 import com.kdgregory.logging.common.jmx.AbstractMarkerBean;
+import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.MessageQueue;
 
 
 /**
@@ -413,4 +420,45 @@ public class TestJMXManager
         internalLogger.assertInternalWarningLog(".*server already registered.*" + MARKER_BEAN_NAME + ".*ignoring.*" + MARKER_BEAN_NAME);
         internalLogger.assertInternalErrorLog();
     }
+
+
+    @Test
+    public void testStatisticsBeansAreValidMXBeans() throws Exception
+    {
+        // the mock server doesn't introspect beans, so we use the platform server to
+        // verify that the statistics classes only expose open types
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        AbstractWriterStatistics[] statsBeans = new AbstractWriterStatistics[]
+        {
+            new CloudWatchWriterStatistics(),
+            new KinesisWriterStatistics(),
+            new SNSWriterStatistics()
+        };
+
+        for (AbstractWriterStatistics statsBean : statsBeans)
+        {
+            // normally set by the writer; the queue-based statistics require it
+            statsBean.setMessageQueue(new MessageQueue(1000, DiscardAction.oldest));
+
+            String beanType = statsBean.getClass().getSimpleName();
+            ObjectName beanName = new ObjectName("TestJMXManager:name=" + beanType);
+            server.registerMBean(statsBean, beanName);
+            try
+            {
+                for (MBeanAttributeInfo attribute : server.getMBeanInfo(beanName).getAttributes())
+                {
+                    server.getAttribute(beanName, attribute.getName());
+                }
+
+                TabularData snapshot = (TabularData)server.getAttribute(beanName, "Snapshot");
+                assertNotNull(beanType + ": snapshot has timestamp",                             snapshot.get(new Object[] { "Timestamp" }));
+                assertNotNull(beanType + ": snapshot has messages sent",                         snapshot.get(new Object[] { "MessagesSent" }));
+            }
+            finally
+            {
+                server.unregisterMBean(beanName);
+            }
+        }
+    }
 }
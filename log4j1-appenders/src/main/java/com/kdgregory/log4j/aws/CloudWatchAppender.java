@@ -37,6 +37,7 @@ extends AbstractAppender<CloudWatchWriterConfig,CloudWatchWriterStatistics,Cloud
 
     private String  logGroup;
     private String  logStream;
+    private int     logStreamCount;
 
 
     /**
@@ -50,6 +51,7 @@ extends AbstractAppender<CloudWatchWriterConfig,CloudWatchWriterStatistics,Cloud
               CloudWatchWriterStatisticsMXBean.class);
 
         logStream = "{startupTimestamp}";
+        logStreamCount = 1;
     }
 
 //----------------------------------------------------------------------------
@@ -104,6 +106,32 @@ extends AbstractAppender<CloudWatchWriterConfig,CloudWatchWriterStatistics,Cloud
         return logStream;
     }
 
+
+    /**
+     *  Sets the number of log streams that the appender writes to. The default,
+     *  1, writes to the configured log stream. Larger values write to streams
+     *  named by appending "-0", "-1", and so on to the configured name, with a
+     *  batch sent to each stream concurrently; use this when a single stream
+     *  can't keep up with the application's logging. Messages are still ordered
+     *  within each stream, but not between streams.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setLogStreamCount(int value)
+    {
+        logStreamCount = value;
+    }
+
+
+    /**
+     *  Returns the configured number of log streams.
+     */
+    public int getLogStreamCount()
+    {
+        return logStreamCount;
+    }
+
 //----------------------------------------------------------------------------
 //  Appender-specific methods
 //----------------------------------------------------------------------------
@@ -130,7 +158,9 @@ extends AbstractAppender<CloudWatchWriterConfig,CloudWatchWriterStatistics,Cloud
         String actualLogGroup   = subs.perform(logGroup);
         String actualLogStream  = subs.perform(logStream);
 
-        return new CloudWatchWriterConfig(actualLogGroup, actualLogStream, batchDelay, discardThreshold, discardAction, clientFactory, clientEndpoint);
+        CloudWatchWriterConfig config = new CloudWatchWriterConfig(actualLogGroup, actualLogStream, batchDelay, discardThreshold, discardAction, clientFactory, clientEndpoint);
+        config.logStreamCount = logStreamCount;
+        return config;
     }
 
 
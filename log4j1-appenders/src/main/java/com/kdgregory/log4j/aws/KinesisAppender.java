@@ -24,8 +24,10 @@ import com.kdgregory.logging.aws.kinesis.KinesisWriterStatisticsMXBean;
 import com.kdgregory.logging.aws.kinesis.KinesisConstants;
 import com.kdgregory.logging.aws.kinesis.KinesisWriterConfig;
 import com.kdgregory.logging.aws.kinesis.KinesisWriterFactory;
+import com.kdgregory.logging.aws.kinesis.ShardAssignment;
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.factories.DefaultThreadFactory;
+import com.kdgregory.logging.common.util.Compression;
 
 
 /**
@@ -41,6 +43,11 @@ extends AbstractAppender<KinesisWriterConfig,KinesisWriterStatistics,KinesisWrit
     private boolean         autoCreate;
     private int             shardCount;
     private Integer         retentionPeriod;    // we only set if not null
+    private int             parallelRequests;
+    private boolean         aggregateRecords;
+    private Compression     compression;
+    private ShardAssignment shardAssignment;
+    private boolean         shardRateLimit;
 
     // these variables hold the post-substitution log-group and log-stream names
     // (held here for testing, as they're passed to the writer for use)
@@ -64,6 +71,9 @@ extends AbstractAppender<KinesisWriterConfig,KinesisWriterStatistics,KinesisWrit
 
         partitionKey = "{startupTimestamp}";
         shardCount = 1;
+        parallelRequests = 1;
+        compression = Compression.none;
+        shardAssignment = ShardAssignment.none;
     }
 
 //----------------------------------------------------------------------------
@@ -201,6 +211,133 @@ extends AbstractAppender<KinesisWriterConfig,KinesisWriterStatistics,KinesisWrit
              : KinesisConstants.MINIMUM_RETENTION_PERIOD;
     }
 
+
+    /**
+     *  Sets the maximum number of PutRecords requests that the writer will have
+     *  in flight at one time. The default, 1, sends one batch at a time; higher
+     *  values let the writer take advantage of multiple shards, at the cost of
+     *  ordering between batches.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setParallelRequests(int value)
+    {
+        if (value < 1)
+        {
+            throw new IllegalArgumentException("parallelRequests must be at least 1");
+        }
+        parallelRequests = value;
+    }
+
+
+    /**
+     *  Returns the configured number of parallel requests.
+     */
+    public int getParallelRequests()
+    {
+        return parallelRequests;
+    }
+
+
+    /**
+     *  Sets whether the writer packs multiple messages into each Kinesis record,
+     *  using the aggregated-record format of the Kinesis Producer Library. This
+     *  greatly reduces the number of records written (which is what Kinesis
+     *  throttles on) when messages are small, but consumers must de-aggregate
+     *  (the Kinesis Client Library does this automatically).
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setAggregateRecords(boolean value)
+    {
+        aggregateRecords = value;
+    }
+
+
+    /**
+     *  Returns whether records are aggregated.
+     */
+    public boolean isAggregateRecords()
+    {
+        return aggregateRecords;
+    }
+
+
+    /**
+     *  Sets the compression applied to each record before it's sent: "none" (the
+     *  default), "gzip", "deflate" (zlib format), or "lz4" (frame format, faster
+     *  but compresses less). Consumers must decompress the records. Compression is
+     *  most effective when combined with record aggregation.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setCompression(String value)
+    {
+        compression = Compression.lookup(value);
+    }
+
+
+    /**
+     *  Returns the configured compression.
+     */
+    public String getCompression()
+    {
+        return compression.toString();
+    }
+
+
+    /**
+     *  Sets how records are assigned to shards: "none" (the default) lets Kinesis
+     *  hash the partition key; "roundRobin" and "leastLoaded" retrieve the stream's
+     *  shards and set an explicit hash key on each record, so that a single writer
+     *  can use the capacity of every shard. The latter two require permission to
+     *  call DescribeStream.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setShardAssignment(String value)
+    {
+        shardAssignment = ShardAssignment.lookup(value);
+    }
+
+
+    /**
+     *  Returns the configured shard assignment.
+     */
+    public String getShardAssignment()
+    {
+        return shardAssignment.toString();
+    }
+
+
+    /**
+     *  Enables client-side rate limiting: the writer delays requests that would
+     *  exceed the Kinesis per-shard limits of 1 MB and 1,000 records per second,
+     *  rather than sending them and retrying the throttled records. Limits are
+     *  tracked per shard if <code>shardAssignment</code> is set, otherwise for
+     *  the stream as a whole. Requires permission to call DescribeStream.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setShardRateLimit(boolean value)
+    {
+        shardRateLimit = value;
+    }
+
+
+    /**
+     *  Returns whether client-side rate limiting is enabled.
+     */
+    public boolean isShardRateLimit()
+    {
+        return shardRateLimit;
+    }
+
 //----------------------------------------------------------------------------
 //  Appender-specific methods
 //----------------------------------------------------------------------------
@@ -226,10 +363,17 @@ extends AbstractAppender<KinesisWriterConfig,KinesisWriterStatistics,KinesisWrit
             throw new RuntimeException("JVM doesn't support UTF-8 (should never happen)");
         }
 
-        return new KinesisWriterConfig(actualStreamName, actualPartitionKey, partitionKeyLength,
-                                       batchDelay, discardThreshold, discardAction,
-                                       clientFactory, clientEndpoint,
-                                       autoCreate, shardCount, retentionPeriod);
+        KinesisWriterConfig config = new KinesisWriterConfig(
+                                        actualStreamName, actualPartitionKey, partitionKeyLength,
+                                        batchDelay, discardThreshold, discardAction,
+                                        clientFactory, clientEndpoint,
+                                        autoCreate, shardCount, retentionPeriod);
+        config.parallelRequests = parallelRequests;
+        config.aggregateRecords = aggregateRecords;
+        config.compression = compression;
+        config.shardAssignment = shardAssignment;
+        config.shardRateLimit = shardRateLimit;
+        return config;
     }
 
 
@@ -238,6 +382,8 @@ extends AbstractAppender<KinesisWriterConfig,KinesisWriterStatistics,KinesisWrit
     {
         // note: we assume that the writer config has been generated as part of
         //       initialization, prior to any message being processed
+        // note: compression doesn't matter here, because the writer sends a message
+        //       uncompressed if compressing it makes it too large
 
         return (message.size() + partitionKeyLength) >= KinesisConstants.MAX_MESSAGE_BYTES;
     }
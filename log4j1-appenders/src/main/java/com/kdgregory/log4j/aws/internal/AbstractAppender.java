@@ -16,16 +16,24 @@ package com.kdgregory.log4j.aws.internal;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+import com.kdgregory.logging.aws.internal.AbstractWriterConfig;
 import com.kdgregory.logging.aws.internal.AbstractWriterStatistics;
 import com.kdgregory.logging.common.LogMessage;
 import com.kdgregory.logging.common.LogWriter;
+import com.kdgregory.logging.common.factories.SharedThreadFactory;
 import com.kdgregory.logging.common.factories.ThreadFactory;
+import com.kdgregory.logging.common.factories.VirtualThreadFactory;
 import com.kdgregory.logging.common.factories.WriterFactory;
 import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.DispatchMode;
+import com.kdgregory.logging.common.util.MessageQueue;
+import com.kdgregory.logging.common.util.QueueType;
 import com.kdgregory.logging.common.util.RotationMode;
 
 
@@ -48,7 +56,7 @@ import com.kdgregory.logging.common.util.RotationMode;
  *  so any application code that touches these variables should not be surprised if
  *  they cease to exist.
  */
-public abstract class AbstractAppender<WriterConfigType,AppenderStatsType extends AbstractWriterStatistics,AppenderStatsMXBeanType>
+public abstract class AbstractAppender<WriterConfigType extends AbstractWriterConfig,AppenderStatsType extends AbstractWriterStatistics,AppenderStatsMXBeanType>
 extends AppenderSkeleton
 {
     // flag to indicate whether we need to run setup
@@ -67,6 +75,11 @@ extends AppenderSkeleton
     protected ThreadFactory threadFactory;
     protected WriterFactory<WriterConfigType,AppenderStatsType> writerFactory;
 
+    // the thread factory passed to the constructor; the dispatch mode only applies
+    // if it hasn't been replaced (eg, by a test)
+
+    private ThreadFactory defaultThreadFactory;
+
     // used for internal logging: we manage this and expose it to our subclasses
 
     protected Log4JInternalLogger logger;
@@ -95,19 +108,41 @@ extends AppenderSkeleton
 
     private Object initializationLock = new Object();
 
-    // this object is used to synchronize the critical section in append()
-    private Object appendLock = new Object();
+    // this lock guards the critical sections in append(): formatting (layouts aren't
+    // thread-safe) and rotation; it's an explicit lock rather than synchronization
+    // because a virtual thread that blocks while holding a monitor pins its carrier
+    // thread. Passing the message to the writer happens outside the lock, because
+    // it may block (discardAction "block") and shouldn't stall other threads.
+    private ReentrantLock appendLock = new ReentrantLock();
 
     // all member vars below this point are shared configuration
 
     protected long            batchDelay;
     protected int             discardThreshold;
+    protected long            discardThresholdBytes;
     protected DiscardAction   discardAction;
     protected RotationMode    rotationMode = RotationMode.none;
     protected long            rotationInterval;
     protected AtomicInteger   sequence;
     protected String          clientFactory;
     protected String          clientEndpoint;
+    protected QueueType       queueType;
+    protected DispatchMode    dispatchMode;
+    protected String          spillDirectory;
+    protected long            spillMaxBytes;
+    protected boolean         priorityLanes;
+    protected long            enqueueTimeout;
+    protected boolean         pipelined;
+    protected long            minBatchDelay;
+    protected long            maxBatchDelay;
+    protected int             batchFillPercent;
+    protected long            maxLatency;
+    protected int             circuitBreakerThreshold;
+    protected long            circuitBreakerMinInterval;
+    protected long            circuitBreakerMaxInterval;
+    protected String          walDirectory;
+    protected long            walMaxBytes;
+    protected long            walSyncInterval;
 
 
 //----------------------------------------------------------------------------
@@ -121,6 +156,7 @@ extends AppenderSkeleton
         Class<AppenderStatsMXBeanType> appenderStatsMXBeanClass)
     {
         this.threadFactory = threadFactory;
+        this.defaultThreadFactory = threadFactory;
         this.writerFactory = writerFactory;
         this.appenderStats = appenderStats;
         this.appenderStatsMXBeanClass = appenderStatsMXBeanClass;
@@ -130,6 +166,14 @@ extends AppenderSkeleton
         batchDelay = 2000;
         discardThreshold = 10000;
         discardAction = DiscardAction.oldest;
+        queueType = QueueType.deque;
+        dispatchMode = DispatchMode.dedicated;
+        spillMaxBytes = 100 * 1024 * 1024;
+        walMaxBytes = 100 * 1024 * 1024;
+        walSyncInterval = 100;
+        circuitBreakerMinInterval = 1000;
+        circuitBreakerMaxInterval = 60000;
+        enqueueTimeout = MessageQueue.DEFAULT_ENQUEUE_TIMEOUT;
         rotationMode = RotationMode.none;
         rotationInterval = -1;
         sequence = new AtomicInteger();
@@ -213,6 +257,370 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Sets a limit on the total size, in bytes, of the messages that will be
+     *  retained if unable to send. This is applied in addition to the count-based
+     *  discard threshold, using the same discard action, and lets you bound the
+     *  memory consumed by the queue regardless of message size. The default is 0,
+     *  which disables the limit.
+     *  <p>
+     *  May be changed at runtime; the new value is applied by the next append.
+     */
+    public void setDiscardThresholdBytes(long value)
+    {
+        discardThresholdBytes = value;
+        if (writer != null)
+        {
+            writer.setDiscardThresholdBytes(value);
+        }
+    }
+
+
+    /**
+     *  Returns the configured byte-based discard threshold.
+     */
+    public long getDiscardThresholdBytes()
+    {
+        return discardThresholdBytes;
+    }
+
+
+    /**
+     *  Sets a directory where messages are written ("spilled") once the discard
+     *  threshold is reached, rather than being discarded. The writer will send
+     *  spilled messages, in order, once it catches up. The directory will be
+     *  created if it does not exist; spill files are deleted when the writer
+     *  stops. By default this is null, and messages are discarded.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setSpillDirectory(String value)
+    {
+        spillDirectory = value;
+    }
+
+
+    /**
+     *  Returns the configured spill directory.
+     */
+    public String getSpillDirectory()
+    {
+        return spillDirectory;
+    }
+
+
+    /**
+     *  Sets the maximum total size of spill files. Once this is reached, the discard
+     *  action is applied: "oldest" discards the oldest spilled messages, "newest"
+     *  discards new messages, and "none" holds them in memory. The default is
+     *  100 MB.
+     */
+    public void setSpillMaxBytes(long value)
+    {
+        spillMaxBytes = value;
+    }
+
+
+    /**
+     *  Returns the configured maximum size of spill files.
+     */
+    public long getSpillMaxBytes()
+    {
+        return spillMaxBytes;
+    }
+
+
+    /**
+     *  Sets a directory for the write-ahead log. If set, every message is written
+     *  to a file in this directory before being queued, and removed once it has been
+     *  sent. Messages that haven't been sent when the JVM exits (including crashes)
+     *  are sent by the next writer that uses the directory. Each appender must have
+     *  its own directory. By default this is null, and the log is disabled.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setWalDirectory(String value)
+    {
+        walDirectory = value;
+    }
+
+
+    /**
+     *  Returns the configured write-ahead log directory.
+     */
+    public String getWalDirectory()
+    {
+        return walDirectory;
+    }
+
+
+    /**
+     *  Sets the maximum total size of write-ahead log files. Once this is reached,
+     *  the oldest unsent messages are removed from the log (but are still held in
+     *  memory). The default is 100 MB.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setWalMaxBytes(long value)
+    {
+        walMaxBytes = value;
+    }
+
+
+    /**
+     *  Returns the configured maximum size of write-ahead log files.
+     */
+    public long getWalMaxBytes()
+    {
+        return walMaxBytes;
+    }
+
+
+    /**
+     *  Sets the interval, in milliseconds, at which the write-ahead log is synced to
+     *  disk. Messages are written to the operating system as they're logged, so will
+     *  survive a crash of the JVM; syncing protects them from a crash of the machine.
+     *  The default is 100; 0 syncs every message, which is safest but much slower.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setWalSyncInterval(long value)
+    {
+        walSyncInterval = value;
+    }
+
+
+    /**
+     *  Returns the configured write-ahead log sync interval.
+     */
+    public long getWalSyncInterval()
+    {
+        return walSyncInterval;
+    }
+
+
+    /**
+     *  Sets whether the message queue holds messages in separate lanes by level,
+     *  so that discards take from the least important level first (in other words,
+     *  ERROR messages are only discarded once there are no WARN, INFO, or DEBUG
+     *  messages left in the queue). The discard action still determines whether
+     *  the oldest or newest message of that level is discarded. This uses the
+     *  "deque" queue type, regardless of the <code>queueType</code> setting (a
+     *  warning is logged if both are configured).
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setPriorityLanes(boolean value)
+    {
+        priorityLanes = value;
+    }
+
+
+    /**
+     *  Returns whether the message queue uses priority lanes.
+     */
+    public boolean getPriorityLanes()
+    {
+        return priorityLanes;
+    }
+
+
+    /**
+     *  Sets whether the writer assembles the next batch while the current batch is
+     *  being sent. For CloudWatch Logs (and SNS) batches are still sent one at a
+     *  time; for Kinesis, multiple batches may be sent concurrently, which means
+     *  that ordering between batches isn't guaranteed.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setPipelined(boolean value)
+    {
+        pipelined = value;
+    }
+
+
+    /**
+     *  Returns whether the writer is pipelined.
+     */
+    public boolean getPipelined()
+    {
+        return pipelined;
+    }
+
+
+    /**
+     *  Sets the lower bound for the adaptive batch delay, in milliseconds. This is
+     *  ignored unless <code>maxBatchDelay</code> is also set.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setMinBatchDelay(long value)
+    {
+        minBatchDelay = value;
+    }
+
+
+    /**
+     *  Returns the lower bound for the adaptive batch delay.
+     */
+    public long getMinBatchDelay()
+    {
+        return minBatchDelay;
+    }
+
+
+    /**
+     *  Sets the upper bound for the adaptive batch delay, in milliseconds. If
+     *  non-zero, the writer adjusts its batch delay between the minimum and this
+     *  value, waiting longer when the message rate is low and sending sooner when
+     *  messages are backing up; <code>batchDelay</code> is the starting point.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setMaxBatchDelay(long value)
+    {
+        maxBatchDelay = value;
+    }
+
+
+    /**
+     *  Returns the upper bound for the adaptive batch delay; 0 means that the
+     *  batch delay is fixed.
+     */
+    public long getMaxBatchDelay()
+    {
+        return maxBatchDelay;
+    }
+
+
+    /**
+     *  Sets the fill target for batches, as a percentage of the service limits on
+     *  message count and bytes. Once a batch reaches this size it's sent without
+     *  waiting for the rest of the batch delay. 0 (the default) or 100 means that
+     *  the batch is sent when it reaches the service limits.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setBatchFillPercent(int value)
+    {
+        if ((value < 0) || (value > 100))
+            throw new IllegalArgumentException("batchFillPercent must be between 0 and 100");
+
+        batchFillPercent = value;
+    }
+
+
+    /**
+     *  Returns the batch fill target, as a percentage of the service limits.
+     */
+    public int getBatchFillPercent()
+    {
+        return batchFillPercent;
+    }
+
+
+    /**
+     *  Sets the maximum end-to-end latency for a message, in milliseconds, measured
+     *  from when it's appended until it's been sent. If non-zero, a batch is sent
+     *  before the batch delay expires if waiting would cause its oldest message to
+     *  exceed this latency. This is a target, not a guarantee: it can't be met if
+     *  the service is unavailable or throttling requests.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setMaxLatency(long value)
+    {
+        maxLatency = value;
+    }
+
+
+    /**
+     *  Returns the maximum end-to-end latency; 0 means that there's no maximum.
+     */
+    public long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+
+    /**
+     *  Sets the number of consecutive failed batches that will open the writer's
+     *  circuit breaker, after which it stops sending for a time. The default, 0,
+     *  disables the circuit breaker.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setCircuitBreakerThreshold(int value)
+    {
+        circuitBreakerThreshold = value;
+    }
+
+
+    /**
+     *  Returns the circuit breaker threshold; 0 means that it's disabled.
+     */
+    public int getCircuitBreakerThreshold()
+    {
+        return circuitBreakerThreshold;
+    }
+
+
+    /**
+     *  Sets the number of milliseconds that the circuit breaker stays open the
+     *  first time that it opens. The default is 1000.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setCircuitBreakerMinInterval(long value)
+    {
+        circuitBreakerMinInterval = value;
+    }
+
+
+    /**
+     *  Returns the initial circuit breaker open interval.
+     */
+    public long getCircuitBreakerMinInterval()
+    {
+        return circuitBreakerMinInterval;
+    }
+
+
+    /**
+     *  Sets the maximum number of milliseconds that the circuit breaker stays open;
+     *  the interval doubles each time that a trial batch fails, up to this value.
+     *  The default is 60000.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setCircuitBreakerMaxInterval(long value)
+    {
+        circuitBreakerMaxInterval = value;
+    }
+
+
+    /**
+     *  Returns the maximum circuit breaker open interval.
+     */
+    public long getCircuitBreakerMaxInterval()
+    {
+        return circuitBreakerMaxInterval;
+    }
+
+
     /**
      *  Sets the action to take when the number of unsent messages exceeds the discard
      *  threshold. Values are "none" (retain all messages), "oldest" (discard oldest
@@ -244,6 +652,32 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Sets the number of milliseconds that an append will wait for room in the
+     *  queue when the discard action is "block". Once this time has elapsed, the
+     *  oldest message in the queue is discarded. The default is 1000 (1 second).
+     *  <p>
+     *  May be changed at runtime; the new value is applied by the next append.
+     */
+    public void setEnqueueTimeout(long value)
+    {
+        enqueueTimeout = value;
+        if (writer != null)
+        {
+            writer.setEnqueueTimeout(value);
+        }
+    }
+
+
+    /**
+     *  Returns the configured enqueue timeout.
+     */
+    public long getEnqueueTimeout()
+    {
+        return enqueueTimeout;
+    }
+
+
     /**
      *  Sets the rule for log stream rotation, for those appenders that support rotation.
      *  See {@link com.kdgregory.logging.common.util.RotationMode} for values.
@@ -357,6 +791,59 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Sets the type of queue used to hold messages until the writer sends them.
+     *  Values are "deque" (the default), which uses a lock on every operation, and
+     *  "ring", which lets application threads add messages without locking. The
+     *  latter is intended for applications where many threads log concurrently.
+     *  Note that log4j synchronizes on the logger while calling its appenders, so
+     *  threads that log via the same logger are still serialized before reaching
+     *  the queue.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setQueueType(String value)
+    {
+        queueType = QueueType.lookup(value);
+    }
+
+
+    /**
+     *  Returns the configured queue type.
+     */
+    public String getQueueType()
+    {
+        return queueType.toString();
+    }
+
+
+    /**
+     *  Sets how the writer is run. Values are "dedicated" (the default), in which
+     *  each writer has its own thread, and "shared", in which writers run on a small
+     *  pool of threads that's shared by all appenders in the JVM, and "virtual", in
+     *  which each writer has its own virtual thread (JDK 21+; on earlier JVMs this
+     *  is the same as "dedicated"). The latter two are intended for applications
+     *  that have many appenders.
+     *  <p>
+     *  This takes effect when the next writer is created, so should be set as
+     *  part of appender configuration.
+     */
+    public void setDispatchMode(String value)
+    {
+        dispatchMode = DispatchMode.lookup(value);
+    }
+
+
+    /**
+     *  Returns the configured dispatch mode.
+     */
+    public String getDispatchMode()
+    {
+        return dispatchMode.toString();
+    }
+
+
 //----------------------------------------------------------------------------
 //  Other accessors
 //----------------------------------------------------------------------------
@@ -379,10 +866,49 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Sends any queued messages without waiting for the batch delay, and waits up
+     *  to the specified number of milliseconds for the destination to acknowledge
+     *  them. This is intended for programs such as batch jobs or Lambdas that are
+     *  about to exit. Returns <code>true</code> if all messages logged before the call
+     *  were sent (or there was nothing to send), <code>false</code> if the timeout
+     *  expired. Messages logged by other threads during the flush don't delay it.
+     */
+    public boolean flush(long timeout)
+    {
+        LogWriter currentWriter = writer;
+        return (currentWriter == null) || currentWriter.flush(timeout);
+    }
+
+
 //----------------------------------------------------------------------------
 //  Appender overrides
 //----------------------------------------------------------------------------
 
+    /**
+     *  Replaces the superclass implementation, which is synchronized and would let
+     *  only one thread at a time append (and wait, if the queue is full). This does
+     *  the same checks, and relies on {@link #append} for concurrency control.
+     */
+    @Override
+    public void doAppend(LoggingEvent event)
+    {
+        if (! isAsSevereAsThreshold(event.getLevel()))
+            return;
+
+        for (Filter filter = getFirstFilter() ; filter != null ; filter = filter.getNext())
+        {
+            int decision = filter.decide(event);
+            if (decision == Filter.DENY)
+                return;
+            if (decision == Filter.ACCEPT)
+                break;
+        }
+
+        append(event);
+    }
+
+
     @Override
     protected void append(LoggingEvent event)
     {
@@ -398,7 +924,17 @@ extends AppenderSkeleton
 
         try
         {
-            internalAppend(Utils.convertToLogMessage(event, getLayout()));
+            LogMessage message;
+            appendLock.lock();
+            try
+            {
+                message = Utils.convertToLogMessage(event, getLayout());
+            }
+            finally
+            {
+                appendLock.unlock();
+            }
+            internalAppend(message);
         }
         catch (Exception ex)
         {
@@ -493,6 +1029,34 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Retrieves the writer-specific configuration from the subclass, and fills in
+     *  the optional configuration that's shared by all writers.
+     */
+    private WriterConfigType generateConfig()
+    {
+        WriterConfigType config = generateWriterConfig();
+        config.queueType = queueType;
+        config.discardThresholdBytes = discardThresholdBytes;
+        config.spillDirectory = spillDirectory;
+        config.spillMaxBytes = spillMaxBytes;
+        config.priorityLanes = priorityLanes;
+        config.enqueueTimeout = enqueueTimeout;
+        config.pipelined = pipelined;
+        config.minBatchDelay = minBatchDelay;
+        config.maxBatchDelay = maxBatchDelay;
+        config.batchFillPercent = batchFillPercent;
+        config.maxLatency = maxLatency;
+        config.circuitBreakerThreshold = circuitBreakerThreshold;
+        config.circuitBreakerMinInterval = circuitBreakerMinInterval;
+        config.circuitBreakerMaxInterval = circuitBreakerMaxInterval;
+        config.walDirectory = walDirectory;
+        config.walMaxBytes = walMaxBytes;
+        config.walSyncInterval = walSyncInterval;
+        return config;
+    }
+
+
     /**
      *  Called by {@link #initialize} and also {@link #rotate}, to switch to a new
      *  writer. Does not close the old writer, if any.
@@ -501,10 +1065,15 @@ extends AppenderSkeleton
     {
         synchronized (initializationLock)
         {
+            if (priorityLanes && (queueType != QueueType.deque))
+            {
+                logger.warn("priorityLanes uses a deque for each lane; queueType " + queueType + " is ignored");
+            }
+
             try
             {
-                writer = writerFactory.newLogWriter(generateWriterConfig(), appenderStats, logger);
-                threadFactory.startLoggingThread(writer, new UncaughtExceptionHandler()
+                writer = writerFactory.newLogWriter(generateConfig(), appenderStats, logger);
+                writerThreadFactory().startLoggingThread(writer, new UncaughtExceptionHandler()
                 {
                     @Override
                     public void uncaughtException(Thread t, Throwable ex)
@@ -531,6 +1100,27 @@ extends AppenderSkeleton
     }
 
 
+    /**
+     *  Returns the thread factory to use for a new writer, based on the dispatch mode.
+     *  A factory that's replaced the default is always used as-is.
+     */
+    private ThreadFactory writerThreadFactory()
+    {
+        if (threadFactory != defaultThreadFactory)
+            return threadFactory;
+
+        switch (dispatchMode)
+        {
+            case shared:
+                return new SharedThreadFactory(getName());
+            case virtual:
+                return new VirtualThreadFactory(getName());
+            default:
+                return threadFactory;
+        }
+    }
+
+
     /**
      *  Closes the current writer.
      */
@@ -596,7 +1186,12 @@ extends AppenderSkeleton
             return;
         }
 
-        synchronized (appendLock)
+        // a writer that's replaced by a concurrent rotation after we release the lock
+        // will still send the message, because it doesn't shut down until its queue
+        // is empty
+        LogWriter currentWriter;
+        appendLock.lock();
+        try
         {
             long now = System.currentTimeMillis();
             if (shouldRotate(now))
@@ -606,16 +1201,25 @@ extends AppenderSkeleton
                 rotate();
             }
 
-            if (writer == null)
+            currentWriter = writer;
+            if (currentWriter != null)
             {
-                logger.error("appender not properly configured: writer is null", null);
-            }
-            else
-            {
-                writer.addMessage(message);
                 messagesSinceLastRotation++;
             }
         }
+        finally
+        {
+            appendLock.unlock();
+        }
+
+        if (currentWriter == null)
+        {
+            logger.error("appender not properly configured: writer is null", null);
+            return;
+        }
+
+        // if blocked, the time is recorded by the writer's queue, for each caller
+        currentWriter.addMessage(message);
     }
 
 
@@ -18,9 +18,11 @@ import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
 
 import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.util.Severity;
 
 /**
  *  Utility classes for working with Log4J. These methods may get absorbed elsewhere.
@@ -49,7 +51,7 @@ public class Utils
             }
             out.close();
 
-            return new LogMessage(event.getTimeStamp(), out.toString());
+            return new LogMessage(event.getTimeStamp(), out.toString(), convertToSeverity(event.getLevel()));
         }
         catch (UnsupportedEncodingException e)
         {
@@ -60,4 +62,18 @@ public class Utils
             throw new RuntimeException("error creating LogMessage", ex);
         }
     }
+
+
+    /**
+     *  Maps a Log4J level to a message severity. FATAL is treated as ERROR, and
+     *  TRACE (or any other level below INFO) as DEBUG.
+     */
+    public static Severity convertToSeverity(Level level)
+    {
+        int value = (level != null) ? level.toInt() : Level.INFO_INT;
+        return (value >= Level.ERROR_INT) ? Severity.error
+             : (value >= Level.WARN_INT)  ? Severity.warn
+             : (value >= Level.INFO_INT)  ? Severity.info
+             : Severity.debug;
+    }
 }
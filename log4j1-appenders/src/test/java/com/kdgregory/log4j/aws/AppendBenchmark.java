@@ -0,0 +1,233 @@
+// Copyright (c) Keith D Gregory
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kdgregory.log4j.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.kdgregory.log4j.testhelpers.aws.cloudwatch.TestableCloudWatchAppender;
+import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterConfig;
+import com.kdgregory.logging.aws.cloudwatch.CloudWatchWriterStatistics;
+import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.LogWriter;
+import com.kdgregory.logging.common.factories.DefaultThreadFactory;
+import com.kdgregory.logging.common.factories.WriterFactory;
+import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.InternalLogger;
+import com.kdgregory.logging.common.util.MessageQueue;
+import com.kdgregory.logging.common.util.QueueType;
+
+
+/**
+ *  Compares the queue types on the appender's append path, as opposed to the
+ *  queue in isolation (see <code>MessageQueueBenchmark</code>). Producer threads
+ *  either log via a logger, which is how applications use the appender and which
+ *  log4j synchronizes, or call the appender's <code>doAppend()</code> directly.
+ *  The appender's writer is replaced by one that only enqueues messages, with a
+ *  single consumer thread draining the queue. This is not run as part of the
+ *  build; invoke it manually:
+ *  <pre>
+ *      java -cp target/classes:target/test-classes:DEPENDENCIES \
+ *           com.kdgregory.log4j.aws.AppendBenchmark [THREADS [MESSAGES [ITERATIONS]]]
+ *  </pre>
+ *  Where <code>THREADS</code> is the number of producers (default 64), <code>MESSAGES</code>
+ *  is the number of messages per producer (default 100,000), and <code>ITERATIONS</code>
+ *  is the number of timed runs for each combination of queue type and path (default
+ *  5), following an untimed warmup run.
+ */
+public class AppendBenchmark
+{
+    public static void main(String[] argv)
+    throws Exception
+    {
+        int numThreads = (argv.length > 0) ? Integer.parseInt(argv[0]) : 64;
+        int messagesPerThread = (argv.length > 1) ? Integer.parseInt(argv[1]) : 100000;
+        int iterations = (argv.length > 2) ? Integer.parseInt(argv[2]) : 5;
+
+        System.out.println("producers: " + numThreads + ", messages per producer: " + messagesPerThread);
+
+        for (QueueType queueType : QueueType.values())
+        {
+            for (boolean viaLogger : new boolean[] { true, false })
+            {
+                run(queueType, viaLogger, numThreads, messagesPerThread);
+                for (int ii = 0 ; ii < iterations ; ii++)
+                {
+                    long elapsed = run(queueType, viaLogger, numThreads, messagesPerThread);
+                    long messagesPerSecond = (elapsed == 0) ? 0 : ((long)numThreads * messagesPerThread * 1000 / elapsed);
+                    System.out.println(String.format(
+                                       "%-6s %-8s run %d: %,6d ms, %,12d messages/sec",
+                                       queueType, (viaLogger ? "logger" : "doAppend"), ii,
+                                       elapsed, messagesPerSecond));
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Creates an appender and has all producers write to it; returns the elapsed
+     *  milliseconds for the producers to finish.
+     */
+    private static long run(QueueType queueType, final boolean viaLogger, int numThreads, final int messagesPerThread)
+    throws Exception
+    {
+        final TestableCloudWatchAppender appender = new TestableCloudWatchAppender();
+        appender.setName("benchmark");
+        appender.setLayout(new PatternLayout("%m"));
+        appender.setQueueType(queueType.toString());
+        appender.setThreadFactory(new DefaultThreadFactory("benchmark"));
+        appender.setWriterFactory(new QueueWriterFactory());
+
+        final Logger logger = Logger.getLogger("benchmark-" + queueType + "-" + viaLogger);
+        logger.setAdditivity(false);
+        logger.removeAllAppenders();
+        logger.addAppender(appender);
+        logger.setLevel(Level.INFO);
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>(numThreads);
+        for (int ii = 0 ; ii < numThreads ; ii++)
+        {
+            Thread producer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        startLatch.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    for (int jj = 0 ; jj < messagesPerThread ; jj++)
+                    {
+                        if (viaLogger)
+                            logger.info("benchmark message");
+                        else
+                            appender.doAppend(new LoggingEvent(AppendBenchmark.class.getName(), logger, Level.INFO, "benchmark message", null));
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        long start = System.currentTimeMillis();
+        startLatch.countDown();
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        logger.removeAllAppenders();
+        appender.close();
+        return elapsed;
+    }
+
+
+    private static class QueueWriterFactory
+    implements WriterFactory<CloudWatchWriterConfig,CloudWatchWriterStatistics>
+    {
+        @Override
+        public LogWriter newLogWriter(CloudWatchWriterConfig config, CloudWatchWriterStatistics stats, InternalLogger ignored)
+        {
+            return new QueueWriter(config);
+        }
+    }
+
+
+    /**
+     *  A writer that holds messages in the configured queue type, and discards them
+     *  as fast as it can read them.
+     */
+    private static class QueueWriter
+    implements LogWriter
+    {
+        private MessageQueue queue;
+        private volatile boolean running = true;
+
+        public QueueWriter(CloudWatchWriterConfig config)
+        {
+            queue = new MessageQueue(config.discardThreshold, DiscardAction.oldest, config.queueType);
+        }
+
+        @Override
+        public void run()
+        {
+            while (running || ! queue.isEmpty())
+            {
+                queue.dequeue(100);
+            }
+        }
+
+        @Override
+        public void addMessage(LogMessage message)
+        {
+            queue.enqueue(message);
+        }
+
+        @Override
+        public void stop()
+        {
+            running = false;
+        }
+
+        @Override
+        public boolean flush(long timeout)
+        {
+            return true;
+        }
+
+        @Override
+        public void setBatchDelay(long value)
+        {
+            // ignored
+        }
+
+        @Override
+        public void setDiscardThreshold(int value)
+        {
+            queue.setDiscardThreshold(value);
+        }
+
+        @Override
+        public void setDiscardThresholdBytes(long value)
+        {
+            // ignored
+        }
+
+        @Override
+        public void setDiscardAction(DiscardAction value)
+        {
+            queue.setDiscardAction(value);
+        }
+
+        @Override
+        public void setEnqueueTimeout(long value)
+        {
+            // ignored
+        }
+    }
+}
@@ -16,16 +16,20 @@ package com.kdgregory.log4j.aws;
 
 
 import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
 
 import net.sf.kdgcommons.lang.StringUtil;
 import static net.sf.kdgcommons.test.StringAsserts.*;
@@ -39,8 +43,11 @@ import com.kdgregory.logging.aws.testhelpers.TestingException;
 import com.kdgregory.logging.aws.testhelpers.ThrowingWriterFactory;
 import com.kdgregory.logging.aws.testhelpers.cloudwatch.MockCloudWatchWriter;
 import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.LogWriter;
 import com.kdgregory.logging.common.factories.DefaultThreadFactory;
+import com.kdgregory.logging.common.factories.WriterFactory;
 import com.kdgregory.logging.common.util.DiscardAction;
+import com.kdgregory.logging.common.util.InternalLogger;
 
 
 /**
@@ -95,6 +102,7 @@ public class TestCloudWatchAppender
 
         assertEquals("log group name",      "argle",                appender.getLogGroup());
         assertEquals("log stream name",     "bargle",               appender.getLogStream());
+        assertEquals("log stream count",    4,                      appender.getLogStreamCount());
         assertEquals("max delay",           1234L,                  appender.getBatchDelay());
         assertEquals("sequence",            2,                              appender.getSequence());
         assertEquals("rotation mode",       "interval",                     appender.getRotationMode());
@@ -103,6 +111,23 @@ public class TestCloudWatchAppender
         assertEquals("discard action",      "newest",                       appender.getDiscardAction());
         assertEquals("client factory",      "com.example.Foo.bar",          appender.getClientFactory());
         assertEquals("client endpoint",     "logs.us-west-2.amazonaws.com", appender.getClientEndpoint());
+        assertEquals("discard bytes",       1048576L,                       appender.getDiscardThresholdBytes());
+        assertEquals("queue type",          "ring",                         appender.getQueueType());
+        assertEquals("spill directory",     "/tmp/spill",                   appender.getSpillDirectory());
+        assertEquals("spill max bytes",     2097152L,                       appender.getSpillMaxBytes());
+        assertEquals("priority lanes",      true,                           appender.getPriorityLanes());
+        assertEquals("pipelined",           true,                           appender.getPipelined());
+        assertEquals("min batch delay",     50L,                            appender.getMinBatchDelay());
+        assertEquals("max batch delay",     5000L,                          appender.getMaxBatchDelay());
+        assertEquals("batch fill",          75,                             appender.getBatchFillPercent());
+        assertEquals("max latency",         5000L,                          appender.getMaxLatency());
+        assertEquals("breaker threshold",   3,                              appender.getCircuitBreakerThreshold());
+        assertEquals("breaker min",         500L,                           appender.getCircuitBreakerMinInterval());
+        assertEquals("breaker max",         30000L,                         appender.getCircuitBreakerMaxInterval());
+        assertEquals("dispatch mode",       "shared",                       appender.getDispatchMode());
+        assertEquals("wal directory",       "/tmp/wal",                     appender.getWalDirectory());
+        assertEquals("wal max bytes",       4194304L,                       appender.getWalMaxBytes());
+        assertEquals("wal sync interval",   250L,                           appender.getWalSyncInterval());
     }
 
 
@@ -115,6 +140,7 @@ public class TestCloudWatchAppender
         assertNull("log group name",    appender.getLogGroup());
 
         assertEquals("log stream name",     "{startupTimestamp}",           appender.getLogStream());
+        assertEquals("log stream count",    1,                              appender.getLogStreamCount());
         assertEquals("max delay",           2000L,                          appender.getBatchDelay());
         assertEquals("sequence",            0,                              appender.getSequence());
         assertEquals("rotation mode",       "none",                         appender.getRotationMode());
@@ -123,6 +149,23 @@ public class TestCloudWatchAppender
         assertEquals("discard action",      "oldest",                       appender.getDiscardAction());
         assertEquals("client factory",      null,                           appender.getClientFactory());
         assertEquals("client endpoint",     null,                           appender.getClientEndpoint());
+        assertEquals("discard bytes",       0L,                             appender.getDiscardThresholdBytes());
+        assertEquals("queue type",          "deque",                        appender.getQueueType());
+        assertEquals("spill directory",     null,                           appender.getSpillDirectory());
+        assertEquals("spill max bytes",     104857600L,                     appender.getSpillMaxBytes());
+        assertEquals("priority lanes",      false,                          appender.getPriorityLanes());
+        assertEquals("pipelined",           false,                          appender.getPipelined());
+        assertEquals("min batch delay",     0L,                             appender.getMinBatchDelay());
+        assertEquals("max batch delay",     0L,                             appender.getMaxBatchDelay());
+        assertEquals("batch fill",          0,                              appender.getBatchFillPercent());
+        assertEquals("max latency",         0L,                             appender.getMaxLatency());
+        assertEquals("breaker threshold",   0,                              appender.getCircuitBreakerThreshold());
+        assertEquals("breaker min",         1000L,                          appender.getCircuitBreakerMinInterval());
+        assertEquals("breaker max",         60000L,                         appender.getCircuitBreakerMaxInterval());
+        assertEquals("dispatch mode",       "dedicated",                    appender.getDispatchMode());
+        assertEquals("wal directory",       null,                           appender.getWalDirectory());
+        assertEquals("wal max bytes",       104857600L,                     appender.getWalMaxBytes());
+        assertEquals("wal sync interval",   100L,                           appender.getWalSyncInterval());
     }
 
 
@@ -135,6 +178,7 @@ public class TestCloudWatchAppender
         long initialTimestamp = System.currentTimeMillis();
 
         assertNull("before messages, writer is null",                   appender.getWriter());
+        assertTrue("before messages, flush is no-op",                   appender.flush(100));
 
         logger.debug("first message");
 
@@ -177,6 +221,12 @@ public class TestCloudWatchAppender
         appender.setBatchDelay(1234567);
         assertEquals("writer batch delay propagated", 1234567, writer.batchDelay);
 
+        // and that flush is passed to the writer
+
+        assertTrue("flush succeeded", appender.flush(500));
+        assertEquals("writer flush count", 1, writer.flushCount);
+        assertEquals("writer flush timeout", 500L, writer.lastFlushTimeout);
+
         // finish off the life-cycle
 
         assertFalse("appender not closed before shutdown", appender.isClosed());
@@ -421,6 +471,82 @@ public class TestCloudWatchAppender
     }
 
 
+    @Test
+    public void testBlockedAppendDoesNotStallOtherThreads() throws Exception
+    {
+        initialize("TestCloudWatchAppender/testBlockedAppend.properties");
+
+        // this writer blocks on a specific message, as if it were waiting for room
+        // in its queue
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        appender.setWriterFactory(new WriterFactory<CloudWatchWriterConfig,CloudWatchWriterStatistics>()
+        {
+            @Override
+            public LogWriter newLogWriter(CloudWatchWriterConfig config, CloudWatchWriterStatistics stats, InternalLogger ignored)
+            {
+                return new MockCloudWatchWriter(config)
+                {
+                    @Override
+                    public void addMessage(LogMessage message)
+                    {
+                        if (message.getMessage().equals("blocked"))
+                        {
+                            blocked.countDown();
+                            try
+                            {
+                                release.await();
+                            }
+                            catch (InterruptedException ex)
+                            { /* nothing to do */ }
+                        }
+                        synchronized (this)
+                        {
+                            super.addMessage(message);
+                        }
+                    }
+                };
+            }
+        });
+
+        // log4j synchronizes on the logger, so we call the appender directly
+
+        Thread blockedThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                appender.doAppend(new LoggingEvent(getClass().getName(), logger, Level.INFO, "blocked", null));
+            }
+        });
+        blockedThread.start();
+        assertTrue("writer was called",                 blocked.await(1, TimeUnit.SECONDS));
+
+        Thread otherThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                appender.doAppend(new LoggingEvent(getClass().getName(), logger, Level.INFO, "not blocked", null));
+            }
+        });
+        otherThread.start();
+        otherThread.join(1000);
+
+        MockCloudWatchWriter writer = appender.getMockWriter();
+        assertFalse("other thread finished",            otherThread.isAlive());
+        assertEquals("messages written while blocked",  1,                  writer.messages.size());
+        assertEquals("message written while blocked",   "not blocked",      writer.getMessage(0));
+
+        release.countDown();
+        blockedThread.join();
+
+        assertEquals("messages written after release",  2,                  writer.messages.size());
+        assertEquals("message written after release",   "blocked",          writer.getMessage(1));
+    }
+
+
     @Test
     public void testReconfigureDiscardProperties() throws Exception
     {
@@ -435,14 +561,27 @@ public class TestCloudWatchAppender
 
         assertEquals("initial discard threshold, from writer",      12345,                              writer.discardThreshold);
         assertEquals("initial discard action, from writer",         DiscardAction.newest,               writer.discardAction);
+        assertEquals("initial discard bytes, from writer",          1000000L,                           writer.discardThresholdBytes);
+        assertEquals("initial enqueue timeout, from writer",        250L,                               writer.enqueueTimeout);
 
         appender.setDiscardThreshold(54321);
         appender.setDiscardAction(DiscardAction.oldest.toString());
+        appender.setDiscardThresholdBytes(2000000);
 
         assertEquals("updated discard threshold, from appender",    54321,                              appender.getDiscardThreshold());
         assertEquals("updated discard action, from appender",       DiscardAction.oldest.toString(),    appender.getDiscardAction());
 
         assertEquals("updated discard threshold, from writer",      54321,                              writer.discardThreshold);
         assertEquals("updated discard action, from writer",         DiscardAction.oldest,               writer.discardAction);
+        assertEquals("updated discard bytes, from writer",          2000000L,                           writer.discardThresholdBytes);
+
+        appender.setDiscardAction(DiscardAction.block.toString());
+        appender.setEnqueueTimeout(500);
+
+        assertEquals("blocking discard action, from appender",      DiscardAction.block.toString(),     appender.getDiscardAction());
+        assertEquals("updated enqueue timeout, from appender",      500L,                               appender.getEnqueueTimeout());
+
+        assertEquals("blocking discard action, from writer",        DiscardAction.block,                writer.discardAction);
+        assertEquals("updated enqueue timeout, from writer",        500L,                               writer.enqueueTimeout);
     }
 }
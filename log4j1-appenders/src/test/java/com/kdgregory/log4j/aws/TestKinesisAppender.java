@@ -98,8 +98,30 @@ public class TestKinesisAppender
         assertEquals("discard action",      "newest",                           appender.getDiscardAction());
         assertEquals("client factory",      "com.example.Foo.bar",              appender.getClientFactory());
         assertEquals("client endpoint",     "kinesis.us-west-1.amazonaws.com",  appender.getClientEndpoint());
+        assertEquals("discard bytes",       1048576L,                           appender.getDiscardThresholdBytes());
+        assertEquals("queue type",          "ring",                             appender.getQueueType());
+        assertEquals("spill directory",     "/tmp/spill",                       appender.getSpillDirectory());
+        assertEquals("spill max bytes",     2097152L,                           appender.getSpillMaxBytes());
+        assertEquals("priority lanes",      true,                               appender.getPriorityLanes());
+        assertEquals("pipelined",           true,                               appender.getPipelined());
+        assertEquals("min batch delay",     50L,                                appender.getMinBatchDelay());
+        assertEquals("max batch delay",     5000L,                              appender.getMaxBatchDelay());
+        assertEquals("batch fill",          75,                                 appender.getBatchFillPercent());
+        assertEquals("max latency",         5000L,                              appender.getMaxLatency());
+        assertEquals("breaker threshold",   3,                                  appender.getCircuitBreakerThreshold());
+        assertEquals("breaker min",         500L,                               appender.getCircuitBreakerMinInterval());
+        assertEquals("breaker max",         30000L,                             appender.getCircuitBreakerMaxInterval());
+        assertEquals("dispatch mode",       "shared",                           appender.getDispatchMode());
+        assertEquals("wal directory",       "/tmp/wal",                         appender.getWalDirectory());
+        assertEquals("wal max bytes",       4194304L,                           appender.getWalMaxBytes());
+        assertEquals("wal sync interval",   250L,                               appender.getWalSyncInterval());
         assertTrue("autoCreate",                                                appender.isAutoCreate());
         assertEquals("shard count",         7,                                  appender.getShardCount());
+        assertEquals("parallel requests",   4,                                  appender.getParallelRequests());
+        assertTrue("aggregate records",                                         appender.isAggregateRecords());
+        assertEquals("compression",         "gzip",                             appender.getCompression());
+        assertEquals("shard assignment",    "leastLoaded",                      appender.getShardAssignment());
+        assertTrue("shard rate limit",                                          appender.isShardRateLimit());
         assertEquals("retention period",    48,                                 appender.getRetentionPeriod());
     }
 
@@ -116,8 +138,30 @@ public class TestKinesisAppender
         assertEquals("discard action",      "oldest",                           appender.getDiscardAction());
         assertEquals("client factory",      null,                               appender.getClientFactory());
         assertEquals("client endpoint",     null,                               appender.getClientEndpoint());
+        assertEquals("discard bytes",       0L,                                 appender.getDiscardThresholdBytes());
+        assertEquals("queue type",          "deque",                            appender.getQueueType());
+        assertEquals("spill directory",     null,                               appender.getSpillDirectory());
+        assertEquals("spill max bytes",     104857600L,                         appender.getSpillMaxBytes());
+        assertEquals("priority lanes",      false,                              appender.getPriorityLanes());
+        assertEquals("pipelined",           false,                              appender.getPipelined());
+        assertEquals("min batch delay",     0L,                                 appender.getMinBatchDelay());
+        assertEquals("max batch delay",     0L,                                 appender.getMaxBatchDelay());
+        assertEquals("batch fill",          0,                                  appender.getBatchFillPercent());
+        assertEquals("max latency",         0L,                                 appender.getMaxLatency());
+        assertEquals("breaker threshold",   0,                                  appender.getCircuitBreakerThreshold());
+        assertEquals("breaker min",         1000L,                              appender.getCircuitBreakerMinInterval());
+        assertEquals("breaker max",         60000L,                             appender.getCircuitBreakerMaxInterval());
+        assertEquals("dispatch mode",       "dedicated",                        appender.getDispatchMode());
+        assertEquals("wal directory",       null,                               appender.getWalDirectory());
+        assertEquals("wal max bytes",       104857600L,                         appender.getWalMaxBytes());
+        assertEquals("wal sync interval",   100L,                               appender.getWalSyncInterval());
         assertFalse("autoCreate",                                                appender.isAutoCreate());
         assertEquals("shard count",         1,                                  appender.getShardCount());
+        assertEquals("parallel requests",   1,                                  appender.getParallelRequests());
+        assertFalse("aggregate records",                                        appender.isAggregateRecords());
+        assertEquals("compression",         "none",                             appender.getCompression());
+        assertEquals("shard assignment",    "none",                             appender.getShardAssignment());
+        assertFalse("shard rate limit",                                         appender.isShardRateLimit());
         assertEquals("retention period",    24,                                 appender.getRetentionPeriod());
     }
 
@@ -17,6 +17,7 @@ package com.kdgregory.log4j.aws.internal;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.Priority;
@@ -24,6 +25,7 @@ import org.apache.log4j.spi.LoggingEvent;
 
 import com.kdgregory.log4j.aws.internal.Utils;
 import com.kdgregory.logging.common.LogMessage;
+import com.kdgregory.logging.common.util.Severity;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -109,4 +111,22 @@ public class TestLogMessageConversion
         assertEquals("explicit timestamp",  timestamp,      message.getTimestamp());
         assertEquals("message as string",   expectedText,   message.getMessage());
     }
+
+
+    @Test
+    public void testSeverityFromLevel() throws Exception
+    {
+        LoggingEvent event = createLoggingEvent(System.currentTimeMillis(), "test", null);
+        LogMessage message = Utils.convertToLogMessage(event, new PatternLayout());
+
+        assertEquals("severity from event",     Severity.debug,     message.getSeverity());
+
+        assertEquals("TRACE",                   Severity.debug,     Utils.convertToSeverity(Level.TRACE));
+        assertEquals("DEBUG",                   Severity.debug,     Utils.convertToSeverity(Level.DEBUG));
+        assertEquals("INFO",                    Severity.info,      Utils.convertToSeverity(Level.INFO));
+        assertEquals("WARN",                    Severity.warn,      Utils.convertToSeverity(Level.WARN));
+        assertEquals("ERROR",                   Severity.error,     Utils.convertToSeverity(Level.ERROR));
+        assertEquals("FATAL",                   Severity.error,     Utils.convertToSeverity(Level.FATAL));
+        assertEquals("null",                    Severity.info,      Utils.convertToSeverity(null));
+    }
 }